@@ -1639,7 +1639,7 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
                                        drafts.getUriSnippet(),
                                        System.currentTimeMillis(), Types.BASE_DRAFT_TYPE, true);
         } else if (threadId > 0) {
-          threadDatabase.update(threadId, false);
+          threadDatabase.verify(threadId);
         }
 
         return threadId;
@@ -33,13 +33,16 @@ import com.annimon.stream.Stream;
 
 import org.thoughtcrime.securesms.ConversationAdapter.HeaderViewHolder;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.FastCursorRecyclerViewAdapter;
+import org.thoughtcrime.securesms.database.MessageAttachmentCache;
 import org.thoughtcrime.securesms.database.MmsSmsColumns;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
 import org.thoughtcrime.securesms.mms.GlideRequests;
+import org.thoughtcrime.securesms.mms.Slide;
 import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.Conversions;
@@ -57,6 +60,7 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -75,10 +79,13 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   implements StickyHeaderDecoration.StickyHeaderAdapter<HeaderViewHolder>
 {
 
-  private static final int MAX_CACHE_SIZE = 40;
+  private static final int MAX_CACHE_SIZE            = 40;
+  private static final int ATTACHMENT_WINDOW_SIZE    = 30;
+  private static final int MAX_ATTACHMENT_CACHE_SIZE = 120;
   private static final String TAG = ConversationAdapter.class.getSimpleName();
   private final Map<String,SoftReference<MessageRecord>> messageRecordCache =
       Collections.synchronizedMap(new LRUCache<String, SoftReference<MessageRecord>>(MAX_CACHE_SIZE));
+  private final MessageAttachmentCache attachmentCache = new MessageAttachmentCache(MAX_ATTACHMENT_CACHE_SIZE);
 
   private static final int MESSAGE_TYPE_OUTGOING           = 0;
   private static final int MESSAGE_TYPE_INCOMING           = 1;
@@ -185,6 +192,7 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   @Override
   public void changeCursor(Cursor cursor) {
     messageRecordCache.clear();
+    attachmentCache.clear();
     super.cleanFastRecords();
     super.changeCursor(cursor);
   }
@@ -276,11 +284,10 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
 
   @Override
   public long getItemId(@NonNull Cursor cursor) {
-    List<DatabaseAttachment> attachments        = DatabaseFactory.getAttachmentDatabase(getContext()).getAttachment(cursor);
-    List<DatabaseAttachment> messageAttachments = Stream.of(attachments).filterNot(DatabaseAttachment::isQuote).toList();
+    String fastPreflightId = getFastPreflightId(cursor);
 
-    if (messageAttachments.size() > 0 && messageAttachments.get(0).getFastPreflightId() != null) {
-      return Long.valueOf(messageAttachments.get(0).getFastPreflightId());
+    if (fastPreflightId != null) {
+      return Long.valueOf(fastPreflightId);
     }
 
     final String unique = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsColumns.UNIQUE_ROW_ID));
@@ -312,16 +319,92 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
       if (record != null) return record;
     }
 
-    final MessageRecord messageRecord = db.readerFor(cursor).getCurrent();
+    if (MmsSmsDatabase.MMS_TRANSPORT.equals(type) && needsAttachments(cursor, messageId)) {
+      loadAttachmentWindow(cursor);
+    }
+
+    final MessageRecord messageRecord = db.readerFor(cursor, attachmentCache).getCurrent();
     messageRecordCache.put(type + messageId, new SoftReference<>(messageRecord));
 
     return messageRecord;
   }
 
+  private @Nullable String getFastPreflightId(@NonNull Cursor cursor) {
+    int preflightColumn = cursor.getColumnIndex(AttachmentDatabase.FAST_PREFLIGHT_ID);
+
+    if (preflightColumn != -1) {
+      return cursor.getString(preflightColumn);
+    }
+
+    List<DatabaseAttachment> attachments        = DatabaseFactory.getAttachmentDatabase(getContext()).getAttachment(cursor);
+    List<DatabaseAttachment> messageAttachments = Stream.of(attachments).filterNot(DatabaseAttachment::isQuote).toList();
+
+    if (messageAttachments.size() > 0) {
+      return messageAttachments.get(0).getFastPreflightId();
+    }
+
+    return null;
+  }
+
+  private boolean needsAttachments(@NonNull Cursor cursor, long messageId) {
+    int countColumn = cursor.getColumnIndex(AttachmentDatabase.ATTACHMENT_COUNT_ALIAS);
+    return countColumn != -1 && cursor.getInt(countColumn) > 0 && !attachmentCache.contains(messageId);
+  }
+
+  /**
+   * Fills the attachment cache for the rows surrounding the cursor's position with a single query,
+   * so that binding the visible window doesn't query attachments one message at a time.
+   */
+  private void loadAttachmentWindow(@NonNull Cursor cursor) {
+    int        position = cursor.getPosition();
+    int        start    = Math.max(0, position - ATTACHMENT_WINDOW_SIZE / 2);
+    int        end      = Math.min(cursor.getCount(), position + ATTACHMENT_WINDOW_SIZE / 2 + 1);
+    List<Long> mmsIds   = new LinkedList<>();
+
+    for (int i = start; i < end && cursor.moveToPosition(i); i++) {
+      long   messageId = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
+      String type      = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
+
+      if (MmsSmsDatabase.MMS_TRANSPORT.equals(type) && needsAttachments(cursor, messageId)) {
+        mmsIds.add(messageId);
+      }
+    }
+
+    cursor.moveToPosition(position);
+
+    long[] ids = new long[mmsIds.size()];
+
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = mmsIds.get(i);
+    }
+
+    attachmentCache.putAll(DatabaseFactory.getAttachmentDatabase(getContext()).getAttachmentsForMessages(ids));
+  }
+
   public void close() {
     getCursor().close();
   }
 
+  /**
+   * @return The slide a single-thumbnail row at this position shows, or null if it shows something
+   * else. Resolving a row loads attachments for the rows around it in one batch.
+   */
+  @Nullable Slide getThumbnailSlide(int position) {
+    if (position < 0 || position >= getItemCount() || isHeaderPosition(position) || isFooterPosition(position)) {
+      return null;
+    }
+
+    MessageRecord messageRecord = getRecordForPositionOrThrow(position);
+
+    if (messageRecord.isUpdate() || hasAudio(messageRecord) || hasDocument(messageRecord) || !hasThumbnail(messageRecord)) {
+      return null;
+    }
+
+    List<Slide> slides = ((MmsMessageRecord) messageRecord).getSlideDeck().getThumbnailSlides();
+
+    return slides.size() == 1 ? slides.get(0) : null;
+  }
+
   public int findLastSeenPosition(long lastSeen) {
     if (lastSeen <= 0)     return -1;
     if (!isActiveCursor()) return -1;
@@ -70,6 +70,7 @@ import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.loaders.ConversationLoader;
+import org.thoughtcrime.securesms.database.model.ConversationAnchor;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
@@ -101,7 +102,9 @@ public class ConversationFragment extends Fragment
   implements LoaderManager.LoaderCallbacks<Cursor>
 {
   private static final String TAG       = ConversationFragment.class.getSimpleName();
-  private static final String KEY_LIMIT = "limit";
+  private static final String KEY_LIMIT    = "limit";
+  private static final String KEY_NEWER    = "newer";
+  private static final String KEY_ANCHORED = "anchored";
 
   private static final int PARTIAL_CONVERSATION_LIMIT = 500;
   private static final int SCROLL_ANIMATION_THRESHOLD = 50;
@@ -116,7 +119,8 @@ public class ConversationFragment extends Fragment
   private long                        threadId;
   private long                        lastSeen;
   private int                         startingPosition;
-  private int                         previousOffset;
+  private ConversationAnchor          windowAnchor;
+  private int                         windowLimit;
   private boolean                     firstLoad;
   private long                        loaderStartTime;
   private ActionMode                  actionMode;
@@ -154,8 +158,8 @@ public class ConversationFragment extends Fragment
 
     topLoadMoreView    = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
     bottomLoadMoreView = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
-    initializeLoadMoreView(topLoadMoreView);
-    initializeLoadMoreView(bottomLoadMoreView);
+    initializeLoadMoreView(topLoadMoreView, false);
+    initializeLoadMoreView(bottomLoadMoreView, true);
 
     typingView = (ConversationTypingView) inflater.inflate(R.layout.conversation_typing_view, container, false);
 
@@ -239,6 +243,7 @@ public class ConversationFragment extends Fragment
 
     OnScrollListener scrollListener = new ConversationScrollListener(getActivity());
     list.addOnScrollListener(scrollListener);
+    list.addOnScrollListener(new ConversationThumbnailPrefetcher(getActivity(), GlideApp.with(this)));
   }
 
   private void initializeListAdapter() {
@@ -252,10 +257,13 @@ public class ConversationFragment extends Fragment
     }
   }
 
-  private void initializeLoadMoreView(ViewSwitcher loadMoreView) {
+  private void initializeLoadMoreView(ViewSwitcher loadMoreView, boolean newer) {
+    loadMoreView.setDisplayedChild(0);
     loadMoreView.setOnClickListener(v -> {
       Bundle args = new Bundle();
-      args.putInt(KEY_LIMIT, 0);
+      args.putInt(KEY_LIMIT, windowLimit + PARTIAL_CONVERSATION_LIMIT);
+      args.putInt(KEY_NEWER, newer ? PARTIAL_CONVERSATION_LIMIT : 0);
+      args.putBoolean(KEY_ANCHORED, true);
       getLoaderManager().restartLoader(0, args, ConversationFragment.this);
       loadMoreView.showNext();
       loadMoreView.setOnClickListener(null);
@@ -555,14 +563,18 @@ public class ConversationFragment extends Fragment
     Log.i(TAG, "onCreateLoader");
     loaderStartTime = System.currentTimeMillis();
 
-    int limit  = args.getInt(KEY_LIMIT, PARTIAL_CONVERSATION_LIMIT);
-    int offset = 0;
-    if (limit != 0 && startingPosition >= limit) {
+    int                limit    = args.getInt(KEY_LIMIT, PARTIAL_CONVERSATION_LIMIT);
+    int                newer    = args.getInt(KEY_NEWER, 0);
+    boolean            anchored = args.getBoolean(KEY_ANCHORED, false);
+    ConversationAnchor anchor   = anchored ? windowAnchor : null;
+    int                offset   = 0;
+
+    if (!anchored && limit != 0 && startingPosition >= limit) {
       offset = Math.max(startingPosition - (limit / 2) + 1, 0);
       startingPosition -= offset - 1;
     }
 
-    return new ConversationLoader(getActivity(), threadId, offset, limit, lastSeen);
+    return new ConversationLoader(getActivity(), threadId, offset, anchor, limit, newer, lastSeen);
   }
 
   @Override
@@ -577,7 +589,11 @@ public class ConversationFragment extends Fragment
       return;
     }
 
-    if (cursor.getCount() >= PARTIAL_CONVERSATION_LIMIT && loader.hasLimit()) {
+    windowAnchor = loader.getAnchor();
+    windowLimit  = loader.getLimit();
+
+    if (loader.hasLimit() && cursor.getCount() >= loader.getLimit()) {
+      initializeLoadMoreView(topLoadMoreView, false);
       adapter.setFooterView(topLoadMoreView);
     } else {
       adapter.setFooterView(null);
@@ -593,9 +609,9 @@ public class ConversationFragment extends Fragment
       clearHeaderIfNotTyping(adapter);
     }
 
-    if (loader.hasOffset()) {
+    if (loader.hasNewer()) {
+      initializeLoadMoreView(bottomLoadMoreView, true);
       adapter.setHeaderView(bottomLoadMoreView);
-      previousOffset = loader.getOffset();
     }
 
     adapter.changeCursor(cursor);
@@ -613,15 +629,14 @@ public class ConversationFragment extends Fragment
         scrollToLastSeenPosition(lastSeenPosition);
       }
       firstLoad = false;
-    } else if (previousOffset > 0) {
-      int scrollPosition = previousOffset + ((LinearLayoutManager) list.getLayoutManager()).findFirstVisibleItemPosition();
+    } else if (loader.getAddedNewer() > 0) {
+      int scrollPosition = loader.getAddedNewer() + ((LinearLayoutManager) list.getLayoutManager()).findFirstVisibleItemPosition();
       scrollPosition = Math.min(scrollPosition, count - 1);
 
       View firstView = list.getLayoutManager().getChildAt(scrollPosition);
       int pixelOffset = (firstView == null) ? 0 : (firstView.getBottom() - list.getPaddingBottom());
 
       ((LinearLayoutManager) list.getLayoutManager()).scrollToPositionWithOffset(scrollPosition, pixelOffset);
-      previousOffset = 0;
     }
 
     if (lastSeenPosition <= 0) {
@@ -0,0 +1,153 @@
+package org.thoughtcrime.securesms;
+
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.RecyclerView.OnScrollListener;
+
+import com.bumptech.glide.request.target.Target;
+
+import org.thoughtcrime.securesms.components.ConversationItemThumbnail;
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.mms.GlideRequests;
+import org.thoughtcrime.securesms.mms.Slide;
+import org.thoughtcrime.securesms.util.LRUCache;
+
+import java.util.Map;
+
+/**
+ * Warms the memory cache with the thumbnails of the rows a scroll is about to reveal. How far
+ * ahead to look is predicted from the scroll velocity, and outstanding loads are cancelled when
+ * the scroll changes direction.
+ *
+ * Tracks how many thumbnail rows were already prefetched by the time they became visible, and
+ * logs that hit rate whenever scrolling settles.
+ */
+class ConversationThumbnailPrefetcher extends OnScrollListener {
+
+  private static final String TAG = ConversationThumbnailPrefetcher.class.getSimpleName();
+
+  private static final int   MIN_ROWS_AHEAD     = 2;
+  private static final int   MAX_ROWS_AHEAD     = 16;
+  private static final long  LOOKAHEAD_MS       = 400;
+  private static final float VELOCITY_SMOOTHING = 0.3f;
+  private static final int   MAX_TRACKED        = 100;
+
+  private final Context             context;
+  private final GlideRequests       glideRequests;
+  private final Map<Uri, Target<?>> prefetched = new LRUCache<>(MAX_TRACKED);
+  private final Map<Uri, Boolean>   seen       = new LRUCache<>(MAX_TRACKED);
+
+  private long  lastScrollTime;
+  private float velocity;
+  private int   direction;
+  private int   lastFirstVisible = -1;
+  private int   lastLastVisible  = -1;
+  private int   hits;
+  private int   misses;
+
+  ConversationThumbnailPrefetcher(@NonNull Context context, @NonNull GlideRequests glideRequests) {
+    this.context       = context.getApplicationContext();
+    this.glideRequests = glideRequests;
+  }
+
+  @Override
+  public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+    if (!(recyclerView.getAdapter() instanceof ConversationAdapter) || recyclerView.getChildCount() == 0) return;
+
+    ConversationAdapter adapter       = (ConversationAdapter) recyclerView.getAdapter();
+    LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+    int                 firstVisible  = layoutManager.findFirstVisibleItemPosition();
+    int                 lastVisible   = layoutManager.findLastVisibleItemPosition();
+
+    if (firstVisible == RecyclerView.NO_POSITION || lastVisible == RecyclerView.NO_POSITION) return;
+
+    if (firstVisible != lastFirstVisible || lastVisible != lastLastVisible) {
+      recordVisibleRows(adapter, firstVisible, lastVisible);
+      lastFirstVisible = firstVisible;
+      lastLastVisible  = lastVisible;
+    }
+
+    if (dy == 0) return;
+
+    long now     = SystemClock.uptimeMillis();
+    long elapsed = Math.max(1, now - lastScrollTime);
+
+    velocity       = lastScrollTime == 0 ? Math.abs(dy) / 16f
+                                         : VELOCITY_SMOOTHING * (Math.abs(dy) / (float) elapsed) + (1 - VELOCITY_SMOOTHING) * velocity;
+    lastScrollTime = now;
+
+    int newDirection = (dy > 0) != layoutManager.getReverseLayout() ? 1 : -1;
+
+    if (newDirection != direction) {
+      cancelAll();
+      direction = newDirection;
+    }
+
+    int rowHeight = Math.max(1, recyclerView.getHeight() / Math.max(1, lastVisible - firstVisible + 1));
+    int rowsAhead = Math.round(velocity * LOOKAHEAD_MS / rowHeight);
+
+    rowsAhead = Math.max(MIN_ROWS_AHEAD, Math.min(MAX_ROWS_AHEAD, rowsAhead));
+
+    int start = direction > 0 ? lastVisible + 1 : firstVisible - 1;
+
+    for (int i = 0; i < rowsAhead; i++) {
+      prefetch(adapter, start + i * direction);
+    }
+  }
+
+  @Override
+  public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+    if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+      lastScrollTime = 0;
+      velocity       = 0;
+
+      if (hits + misses > 0) {
+        Log.i(TAG, "Prefetch hit rate: " + hits + "/" + (hits + misses) + " (" + (100 * hits / (hits + misses)) + "%)");
+      }
+    }
+  }
+
+  private void prefetch(@NonNull ConversationAdapter adapter, int position) {
+    Slide slide = adapter.getThumbnailSlide(position);
+
+    if (slide == null || slide.getThumbnailUri() == null) return;
+    if (prefetched.containsKey(slide.getThumbnailUri()) || seen.containsKey(slide.getThumbnailUri())) return;
+
+    Target<?> target = ConversationItemThumbnail.preload(context, glideRequests, slide);
+
+    if (target != null) {
+      prefetched.put(slide.getThumbnailUri(), target);
+    }
+  }
+
+  private void recordVisibleRows(@NonNull ConversationAdapter adapter, int firstVisible, int lastVisible) {
+    boolean counting = lastFirstVisible != -1;
+
+    for (int position = firstVisible; position <= lastVisible; position++) {
+      Slide slide = adapter.getThumbnailSlide(position);
+      Uri   uri   = slide != null ? slide.getThumbnailUri() : null;
+
+      if (uri == null || seen.containsKey(uri)) continue;
+
+      seen.put(uri, true);
+
+      if (counting) {
+        if (prefetched.remove(uri) != null) hits++;
+        else                                misses++;
+      }
+    }
+  }
+
+  private void cancelAll() {
+    for (Target<?> target : prefetched.values()) {
+      glideRequests.clear(target);
+    }
+
+    prefetched.clear();
+  }
+}
@@ -45,7 +45,9 @@ import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase.Reader;
 import org.thoughtcrime.securesms.database.PushDatabase;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.jobs.AttachmentDeduplicationJob;
 import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob;
+import org.thoughtcrime.securesms.jobs.AttachmentFormatMigrationJob;
 import org.thoughtcrime.securesms.jobs.CreateSignedPreKeyJob;
 import org.thoughtcrime.securesms.jobs.DirectoryRefreshJob;
 import org.thoughtcrime.securesms.jobs.PushDecryptJob;
@@ -95,6 +97,8 @@ public class DatabaseUpgradeActivity extends BaseActivity {
   public static final int WORKMANAGER_MIGRATION                = 408;
   public static final int COLOR_MIGRATION                      = 412;
   public static final int UNIDENTIFIED_DELIVERY                = 422;
+  public static final int CHUNKED_ATTACHMENTS                  = 438;
+  public static final int ATTACHMENT_DEDUPLICATION             = 439;
 
   private static final SortedSet<Integer> UPGRADE_VERSIONS = new TreeSet<Integer>() {{
     add(NO_MORE_KEY_EXCHANGE_PREFIX_VERSION);
@@ -121,6 +125,8 @@ public class DatabaseUpgradeActivity extends BaseActivity {
     add(WORKMANAGER_MIGRATION);
     add(COLOR_MIGRATION);
     add(UNIDENTIFIED_DELIVERY);
+    add(CHUNKED_ATTACHMENTS);
+    add(ATTACHMENT_DEDUPLICATION);
   }};
 
   private MasterSecret masterSecret;
@@ -371,6 +377,20 @@ public class DatabaseUpgradeActivity extends BaseActivity {
                           .add(new RefreshAttributesJob(context));
       }
 
+      if (params[0] < CHUNKED_ATTACHMENTS) {
+        Log.i(TAG, "Scheduling attachment format migration.");
+        ApplicationContext.getInstance(context)
+                          .getJobManager()
+                          .add(new AttachmentFormatMigrationJob(context));
+      }
+
+      if (params[0] < ATTACHMENT_DEDUPLICATION) {
+        Log.i(TAG, "Scheduling attachment deduplication.");
+        ApplicationContext.getInstance(context)
+                          .getJobManager()
+                          .add(new AttachmentDeduplicationJob(context));
+      }
+
       return null;
     }
 
@@ -52,6 +52,7 @@ import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 import org.thoughtcrime.securesms.animation.AnimationCompleteListener;
+import org.thoughtcrime.securesms.backup.BackupKeyDerivation;
 import org.thoughtcrime.securesms.backup.FullBackupBase;
 import org.thoughtcrime.securesms.backup.FullBackupImporter;
 import org.thoughtcrime.securesms.components.registration.CallMeCountDownView;
@@ -113,6 +114,7 @@ public class RegistrationActivity extends BaseActionBarActivity implements Verif
   private static final int    SCENE_TRANSITION_DURATION = 250;
   private static final int    DEBUG_TAP_TARGET          = 8;
   private static final int    DEBUG_TAP_ANNOUNCE        = 4;
+  private static final long   KEY_DERIVATION_POLL_MS    = 100;
   public static final  String CHALLENGE_EVENT           = "org.thoughtcrime.securesms.CHALLENGE_EVENT";
   public static final  String CHALLENGE_EXTRA           = "CAAChallenge";
   public static final  String RE_REGISTRATION_EXTRA     = "re_registration";
@@ -138,6 +140,7 @@ public class RegistrationActivity extends BaseActionBarActivity implements Verif
   private TextView               restoreBackupTime;
   private TextView               restoreBackupSize;
   private TextView               restoreBackupProgress;
+  private Runnable               keyDerivationPoller = this::pollKeyDerivation;
   private CircularProgressButton restoreButton;
 
   private View                   pinContainer;
@@ -395,12 +398,13 @@ public class RegistrationActivity extends BaseActionBarActivity implements Verif
 
                 FullBackupImporter.importFile(context,
                                               AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                              database, backup.getFile(), passphrase);
+                                              database, backup.getFile(), backup.getDeltas(), passphrase);
 
                 DatabaseFactory.upgradeRestored(context, database);
                 NotificationChannels.restoreContactNotificationChannels(context);
 
                 TextSecurePreferences.setBackupEnabled(context, true);
+                DatabaseFactory.getBackupJournalDatabase(context).setEnabled(true);
                 TextSecurePreferences.setBackupPassphrase(context, passphrase);
                 return BackupImportResult.SUCCESS;
               } catch (FullBackupImporter.DatabaseDowngradeException e) {
@@ -416,6 +420,7 @@ public class RegistrationActivity extends BaseActionBarActivity implements Verif
             protected void onPostExecute(@NonNull BackupImportResult result) {
               restoreButton.setIndeterminateProgressMode(false);
               restoreButton.setProgress(0);
+              restoreBackupProgress.removeCallbacks(keyDerivationPoller);
               restoreBackupProgress.setText("");
 
               switch (result) {
@@ -1038,8 +1043,16 @@ public class RegistrationActivity extends BaseActionBarActivity implements Verif
 
   @Subscribe(threadMode = ThreadMode.MAIN)
   public void onEvent(FullBackupBase.BackupEvent event) {
-    if (event.getCount() == 0) restoreBackupProgress.setText(R.string.RegistrationActivity_checking);
-    else                       restoreBackupProgress.setText(getString(R.string.RegistrationActivity_d_messages_so_far, event.getCount()));
+    restoreBackupProgress.removeCallbacks(keyDerivationPoller);
+
+    if      (event.getCount() == 0)            pollKeyDerivation();
+    else if (event.getPercentComplete() == -1) restoreBackupProgress.setText(getString(R.string.RegistrationActivity_d_messages_so_far, event.getCount()));
+    else                                       restoreBackupProgress.setText(getString(R.string.RegistrationActivity_d_messages_so_far_d_percent, event.getCount(), event.getPercentComplete()));
+  }
+
+  private void pollKeyDerivation() {
+    restoreBackupProgress.setText(getString(R.string.RegistrationActivity_checking_d_percent, BackupKeyDerivation.getProgress()));
+    restoreBackupProgress.postDelayed(keyDerivationPoller, KEY_DERIVATION_POLL_MS);
   }
 
   private class ChallengeReceiver extends BroadcastReceiver {
@@ -4,15 +4,18 @@ package org.thoughtcrime.securesms.attachments;
 import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.NonNull;
-import org.thoughtcrime.securesms.logging.Log;
+import android.support.annotation.Nullable;
 
 import org.spongycastle.util.encoders.Hex;
+import org.thoughtcrime.securesms.crypto.RandomAccessDecryptor;
+import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.mms.PartAuthority;
+import org.thoughtcrime.securesms.util.LRUCache;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -24,26 +27,48 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.security.MessageDigest;
+import java.util.HashSet;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
+ * Streams a decrypted attachment to media players over loopback HTTP.
+ *
+ * Clients are served concurrently and may keep their connections alive across requests, since
+ * players issue overlapping range requests while seeking. Each server has its own pool of
+ * connection threads, and an idle kept-alive connection is closed once another one is waiting
+ * for a thread. Attachments in the part database are
+ * decrypted through one shared random access decryptor and a small cache of decrypted chunks.
+ *
  * @author      Stefan "frostymarvelous" Froelich <stefan d0t froelich At whisppa DoT com>
  */
 public class AttachmentServer implements Runnable {
 
   private static final String TAG = AttachmentServer.class.getSimpleName();
 
-  private final Context      context;
-  private final Attachment   attachment;
-  private final ServerSocket socket;
-  private final int          port;
-  private final String       auth;
+  private static final int MAX_CONNECTIONS   = 8;
+  private static final int KEEP_ALIVE_MILLIS = 5000;
+  private static final int CHUNK_SIZE        = 64 * 1024;
+  private static final int CHUNK_CACHE_SIZE  = 16;
+
+  private final Context                context;
+  private final Attachment             attachment;
+  private final ServerSocket           socket;
+  private final int                    port;
+  private final String                 auth;
+  private final LRUCache<Long, byte[]> chunks  = new LRUCache<>(CHUNK_CACHE_SIZE);
+  private final Set<Socket>            clients = new HashSet<>();
+  private final ExecutorService        executor;
 
   private volatile boolean isRunning;
 
+  private @Nullable RandomAccessDecryptor decryptor;
+  private           boolean               decryptorOpened;
+
   public AttachmentServer(Context context, Attachment attachment)
       throws IOException
   {
@@ -53,6 +78,7 @@ public class AttachmentServer implements Runnable {
       this.socket       = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
       this.port         = socket.getLocalPort();
       this.auth         = new String(Hex.encode(Util.getSecretBytes(16)));
+      this.executor     = SignalExecutors.newCachedBoundedExecutor("signal-attachment-server", MAX_CONNECTIONS);
 
       this.socket.setSoTimeout(5000);
     } catch (UnknownHostException e) {
@@ -71,101 +97,181 @@ public class AttachmentServer implements Runnable {
 
   public void stop() {
     isRunning = false;
+
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+
+    synchronized (clients) {
+      for (Socket client : clients) {
+        try {
+          client.close();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+
+    executor.shutdownNow();
   }
 
   @Override
   public void run() {
     while (isRunning) {
-      Socket client = null;
-
       try {
-        client = socket.accept();
+        Socket client = socket.accept();
 
         if (client != null) {
-          StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client, "/" + auth);
+          synchronized (clients) {
+            clients.add(client);
+          }
 
-          if (task.processRequest()) {
-            task.execute();
+          try {
+            executor.execute(new StreamToMediaPlayerTask(client, "/" + auth));
+          } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Server stopped while accepting a client.");
+            client.close();
           }
         }
-
       } catch (SocketTimeoutException e) {
         Log.w(TAG, e);
       } catch (IOException e) {
-        Log.e(TAG, "Error connecting to client", e);
-      } finally {
-        try {if (client != null) client.close();} catch (IOException e) {}
+        if (isRunning) Log.e(TAG, "Error connecting to client", e);
       }
     }
 
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+
+    closeDecryptor();
+
     Log.d(TAG, "Proxy interrupted. Shutting down.");
   }
 
+  private synchronized @Nullable RandomAccessDecryptor getDecryptor() {
+    if (!decryptorOpened && isRunning) {
+      decryptorOpened = true;
+
+      try {
+        decryptor = PartAuthority.getRandomAccessDecryptor(context, attachment.getDataUri());
+      } catch (IOException e) {
+        Log.w(TAG, "Falling back to streaming", e);
+      }
+    }
+
+    return decryptor;
+  }
+
+  private synchronized void closeDecryptor() {
+    decryptorOpened = true;
 
-  private class StreamToMediaPlayerTask {
+    if (decryptor != null) {
+      try {
+        decryptor.close();
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+
+      decryptor = null;
+    }
+  }
+
+  private @NonNull byte[] getChunk(@NonNull RandomAccessDecryptor decryptor, long index) throws IOException {
+    synchronized (chunks) {
+      byte[] chunk = chunks.get(index);
+      if (chunk != null) return chunk;
+    }
+
+    long   start = index * CHUNK_SIZE;
+    byte[] chunk = new byte[Util.toIntExact(Math.min(CHUNK_SIZE, decryptor.getLength() - start))];
+    int    read  = 0;
+
+    while (read < chunk.length) {
+      int count = decryptor.read(start + read, chunk, read, chunk.length - read);
+
+      if (count == -1) throw new IOException("Unexpected end of attachment");
+      read += count;
+    }
+
+    synchronized (chunks) {
+      chunks.put(index, chunk);
+    }
+
+    return chunk;
+  }
+
+  private class StreamToMediaPlayerTask implements Runnable {
 
     private final @NonNull Socket client;
     private final @NonNull String auth;
 
-    private long       cbSkip;
-    private Properties parameters;
-    private Properties request;
-    private Properties requestHeaders;
-//    private String filePath;
-
     public StreamToMediaPlayerTask(@NonNull Socket client, @NonNull String auth) {
       this.client = client;
       this.auth   = auth;
     }
 
-    public boolean processRequest() throws IOException {
-            InputStream is         = client.getInputStream();
-      final int         bufferSize = 8192;
-            byte[]      buffer     = new byte[bufferSize];
-            int         splitByte  = 0;
-            int         readLength = 0;
-
-      {
-        int read = is.read(buffer, 0, bufferSize);
-        while (read > 0) {
-          readLength += read;
-          splitByte = findHeaderEnd(buffer, readLength);
-          if (splitByte > 0)
-            break;
-          read = is.read(buffer, readLength, bufferSize - readLength);
-        }
-      }
+    @Override
+    public void run() {
+      try {
+        client.setSoTimeout(KEEP_ALIVE_MILLIS);
 
-      // Create a BufferedReader for parsing the header.
-      ByteArrayInputStream hbis = new ByteArrayInputStream(buffer, 0, readLength);
-      BufferedReader       hin  = new BufferedReader(new InputStreamReader(hbis));
+        BufferedReader in  = new BufferedReader(new InputStreamReader(client.getInputStream()));
+        OutputStream   out = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
 
-      request        = new Properties();
-      parameters     = new Properties();
-      requestHeaders = new Properties();
+        while (isRunning && processRequest(in, out) && !isSaturated()) {
+          Log.d(TAG, "Keeping connection alive.");
+        }
+      } catch (SocketException socketException) {
+        Log.w(TAG, "SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
+      } catch (IOException e) {
+        Log.w(TAG, "Exception thrown from streaming task", e);
+      } finally {
+        synchronized (clients) {
+          clients.remove(client);
+        }
 
-      try {
-        decodeHeader(hin, request, parameters, requestHeaders);
-      } catch (InterruptedException e1) {
-        Log.e(TAG, "Exception: " + e1.getMessage());
-        e1.printStackTrace();
+        try {
+          client.close();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
       }
+    }
 
-      for (Map.Entry<Object, Object> e : requestHeaders.entrySet()) {
-        Log.i(TAG, "Header: " + e.getKey() + " : " + e.getValue());
+    /**
+     * @return True if another connection is waiting for a thread, in which case this one shouldn't
+     *         be kept alive.
+     */
+    private boolean isSaturated() {
+      synchronized (clients) {
+        return clients.size() > MAX_CONNECTIONS;
       }
+    }
 
-      String range = requestHeaders.getProperty("range");
+    /**
+     * Serves a single request from the connection.
+     *
+     * @return True if the connection should be kept alive for another request.
+     */
+    private boolean processRequest(@NonNull BufferedReader in, @NonNull OutputStream out) throws IOException {
+      Properties request        = new Properties();
+      Properties parameters     = new Properties();
+      Properties requestHeaders = new Properties();
 
-      if (range != null) {
-        Log.i(TAG, "range is: " + range);
-        range = range.substring(6);
-        int charPos = range.indexOf('-');
-        if (charPos > 0) {
-          range = range.substring(0, charPos);
-        }
-        cbSkip = Long.parseLong(range);
-        Log.i(TAG, "range found!! " + cbSkip);
+      try {
+        decodeHeader(in, request, parameters, requestHeaders);
+      } catch (InterruptedException e) {
+        Log.e(TAG, "Exception: " + e.getMessage());
+        return false;
+      }
+
+      if (request.getProperty("method") == null) {
+        return false;
       }
 
       if (!"GET".equals(request.get("method"))) {
@@ -180,89 +286,135 @@ public class AttachmentServer implements Runnable {
         return false;
       }
 
-//      filePath = request.getProperty("uri");
+      RandomAccessDecryptor decryptor = getDecryptor();
+      long                  fileSize  = decryptor != null ? decryptor.getLength() : attachment.getSize();
+      String                range     = requestHeaders.getProperty("range");
+      boolean               keepAlive = !"close".equalsIgnoreCase(requestHeaders.getProperty("connection"));
+      long                  start     = 0;
+      long                  end       = fileSize - 1;
 
-      return true;
-    }
+      String headers = "";
 
-    protected void execute() throws IOException {
-      InputStream inputStream = PartAuthority.getAttachmentStream(context, attachment.getDataUri());
-      long        fileSize    = attachment.getSize();
+      if (range != null) {
+        long[] bounds = parseRange(range, fileSize);
+
+        if (bounds == null) {
+          headers += "HTTP/1.1 416 Range Not Satisfiable\r\n";
+          headers += "Content-Range: bytes */" + fileSize + "\r\n";
+          headers += "Content-Length: 0\r\n";
+          headers += "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n";
+          headers += "\r\n";
+
+          out.write(headers.getBytes());
+          out.flush();
+          return keepAlive;
+        }
+
+        start = bounds[0];
+        end   = bounds[1];
 
-      String headers = "";
-      if (cbSkip > 0) {// It is a seek or skip request if there's a Range
-        // header
         headers += "HTTP/1.1 206 Partial Content\r\n";
-        headers += "Content-Type: " + attachment.getContentType() + "\r\n";
-        headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + (fileSize - cbSkip) + "\r\n";
-        headers += "Content-Range: bytes " + cbSkip + "-" + (fileSize - 1) + "/" + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
-        headers += "\r\n";
+        headers += "Content-Range: bytes " + start + "-" + end + "/" + fileSize + "\r\n";
       } else {
         headers += "HTTP/1.1 200 OK\r\n";
-        headers += "Content-Type: " + attachment.getContentType() + "\r\n";
-        headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
-        headers += "\r\n";
       }
 
+      headers += "Content-Type: " + attachment.getContentType() + "\r\n";
+      headers += "Accept-Ranges: bytes\r\n";
+      headers += "Content-Length: " + (end - start + 1) + "\r\n";
+      headers += "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n";
+      headers += "\r\n";
+
       Log.i(TAG, "headers: " + headers);
 
-      OutputStream output = null;
-      byte[] buff = new byte[64 * 1024];
-      try {
-        output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
-        output.write(headers.getBytes());
+      out.write(headers.getBytes());
 
-        inputStream.skip(cbSkip);
-//        dataSource.skipFully(data, cbSkip);//try to skip as much as possible
+      if (decryptor != null) writeDecrypted(decryptor, out, start, end);
+      else                   writeStreamed(out, start, end);
 
-        // Loop as long as there's stuff to send and client has not closed
-        int cbRead;
-        while (!client.isClosed() && (cbRead = inputStream.read(buff, 0, buff.length)) != -1) {
-          output.write(buff, 0, cbRead);
-        }
-      }
-      catch (SocketException socketException) {
-        Log.e(TAG, "SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
-      }
-      catch (Exception e) {
-        Log.e(TAG, "Exception thrown from streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
+      out.flush();
+
+      return keepAlive;
+    }
+
+    private void writeDecrypted(@NonNull RandomAccessDecryptor decryptor, @NonNull OutputStream out, long start, long end)
+        throws IOException
+    {
+      long position = start;
+
+      while (position <= end && !client.isClosed()) {
+        byte[] chunk       = getChunk(decryptor, position / CHUNK_SIZE);
+        int    chunkOffset = (int) (position % CHUNK_SIZE);
+        int    count       = Util.toIntExact(Math.min(chunk.length - chunkOffset, end - position + 1));
+
+        out.write(chunk, chunkOffset, count);
+        position += count;
       }
+    }
 
-      // Cleanup
-      try {
-        if (output != null) {
-          output.close();
+    private void writeStreamed(@NonNull OutputStream out, long start, long end) throws IOException {
+      try (InputStream inputStream = PartAuthority.getAttachmentStream(context, attachment.getDataUri())) {
+        byte[] buffer    = new byte[64 * 1024];
+        long   remaining = end - start + 1;
+        long   skipped   = 0;
+
+        while (skipped < start) {
+          int read = inputStream.read(buffer, 0, Util.toIntExact(Math.min(buffer.length, start - skipped)));
+
+          if (read == -1) throw new IOException("Unable to skip to " + start);
+          skipped += read;
+        }
+
+        while (remaining > 0 && !client.isClosed()) {
+          int read = inputStream.read(buffer, 0, Util.toIntExact(Math.min(buffer.length, remaining)));
+
+          if (read == -1) throw new IOException("Unexpected end of attachment");
+
+          out.write(buffer, 0, read);
+          remaining -= read;
         }
-        client.close();
-      }
-      catch (IOException e) {
-        Log.e(TAG, "IOException while cleaning up streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
-        e.printStackTrace();
       }
     }
 
     /**
-     * Find byte index separating header from body. It must be the last byte of
-     * the first two sequential new lines.
-     **/
-    private int findHeaderEnd(final byte[] buf, int rlen) {
-      int splitbyte = 0;
-      while (splitbyte + 3 < rlen) {
-        if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n'
-            && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n')
-          return splitbyte + 4;
-        splitbyte++;
+     * Parses the first range of a "bytes=" range header.
+     *
+     * @return The inclusive start and end of the range, or null if it can't be satisfied.
+     */
+    private @Nullable long[] parseRange(@NonNull String range, long fileSize) {
+      if (!range.startsWith("bytes=")) return null;
+
+      String spec  = range.substring(6);
+      int    comma = spec.indexOf(',');
+
+      if (comma >= 0) spec = spec.substring(0, comma);
+
+      int dash = spec.indexOf('-');
+
+      if (dash < 0) return null;
+
+      try {
+        String first = spec.substring(0, dash).trim();
+        String last  = spec.substring(dash + 1).trim();
+        long   start;
+        long   end;
+
+        if (first.isEmpty()) {
+          start = Math.max(0, fileSize - Long.parseLong(last));
+          end   = fileSize - 1;
+        } else {
+          start = Long.parseLong(first);
+          end   = last.isEmpty() ? fileSize - 1 : Math.min(Long.parseLong(last), fileSize - 1);
+        }
+
+        if (start > end || start >= fileSize) return null;
+        else                                  return new long[] {start, end};
+      } catch (NumberFormatException e) {
+        Log.w(TAG, e);
+        return null;
       }
-      return 0;
     }
 
-
     /**
      * Decodes the sent headers and loads the data into java Properties' key -
      * value pairs
@@ -275,14 +427,18 @@ public class AttachmentServer implements Runnable {
         if (inLine == null)
           return;
         StringTokenizer st = new StringTokenizer(inLine);
-        if (!st.hasMoreTokens())
+        if (!st.hasMoreTokens()) {
           Log.e(TAG, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+          return;
+        }
 
         String method = st.nextToken();
         pre.put("method", method);
 
-        if (!st.hasMoreTokens())
+        if (!st.hasMoreTokens()) {
           Log.e(TAG, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+          return;
+        }
 
         String uri = st.nextToken();
 
@@ -13,10 +13,12 @@ import android.widget.Toast;
 
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.components.SwitchPreferenceCompat;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.service.LocalBackupListener;
 import org.thoughtcrime.securesms.util.BackupUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
 
 public class BackupDialog {
 
@@ -36,6 +38,7 @@ public class BackupDialog {
         if (confirmationCheckBox.isChecked()) {
           TextSecurePreferences.setBackupPassphrase(context, Util.join(password, " "));
           TextSecurePreferences.setBackupEnabled(context, true);
+          SignalExecutors.IO.execute(() -> DatabaseFactory.getBackupJournalDatabase(context).setEnabled(true));
           LocalBackupListener.schedule(context);
 
           preference.setChecked(true);
@@ -77,6 +80,7 @@ public class BackupDialog {
                    .setPositiveButton(R.string.BackupDialog_delete_backups_statement, (dialog, which) -> {
                      TextSecurePreferences.setBackupPassphrase(context, null);
                      TextSecurePreferences.setBackupEnabled(context, false);
+                     SignalExecutors.IO.execute(() -> DatabaseFactory.getBackupJournalDatabase(context).setEnabled(false));
                      BackupUtil.deleteAllBackups();
                      preference.setChecked(false);
                    })
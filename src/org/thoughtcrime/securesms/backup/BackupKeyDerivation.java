@@ -0,0 +1,195 @@
+package org.thoughtcrime.securesms.backup;
+
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.spongycastle.crypto.generators.SCrypt;
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.whispersystems.libsignal.util.ByteUtil;
+
+import java.io.IOException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Derives the backup key from the passphrase. The derivation a backup was written with is
+ * recorded in its header: backups without a KDF version use the original iterated SHA-512, newer
+ * ones use scrypt with the parameters stored alongside it.
+ *
+ * The scrypt work factor is calibrated once per device, by timing a derivation, so that a key
+ * takes roughly {@link #TARGET_DURATION_MS} to derive. Only the parallelism is scaled, which costs
+ * time without costing more memory on whatever device later restores the backup.
+ *
+ * Parameters read from a backup are bounded, so a header can't ask for more memory or time than
+ * a backup written by this class would need.
+ *
+ * Progress is exposed through {@link #getProgress()} for the UI to poll, so the derivation loop
+ * neither allocates nor posts events.
+ */
+public class BackupKeyDerivation {
+
+  private static final String TAG = BackupKeyDerivation.class.getSimpleName();
+
+  static final int KDF_LEGACY = 0;
+  static final int KDF_SCRYPT = 1;
+
+  private static final int LEGACY_ITERATIONS    = 250000;
+  private static final int LEGACY_PROGRESS_MASK = 1023;
+
+  private static final int  SCRYPT_COST            = 14;
+  private static final int  SCRYPT_BLOCK_SIZE      = 8;
+  private static final int  SCRYPT_MAX_PARALLELISM = 16;
+  private static final long TARGET_DURATION_MS     = 1000;
+
+  private static final int KEY_LENGTH = 32;
+
+  private static volatile int progress;
+  private static volatile int total = 1;
+
+  /**
+   * @return How far the derivation that's currently running has got, from 0 to 100.
+   */
+  public static int getProgress() {
+    return (int) Math.min(100, progress * 100L / total);
+  }
+
+  static @NonNull byte[] deriveKey(@NonNull String passphrase, @Nullable byte[] salt, @NonNull Parameters parameters)
+      throws IOException
+  {
+    long   startTime = System.currentTimeMillis();
+    byte[] key;
+
+    switch (parameters.version) {
+      case KDF_LEGACY: key = deriveLegacyKey(passphrase, salt);             break;
+      case KDF_SCRYPT: key = deriveScryptKey(passphrase, salt, parameters); break;
+      default:         throw new IOException("Unsupported key derivation: " + parameters.version);
+    }
+
+    Log.i(TAG, "Derived key with " + parameters + " in " + (System.currentTimeMillis() - startTime) + " ms");
+
+    return key;
+  }
+
+  /**
+   * @return The scrypt parameters for new backups, calibrating them for this device first if
+   *         that hasn't been done yet.
+   */
+  static @NonNull Parameters getParameters(@NonNull Context context) {
+    int parallelism = TextSecurePreferences.getBackupKdfParallelism(context);
+
+    if (parallelism == -1) {
+      parallelism = calibrateParallelism();
+      TextSecurePreferences.setBackupKdfParallelism(context, parallelism);
+    }
+
+    return new Parameters(KDF_SCRYPT, SCRYPT_COST, SCRYPT_BLOCK_SIZE, parallelism);
+  }
+
+  private static int calibrateParallelism() {
+    long startTime = System.currentTimeMillis();
+
+    SCrypt.generate(new byte[KEY_LENGTH], new byte[KEY_LENGTH], 1 << SCRYPT_COST, SCRYPT_BLOCK_SIZE, 1, KEY_LENGTH);
+
+    long duration    = Math.max(1, System.currentTimeMillis() - startTime);
+    int  parallelism = (int) Math.max(1, Math.min(SCRYPT_MAX_PARALLELISM, TARGET_DURATION_MS / duration));
+
+    Log.i(TAG, "Calibrated scrypt parallelism to " + parallelism + " (" + duration + " ms per lane)");
+
+    return parallelism;
+  }
+
+  private static @NonNull byte[] deriveScryptKey(@NonNull String passphrase, @Nullable byte[] salt, @NonNull Parameters parameters)
+      throws IOException
+  {
+    if (parameters.cost        < 1 || parameters.cost        > SCRYPT_COST       ||
+        parameters.blockSize   < 1 || parameters.blockSize   > SCRYPT_BLOCK_SIZE ||
+        parameters.parallelism < 1 || parameters.parallelism > SCRYPT_MAX_PARALLELISM)
+    {
+      throw new IOException("Unsupported key derivation parameters: " + parameters);
+    }
+
+    start(1);
+
+    byte[] key = SCrypt.generate(passphrase.replace(" ", "").getBytes(), salt != null ? salt : new byte[0],
+                                 1 << parameters.cost, parameters.blockSize, parameters.parallelism, KEY_LENGTH);
+
+    progress = 1;
+
+    return key;
+  }
+
+  private static @NonNull byte[] deriveLegacyKey(@NonNull String passphrase, @Nullable byte[] salt) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-512");
+      byte[]        input  = passphrase.replace(" ", "").getBytes();
+      byte[]        hash   = new byte[digest.getDigestLength()];
+
+      start(LEGACY_ITERATIONS);
+
+      if (salt != null) digest.update(salt);
+
+      digest.update(input);
+      digest.update(input);
+      digest.digest(hash, 0, hash.length);
+
+      for (int i=1;i<LEGACY_ITERATIONS;i++) {
+        if ((i & LEGACY_PROGRESS_MASK) == 0) progress = i;
+
+        digest.update(hash);
+        digest.update(input);
+        digest.digest(hash, 0, hash.length);
+      }
+
+      progress = LEGACY_ITERATIONS;
+
+      return ByteUtil.trim(hash, KEY_LENGTH);
+    } catch (NoSuchAlgorithmException | DigestException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void start(int steps) {
+    progress = 0;
+    total    = steps;
+  }
+
+  static class Parameters {
+
+    static final Parameters LEGACY = new Parameters(KDF_LEGACY, 0, 0, 0);
+
+    final int version;
+    final int cost;
+    final int blockSize;
+    final int parallelism;
+
+    Parameters(int version, int cost, int blockSize, int parallelism) {
+      this.version     = version;
+      this.cost        = cost;
+      this.blockSize   = blockSize;
+      this.parallelism = parallelism;
+    }
+
+    static @NonNull Parameters fromHeader(@NonNull BackupProtos.Header header) {
+      if (!header.hasKdfVersion()) return LEGACY;
+
+      return new Parameters(header.getKdfVersion(), header.getKdfCost(), header.getKdfBlockSize(), header.getKdfParallelism());
+    }
+
+    void writeTo(@NonNull BackupProtos.Header.Builder header) {
+      header.setKdfVersion(version)
+            .setKdfCost(cost)
+            .setKdfBlockSize(blockSize)
+            .setKdfParallelism(parallelism);
+    }
+
+    @Override
+    public @NonNull String toString() {
+      if (version == KDF_LEGACY) return "legacy SHA-512";
+      else                       return "kdf " + version + " (cost: " + cost + ", block size: " + blockSize + ", parallelism: " + parallelism + ")";
+    }
+  }
+}
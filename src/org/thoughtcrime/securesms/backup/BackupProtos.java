@@ -3950,6 +3950,46 @@ public final class BackupProtos {
      * <code>optional bytes salt = 2;</code>
      */
     com.google.protobuf.ByteString getSalt();
+
+    // optional uint32 kdfVersion = 3;
+    /**
+     * <code>optional uint32 kdfVersion = 3;</code>
+     */
+    boolean hasKdfVersion();
+    /**
+     * <code>optional uint32 kdfVersion = 3;</code>
+     */
+    int getKdfVersion();
+
+    // optional uint32 kdfCost = 4;
+    /**
+     * <code>optional uint32 kdfCost = 4;</code>
+     */
+    boolean hasKdfCost();
+    /**
+     * <code>optional uint32 kdfCost = 4;</code>
+     */
+    int getKdfCost();
+
+    // optional uint32 kdfBlockSize = 5;
+    /**
+     * <code>optional uint32 kdfBlockSize = 5;</code>
+     */
+    boolean hasKdfBlockSize();
+    /**
+     * <code>optional uint32 kdfBlockSize = 5;</code>
+     */
+    int getKdfBlockSize();
+
+    // optional uint32 kdfParallelism = 6;
+    /**
+     * <code>optional uint32 kdfParallelism = 6;</code>
+     */
+    boolean hasKdfParallelism();
+    /**
+     * <code>optional uint32 kdfParallelism = 6;</code>
+     */
+    int getKdfParallelism();
   }
   /**
    * Protobuf type {@code signal.Header}
@@ -4012,6 +4052,26 @@ public final class BackupProtos {
               salt_ = input.readBytes();
               break;
             }
+            case 24: {
+              bitField0_ |= 0x00000004;
+              kdfVersion_ = input.readUInt32();
+              break;
+            }
+            case 32: {
+              bitField0_ |= 0x00000008;
+              kdfCost_ = input.readUInt32();
+              break;
+            }
+            case 40: {
+              bitField0_ |= 0x00000010;
+              kdfBlockSize_ = input.readUInt32();
+              break;
+            }
+            case 48: {
+              bitField0_ |= 0x00000020;
+              kdfParallelism_ = input.readUInt32();
+              break;
+            }
           }
         }
       } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -4084,9 +4144,77 @@ public final class BackupProtos {
       return salt_;
     }
 
+    // optional uint32 kdfVersion = 3;
+    public static final int KDFVERSION_FIELD_NUMBER = 3;
+    private int kdfVersion_;
+    /**
+     * <code>optional uint32 kdfVersion = 3;</code>
+     */
+    public boolean hasKdfVersion() {
+      return ((bitField0_ & 0x00000004) == 0x00000004);
+    }
+    /**
+     * <code>optional uint32 kdfVersion = 3;</code>
+     */
+    public int getKdfVersion() {
+      return kdfVersion_;
+    }
+
+    // optional uint32 kdfCost = 4;
+    public static final int KDFCOST_FIELD_NUMBER = 4;
+    private int kdfCost_;
+    /**
+     * <code>optional uint32 kdfCost = 4;</code>
+     */
+    public boolean hasKdfCost() {
+      return ((bitField0_ & 0x00000008) == 0x00000008);
+    }
+    /**
+     * <code>optional uint32 kdfCost = 4;</code>
+     */
+    public int getKdfCost() {
+      return kdfCost_;
+    }
+
+    // optional uint32 kdfBlockSize = 5;
+    public static final int KDFBLOCKSIZE_FIELD_NUMBER = 5;
+    private int kdfBlockSize_;
+    /**
+     * <code>optional uint32 kdfBlockSize = 5;</code>
+     */
+    public boolean hasKdfBlockSize() {
+      return ((bitField0_ & 0x00000010) == 0x00000010);
+    }
+    /**
+     * <code>optional uint32 kdfBlockSize = 5;</code>
+     */
+    public int getKdfBlockSize() {
+      return kdfBlockSize_;
+    }
+
+    // optional uint32 kdfParallelism = 6;
+    public static final int KDFPARALLELISM_FIELD_NUMBER = 6;
+    private int kdfParallelism_;
+    /**
+     * <code>optional uint32 kdfParallelism = 6;</code>
+     */
+    public boolean hasKdfParallelism() {
+      return ((bitField0_ & 0x00000020) == 0x00000020);
+    }
+    /**
+     * <code>optional uint32 kdfParallelism = 6;</code>
+     */
+    public int getKdfParallelism() {
+      return kdfParallelism_;
+    }
+
     private void initFields() {
       iv_ = com.google.protobuf.ByteString.EMPTY;
       salt_ = com.google.protobuf.ByteString.EMPTY;
+      kdfVersion_ = 0;
+      kdfCost_ = 0;
+      kdfBlockSize_ = 0;
+      kdfParallelism_ = 0;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -4106,6 +4234,18 @@ public final class BackupProtos {
       if (((bitField0_ & 0x00000002) == 0x00000002)) {
         output.writeBytes(2, salt_);
       }
+      if (((bitField0_ & 0x00000004) == 0x00000004)) {
+        output.writeUInt32(3, kdfVersion_);
+      }
+      if (((bitField0_ & 0x00000008) == 0x00000008)) {
+        output.writeUInt32(4, kdfCost_);
+      }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        output.writeUInt32(5, kdfBlockSize_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        output.writeUInt32(6, kdfParallelism_);
+      }
       getUnknownFields().writeTo(output);
     }
 
@@ -4123,6 +4263,22 @@ public final class BackupProtos {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(2, salt_);
       }
+      if (((bitField0_ & 0x00000004) == 0x00000004)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(3, kdfVersion_);
+      }
+      if (((bitField0_ & 0x00000008) == 0x00000008)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(4, kdfCost_);
+      }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(5, kdfBlockSize_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(6, kdfParallelism_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -4243,6 +4399,14 @@ public final class BackupProtos {
         bitField0_ = (bitField0_ & ~0x00000001);
         salt_ = com.google.protobuf.ByteString.EMPTY;
         bitField0_ = (bitField0_ & ~0x00000002);
+        kdfVersion_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000004);
+        kdfCost_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000008);
+        kdfBlockSize_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000010);
+        kdfParallelism_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000020);
         return this;
       }
 
@@ -4279,6 +4443,22 @@ public final class BackupProtos {
           to_bitField0_ |= 0x00000002;
         }
         result.salt_ = salt_;
+        if (((from_bitField0_ & 0x00000004) == 0x00000004)) {
+          to_bitField0_ |= 0x00000004;
+        }
+        result.kdfVersion_ = kdfVersion_;
+        if (((from_bitField0_ & 0x00000008) == 0x00000008)) {
+          to_bitField0_ |= 0x00000008;
+        }
+        result.kdfCost_ = kdfCost_;
+        if (((from_bitField0_ & 0x00000010) == 0x00000010)) {
+          to_bitField0_ |= 0x00000010;
+        }
+        result.kdfBlockSize_ = kdfBlockSize_;
+        if (((from_bitField0_ & 0x00000020) == 0x00000020)) {
+          to_bitField0_ |= 0x00000020;
+        }
+        result.kdfParallelism_ = kdfParallelism_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -4301,6 +4481,18 @@ public final class BackupProtos {
         if (other.hasSalt()) {
           setSalt(other.getSalt());
         }
+        if (other.hasKdfVersion()) {
+          setKdfVersion(other.getKdfVersion());
+        }
+        if (other.hasKdfCost()) {
+          setKdfCost(other.getKdfCost());
+        }
+        if (other.hasKdfBlockSize()) {
+          setKdfBlockSize(other.getKdfBlockSize());
+        }
+        if (other.hasKdfParallelism()) {
+          setKdfParallelism(other.getKdfParallelism());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -4400,6 +4592,138 @@ public final class BackupProtos {
         return this;
       }
 
+      // optional uint32 kdfVersion = 3;
+      private int kdfVersion_ ;
+      /**
+       * <code>optional uint32 kdfVersion = 3;</code>
+       */
+      public boolean hasKdfVersion() {
+        return ((bitField0_ & 0x00000004) == 0x00000004);
+      }
+      /**
+       * <code>optional uint32 kdfVersion = 3;</code>
+       */
+      public int getKdfVersion() {
+        return kdfVersion_;
+      }
+      /**
+       * <code>optional uint32 kdfVersion = 3;</code>
+       */
+      public Builder setKdfVersion(int value) {
+        bitField0_ |= 0x00000004;
+        kdfVersion_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional uint32 kdfVersion = 3;</code>
+       */
+      public Builder clearKdfVersion() {
+        bitField0_ = (bitField0_ & ~0x00000004);
+        kdfVersion_ = 0;
+        onChanged();
+        return this;
+      }
+
+      // optional uint32 kdfCost = 4;
+      private int kdfCost_ ;
+      /**
+       * <code>optional uint32 kdfCost = 4;</code>
+       */
+      public boolean hasKdfCost() {
+        return ((bitField0_ & 0x00000008) == 0x00000008);
+      }
+      /**
+       * <code>optional uint32 kdfCost = 4;</code>
+       */
+      public int getKdfCost() {
+        return kdfCost_;
+      }
+      /**
+       * <code>optional uint32 kdfCost = 4;</code>
+       */
+      public Builder setKdfCost(int value) {
+        bitField0_ |= 0x00000008;
+        kdfCost_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional uint32 kdfCost = 4;</code>
+       */
+      public Builder clearKdfCost() {
+        bitField0_ = (bitField0_ & ~0x00000008);
+        kdfCost_ = 0;
+        onChanged();
+        return this;
+      }
+
+      // optional uint32 kdfBlockSize = 5;
+      private int kdfBlockSize_ ;
+      /**
+       * <code>optional uint32 kdfBlockSize = 5;</code>
+       */
+      public boolean hasKdfBlockSize() {
+        return ((bitField0_ & 0x00000010) == 0x00000010);
+      }
+      /**
+       * <code>optional uint32 kdfBlockSize = 5;</code>
+       */
+      public int getKdfBlockSize() {
+        return kdfBlockSize_;
+      }
+      /**
+       * <code>optional uint32 kdfBlockSize = 5;</code>
+       */
+      public Builder setKdfBlockSize(int value) {
+        bitField0_ |= 0x00000010;
+        kdfBlockSize_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional uint32 kdfBlockSize = 5;</code>
+       */
+      public Builder clearKdfBlockSize() {
+        bitField0_ = (bitField0_ & ~0x00000010);
+        kdfBlockSize_ = 0;
+        onChanged();
+        return this;
+      }
+
+      // optional uint32 kdfParallelism = 6;
+      private int kdfParallelism_ ;
+      /**
+       * <code>optional uint32 kdfParallelism = 6;</code>
+       */
+      public boolean hasKdfParallelism() {
+        return ((bitField0_ & 0x00000020) == 0x00000020);
+      }
+      /**
+       * <code>optional uint32 kdfParallelism = 6;</code>
+       */
+      public int getKdfParallelism() {
+        return kdfParallelism_;
+      }
+      /**
+       * <code>optional uint32 kdfParallelism = 6;</code>
+       */
+      public Builder setKdfParallelism(int value) {
+        bitField0_ |= 0x00000020;
+        kdfParallelism_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional uint32 kdfParallelism = 6;</code>
+       */
+      public Builder clearKdfParallelism() {
+        bitField0_ = (bitField0_ & ~0x00000020);
+        kdfParallelism_ = 0;
+        onChanged();
+        return this;
+      }
+
       // @@protoc_insertion_point(builder_scope:signal.Header)
     }
 
@@ -6019,8 +6343,10 @@ public final class BackupProtos {
       "tachment\022\r\n\005rowId\030\001 \001(\004\022\024\n\014attachmentId\030" +
       "\002 \001(\004\022\016\n\006length\030\003 \001(\r\"&\n\006Avatar\022\014\n\004name\030",
       "\001 \001(\t\022\016\n\006length\030\002 \001(\r\"\"\n\017DatabaseVersion" +
-      "\022\017\n\007version\030\001 \001(\r\"\"\n\006Header\022\n\n\002iv\030\001 \001(\014\022" +
-      "\014\n\004salt\030\002 \001(\014\"\203\002\n\013BackupFrame\022\036\n\006header\030" +
+      "\022\017\n\007version\030\001 \001(\r\"u\n\006Header\022\n\n\002iv\030\001 \001(\014\022" +
+      "\014\n\004salt\030\002 \001(\014\022\022\n\nkdfVersion\030\003 \001(" +
+      "\r\022\017\n\007kdfCost\030\004 \001(\r\022\024\n\014kdfBlockSize\030" +
+      "\005 \001(\r\022\026\n\016kdfParallelism\030\006 \001(\r\"\203\002\n\013BackupFrame\022\036\n\006header\030" +
       "\001 \001(\0132\016.signal.Header\022\'\n\tstatement\030\002 \001(\013" +
       "2\024.signal.SqlStatement\022,\n\npreference\030\003 \001" +
       "(\0132\030.signal.SharedPreference\022&\n\nattachme" +
@@ -6076,7 +6402,7 @@ public final class BackupProtos {
           internal_static_signal_Header_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_signal_Header_descriptor,
-              new java.lang.String[] { "Iv", "Salt", });
+              new java.lang.String[] { "Iv", "Salt", "KdfVersion", "KdfCost", "KdfBlockSize", "KdfParallelism", });
           internal_static_signal_BackupFrame_descriptor =
             getDescriptor().getMessageTypes().get(6);
           internal_static_signal_BackupFrame_fieldAccessorTable = new
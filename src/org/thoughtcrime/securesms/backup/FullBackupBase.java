@@ -5,37 +5,26 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import org.greenrobot.eventbus.EventBus;
-import org.whispersystems.libsignal.util.ByteUtil;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
 
 public abstract class FullBackupBase {
 
   @SuppressWarnings("unused")
   private static final String TAG = FullBackupBase.class.getSimpleName();
 
+  /**
+   * A backup and the deltas written on top of it share a chain id. Each file carries the id and
+   * its sequence number in a preference frame for this file, which is read rather than restored.
+   */
+  static final String CHAIN_PREFERENCE_FILE = "org.thoughtcrime.securesms.backup.chain";
+
   static class BackupStream {
-    static @NonNull byte[] getBackupKey(@NonNull String passphrase, @Nullable byte[] salt) {
-      try {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
-
-        MessageDigest digest = MessageDigest.getInstance("SHA-512");
-        byte[]        input  = passphrase.replace(" ", "").getBytes();
-        byte[]        hash   = input;
-
-        if (salt != null) digest.update(salt);
-
-        for (int i=0;i<250000;i++) {
-          if (i % 1000 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
-          digest.update(hash);
-          hash = digest.digest(input);
-        }
-
-        return ByteUtil.trim(hash, 32);
-      } catch (NoSuchAlgorithmException e) {
-        throw new AssertionError(e);
-      }
+    static @NonNull byte[] getBackupKey(@NonNull String passphrase, @Nullable byte[] salt, @NonNull BackupKeyDerivation.Parameters parameters)
+        throws IOException
+    {
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
+      return BackupKeyDerivation.deriveKey(passphrase, salt, parameters);
     }
   }
 
@@ -46,11 +35,19 @@ public abstract class FullBackupBase {
     }
 
     private final Type type;
-    private final int count;
+    private final int  count;
+    private final long bytesRead;
+    private final long totalBytes;
 
     BackupEvent(Type type, int count) {
-      this.type  = type;
-      this.count = count;
+      this(type, count, 0, 0);
+    }
+
+    BackupEvent(Type type, int count, long bytesRead, long totalBytes) {
+      this.type       = type;
+      this.count      = count;
+      this.bytesRead  = bytesRead;
+      this.totalBytes = totalBytes;
     }
 
     public Type getType() {
@@ -60,6 +57,14 @@ public abstract class FullBackupBase {
     public int getCount() {
       return count;
     }
+
+    /**
+     * @return How much of the backup has been read, or -1 if the size of the backup isn't known.
+     */
+    public int getPercentComplete() {
+      if (totalBytes <= 0) return -1;
+      return (int) Math.min(100, bytesRead * 100 / totalBytes);
+    }
   }
 
 }
@@ -7,7 +7,6 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import com.annimon.stream.function.Consumer;
 import com.annimon.stream.function.Predicate;
 import com.google.protobuf.ByteString;
 
@@ -18,9 +17,13 @@ import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil;
+import org.thoughtcrime.securesms.crypto.ChunkedDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ChunkedPartCipher;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.BackupJournalDatabase;
 import org.thoughtcrime.securesms.database.GroupReceiptDatabase;
+import org.thoughtcrime.securesms.database.MessageIndexDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.MmsSmsColumns;
 import org.thoughtcrime.securesms.database.OneTimePreKeyDatabase;
@@ -32,9 +35,11 @@ import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.util.Conversions;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
 import org.whispersystems.libsignal.kdf.HKDFv3;
 import org.whispersystems.libsignal.util.ByteUtil;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -44,8 +49,18 @@ import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -60,53 +75,165 @@ public class FullBackupExporter extends FullBackupBase {
   @SuppressWarnings("unused")
   private static final String TAG = FullBackupExporter.class.getSimpleName();
 
+  private static final int MAX_PENDING_WRITES   = 256;
+  private static final int MAX_SERIALIZERS      = 3;
+  private static final int STREAM_CHUNK_SIZE    = 64 * 1024;
+  private static final int STREAM_BUFFER_CHUNKS = 16;
+
+  private static final int CHANGED_ROW_BATCH_SIZE = 500;
+
+  /**
+   * Rows are read on a reader thread, serialized into frames on a small pool, and attachment and
+   * avatar streams are decrypted ahead on their own thread. The calling thread takes the results
+   * in their original order and does all encryption and MACing, so the file is written exactly as
+   * it would be by a single thread. Every hand-off between stages is bounded.
+   */
   public static void export(@NonNull Context context,
                             @NonNull AttachmentSecret attachmentSecret,
                             @NonNull SQLiteDatabase input,
                             @NonNull File output,
-                            @NonNull String passphrase)
+                            @NonNull String passphrase,
+                            @NonNull String chainId)
       throws IOException
   {
-    BackupFrameOutputStream outputStream = new BackupFrameOutputStream(output, passphrase);
-    outputStream.writeDatabaseVersion(input.getVersion());
-
-    List<String> tables = exportSchema(input, outputStream);
-    int          count  = 0;
-
-    for (String table : tables) {
-      if (table.equals(SmsDatabase.TABLE_NAME) || table.equals(MmsDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> cursor.getInt(cursor.getColumnIndexOrThrow(MmsSmsColumns.EXPIRES_IN)) <= 0, null, count);
-      } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, count);
-      } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), cursor -> exportAttachment(attachmentSecret, cursor, outputStream), count);
-      } else if (!table.equals(SignedPreKeyDatabase.TABLE_NAME)       &&
-                 !table.equals(OneTimePreKeyDatabase.TABLE_NAME)      &&
-                 !table.equals(SessionDatabase.TABLE_NAME)            &&
-                 !table.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME) &&
-                 !table.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME))
-      {
-        count = exportTable(table, input, outputStream, null, null, count);
+    write(context, output, passphrase, pipeline -> {
+      pipeline.enqueue(createVersionFrame(input));
+      pipeline.enqueue(createChainFrame(chainId, 0));
+
+      List<String> tables = exportSchema(input, pipeline);
+      int          rows   = 0;
+
+      for (String table : tables) {
+        if (isExported(table)) {
+          rows = exportTable(table, input, pipeline, getPredicate(table, input), getPostProcess(table, attachmentSecret, pipeline), rows);
+        }
       }
+
+      return exportFiles(context, pipeline, rows);
+    });
+  }
+
+  /**
+   * Writes a delta on top of the backup identified by the chain id. It holds only the rows in the
+   * {@link BackupJournalDatabase} snapshot, each as a delete of the old row followed by an insert
+   * of the current one if it still exists, along with their attachments. Tables that aren't
+   * journaled, preferences and avatars are written in full.
+   */
+  public static void exportDelta(@NonNull Context context,
+                                 @NonNull AttachmentSecret attachmentSecret,
+                                 @NonNull SQLiteDatabase input,
+                                 @NonNull File output,
+                                 @NonNull String passphrase,
+                                 @NonNull String chainId,
+                                 int sequence)
+      throws IOException
+  {
+    write(context, output, passphrase, pipeline -> {
+      pipeline.enqueue(createVersionFrame(input));
+      pipeline.enqueue(createChainFrame(chainId, sequence));
+
+      Map<String, List<Long>> changes   = getJournaledChanges(input);
+      List<String>            journaled = Arrays.asList(BackupJournalDatabase.TABLES);
+      int                     rows      = 0;
+
+      for (String table : getTables(input)) {
+        if (!isExported(table)) continue;
+
+        Predicate<Cursor> predicate   = getPredicate(table, input);
+        PostProcess       postProcess = getPostProcess(table, attachmentSecret, pipeline);
+
+        if (!journaled.contains(table)) {
+          pipeline.enqueue(createStatementFrame("DELETE FROM " + table, new Object[0]));
+          rows = exportTable(table, input, pipeline, predicate, postProcess, rows);
+        } else if (changes.containsKey(table)) {
+          rows = exportChangedRows(table, input, pipeline, changes.get(table), predicate, postProcess, rows);
+        }
+      }
+
+      return exportFiles(context, pipeline, rows);
+    });
+  }
+
+  private static void write(@NonNull Context context, @NonNull File output, @NonNull String passphrase, @NonNull Reader reader)
+      throws IOException
+  {
+    BackupFrameOutputStream outputStream = new BackupFrameOutputStream(output, passphrase, BackupKeyDerivation.getParameters(context));
+    ExportPipeline          pipeline     = new ExportPipeline();
+    int                     count;
+
+    try {
+      pipeline.start(reader);
+      count = pipeline.drainTo(outputStream);
+    } finally {
+      pipeline.shutdown();
+      outputStream.close();
     }
 
+    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count));
+  }
+
+  private static @NonNull BackupProtos.BackupFrame createVersionFrame(@NonNull SQLiteDatabase input) {
+    return BackupProtos.BackupFrame.newBuilder()
+                                   .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(input.getVersion()))
+                                   .build();
+  }
+
+  private static @NonNull BackupProtos.BackupFrame createChainFrame(@NonNull String chainId, int sequence) {
+    return BackupProtos.BackupFrame.newBuilder()
+                                   .setPreference(BackupProtos.SharedPreference.newBuilder()
+                                                                               .setFile(CHAIN_PREFERENCE_FILE)
+                                                                               .setKey(chainId)
+                                                                               .setValue(String.valueOf(sequence)))
+                                   .build();
+  }
+
+  private static int exportFiles(@NonNull Context context, @NonNull ExportPipeline pipeline, int rows)
+      throws InterruptedException
+  {
     for (BackupProtos.SharedPreference preference : IdentityKeyUtil.getBackupRecord(context)) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-      outputStream.write(preference);
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++rows));
+      pipeline.enqueue(BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
     }
 
     for (File avatar : AvatarHelper.getAvatarFiles(context)) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-      outputStream.write(avatar.getName(), new FileInputStream(avatar), avatar.length());
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++rows));
+      pipeline.enqueue(new AvatarWrite(avatar));
     }
 
-    outputStream.writeEnd();
-    outputStream.close();
-    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count));
+    pipeline.enqueue(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+
+    return rows;
   }
 
-  private static List<String> exportSchema(@NonNull SQLiteDatabase input, @NonNull BackupFrameOutputStream outputStream)
-      throws IOException
+  private static boolean isExported(@NonNull String table) {
+    return !table.equals(SignedPreKeyDatabase.TABLE_NAME)       &&
+           !table.equals(OneTimePreKeyDatabase.TABLE_NAME)      &&
+           !table.equals(SessionDatabase.TABLE_NAME)            &&
+           !table.equals(MessageIndexDatabase.TABLE_NAME)       &&
+           !table.equals(BackupJournalDatabase.TABLE_NAME)      &&
+           !table.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME) &&
+           !table.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME);
+  }
+
+  private static @Nullable Predicate<Cursor> getPredicate(@NonNull String table, @NonNull SQLiteDatabase input) {
+    if (table.equals(SmsDatabase.TABLE_NAME) || table.equals(MmsDatabase.TABLE_NAME)) {
+      return cursor -> cursor.getInt(cursor.getColumnIndexOrThrow(MmsSmsColumns.EXPIRES_IN)) <= 0;
+    } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
+      return cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID)));
+    } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
+      return cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID)));
+    } else {
+      return null;
+    }
+  }
+
+  private static @Nullable PostProcess getPostProcess(@NonNull String table, @NonNull AttachmentSecret attachmentSecret, @NonNull ExportPipeline pipeline) {
+    if (table.equals(AttachmentDatabase.TABLE_NAME)) return cursor -> exportAttachment(attachmentSecret, cursor, pipeline);
+    else                                             return null;
+  }
+
+  private static List<String> exportSchema(@NonNull SQLiteDatabase input, @NonNull ExportPipeline pipeline)
+      throws InterruptedException
   {
     List<String> tables = new LinkedList<>();
 
@@ -126,7 +253,9 @@ public class FullBackupExporter extends FullBackupBase {
               tables.add(name);
             }
 
-            outputStream.write(BackupProtos.SqlStatement.newBuilder().setStatement(cursor.getString(0)).build());
+            pipeline.enqueue(BackupProtos.BackupFrame.newBuilder()
+                                                     .setStatement(BackupProtos.SqlStatement.newBuilder().setStatement(cursor.getString(0)))
+                                                     .build());
           }
         }
       }
@@ -135,98 +264,185 @@ public class FullBackupExporter extends FullBackupBase {
     return tables;
   }
 
+  private static @NonNull List<String> getTables(@NonNull SQLiteDatabase input) {
+    List<String> tables = new LinkedList<>();
+
+    try (Cursor cursor = input.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND sql IS NOT NULL", null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        tables.add(cursor.getString(0));
+      }
+    }
+
+    return tables;
+  }
+
+  /**
+   * @return The row ids in the journal snapshot, by table.
+   */
+  private static @NonNull Map<String, List<Long>> getJournaledChanges(@NonNull SQLiteDatabase input) {
+    Map<String, List<Long>> changes = new HashMap<>();
+    String[]                columns = new String[] { BackupJournalDatabase.TABLE, BackupJournalDatabase.ROW_ID };
+
+    try (Cursor cursor = input.query(BackupJournalDatabase.TABLE_NAME, columns, BackupJournalDatabase.SNAPSHOT + " = 1", null, null, null, BackupJournalDatabase.ROW_ID)) {
+      while (cursor != null && cursor.moveToNext()) {
+        List<Long> rowIds = changes.get(cursor.getString(0));
+
+        if (rowIds == null) {
+          rowIds = new ArrayList<>();
+          changes.put(cursor.getString(0), rowIds);
+        }
+
+        rowIds.add(cursor.getLong(1));
+      }
+    }
+
+    return changes;
+  }
+
   private static int exportTable(@NonNull   String table,
                                  @NonNull   SQLiteDatabase input,
-                                 @NonNull   BackupFrameOutputStream outputStream,
+                                 @NonNull   ExportPipeline pipeline,
                                  @Nullable  Predicate<Cursor> predicate,
-                                 @Nullable  Consumer<Cursor> postProcess,
+                                 @Nullable  PostProcess postProcess,
                                             int count)
-      throws IOException
+      throws InterruptedException
   {
     String template = "INSERT INTO " + table + " VALUES ";
 
     try (Cursor cursor = input.rawQuery("SELECT * FROM " + table, null)) {
-      while (cursor != null && cursor.moveToNext()) {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-
-        if (predicate == null || predicate.test(cursor)) {
-          StringBuilder                     statement        = new StringBuilder(template);
-          BackupProtos.SqlStatement.Builder statementBuilder = BackupProtos.SqlStatement.newBuilder();
-
-          statement.append('(');
-
-          for (int i=0;i<cursor.getColumnCount();i++) {
-            statement.append('?');
-
-            if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter(cursor.getString(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setDoubleParameter(cursor.getDouble(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(cursor.getLong(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setBlobParameter(ByteString.copyFrom(cursor.getBlob(i))));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_NULL) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setNullparameter(true));
-            } else {
-              throw new AssertionError("unknown type?"  + cursor.getType(i));
-            }
+      return exportRows(template, cursor, pipeline, predicate, postProcess, count);
+    }
+  }
 
-            if (i < cursor.getColumnCount()-1) {
-              statement.append(',');
-            }
-          }
+  private static int exportChangedRows(@NonNull   String table,
+                                       @NonNull   SQLiteDatabase input,
+                                       @NonNull   ExportPipeline pipeline,
+                                       @NonNull   List<Long> rowIds,
+                                       @Nullable  Predicate<Cursor> predicate,
+                                       @Nullable  PostProcess postProcess,
+                                                  int count)
+      throws InterruptedException
+  {
+    String template = "INSERT OR REPLACE INTO " + table + " VALUES ";
 
-          statement.append(')');
+    for (int i = 0; i < rowIds.size(); i += CHANGED_ROW_BATCH_SIZE) {
+      List<Long> batch = rowIds.subList(i, Math.min(rowIds.size(), i + CHANGED_ROW_BATCH_SIZE));
 
-          outputStream.write(statementBuilder.setStatement(statement.toString()).build());
+      for (long rowId : batch) {
+        pipeline.enqueue(createStatementFrame("DELETE FROM " + table + " WHERE rowid = ?", new Object[] {rowId}));
+      }
+
+      try (Cursor cursor = input.rawQuery("SELECT * FROM " + table + " WHERE rowid IN (" + TextUtils.join(",", batch) + ")", null)) {
+        count = exportRows(template, cursor, pipeline, predicate, postProcess, count);
+      }
+    }
+
+    return count;
+  }
+
+  private static int exportRows(@NonNull   String template,
+                                @Nullable  Cursor cursor,
+                                @NonNull   ExportPipeline pipeline,
+                                @Nullable  Predicate<Cursor> predicate,
+                                @Nullable  PostProcess postProcess,
+                                           int count)
+      throws InterruptedException
+  {
+    while (cursor != null && cursor.moveToNext()) {
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
 
-          if (postProcess != null) postProcess.accept(cursor);
+      if (predicate == null || predicate.test(cursor)) {
+        Object[] row = new Object[cursor.getColumnCount()];
+
+        for (int i=0;i<row.length;i++) {
+          switch (cursor.getType(i)) {
+            case Cursor.FIELD_TYPE_STRING:  row[i] = cursor.getString(i); break;
+            case Cursor.FIELD_TYPE_FLOAT:   row[i] = cursor.getDouble(i); break;
+            case Cursor.FIELD_TYPE_INTEGER: row[i] = cursor.getLong(i);   break;
+            case Cursor.FIELD_TYPE_BLOB:    row[i] = cursor.getBlob(i);   break;
+            case Cursor.FIELD_TYPE_NULL:    row[i] = null;                break;
+            default:                        throw new AssertionError("unknown type?"  + cursor.getType(i));
+          }
         }
+
+        pipeline.enqueue(() -> createInsertFrame(template, row));
+
+        if (postProcess != null) postProcess.accept(cursor);
       }
     }
 
     return count;
   }
 
-  private static void exportAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream) {
-    try {
-      long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID));
-      long uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.UNIQUE_ID));
-      long size     = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.SIZE));
+  private static @NonNull BackupProtos.BackupFrame createInsertFrame(@NonNull String template, @NonNull Object[] row) {
+    StringBuilder statement = new StringBuilder(template);
 
-      String data   = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA));
-      byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_RANDOM));
+    statement.append('(');
 
-      if (!TextUtils.isEmpty(data) && size <= 0) {
-        size = calculateVeryOldStreamLength(attachmentSecret, random, data);
+    for (int i=0;i<row.length;i++) {
+      statement.append('?');
+
+      if (i < row.length-1) {
+        statement.append(',');
       }
+    }
 
-      if (!TextUtils.isEmpty(data) && size > 0) {
-        InputStream inputStream;
+    statement.append(')');
 
-        if (random != null && random.length == 32) inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
-        else                                       inputStream = ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
+    return createStatementFrame(statement.toString(), row);
+  }
 
-        outputStream.write(new AttachmentId(rowId, uniqueId), inputStream, size);
+  private static @NonNull BackupProtos.BackupFrame createStatementFrame(@NonNull String statement, @NonNull Object[] parameters) {
+    BackupProtos.SqlStatement.Builder statementBuilder = BackupProtos.SqlStatement.newBuilder();
+
+    for (Object parameter : parameters) {
+      if (parameter instanceof String) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter((String) parameter));
+      } else if (parameter instanceof Double) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setDoubleParameter((Double) parameter));
+      } else if (parameter instanceof Long) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter((Long) parameter));
+      } else if (parameter instanceof byte[]) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setBlobParameter(ByteString.copyFrom((byte[]) parameter)));
+      } else {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setNullparameter(true));
       }
-    } catch (IOException e) {
-      Log.w(TAG, e);
     }
+
+    return BackupProtos.BackupFrame.newBuilder().setStatement(statementBuilder.setStatement(statement)).build();
+  }
+
+  private static void exportAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull ExportPipeline pipeline)
+      throws InterruptedException
+  {
+    long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID));
+    long uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.UNIQUE_ID));
+    long size     = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.SIZE));
+
+    String data   = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA));
+    byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_RANDOM));
+
+    if (!TextUtils.isEmpty(data)) {
+      pipeline.enqueue(new AttachmentWrite(attachmentSecret, new AttachmentId(rowId, uniqueId), data, random, size));
+    }
+  }
+
+  private static @NonNull InputStream getAttachmentStream(@NonNull AttachmentSecret attachmentSecret, @Nullable byte[] random, @NonNull String data) throws IOException {
+    if      (ChunkedPartCipher.isChunked(random))   return ChunkedDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
+    else if (random != null && random.length == 32) return ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
+    else                                            return ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
   }
 
   private static long calculateVeryOldStreamLength(@NonNull AttachmentSecret attachmentSecret, @Nullable byte[] random, @NonNull String data) throws IOException {
     long result = 0;
-    InputStream inputStream;
-
-    if (random != null && random.length == 32) inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
-    else                                       inputStream = ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
 
-    int read;
-    byte[] buffer = new byte[8192];
+    try (InputStream inputStream = getAttachmentStream(attachmentSecret, random, data)) {
+      int read;
+      byte[] buffer = new byte[8192];
 
-    while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
-      result += read;
+      while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
+        result += read;
+      }
     }
 
     return result;
@@ -246,6 +462,304 @@ public class FullBackupExporter extends FullBackupBase {
     return false;
   }
 
+  private interface PostProcess {
+    void accept(@NonNull Cursor cursor) throws InterruptedException;
+  }
+
+  private interface Reader {
+    int read(@NonNull ExportPipeline pipeline) throws IOException, InterruptedException;
+  }
+
+  private interface PendingWrite {
+    void writeTo(@NonNull BackupFrameOutputStream outputStream) throws IOException, InterruptedException;
+  }
+
+  /**
+   * Connects the stages of an export. The reader enqueues writes in file order, and
+   * {@link #drainTo(BackupFrameOutputStream)} performs them in that same order.
+   */
+  private static class ExportPipeline {
+
+    private final BlockingQueue<Object> pending      = new ArrayBlockingQueue<>(MAX_PENDING_WRITES);
+    private final ExecutorService       reader       = SignalExecutors.newCachedSingleThreadExecutor("signal-backup-reader");
+    private final ExecutorService       serializers  = SignalExecutors.newCachedBoundedExecutor("signal-backup-serializer", Math.max(1, Math.min(MAX_SERIALIZERS, Runtime.getRuntime().availableProcessors() - 1)));
+    private final ExecutorService       streamReader = SignalExecutors.newCachedSingleThreadExecutor("signal-backup-stream");
+
+    void start(@NonNull Reader task) {
+      reader.execute(() -> {
+        try {
+          pending.put(new Finished(task.read(this)));
+        } catch (InterruptedException e) {
+          Log.w(TAG, "Backup reader interrupted.");
+        } catch (Throwable e) {
+          try {
+            pending.put(new Failed(e));
+          } catch (InterruptedException ie) {
+            Log.w(TAG, "Backup reader interrupted.");
+          }
+        }
+      });
+    }
+
+    void enqueue(@NonNull BackupProtos.BackupFrame frame) throws InterruptedException {
+      pending.put(new FrameWrite(frame.toByteArray()));
+    }
+
+    void enqueue(@NonNull Callable<BackupProtos.BackupFrame> frame) throws InterruptedException {
+      pending.put(new SerializedFrameWrite(serializers.submit(() -> frame.call().toByteArray())));
+    }
+
+    void enqueue(@NonNull StreamWrite stream) throws InterruptedException {
+      pending.put(stream);
+      streamReader.execute(stream);
+    }
+
+    /**
+     * @return The row count reported by the reader.
+     */
+    int drainTo(@NonNull BackupFrameOutputStream outputStream) throws IOException {
+      try {
+        while (true) {
+          Object next = pending.take();
+
+          if      (next instanceof Finished) return ((Finished) next).count;
+          else if (next instanceof Failed)   throw new IOException(((Failed) next).error);
+          else                               ((PendingWrite) next).writeTo(outputStream);
+        }
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+
+    void shutdown() {
+      reader.shutdownNow();
+      serializers.shutdownNow();
+      streamReader.shutdownNow();
+    }
+  }
+
+  private static class Finished {
+    private final int count;
+
+    private Finished(int count) {
+      this.count = count;
+    }
+  }
+
+  private static class Failed {
+    private final Throwable error;
+
+    private Failed(@NonNull Throwable error) {
+      this.error = error;
+    }
+  }
+
+  private static class FrameWrite implements PendingWrite {
+    private final byte[] frame;
+
+    private FrameWrite(@NonNull byte[] frame) {
+      this.frame = frame;
+    }
+
+    @Override
+    public void writeTo(@NonNull BackupFrameOutputStream outputStream) throws IOException {
+      outputStream.write(frame);
+    }
+  }
+
+  private static class SerializedFrameWrite implements PendingWrite {
+    private final Future<byte[]> frame;
+
+    private SerializedFrameWrite(@NonNull Future<byte[]> frame) {
+      this.frame = frame;
+    }
+
+    @Override
+    public void writeTo(@NonNull BackupFrameOutputStream outputStream) throws IOException, InterruptedException {
+      try {
+        outputStream.write(frame.get());
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * A frame followed by a stream, which is decrypted ahead into a bounded buffer of chunks on the
+   * stream stage. A stream that can't be opened is skipped. One that fails part way through fails
+   * the export, since its header has already been written.
+   */
+  private static abstract class StreamWrite implements PendingWrite, Runnable {
+
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> chunks = new ArrayBlockingQueue<>(STREAM_BUFFER_CHUNKS);
+
+    /**
+     * @return The length of the stream, or -1 to skip this write entirely.
+     */
+    abstract long getLength() throws IOException;
+    abstract @NonNull InputStream open() throws IOException;
+    abstract @NonNull BackupProtos.BackupFrame getHeader(long length);
+
+    @Override
+    public void run() {
+      try {
+        InputStream in;
+        long        length;
+
+        try {
+          length = getLength();
+          in     = length >= 0 ? open() : null;
+        } catch (IOException e) {
+          Log.w(TAG, e);
+          chunks.put(END);
+          return;
+        }
+
+        if (in == null) {
+          chunks.put(END);
+          return;
+        }
+
+        chunks.put(length);
+
+        try {
+          byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+          int    read;
+
+          while ((read = in.read(buffer)) != -1) {
+            chunks.put(Arrays.copyOf(buffer, read));
+          }
+
+          chunks.put(END);
+        } catch (IOException e) {
+          chunks.put(e);
+        } catch (Throwable t) {
+          chunks.put(new IOException(t));
+        } finally {
+          Util.close(in);
+        }
+      } catch (InterruptedException e) {
+        Log.w(TAG, "Stream read interrupted.");
+      } catch (Throwable t) {
+        Log.w(TAG, t);
+        chunks.offer(new IOException(t));
+      }
+    }
+
+    @Override
+    public void writeTo(@NonNull BackupFrameOutputStream outputStream) throws IOException, InterruptedException {
+      Object first = chunks.take();
+
+      if (first == END)                 return;
+      if (first instanceof IOException) throw (IOException) first;
+
+      outputStream.write(getHeader((Long) first).toByteArray());
+      outputStream.writeStream(new InputStream() {
+        private byte[]  current;
+        private int     offset;
+        private boolean done;
+
+        @Override
+        public int read() throws IOException {
+          byte[] single = new byte[1];
+          return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int off, int len) throws IOException {
+          if (done) return -1;
+
+          try {
+            if (current == null || offset == current.length) {
+              Object next = chunks.take();
+
+              if (next == END)                 { done = true; return -1; }
+              if (next instanceof IOException) throw (IOException) next;
+
+              current = (byte[]) next;
+              offset  = 0;
+            }
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+
+          int count = Math.min(len, current.length - offset);
+          System.arraycopy(current, offset, buffer, off, count);
+          offset += count;
+
+          return count;
+        }
+      });
+    }
+  }
+
+  private static class AttachmentWrite extends StreamWrite {
+    private final AttachmentSecret attachmentSecret;
+    private final AttachmentId     attachmentId;
+    private final String           data;
+    private final byte[]           random;
+    private final long             size;
+
+    private AttachmentWrite(@NonNull AttachmentSecret attachmentSecret, @NonNull AttachmentId attachmentId, @NonNull String data, @Nullable byte[] random, long size) {
+      this.attachmentSecret = attachmentSecret;
+      this.attachmentId     = attachmentId;
+      this.data             = data;
+      this.random           = random;
+      this.size             = size;
+    }
+
+    @Override
+    long getLength() throws IOException {
+      long length = size > 0 ? size : calculateVeryOldStreamLength(attachmentSecret, random, data);
+      return length > 0 ? length : -1;
+    }
+
+    @Override
+    @NonNull InputStream open() throws IOException {
+      return getAttachmentStream(attachmentSecret, random, data);
+    }
+
+    @Override
+    @NonNull BackupProtos.BackupFrame getHeader(long length) {
+      return BackupProtos.BackupFrame.newBuilder()
+                                     .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                           .setRowId(attachmentId.getRowId())
+                                                                           .setAttachmentId(attachmentId.getUniqueId())
+                                                                           .setLength(Util.toIntExact(length))
+                                                                           .build())
+                                     .build();
+    }
+  }
+
+  private static class AvatarWrite extends StreamWrite {
+    private final File avatar;
+
+    private AvatarWrite(@NonNull File avatar) {
+      this.avatar = avatar;
+    }
+
+    @Override
+    long getLength() {
+      return avatar.length();
+    }
+
+    @Override
+    @NonNull InputStream open() throws IOException {
+      return new FileInputStream(avatar);
+    }
+
+    @Override
+    @NonNull BackupProtos.BackupFrame getHeader(long length) {
+      return BackupProtos.BackupFrame.newBuilder()
+                                     .setAvatar(BackupProtos.Avatar.newBuilder()
+                                                                   .setName(avatar.getName())
+                                                                   .setLength(Util.toIntExact(length))
+                                                                   .build())
+                                     .build();
+    }
+  }
 
   private static class BackupFrameOutputStream extends BackupStream {
 
@@ -259,10 +773,12 @@ public class FullBackupExporter extends FullBackupBase {
     private byte[] iv;
     private int    counter;
 
-    private BackupFrameOutputStream(@NonNull File output, @NonNull String passphrase) throws IOException {
+    private BackupFrameOutputStream(@NonNull File output, @NonNull String passphrase, @NonNull BackupKeyDerivation.Parameters parameters)
+        throws IOException
+    {
       try {
         byte[]   salt    = Util.getSecretBytes(32);
-        byte[]   key     = getBackupKey(passphrase, salt);
+        byte[]   key     = getBackupKey(passphrase, salt, parameters);
         byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
         byte[][] split   = ByteUtil.split(derived, 32, 32);
 
@@ -271,16 +787,19 @@ public class FullBackupExporter extends FullBackupBase {
 
         this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
         this.mac          = Mac.getInstance("HmacSHA256");
-        this.outputStream = new FileOutputStream(output);
+        this.outputStream = new BufferedOutputStream(new FileOutputStream(output), STREAM_CHUNK_SIZE);
         this.iv           = Util.getSecretBytes(16);
         this.counter      = Conversions.byteArrayToInt(iv);
 
         mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
 
-        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
-                                                                                           .setIv(ByteString.copyFrom(iv))
-                                                                                           .setSalt(ByteString.copyFrom(salt)))
-                                                .build().toByteArray();
+        BackupProtos.Header.Builder headerBuilder = BackupProtos.Header.newBuilder()
+                                                                       .setIv(ByteString.copyFrom(iv))
+                                                                       .setSalt(ByteString.copyFrom(salt));
+
+        parameters.writeTo(headerBuilder);
+
+        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(headerBuilder).build().toByteArray();
 
         outputStream.write(Conversions.intToByteArray(header.length));
         outputStream.write(header);
@@ -289,47 +808,6 @@ public class FullBackupExporter extends FullBackupBase {
       }
     }
 
-    public void write(BackupProtos.SharedPreference preference) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
-    }
-
-    public void write(BackupProtos.SqlStatement statement) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
-    }
-
-    public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAvatar(BackupProtos.Avatar.newBuilder()
-                                                                                .setName(avatarName)
-                                                                                .setLength(Util.toIntExact(size))
-                                                                                .build())
-                                                  .build());
-
-      writeStream(in);
-    }
-
-    public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAttachment(BackupProtos.Attachment.newBuilder()
-                                                                                        .setRowId(attachmentId.getRowId())
-                                                                                        .setAttachmentId(attachmentId.getUniqueId())
-                                                                                        .setLength(Util.toIntExact(size))
-                                                                                        .build())
-                                                  .build());
-
-      writeStream(in);
-    }
-
-    void writeDatabaseVersion(int version) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
-                                                  .build());
-    }
-
-    void writeEnd() throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
-    }
-
     private void writeStream(@NonNull InputStream inputStream) throws IOException {
       try {
         Conversions.intToByteArray(iv, 0, counter++);
@@ -359,18 +837,18 @@ public class FullBackupExporter extends FullBackupBase {
       }
     }
 
-    private void write(@NonNull OutputStream out, @NonNull BackupProtos.BackupFrame frame) throws IOException {
+    private void write(@NonNull byte[] frame) throws IOException {
       try {
         Conversions.intToByteArray(iv, 0, counter++);
         cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
 
-        byte[] frameCiphertext = cipher.doFinal(frame.toByteArray());
+        byte[] frameCiphertext = cipher.doFinal(frame);
         byte[] frameMac        = mac.doFinal(frameCiphertext);
         byte[] length          = Conversions.intToByteArray(frameCiphertext.length + 10);
 
-        out.write(length);
-        out.write(frameCiphertext);
-        out.write(frameMac, 0, 10);
+        outputStream.write(length);
+        outputStream.write(frameCiphertext);
+        outputStream.write(frameMac, 0, 10);
       } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
         throw new AssertionError(e);
       }
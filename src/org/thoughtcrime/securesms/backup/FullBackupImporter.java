@@ -7,12 +7,14 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.logging.Log;
 import android.util.Pair;
 
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
 
 import org.greenrobot.eventbus.EventBus;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
@@ -22,9 +24,11 @@ import org.thoughtcrime.securesms.backup.BackupProtos.DatabaseVersion;
 import org.thoughtcrime.securesms.backup.BackupProtos.SharedPreference;
 import org.thoughtcrime.securesms.backup.BackupProtos.SqlStatement;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
-import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
+import org.thoughtcrime.securesms.crypto.ChunkedEncryptingPartOutputStream;
+import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
 import org.thoughtcrime.securesms.database.Address;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.BackupJournalDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.GroupReceiptDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
@@ -35,9 +39,13 @@ import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.Conversions;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
 import org.whispersystems.libsignal.kdf.HKDFv3;
 import org.whispersystems.libsignal.util.ByteUtil;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -48,8 +56,18 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -68,34 +86,132 @@ public class FullBackupImporter extends FullBackupBase {
                                 @NonNull SQLiteDatabase db, @NonNull File file, @NonNull String passphrase)
       throws IOException
   {
-    BackupRecordInputStream inputStream = new BackupRecordInputStream(file, passphrase);
-    int                     count       = 0;
+    importFile(context, attachmentSecret, db, file, Collections.emptyList(), passphrase);
+  }
+
+  /**
+   * Restores a backup and then replays the deltas written on top of it, in order. A delta that
+   * doesn't continue the backup's chain, or was written at a different database version, is
+   * skipped along with every delta after it; this is detected before anything in it is applied.
+   *
+   * Rows are inserted through a cache of compiled statements. The full text search and backup
+   * journal triggers are held back until every file has been read, and the search indexes are
+   * then rebuilt in a single pass.
+   *
+   * Attachments are decrypted and re-encrypted by an {@link AttachmentRestorer} while statements
+   * continue to apply. Every attachment of a file is in place before the next file is read, since
+   * a delta may replace the rows they belong to.
+   */
+  public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                @NonNull SQLiteDatabase db, @NonNull File file, @NonNull List<File> deltas,
+                                @NonNull String passphrase)
+      throws IOException
+  {
+    long        startTime = System.currentTimeMillis();
+    ImportState state     = new ImportState(context, attachmentSecret, db, getTotalLength(file, deltas));
 
     try {
       db.beginTransaction();
 
       dropAllTables(db);
 
-      BackupFrame frame;
+      try (BackupRecordInputStream inputStream = new BackupRecordInputStream(file, passphrase)) {
+        processFrames(context, attachmentSecret, db, inputStream, state);
+      }
+
+      int version = db.getVersion();
+
+      for (File delta : deltas) {
+        state.attachments.applyAll(db);
+
+        try (BackupRecordInputStream inputStream = new BackupRecordInputStream(delta, passphrase)) {
+          if (!isNextDelta(inputStream, version, state.position)) {
+            Log.w(TAG, "Delta " + delta.getName() + " doesn't continue the backup, ignoring it and any later deltas.");
+            break;
+          }
+
+          processFrames(context, attachmentSecret, db, inputStream, state);
+        }
+      }
 
-      while (!(frame = inputStream.readFrame()).getEnd()) {
-        if (count++ % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
+      state.attachments.applyAll(db);
 
-        if      (frame.hasVersion())    processVersion(db, frame.getVersion());
-        else if (frame.hasStatement())  processStatement(db, frame.getStatement());
-        else if (frame.hasPreference()) processPreference(context, frame.getPreference());
-        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
-        else if (frame.hasAvatar())     processAvatar(context, frame.getAvatar(), inputStream);
+      if (!deltas.isEmpty()) {
+        deleteUnreferencedFiles(db, state.restoredFiles);
       }
 
+      createDeferredTriggers(db, state.deferredTriggers);
       trimEntriesForExpiredMessages(context, db);
 
       db.setTransactionSuccessful();
     } finally {
+      state.statements.close();
+      state.attachments.shutdown();
       db.endTransaction();
+      TextSecureSessionStore.clearCache();
     }
 
-    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count));
+    Log.i(TAG, "Restored " + state.count + " frames from " + (deltas.size() + 1) + " files in " + (System.currentTimeMillis() - startTime) + " ms");
+
+    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, state.count));
+  }
+
+  private static void processFrames(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db,
+                                    @NonNull BackupRecordInputStream inputStream, @NonNull ImportState state)
+      throws IOException
+  {
+    BackupFrame frame;
+
+    while (!(frame = inputStream.readFrame()).getEnd()) {
+      state.onFrame(inputStream.getBytesRead());
+      state.attachments.applyCompleted(db);
+
+      if      (frame.hasVersion())    processVersion(db, frame.getVersion());
+      else if (frame.hasStatement())  processStatement(db, state, frame.getStatement());
+      else if (isChainFrame(frame))   processChain(frame.getPreference(), state.position);
+      else if (frame.hasPreference()) processPreference(context, frame.getPreference());
+      else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, state, frame.getAttachment(), inputStream);
+      else if (frame.hasAvatar())     processAvatar(context, frame.getAvatar(), inputStream);
+    }
+
+    state.onFileFinished(inputStream.getBytesRead());
+  }
+
+  /**
+   * Reads the version and chain frames that start a delta.
+   *
+   * @return True if the delta was written at the given database version and is the next one in
+   *         the chain, in which case the chain position is advanced to it.
+   */
+  private static boolean isNextDelta(@NonNull BackupRecordInputStream inputStream, int version, @NonNull ChainPosition position)
+      throws IOException
+  {
+    BackupFrame versionFrame = inputStream.readFrame();
+    BackupFrame chainFrame   = inputStream.readFrame();
+
+    if (!versionFrame.hasVersion() || versionFrame.getVersion().getVersion() != version) return false;
+    if (!isChainFrame(chainFrame) || position.id == null)                                 return false;
+
+    ChainPosition delta = new ChainPosition();
+    processChain(chainFrame.getPreference(), delta);
+
+    if (!position.id.equals(delta.id) || delta.sequence != position.sequence + 1) return false;
+
+    position.sequence = delta.sequence;
+    return true;
+  }
+
+  private static boolean isChainFrame(@NonNull BackupFrame frame) {
+    return frame.hasPreference() && CHAIN_PREFERENCE_FILE.equals(frame.getPreference().getFile());
+  }
+
+  private static void processChain(@NonNull SharedPreference preference, @NonNull ChainPosition position) {
+    try {
+      position.sequence = Integer.parseInt(preference.getValue());
+      position.id       = preference.getKey();
+    } catch (NumberFormatException e) {
+      Log.w(TAG, e);
+    }
   }
 
   private static void processVersion(@NonNull SQLiteDatabase db, DatabaseVersion version) throws IOException {
@@ -106,7 +222,7 @@ public class FullBackupImporter extends FullBackupBase {
     db.setVersion(version.getVersion());
   }
 
-  private static void processStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
+  private static void processStatement(@NonNull SQLiteDatabase db, @NonNull ImportState state, SqlStatement statement) {
     boolean isForSmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
     boolean isForMmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
 
@@ -115,34 +231,79 @@ public class FullBackupImporter extends FullBackupBase {
       return;
     }
 
-    List<Object> parameters = new LinkedList<>();
+    if (isDeferredTrigger(statement.getStatement())) {
+      state.deferredTriggers.add(statement.getStatement());
+      return;
+    }
+
+    if (statement.getParametersCount() == 0) {
+      db.execSQL(statement.getStatement());
+      return;
+    }
+
+    SQLiteStatement compiled = state.statements.get(statement.getStatement());
+
+    for (int i=0;i<statement.getParametersCount();i++) {
+      SqlStatement.SqlParameter parameter = statement.getParameters(i);
+
+      if      (parameter.hasStringParamter())   compiled.bindString(i + 1, parameter.getStringParamter());
+      else if (parameter.hasDoubleParameter())  compiled.bindDouble(i + 1, parameter.getDoubleParameter());
+      else if (parameter.hasIntegerParameter()) compiled.bindLong(i + 1, parameter.getIntegerParameter());
+      else if (parameter.hasBlobParameter())    compiled.bindBlob(i + 1, parameter.getBlobParameter().toByteArray());
+      else                                      compiled.bindNull(i + 1);
+    }
+
+    compiled.execute();
+  }
+
+  /**
+   * Triggers that keep the search indexes and the backup journal up to date are created once the
+   * restore is complete rather than firing for every restored row.
+   */
+  private static boolean isDeferredTrigger(@NonNull String statement) {
+    return statement.startsWith("CREATE TRIGGER") &&
+           (statement.contains(SearchDatabase.SMS_FTS_TABLE_NAME) ||
+            statement.contains(SearchDatabase.MMS_FTS_TABLE_NAME) ||
+            statement.contains(BackupJournalDatabase.TABLE_NAME));
+  }
 
-    for (SqlStatement.SqlParameter parameter : statement.getParametersList()) {
-      if      (parameter.hasStringParamter())   parameters.add(parameter.getStringParamter());
-      else if (parameter.hasDoubleParameter())  parameters.add(parameter.getDoubleParameter());
-      else if (parameter.hasIntegerParameter()) parameters.add(parameter.getIntegerParameter());
-      else if (parameter.hasBlobParameter())    parameters.add(parameter.getBlobParameter().toByteArray());
-      else if (parameter.hasNullparameter())    parameters.add(null);
+  private static void createDeferredTriggers(@NonNull SQLiteDatabase db, @NonNull List<String> triggers) {
+    for (String table : new String[] { SearchDatabase.SMS_FTS_TABLE_NAME, SearchDatabase.MMS_FTS_TABLE_NAME }) {
+      if (tableExists(db, table)) {
+        db.execSQL("INSERT INTO " + table + " (" + table + ") VALUES ('rebuild')");
+      }
     }
 
-    if (parameters.size() > 0) db.execSQL(statement.getStatement(), parameters.toArray());
-    else                       db.execSQL(statement.getStatement());
+    for (String trigger : triggers) {
+      db.execSQL(trigger);
+    }
   }
 
-  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
+  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull ImportState state, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
       throws IOException
   {
     File partsDirectory = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE);
     File dataFile       = File.createTempFile("part", ".mms", partsDirectory);
 
-    Pair<byte[], OutputStream> output = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
+    state.restoredFiles.add(dataFile);
+
+    if (state.attachments.isParallel()) {
+      state.attachments.submit(db, attachment, dataFile, inputStream);
+      return;
+    }
+
+    Pair<byte[], OutputStream> output = ChunkedEncryptingPartOutputStream.createFor(attachmentSecret, dataFile);
 
     inputStream.readAttachmentTo(output.second, attachment.getLength());
 
+    updateAttachment(db, attachment, dataFile, output.first);
+  }
+
+  private static void updateAttachment(@NonNull SQLiteDatabase db, @NonNull Attachment attachment, @NonNull File dataFile, @NonNull byte[] random) {
     ContentValues contentValues = new ContentValues();
     contentValues.put(AttachmentDatabase.DATA, dataFile.getAbsolutePath());
     contentValues.put(AttachmentDatabase.THUMBNAIL, (String)null);
-    contentValues.put(AttachmentDatabase.DATA_RANDOM, output.first);
+    contentValues.put(AttachmentDatabase.DATA_RANDOM, random);
 
     db.update(AttachmentDatabase.TABLE_NAME, contentValues,
               AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ?",
@@ -172,6 +333,43 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
+  /**
+   * A delta replaces the rows of parts that changed, so a file restored for an earlier version of
+   * a part may no longer be referenced by anything.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private static void deleteUnreferencedFiles(@NonNull SQLiteDatabase db, @NonNull List<File> restoredFiles) {
+    Set<String> referenced = new HashSet<>();
+
+    try (Cursor cursor = db.query(AttachmentDatabase.TABLE_NAME, new String[] { AttachmentDatabase.DATA }, AttachmentDatabase.DATA + " NOT NULL", null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        referenced.add(cursor.getString(0));
+      }
+    }
+
+    for (File file : restoredFiles) {
+      if (!referenced.contains(file.getAbsolutePath())) {
+        file.delete();
+      }
+    }
+  }
+
+  private static boolean tableExists(@NonNull SQLiteDatabase db, @NonNull String table) {
+    try (Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?", new String[] { table })) {
+      return cursor != null && cursor.moveToFirst();
+    }
+  }
+
+  private static long getTotalLength(@NonNull File file, @NonNull List<File> deltas) {
+    long length = file.length();
+
+    for (File delta : deltas) {
+      length += delta.length();
+    }
+
+    return length;
+  }
+
   private static void trimEntriesForExpiredMessages(@NonNull Context context, @NonNull SQLiteDatabase db) {
     String trimmedCondition = " NOT IN (SELECT " + MmsDatabase.ID + " FROM " + MmsDatabase.TABLE_NAME + ")";
 
@@ -194,7 +392,248 @@ public class FullBackupImporter extends FullBackupBase {
   }
 
 
-  private static class BackupRecordInputStream extends BackupStream {
+  private static class ChainPosition {
+    private @Nullable String id;
+    private           int    sequence = -1;
+  }
+
+  /**
+   * What's carried from one backup file to the next over the course of a restore.
+   */
+  private static class ImportState {
+    private final ChainPosition      position         = new ChainPosition();
+    private final List<File>         restoredFiles    = new LinkedList<>();
+    private final List<String>       deferredTriggers = new LinkedList<>();
+    private final StatementCache     statements;
+    private final AttachmentRestorer attachments;
+    private final long               totalBytes;
+
+    private long completedBytes;
+    private int  count;
+    private int  lastPercent = -1;
+
+    private ImportState(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, long totalBytes) {
+      this.statements  = new StatementCache(db);
+      this.attachments = new AttachmentRestorer(context, attachmentSecret);
+      this.totalBytes  = totalBytes;
+    }
+
+    private void onFrame(long bytesRead) {
+      long read    = completedBytes + bytesRead;
+      int  percent = totalBytes > 0 ? (int) Math.min(100, read * 100 / totalBytes) : 0;
+
+      count++;
+
+      if (percent != lastPercent) {
+        lastPercent = percent;
+        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count, read, totalBytes));
+      }
+    }
+
+    private void onFileFinished(long bytesRead) {
+      completedBytes += bytesRead;
+    }
+  }
+
+  /**
+   * Compiled statements keyed by their SQL. A restore only uses a handful of distinct statements,
+   * one insert per table, each repeated for every row.
+   */
+  private static class StatementCache {
+
+    private static final int MAX_SIZE = 32;
+
+    private final SQLiteDatabase                         db;
+    private final LinkedHashMap<String, SQLiteStatement> statements;
+
+    private StatementCache(@NonNull SQLiteDatabase db) {
+      this.db         = db;
+      this.statements = new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+          if (size() > MAX_SIZE) {
+            eldest.getValue().close();
+            return true;
+          }
+
+          return false;
+        }
+      };
+    }
+
+    private @NonNull SQLiteStatement get(@NonNull String sql) {
+      SQLiteStatement statement = statements.get(sql);
+
+      if (statement == null) {
+        statement = db.compileStatement(sql);
+        statements.put(sql, statement);
+      } else {
+        statement.clearBindings();
+      }
+
+      return statement;
+    }
+
+    private void close() {
+      for (SQLiteStatement statement : statements.values()) {
+        statement.close();
+      }
+
+      statements.clear();
+    }
+  }
+
+  /**
+   * Restores attachments on a pool of workers, one per core. The importing thread only copies
+   * each encrypted payload out of the backup; a worker then verifies and decrypts it, and
+   * re-encrypts it into its part file. Because the database is held by the importing thread's
+   * transaction, the attachment's row is updated there once its file is ready.
+   *
+   * With a single core, attachments are restored inline instead.
+   */
+  private static class AttachmentRestorer {
+
+    private static final int WORKERS     = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_PENDING = WORKERS * 2;
+
+    private final           Context                 context;
+    private final           AttachmentSecret        attachmentSecret;
+    private final           List<PendingAttachment> pending = new LinkedList<>();
+    private final @Nullable ExecutorService         executor;
+
+    private AttachmentRestorer(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret) {
+      this.context          = context;
+      this.attachmentSecret = attachmentSecret;
+      this.executor         = WORKERS > 1 ? SignalExecutors.newCachedBoundedExecutor("signal-backup-attachment", WORKERS) : null;
+    }
+
+    boolean isParallel() {
+      return executor != null;
+    }
+
+    void submit(@NonNull SQLiteDatabase db, @NonNull Attachment attachment, @NonNull File dataFile, @NonNull BackupRecordInputStream inputStream)
+        throws IOException
+    {
+      if (executor == null) throw new IllegalStateException("Not running in parallel!");
+
+      while (pending.size() >= MAX_PENDING) {
+        apply(db, pending.remove(0));
+      }
+
+      SpooledAttachment spooled = inputStream.spoolAttachment(attachment.getLength(), context.getCacheDir());
+
+      try {
+        Future<byte[]> random = executor.submit(() -> {
+          try {
+            Pair<byte[], OutputStream> output = ChunkedEncryptingPartOutputStream.createFor(attachmentSecret, dataFile);
+            inputStream.readSpooledAttachmentTo(spooled, output.second);
+            return output.first;
+          } finally {
+            spooled.delete();
+          }
+        });
+
+        pending.add(new PendingAttachment(attachment, dataFile, spooled, random));
+      } catch (RejectedExecutionException e) {
+        spooled.delete();
+        throw new IOException(e);
+      }
+    }
+
+    /**
+     * Updates the rows of the attachments that have finished, without waiting on the rest.
+     */
+    void applyCompleted(@NonNull SQLiteDatabase db) throws IOException {
+      Iterator<PendingAttachment> iterator = pending.iterator();
+
+      while (iterator.hasNext()) {
+        PendingAttachment attachment = iterator.next();
+
+        if (attachment.random.isDone()) {
+          iterator.remove();
+          apply(db, attachment);
+        }
+      }
+    }
+
+    /**
+     * Waits for every submitted attachment and updates its row.
+     */
+    void applyAll(@NonNull SQLiteDatabase db) throws IOException {
+      while (!pending.isEmpty()) {
+        apply(db, pending.remove(0));
+      }
+    }
+
+    void shutdown() {
+      if (executor != null) executor.shutdownNow();
+
+      for (PendingAttachment attachment : pending) {
+        attachment.random.cancel(true);
+        attachment.spooled.delete();
+      }
+
+      pending.clear();
+    }
+
+    private void apply(@NonNull SQLiteDatabase db, @NonNull PendingAttachment attachment) throws IOException {
+      try {
+        updateAttachment(db, attachment.attachment, attachment.dataFile, attachment.random.get());
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+        else                                     throw new IOException(e.getCause());
+      }
+    }
+  }
+
+  private static class PendingAttachment {
+    private final Attachment        attachment;
+    private final File              dataFile;
+    private final SpooledAttachment spooled;
+    private final Future<byte[]>    random;
+
+    private PendingAttachment(@NonNull Attachment attachment, @NonNull File dataFile, @NonNull SpooledAttachment spooled, @NonNull Future<byte[]> random) {
+      this.attachment = attachment;
+      this.dataFile   = dataFile;
+      this.spooled    = spooled;
+      this.random     = random;
+    }
+  }
+
+  /**
+   * An attachment's encrypted payload and MAC, copied out of the backup as-is.
+   */
+  private static class SpooledAttachment {
+    private final           byte[] iv;
+    private final           int    length;
+    private final @Nullable byte[] data;
+    private final @Nullable File   file;
+
+    private SpooledAttachment(@NonNull byte[] iv, int length, @Nullable byte[] data, @Nullable File file) {
+      this.iv     = iv;
+      this.length = length;
+      this.data   = data;
+      this.file   = file;
+    }
+
+    @NonNull InputStream open() throws IOException {
+      if (data != null) return new ByteArrayInputStream(data);
+      else              return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    void delete() {
+      if (file != null && file.exists() && !file.delete()) {
+        Log.w(TAG, "Failed to delete spool " + file);
+      }
+    }
+  }
+
+  private static class BackupRecordInputStream extends BackupStream implements Closeable {
+
+    private static final int BUFFER_SIZE         = 64 * 1024;
+    private static final int MAX_IN_MEMORY_SPOOL = 256 * 1024;
 
     private final InputStream in;
     private final Cipher      cipher;
@@ -205,10 +644,11 @@ public class FullBackupImporter extends FullBackupBase {
 
     private byte[] iv;
     private int    counter;
+    private long   bytesRead;
 
     private BackupRecordInputStream(@NonNull File file, @NonNull String passphrase) throws IOException {
       try {
-        this.in     = new FileInputStream(file);
+        this.in     = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
 
         byte[] headerLengthBytes = new byte[4];
         Util.readFully(in, headerLengthBytes);
@@ -217,6 +657,8 @@ public class FullBackupImporter extends FullBackupBase {
         byte[] headerFrame = new byte[headerLength];
         Util.readFully(in, headerFrame);
 
+        this.bytesRead = headerLengthBytes.length + headerFrame.length;
+
         BackupFrame frame = BackupFrame.parseFrom(headerFrame);
 
         if (!frame.hasHeader()) {
@@ -231,7 +673,7 @@ public class FullBackupImporter extends FullBackupBase {
           throw new IOException("Invalid IV length!");
         }
 
-        byte[]   key     = getBackupKey(passphrase, header.hasSalt() ? header.getSalt().toByteArray() : null);
+        byte[]   key     = getBackupKey(passphrase, header.hasSalt() ? header.getSalt().toByteArray() : null, BackupKeyDerivation.Parameters.fromHeader(header));
         byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
         byte[][] split   = ByteUtil.split(derived, 32, 32);
 
@@ -252,9 +694,83 @@ public class FullBackupImporter extends FullBackupBase {
       return readFrame(in);
     }
 
+    long getBytesRead() {
+      return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+
     void readAttachmentTo(OutputStream out, int length) throws IOException {
+      Conversions.intToByteArray(iv, 0, counter++);
+      decryptAttachment(cipher, mac, iv, in, length, out);
+
+      bytesRead += length + 10;
+    }
+
+    /**
+     * Copies an attachment's encrypted payload and MAC out of the backup without decrypting it, so
+     * that {@link #readSpooledAttachmentTo(SpooledAttachment, OutputStream)} can decrypt it on
+     * another thread. Small payloads are held in memory, larger ones in a file in the given
+     * directory.
+     */
+    @NonNull SpooledAttachment spoolAttachment(int length, @NonNull File directory) throws IOException {
+      Conversions.intToByteArray(iv, 0, counter++);
+
+      byte[] attachmentIv = iv.clone();
+      int    spoolLength  = length + 10;
+
+      bytesRead += spoolLength;
+
+      if (spoolLength <= MAX_IN_MEMORY_SPOOL) {
+        byte[] data = new byte[spoolLength];
+        Util.readFully(in, data);
+
+        return new SpooledAttachment(attachmentIv, length, data, null);
+      }
+
+      File file = File.createTempFile("attachment", ".spool", directory);
+
+      try (OutputStream out = new FileOutputStream(file)) {
+        byte[] buffer    = new byte[8192];
+        int    remaining = spoolLength;
+
+        while (remaining > 0) {
+          int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+          if (read == -1) throw new IOException("File ended early!");
+
+          out.write(buffer, 0, read);
+          remaining -= read;
+        }
+      } catch (IOException e) {
+        if (!file.delete()) Log.w(TAG, "Failed to delete spool " + file);
+        throw e;
+      }
+
+      return new SpooledAttachment(attachmentIv, length, null, file);
+    }
+
+    /**
+     * Safe to call from any thread, and after the stream has been closed.
+     */
+    void readSpooledAttachmentTo(@NonNull SpooledAttachment attachment, @NonNull OutputStream out) throws IOException {
+      try (InputStream spool = attachment.open()) {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+
+        decryptAttachment(Cipher.getInstance("AES/CTR/NoPadding"), mac, attachment.iv, spool, attachment.length, out);
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private void decryptAttachment(@NonNull Cipher cipher, @NonNull Mac mac, @NonNull byte[] iv,
+                                   @NonNull InputStream in, int length, @NonNull OutputStream out)
+        throws IOException
+    {
       try {
-        Conversions.intToByteArray(iv, 0, counter++);
         cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
         mac.update(iv);
 
@@ -310,6 +826,8 @@ public class FullBackupImporter extends FullBackupBase {
         byte[] frame = new byte[Conversions.byteArrayToInt(length)];
         Util.readFully(in, frame);
 
+        bytesRead += length.length + frame.length;
+
         byte[] theirMac = new byte[10];
         System.arraycopy(frame, frame.length - 10, theirMac, 0, theirMac.length);
 
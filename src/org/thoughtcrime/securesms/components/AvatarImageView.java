@@ -19,6 +19,7 @@ import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.contacts.avatars.ContactColors;
 import org.thoughtcrime.securesms.contacts.avatars.GeneratedContactPhoto;
 import org.thoughtcrime.securesms.contacts.avatars.ResourceContactPhoto;
+import org.thoughtcrime.securesms.glide.cache.CacheCategory;
 import org.thoughtcrime.securesms.mms.GlideRequests;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.ThemeUtil;
@@ -92,6 +93,7 @@ public class AvatarImageView extends AppCompatImageView {
                     .error(recipient.getFallbackContactPhotoDrawable(getContext(), inverted))
                     .diskCacheStrategy(DiskCacheStrategy.ALL)
                     .circleCrop()
+                    .set(CacheCategory.OPTION, CacheCategory.AVATAR)
                     .into(this);
       setAvatarClickHandler(recipient, quickContactEnabled);
     } else {
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.components;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -14,6 +15,8 @@ import android.util.AttributeSet;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 
+import com.bumptech.glide.request.target.Target;
+
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.mms.GlideRequests;
@@ -81,6 +84,21 @@ public class ConversationItemThumbnail extends FrameLayout {
     }
   }
 
+  /**
+   * Starts loading the thumbnail a conversation item would show for a single slide, so that a later
+   * bind is a memory cache hit. Must be kept in step with the bounds in the conversation item layouts.
+   */
+  public static @Nullable Target<?> preload(@NonNull Context context, @NonNull GlideRequests glideRequests, @NonNull Slide slide) {
+    Resources resources   = context.getResources();
+    int       defaultSize = resources.getDimensionPixelSize(R.dimen.media_bubble_default_dimens);
+    int[]     bounds      = new int[] { resources.getDimensionPixelSize(R.dimen.media_bubble_min_width),
+                                        resources.getDimensionPixelSize(R.dimen.media_bubble_max_width),
+                                        resources.getDimensionPixelSize(R.dimen.media_bubble_min_height),
+                                        resources.getDimensionPixelSize(R.dimen.media_bubble_max_height) };
+
+    return ThumbnailView.preload(glideRequests, slide, bounds, defaultSize, defaultSize, resources.getDimensionPixelSize(R.dimen.media_bubble_thumbnail_radius));
+  }
+
   @SuppressWarnings("SuspiciousNameCombination")
   @Override
   protected void dispatchDraw(Canvas canvas) {
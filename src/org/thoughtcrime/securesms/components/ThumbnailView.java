@@ -4,6 +4,7 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.UiThread;
 import android.util.AttributeSet;
 import org.thoughtcrime.securesms.logging.Log;
@@ -19,6 +20,7 @@ import com.bumptech.glide.load.resource.bitmap.CenterCrop;
 import com.bumptech.glide.load.resource.bitmap.FitCenter;
 import com.bumptech.glide.load.resource.bitmap.RoundedCorners;
 import com.bumptech.glide.request.RequestOptions;
+import com.bumptech.glide.request.target.Target;
 
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
@@ -113,7 +115,7 @@ public class ThumbnailView extends FrameLayout {
   }
 
   @SuppressWarnings("SuspiciousNameCombination")
-  private void fillTargetDimensions(int[] targetDimens, int[] dimens, int[] bounds) {
+  private static void fillTargetDimensions(int[] targetDimens, int[] dimens, int[] bounds) {
     int dimensFilledCount = getNonZeroCount(dimens);
     int boundsFilledCount = getNonZeroCount(bounds);
 
@@ -182,7 +184,7 @@ public class ThumbnailView extends FrameLayout {
     targetDimens[HEIGHT] = (int) measuredHeight;
   }
 
-  private int getNonZeroCount(int[] vals) {
+  private static int getNonZeroCount(int[] vals) {
     int count = 0;
     for (int val : vals) {
       if (val > 0) {
@@ -304,6 +306,31 @@ public class ThumbnailView extends FrameLayout {
     return future;
   }
 
+  /**
+   * Starts loading the thumbnail that a view with these bounds, default size and corner radius
+   * would show for a slide, so that binding it later at the same size hits the memory cache.
+   *
+   * @return The preload target, which can be cleared to cancel, or null if there's nothing to load.
+   */
+  public static @Nullable Target<?> preload(@NonNull GlideRequests glideRequests, @NonNull Slide slide,
+                                            @NonNull int[] bounds, int defaultWidth, int defaultHeight, int radius)
+  {
+    if (slide.getThumbnailUri() == null) return null;
+
+    int[] dimens = new int[] { slide.asAttachment().getWidth(), slide.asAttachment().getHeight() };
+    int[] size   = new int[2];
+
+    if (getNonZeroCount(dimens) == 1) return null;
+
+    fillTargetDimensions(size, dimens, bounds);
+    if (size[WIDTH] == 0 && size[HEIGHT] == 0) {
+      size[WIDTH]  = defaultWidth;
+      size[HEIGHT] = defaultHeight;
+    }
+
+    return buildThumbnailGlideRequest(glideRequests, slide, size, radius).preload(size[WIDTH], size[HEIGHT]);
+  }
+
   public void setThumbnailClickListener(SlideClickListener listener) {
     this.thumbnailClickListener = listener;
   }
@@ -327,9 +354,13 @@ public class ThumbnailView extends FrameLayout {
   }
 
   private GlideRequest buildThumbnailGlideRequest(@NonNull GlideRequests glideRequests, @NonNull Slide slide) {
+    return buildThumbnailGlideRequest(glideRequests, slide, getTargetSize(), radius);
+  }
+
+  private static GlideRequest buildThumbnailGlideRequest(@NonNull GlideRequests glideRequests, @NonNull Slide slide, @NonNull int[] size, int radius) {
     GlideRequest request = applySizing(glideRequests.load(new DecryptableUri(slide.getThumbnailUri()))
                                           .diskCacheStrategy(DiskCacheStrategy.RESOURCE)
-                                          .transition(withCrossFade()), new CenterCrop());
+                                          .transition(withCrossFade()), new CenterCrop(), size, radius);
 
     if (slide.isInProgress()) return request;
     else                      return request.apply(RequestOptions.errorOf(R.drawable.ic_missing_thumbnail_picture));
@@ -338,10 +369,10 @@ public class ThumbnailView extends FrameLayout {
   private RequestBuilder buildPlaceholderGlideRequest(@NonNull GlideRequests glideRequests, @NonNull Slide slide) {
     return applySizing(glideRequests.asBitmap()
                         .load(slide.getPlaceholderRes(getContext().getTheme()))
-                        .diskCacheStrategy(DiskCacheStrategy.NONE), new FitCenter());
+                        .diskCacheStrategy(DiskCacheStrategy.NONE), new FitCenter(), getTargetSize(), radius);
   }
 
-  private GlideRequest applySizing(@NonNull GlideRequest request, @NonNull BitmapTransformation fitting) {
+  private int[] getTargetSize() {
     int[] size = new int[2];
     fillTargetDimensions(size, dimens, bounds);
     if (size[WIDTH] == 0 && size[HEIGHT] == 0) {
@@ -349,6 +380,10 @@ public class ThumbnailView extends FrameLayout {
       size[HEIGHT] = getDefaultHeight();
     }
 
+    return size;
+  }
+
+  private static GlideRequest applySizing(@NonNull GlideRequest request, @NonNull BitmapTransformation fitting, @NonNull int[] size, int radius) {
     request = request.override(size[WIDTH], size[HEIGHT]);
     
     if (radius > 0) {
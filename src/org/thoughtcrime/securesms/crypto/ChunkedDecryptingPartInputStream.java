@@ -0,0 +1,146 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a part in the {@link ChunkedPartCipher} format, verifying and decrypting the chunks ahead
+ * of the reader on a worker pool.
+ */
+public class ChunkedDecryptingPartInputStream extends InputStream {
+
+  private final ChunkedPartCipher     cipher;
+  private final RandomAccessFile      file;
+  private final FileChannel           channel;
+  private final long                  fileLength;
+  private final long                  chunkCount;
+  private final Queue<Future<byte[]>> pending = new LinkedList<>();
+
+  private byte[] chunk = new byte[0];
+  private long   chunkStart;
+  private int    chunkOffset;
+  private long   nextChunk;
+
+  public static InputStream createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file, long offset)
+      throws IOException
+  {
+    ChunkedDecryptingPartInputStream inputStream = new ChunkedDecryptingPartInputStream(new ChunkedPartCipher(attachmentSecret, random), file);
+
+    try {
+      inputStream.seek(offset);
+      return inputStream;
+    } catch (IOException e) {
+      inputStream.close();
+      throw e;
+    }
+  }
+
+  private ChunkedDecryptingPartInputStream(@NonNull ChunkedPartCipher cipher, @NonNull File file) throws IOException {
+    this.cipher     = cipher;
+    this.file       = new RandomAccessFile(file, "r");
+    this.channel    = this.file.getChannel();
+    this.fileLength = this.file.length();
+    this.chunkCount = ChunkedPartCipher.getChunkCount(fileLength);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int    read   = read(buffer, 0, 1);
+
+    return read == -1 ? -1 : buffer[0] & 0xff;
+  }
+
+  @Override
+  public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+
+    while (chunkOffset >= chunk.length) {
+      if (!nextChunk()) return -1;
+    }
+
+    int count = Math.min(length, chunk.length - chunkOffset);
+
+    System.arraycopy(chunk, chunkOffset, buffer, offset, count);
+    chunkOffset += count;
+
+    return count;
+  }
+
+  @Override
+  public long skip(long skipAmount) throws IOException {
+    if (skipAmount <= 0) return 0;
+
+    long position = getPosition();
+    long length   = ChunkedPartCipher.getPlaintextLength(fileLength);
+    long target   = Math.min(length, position + skipAmount);
+
+    seek(target);
+
+    return target - position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Future<byte[]> future : pending) {
+      future.cancel(false);
+    }
+
+    pending.clear();
+    file.close();
+  }
+
+  private long getPosition() {
+    return chunkStart + chunkOffset;
+  }
+
+  private void seek(long position) throws IOException {
+    long index = position / ChunkedPartCipher.CHUNK_SIZE;
+
+    for (Future<byte[]> future : pending) {
+      future.cancel(false);
+    }
+
+    pending.clear();
+
+    chunk       = new byte[0];
+    chunkStart  = position;
+    chunkOffset = 0;
+    nextChunk   = index;
+
+    if (index < chunkCount && nextChunk()) {
+      chunkOffset = (int) (position % ChunkedPartCipher.CHUNK_SIZE);
+    }
+  }
+
+  private boolean nextChunk() throws IOException {
+    while (pending.size() < ChunkedPartCipher.MAX_IN_FLIGHT && nextChunk < chunkCount) {
+      final long index = nextChunk++;
+      pending.add(ChunkedPartCipher.EXECUTOR.submit(() -> cipher.readChunk(channel, fileLength, index)));
+    }
+
+    if (pending.isEmpty()) return false;
+
+    try {
+      chunk       = pending.remove().get();
+      chunkStart  = (nextChunk - pending.size() - 1) * ChunkedPartCipher.CHUNK_SIZE;
+      chunkOffset = 0;
+      return true;
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      else                                     throw new IOException(e);
+    }
+  }
+}
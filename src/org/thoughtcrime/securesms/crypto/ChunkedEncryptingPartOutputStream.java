@@ -0,0 +1,110 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import android.support.annotation.NonNull;
+import android.util.Pair;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a part in the {@link ChunkedPartCipher} format, encrypting chunks on a worker pool while
+ * later ones are still being written.
+ */
+public class ChunkedEncryptingPartOutputStream extends OutputStream {
+
+  private final ChunkedPartCipher      cipher;
+  private final OutputStream           outputStream;
+  private final Queue<Future<byte[]>>  pending = new LinkedList<>();
+
+  private byte[]  chunk = new byte[ChunkedPartCipher.CHUNK_SIZE];
+  private int     chunkLength;
+  private long    chunkIndex;
+  private boolean closed;
+
+  public static Pair<byte[], OutputStream> createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull File file)
+      throws IOException
+  {
+    byte[] random = ChunkedPartCipher.newRandom();
+    return new Pair<>(random, new ChunkedEncryptingPartOutputStream(new ChunkedPartCipher(attachmentSecret, random), new FileOutputStream(file)));
+  }
+
+  private ChunkedEncryptingPartOutputStream(@NonNull ChunkedPartCipher cipher, @NonNull OutputStream outputStream) {
+    this.cipher       = cipher;
+    this.outputStream = outputStream;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (closed) throw new IOException("Stream closed");
+
+    while (length > 0) {
+      if (chunkLength == chunk.length) {
+        submit(false);
+      }
+
+      int count = Math.min(length, chunk.length - chunkLength);
+
+      System.arraycopy(buffer, offset, chunk, chunkLength, count);
+
+      chunkLength += count;
+      offset      += count;
+      length      -= count;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+
+    try {
+      submit(true);
+
+      while (!pending.isEmpty()) {
+        writeNext();
+      }
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  /**
+   * Hands the buffered chunk to the worker pool. A full chunk is only submitted once more data
+   * arrives or the stream is closed, since the last chunk is authenticated as such.
+   */
+  private void submit(boolean last) throws IOException {
+    final byte[] plaintext = chunk;
+    final int    length    = chunkLength;
+    final long   index     = chunkIndex;
+
+    pending.add(ChunkedPartCipher.EXECUTOR.submit(() -> cipher.encrypt(index, plaintext, length, last)));
+
+    chunk       = new byte[ChunkedPartCipher.CHUNK_SIZE];
+    chunkLength = 0;
+    chunkIndex++;
+
+    while (pending.size() >= ChunkedPartCipher.MAX_IN_FLIGHT) {
+      writeNext();
+    }
+  }
+
+  private void writeNext() throws IOException {
+    try {
+      outputStream.write(pending.remove().get());
+    } catch (InterruptedException | ExecutionException e) {
+      throw new IOException(e);
+    }
+  }
+}
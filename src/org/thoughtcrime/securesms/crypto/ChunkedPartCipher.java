@@ -0,0 +1,195 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.util.Conversions;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
+import org.whispersystems.libsignal.kdf.HKDFv3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The chunked part format. The plaintext is split into 64 KiB chunks, and each is stored as its
+ * AES/CTR ciphertext followed by a truncated HmacSHA256 over the chunk's index, whether it's the
+ * last chunk, and its ciphertext. Every chunk but the last is full, and an empty part is stored as
+ * a single empty last chunk.
+ *
+ * Chunks use disjoint counter ranges and are authenticated on their own, so they can be encrypted
+ * and decrypted in parallel and verified independently on random access.
+ *
+ * The random stored for a chunked part is prefixed with {@link #VERSION}, which distinguishes it
+ * from modern parts' 32 byte randoms and classic parts' missing ones.
+ */
+public class ChunkedPartCipher {
+
+  public static final byte VERSION = 2;
+
+  static final int CHUNK_SIZE        = 64 * 1024;
+  static final int MAC_LENGTH        = 16;
+  static final int STORED_CHUNK_SIZE = CHUNK_SIZE + MAC_LENGTH;
+  static final int MAX_IN_FLIGHT     = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+  private static final int RANDOM_LENGTH = 32;
+
+  static final ExecutorService EXECUTOR = SignalExecutors.newCachedBoundedExecutor("signal-part-cipher", Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+  private final SecretKeySpec cipherKey;
+  private final SecretKeySpec macKey;
+
+  ChunkedPartCipher(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random) {
+    if (!isChunked(random)) {
+      throw new IllegalArgumentException("Not a chunked part random");
+    }
+
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      byte[] secret  = mac.doFinal(Arrays.copyOfRange(random, 1, random.length));
+      byte[] derived = new HKDFv3().deriveSecrets(secret, "Chunked Part".getBytes(), 64);
+
+      this.cipherKey = new SecretKeySpec(derived, 0, 32, "AES");
+      this.macKey    = new SecretKeySpec(derived, 32, 32, "HmacSHA256");
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public static boolean isChunked(@Nullable byte[] random) {
+    return random != null && random.length == RANDOM_LENGTH + 1 && random[0] == VERSION;
+  }
+
+  static @NonNull byte[] newRandom() {
+    byte[] random = new byte[RANDOM_LENGTH + 1];
+    new SecureRandom().nextBytes(random);
+    random[0] = VERSION;
+
+    return random;
+  }
+
+  static long getPlaintextLength(long fileLength) throws IOException {
+    return fileLength - getChunkCount(fileLength) * MAC_LENGTH;
+  }
+
+  static long getChunkCount(long fileLength) throws IOException {
+    long chunkCount = Math.max(1, (fileLength + STORED_CHUNK_SIZE - 1) / STORED_CHUNK_SIZE);
+
+    if (fileLength - (chunkCount - 1) * STORED_CHUNK_SIZE < MAC_LENGTH) {
+      throw new IOException("Bad chunked part length: " + fileLength);
+    }
+
+    return chunkCount;
+  }
+
+  /**
+   * @return The chunk's ciphertext followed by its MAC.
+   */
+  @NonNull byte[] encrypt(long index, @NonNull byte[] plaintext, int length, boolean last) {
+    try {
+      byte[] stored = new byte[length + MAC_LENGTH];
+
+      getCipher(Cipher.ENCRYPT_MODE, index).doFinal(plaintext, 0, length, stored, 0);
+      System.arraycopy(getMac(index, stored, length, last), 0, stored, length, MAC_LENGTH);
+
+      return stored;
+    } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Verifies and decrypts a chunk's ciphertext followed by its MAC.
+   */
+  @NonNull byte[] decrypt(long index, @NonNull byte[] stored, int length, boolean last) throws IOException {
+    if (length < MAC_LENGTH) {
+      throw new IOException("Chunk too short: " + length);
+    }
+
+    int    ciphertextLength = length - MAC_LENGTH;
+    byte[] ourMac           = getMac(index, stored, ciphertextLength, last);
+    byte[] theirMac         = Arrays.copyOfRange(stored, ciphertextLength, length);
+
+    if (!MessageDigest.isEqual(ourMac, theirMac)) {
+      throw new IOException("Bad MAC on chunk " + index);
+    }
+
+    try {
+      return getCipher(Cipher.DECRYPT_MODE, index).doFinal(stored, 0, ciphertextLength);
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Reads, verifies and decrypts a chunk from a chunked part file.
+   */
+  @NonNull byte[] readChunk(@NonNull FileChannel channel, long fileLength, long index) throws IOException {
+    long chunkCount = getChunkCount(fileLength);
+
+    if (index >= chunkCount) {
+      throw new IOException("Chunk " + index + " is past the end of the part");
+    }
+
+    long   start  = index * STORED_CHUNK_SIZE;
+    int    length = (int) Math.min(STORED_CHUNK_SIZE, fileLength - start);
+    byte[] stored = new byte[length];
+    int    offset = 0;
+
+    while (offset < length) {
+      int read = channel.read(ByteBuffer.wrap(stored, offset, length - offset), start + offset);
+
+      if (read == -1) throw new IOException("Unexpected end of part");
+      offset += read;
+    }
+
+    return decrypt(index, stored, length, index == chunkCount - 1);
+  }
+
+  private @NonNull Cipher getCipher(int mode, long index) {
+    try {
+      byte[] iv = new byte[16];
+      Conversions.longToByteArray(iv, 0, index);
+
+      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      cipher.init(mode, cipherKey, new IvParameterSpec(iv));
+
+      return cipher;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private @NonNull byte[] getMac(long index, @NonNull byte[] ciphertext, int length, boolean last) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(macKey);
+      mac.update(Conversions.longToByteArray(index));
+      mac.update(last ? (byte) 1 : (byte) 0);
+      mac.update(ciphertext, 0, length);
+
+      return Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
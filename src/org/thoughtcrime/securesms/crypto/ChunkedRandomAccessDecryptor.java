@@ -0,0 +1,79 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.util.LRUCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access over a part in the {@link ChunkedPartCipher} format. Each chunk is verified when
+ * it's decrypted, and a few recently used chunks are cached.
+ */
+public class ChunkedRandomAccessDecryptor implements RandomAccessDecryptor {
+
+  private static final int CACHE_SIZE = 4;
+
+  private final ChunkedPartCipher      cipher;
+  private final RandomAccessFile       file;
+  private final FileChannel            channel;
+  private final long                   fileLength;
+  private final long                   length;
+  private final LRUCache<Long, byte[]> chunks = new LRUCache<>(CACHE_SIZE);
+
+  public ChunkedRandomAccessDecryptor(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file)
+      throws IOException
+  {
+    this.cipher     = new ChunkedPartCipher(attachmentSecret, random);
+    this.file       = new RandomAccessFile(file, "r");
+    this.channel    = this.file.getChannel();
+    this.fileLength = this.file.length();
+    this.length     = ChunkedPartCipher.getPlaintextLength(fileLength);
+  }
+
+  @Override
+  public synchronized int read(long position, @NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (position >= this.length) return -1;
+
+    length = (int) Math.min(length, this.length - position);
+
+    int total = 0;
+
+    while (total < length) {
+      long   chunkIndex  = (position + total) / ChunkedPartCipher.CHUNK_SIZE;
+      int    chunkOffset = (int) ((position + total) % ChunkedPartCipher.CHUNK_SIZE);
+      byte[] chunk       = getChunk(chunkIndex);
+      int    count       = Math.min(length - total, chunk.length - chunkOffset);
+
+      System.arraycopy(chunk, chunkOffset, buffer, offset + total, count);
+      total += count;
+    }
+
+    return total;
+  }
+
+  @Override
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private @NonNull byte[] getChunk(long chunkIndex) throws IOException {
+    byte[] chunk = chunks.get(chunkIndex);
+
+    if (chunk == null) {
+      chunk = cipher.readChunk(channel, fileLength, chunkIndex);
+      chunks.put(chunkIndex, chunk);
+    }
+
+    return chunk;
+  }
+}
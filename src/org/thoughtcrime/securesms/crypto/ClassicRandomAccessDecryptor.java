@@ -0,0 +1,152 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.util.LRUCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random access over a classic part file: a 16 byte IV, AES/CBC ciphertext and a 20 byte
+ * HmacSHA1. The MAC is verified once when the file is opened.
+ *
+ * Each CBC block only depends on the ciphertext block before it, so the file is decrypted in
+ * independent chunks, and a few recently used chunks are cached for the small sequential reads
+ * media players make.
+ */
+public class ClassicRandomAccessDecryptor implements RandomAccessDecryptor {
+
+  private static final int IV_LENGTH  = 16;
+  private static final int MAC_LENGTH = 20;
+  private static final int BLOCK_SIZE = 16;
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final int CACHE_SIZE = 4;
+
+  private final RandomAccessFile         file;
+  private final FileChannel              channel;
+  private final Cipher                   cipher;
+  private final SecretKeySpec            key;
+  private final long                     ciphertextLength;
+  private final long                     length;
+  private final LRUCache<Long, byte[]>   chunks = new LRUCache<>(CACHE_SIZE);
+
+  public ClassicRandomAccessDecryptor(@NonNull AttachmentSecret attachmentSecret, @NonNull File file)
+      throws IOException
+  {
+    if (file.length() <= IV_LENGTH + MAC_LENGTH || (file.length() - IV_LENGTH - MAC_LENGTH) % BLOCK_SIZE != 0) {
+      throw new IOException("Bad file length: " + file.length());
+    }
+
+    ClassicDecryptingPartInputStream.verifyMac(attachmentSecret, file);
+
+    try {
+      this.cipher = Cipher.getInstance("AES/CBC/NoPadding");
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+
+    this.key              = new SecretKeySpec(attachmentSecret.getClassicCipherKey(), "AES");
+    this.file             = new RandomAccessFile(file, "r");
+    this.channel          = this.file.getChannel();
+    this.ciphertextLength = file.length() - IV_LENGTH - MAC_LENGTH;
+    this.length           = ciphertextLength - getPaddingLength();
+  }
+
+  @Override
+  public synchronized int read(long position, @NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (position >= this.length) return -1;
+
+    length = (int) Math.min(length, this.length - position);
+
+    int total = 0;
+
+    while (total < length) {
+      long   chunkIndex  = (position + total) / CHUNK_SIZE;
+      int    chunkOffset = (int) ((position + total) % CHUNK_SIZE);
+      byte[] chunk       = getChunk(chunkIndex);
+      int    count       = Math.min(length - total, chunk.length - chunkOffset);
+
+      System.arraycopy(chunk, chunkOffset, buffer, offset + total, count);
+      total += count;
+    }
+
+    return total;
+  }
+
+  @Override
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private int getPaddingLength() throws IOException {
+    byte[] lastBlock      = decrypt(ciphertextLength - BLOCK_SIZE, BLOCK_SIZE);
+    int    paddingLength  = lastBlock[BLOCK_SIZE - 1] & 0xff;
+
+    if (paddingLength < 1 || paddingLength > BLOCK_SIZE) {
+      throw new IOException("Bad padding: " + paddingLength);
+    }
+
+    return paddingLength;
+  }
+
+  private @NonNull byte[] getChunk(long chunkIndex) throws IOException {
+    byte[] chunk = chunks.get(chunkIndex);
+
+    if (chunk == null) {
+      long start = chunkIndex * CHUNK_SIZE;
+
+      chunk = decrypt(start, (int) Math.min(CHUNK_SIZE, ciphertextLength - start));
+      chunks.put(chunkIndex, chunk);
+    }
+
+    return chunk;
+  }
+
+  /**
+   * Decrypts the given block aligned range of the ciphertext. The range is read along with the
+   * block before it, which is its IV, or the file's IV for the first block.
+   */
+  private @NonNull byte[] decrypt(long ciphertextOffset, int length) throws IOException {
+    byte[] input = new byte[IV_LENGTH + length];
+
+    readFully(ciphertextOffset, input);
+
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(input, 0, IV_LENGTH));
+      return cipher.doFinal(input, IV_LENGTH, length);
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private void readFully(long position, byte[] buffer) throws IOException {
+    int offset = 0;
+
+    while (offset < buffer.length) {
+      int read = channel.read(ByteBuffer.wrap(buffer, offset, buffer.length - offset), position + offset);
+
+      if (read == -1) throw new IOException("Unexpected end of file");
+      offset += read;
+    }
+  }
+}
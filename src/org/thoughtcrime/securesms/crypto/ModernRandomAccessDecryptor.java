@@ -0,0 +1,125 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.util.Conversions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random access over a modern part file, which is AES/CTR encrypted with a key derived from its
+ * random. The key is derived once, and the key stream for any position is computed directly from
+ * its block counter, so seeking costs nothing.
+ */
+public class ModernRandomAccessDecryptor implements RandomAccessDecryptor {
+
+  private static final int BLOCK_SIZE = 16;
+
+  private final RandomAccessFile file;
+  private final FileChannel      channel;
+  private final Cipher           cipher;
+  private final long             length;
+
+  private byte[] ciphertext = new byte[0];
+  private byte[] keyStream  = new byte[0];
+
+  public ModernRandomAccessDecryptor(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file)
+      throws IOException
+  {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      this.cipher = Cipher.getInstance("AES/ECB/NoPadding");
+      this.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mac.doFinal(random), "AES"));
+    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+
+    this.file    = new RandomAccessFile(file, "r");
+    this.channel = this.file.getChannel();
+    this.length  = this.file.length();
+  }
+
+  @Override
+  public synchronized int read(long position, @NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (position >= this.length) return -1;
+    if (length <= 0)             return 0;
+
+    length = (int) Math.min(length, this.length - position);
+
+    long blockStart  = position - (position % BLOCK_SIZE);
+    int  skip        = (int) (position - blockStart);
+    int  blockLength = ((skip + length + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+
+    if (ciphertext.length < blockLength) {
+      ciphertext = new byte[blockLength];
+      keyStream  = new byte[blockLength];
+    }
+
+    int read = readFully(blockStart, ciphertext, Math.min(skip + length, blockLength));
+
+    if (read <= skip) return -1;
+
+    length = Math.min(length, read - skip);
+
+    computeKeyStream(blockStart / BLOCK_SIZE, blockLength);
+
+    for (int i = 0; i < length; i++) {
+      buffer[offset + i] = (byte) (ciphertext[skip + i] ^ keyStream[skip + i]);
+    }
+
+    return length;
+  }
+
+  @Override
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private void computeKeyStream(long firstCounter, int length) {
+    Arrays.fill(keyStream, 0, length, (byte) 0);
+
+    for (int i = 0; i < length / BLOCK_SIZE; i++) {
+      Conversions.longToByteArray(keyStream, i * BLOCK_SIZE + 8, firstCounter + i);
+    }
+
+    try {
+      cipher.update(keyStream, 0, length, keyStream, 0);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private int readFully(long position, byte[] buffer, int length) throws IOException {
+    int offset = 0;
+
+    while (offset < length) {
+      int read = channel.read(ByteBuffer.wrap(buffer, offset, length - offset), position + offset);
+
+      if (read == -1) break;
+      offset += read;
+    }
+
+    return offset;
+  }
+}
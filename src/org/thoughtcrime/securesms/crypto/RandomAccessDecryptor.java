@@ -0,0 +1,26 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Decrypts arbitrary ranges of an encrypted part file without reading it from the start, keeping
+ * the file and derived keys open between reads.
+ */
+public interface RandomAccessDecryptor extends Closeable {
+
+  /**
+   * Reads up to length bytes of plaintext starting at position.
+   *
+   * @return The number of bytes read, or -1 if position is at or past the end of the plaintext.
+   */
+  int read(long position, @NonNull byte[] buffer, int offset, int length) throws IOException;
+
+  /**
+   * @return The length of the plaintext.
+   */
+  long getLength() throws IOException;
+}
@@ -0,0 +1,134 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of serialized session records, keyed by address. Records
+ * are kept serialized so that every load hands out a fresh {@link
+ * org.whispersystems.libsignal.state.SessionRecord}, which a failed decrypt can modify without
+ * affecting the cached state.
+ *
+ * Entries are weighed by the size of their record. Dirty entries, written behind and not yet
+ * flushed to the database, are never evicted.
+ */
+class SessionCache {
+
+  private static final int ENTRY_OVERHEAD = 64;
+
+  private final LinkedHashMap<SignalProtocolAddress, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final long                                        maxSize;
+
+  private long size;
+
+  SessionCache(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @return The cached entry for the address, or null if the address isn't cached. An entry with a
+   *         null record means the address is known to have no session.
+   */
+  synchronized @Nullable Entry get(@NonNull SignalProtocolAddress address) {
+    return entries.get(address);
+  }
+
+  synchronized void put(@NonNull SignalProtocolAddress address, @Nullable byte[] record, boolean dirty) {
+    Entry previous = entries.put(address, new Entry(record, dirty));
+
+    if (previous != null) size -= previous.getSize();
+    size += ENTRY_OVERHEAD + (record != null ? record.length : 0);
+
+    trim();
+  }
+
+  synchronized void remove(@NonNull SignalProtocolAddress address) {
+    Entry previous = entries.remove(address);
+    if (previous != null) size -= previous.getSize();
+  }
+
+  synchronized void removeAll(@NonNull String name) {
+    Iterator<Map.Entry<SignalProtocolAddress, Entry>> iterator = entries.entrySet().iterator();
+
+    while (iterator.hasNext()) {
+      Map.Entry<SignalProtocolAddress, Entry> entry = iterator.next();
+
+      if (entry.getKey().getName().equals(name)) {
+        size -= entry.getValue().getSize();
+        iterator.remove();
+      }
+    }
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    size = 0;
+  }
+
+  /**
+   * @return The entries for the given addresses that are still dirty.
+   */
+  synchronized @NonNull Map<SignalProtocolAddress, Entry> getDirty(@NonNull Collection<SignalProtocolAddress> addresses) {
+    Map<SignalProtocolAddress, Entry> dirty = new HashMap<>();
+
+    for (SignalProtocolAddress address : addresses) {
+      Entry entry = entries.get(address);
+      if (entry != null && entry.dirty) dirty.put(address, entry);
+    }
+
+    return dirty;
+  }
+
+  /**
+   * Marks the given entries clean, unless they've been replaced since they were read.
+   */
+  synchronized void markClean(@NonNull Map<SignalProtocolAddress, Entry> flushed) {
+    for (Map.Entry<SignalProtocolAddress, Entry> entry : flushed.entrySet()) {
+      if (entries.get(entry.getKey()) == entry.getValue()) {
+        entry.getValue().dirty = false;
+      }
+    }
+
+    trim();
+  }
+
+  private void trim() {
+    Iterator<Entry> iterator = entries.values().iterator();
+
+    while (size > maxSize && iterator.hasNext()) {
+      Entry entry = iterator.next();
+
+      if (!entry.dirty) {
+        size -= entry.getSize();
+        iterator.remove();
+      }
+    }
+  }
+
+  static class Entry {
+    private final @Nullable byte[]  record;
+    private                 boolean dirty;
+
+    private Entry(@Nullable byte[] record, boolean dirty) {
+      this.record = record;
+      this.dirty  = dirty;
+    }
+
+    @Nullable byte[] getRecord() {
+      return record;
+    }
+
+    private long getSize() {
+      return ENTRY_OVERHEAD + (record != null ? record.length : 0);
+    }
+  }
+}
@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.crypto.storage;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.database.Address;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
@@ -12,24 +13,61 @@ import org.whispersystems.libsignal.protocol.CiphertextMessage;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SessionStore;
 
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Session records are cached in memory, serialized, in front of the {@link SessionDatabase}.
+ * Access is serialized per address name rather than globally.
+ *
+ * Records aren't cached while the calling thread has a database transaction open, since its writes
+ * could still be rolled back.
+ */
 public class TextSecureSessionStore implements SessionStore {
 
   private static final String TAG = TextSecureSessionStore.class.getSimpleName();
 
-  private static final Object FILE_LOCK = new Object();
+  private static final int  LOCK_COUNT     = 32;
+  private static final long MAX_CACHE_SIZE = 2 * 1024 * 1024;
 
-  @NonNull  private final Context context;
+  private static final ReentrantLock[] LOCKS = new ReentrantLock[LOCK_COUNT];
+  private static final SessionCache    CACHE = new SessionCache(MAX_CACHE_SIZE);
+
+  static {
+    for (int i = 0; i < LOCK_COUNT; i++) {
+      LOCKS[i] = new ReentrantLock();
+    }
+  }
+
+  @NonNull  private final Context                    context;
+  @NonNull  private final Set<SignalProtocolAddress> pending = new HashSet<>();
+
+  private boolean writeBehind;
 
   public TextSecureSessionStore(@NonNull Context context) {
     this.context = context;
   }
 
+  /**
+   * Drops every cached record, including ones that haven't been flushed. Must be called when the
+   * session table is replaced underneath the store, like when a backup is restored.
+   */
+  public static void clearCache() {
+    CACHE.clear();
+  }
+
   @Override
   public SessionRecord loadSession(@NonNull SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      SessionRecord sessionRecord = DatabaseFactory.getSessionDatabase(context).load(Address.fromSerialized(address.getName()), address.getDeviceId());
+    ReentrantLock lock = lockFor(address.getName());
+
+    lock.lock();
+    try {
+      SessionRecord sessionRecord = getRecord(address);
 
       if (sessionRecord == null) {
         Log.w(TAG, "No existing session information found.");
@@ -37,69 +75,237 @@ public class TextSecureSessionStore implements SessionStore {
       }
 
       return sessionRecord;
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void storeSession(@NonNull SignalProtocolAddress address, @NonNull SessionRecord record) {
-    synchronized (FILE_LOCK) {
-      DatabaseFactory.getSessionDatabase(context).store(Address.fromSerialized(address.getName()), address.getDeviceId(), record);
+    ReentrantLock lock             = lockFor(address.getName());
+    byte[]        serializedRecord = record.serialize();
+
+    lock.lock();
+    try {
+      SessionDatabase database = DatabaseFactory.getSessionDatabase(context);
+
+      if (writeBehind) {
+        CACHE.put(address, serializedRecord, true);
+        pending.add(address);
+      } else {
+        database.store(Address.fromSerialized(address.getName()), address.getDeviceId(), serializedRecord);
+
+        if (database.isInTransaction()) CACHE.remove(address);
+        else                            CACHE.put(address, serializedRecord, false);
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public boolean containsSession(SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      SessionRecord sessionRecord = DatabaseFactory.getSessionDatabase(context).load(Address.fromSerialized(address.getName()), address.getDeviceId());
+    ReentrantLock lock = lockFor(address.getName());
+
+    lock.lock();
+    try {
+      SessionRecord sessionRecord = getRecord(address);
 
       return sessionRecord != null &&
              sessionRecord.getSessionState().hasSenderChain() &&
              sessionRecord.getSessionState().getSessionVersion() == CiphertextMessage.CURRENT_VERSION;
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void deleteSession(SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
+    ReentrantLock lock = lockFor(address.getName());
+
+    lock.lock();
+    try {
       DatabaseFactory.getSessionDatabase(context).delete(Address.fromSerialized(address.getName()), address.getDeviceId());
+      CACHE.remove(address);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void deleteAllSessions(String name) {
-    synchronized (FILE_LOCK) {
+    ReentrantLock lock = lockFor(name);
+
+    lock.lock();
+    try {
       DatabaseFactory.getSessionDatabase(context).deleteAllFor(Address.fromSerialized(name));
+      CACHE.removeAll(name);
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public List<Integer> getSubDeviceSessions(String name) {
-    synchronized (FILE_LOCK) {
+    ReentrantLock lock = lockFor(name);
+
+    lock.lock();
+    try {
+      flushIfDirty();
       return DatabaseFactory.getSessionDatabase(context).getSubDevices(Address.fromSerialized(name));
+    } finally {
+      lock.unlock();
     }
   }
 
   public void archiveSiblingSessions(@NonNull SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
+    ReentrantLock lock = lockFor(address.getName());
+
+    lock.lock();
+    try {
+      flushIfDirty();
+
       List<SessionDatabase.SessionRow> sessions = DatabaseFactory.getSessionDatabase(context).getAllFor(Address.fromSerialized(address.getName()));
 
-      for (SessionDatabase.SessionRow row : sessions) {
-        if (row.getDeviceId() != address.getDeviceId()) {
-          row.getRecord().archiveCurrentState();
-          storeSession(new SignalProtocolAddress(row.getAddress().serialize(), row.getDeviceId()), row.getRecord());
+      beginWriteBehind();
+
+      try {
+        for (SessionDatabase.SessionRow row : sessions) {
+          if (row.getDeviceId() != address.getDeviceId()) {
+            row.getRecord().archiveCurrentState();
+            storeSession(new SignalProtocolAddress(row.getAddress().serialize(), row.getDeviceId()), row.getRecord());
+          }
         }
+
+        flush();
+      } catch (RuntimeException e) {
+        discardWriteBehind();
+        throw e;
       }
+    } finally {
+      lock.unlock();
     }
   }
 
   public void archiveAllSessions() {
-    synchronized (FILE_LOCK) {
+    for (ReentrantLock lock : LOCKS) lock.lock();
+
+    try {
+      flushIfDirty();
+
       List<SessionDatabase.SessionRow> sessions = DatabaseFactory.getSessionDatabase(context).getAll();
 
-      for (SessionDatabase.SessionRow row : sessions) {
-        row.getRecord().archiveCurrentState();
-        storeSession(new SignalProtocolAddress(row.getAddress().serialize(), row.getDeviceId()), row.getRecord());
+      beginWriteBehind();
+
+      try {
+        for (SessionDatabase.SessionRow row : sessions) {
+          row.getRecord().archiveCurrentState();
+          storeSession(new SignalProtocolAddress(row.getAddress().serialize(), row.getDeviceId()), row.getRecord());
+        }
+
+        flush();
+      } catch (RuntimeException e) {
+        discardWriteBehind();
+        throw e;
+      }
+    } finally {
+      for (ReentrantLock lock : LOCKS) lock.unlock();
+    }
+  }
+
+  /**
+   * Defers the session writes made through this store until {@link #flush()}, which commits them
+   * in a single transaction. Unflushed records are lost if the process dies, so they must be
+   * flushed before anything encrypted with them leaves the device.
+   */
+  public void beginWriteBehind() {
+    writeBehind = true;
+  }
+
+  /**
+   * Commits the session writes deferred by this store in a single transaction, and ends
+   * write-behind for this store. Records deferred by other stores are left alone.
+   */
+  public void flush() {
+    writeBehind = false;
+
+    Map<SignalProtocolAddress, SessionCache.Entry> dirty   = CACHE.getDirty(pending);
+    Map<SignalProtocolAddress, byte[]>             records = new HashMap<>(dirty.size());
+
+    pending.clear();
+
+    if (dirty.isEmpty()) return;
+
+    for (Map.Entry<SignalProtocolAddress, SessionCache.Entry> entry : dirty.entrySet()) {
+      records.put(entry.getKey(), entry.getValue().getRecord());
+    }
+
+    SessionDatabase database = DatabaseFactory.getSessionDatabase(context);
+
+    try {
+      database.storeAll(records);
+    } catch (RuntimeException e) {
+      pending.addAll(dirty.keySet());
+      throw e;
+    }
+
+    if (database.isInTransaction()) {
+      for (SignalProtocolAddress address : dirty.keySet()) CACHE.remove(address);
+    } else {
+      CACHE.markClean(dirty);
+    }
+  }
+
+  /**
+   * Drops the session writes deferred by this store that haven't been flushed, so that a failed or
+   * rolled back write can't leave the cache ahead of the database.
+   */
+  private void discardWriteBehind() {
+    writeBehind = false;
+
+    for (SignalProtocolAddress address : CACHE.getDirty(pending).keySet()) {
+      CACHE.remove(address);
+    }
+
+    pending.clear();
+  }
+
+  private void flushIfDirty() {
+    if (!pending.isEmpty()) {
+      flush();
+    }
+  }
+
+  private @Nullable SessionRecord getRecord(@NonNull SignalProtocolAddress address) {
+    SessionCache.Entry entry = CACHE.get(address);
+    byte[]             serializedRecord;
+
+    if (entry != null) {
+      serializedRecord = entry.getRecord();
+    } else {
+      SessionDatabase database = DatabaseFactory.getSessionDatabase(context);
+
+      serializedRecord = database.loadSerialized(Address.fromSerialized(address.getName()), address.getDeviceId());
+
+      if (!database.isInTransaction()) {
+        CACHE.put(address, serializedRecord, false);
       }
     }
+
+    if (serializedRecord == null) {
+      return null;
+    }
+
+    try {
+      return new SessionRecord(serializedRecord);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      CACHE.remove(address);
+      return null;
+    }
+  }
+
+  private static @NonNull ReentrantLock lockFor(@NonNull String name) {
+    return LOCKS[(name.hashCode() & Integer.MAX_VALUE) % LOCK_COUNT];
   }
 }
@@ -41,15 +41,22 @@ import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
+import org.thoughtcrime.securesms.crypto.ChunkedDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ChunkedEncryptingPartOutputStream;
+import org.thoughtcrime.securesms.crypto.ChunkedPartCipher;
+import org.thoughtcrime.securesms.crypto.ChunkedRandomAccessDecryptor;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ClassicRandomAccessDecryptor;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
-import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
+import org.thoughtcrime.securesms.crypto.ModernRandomAccessDecryptor;
+import org.thoughtcrime.securesms.crypto.RandomAccessDecryptor;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.mms.MediaStream;
 import org.thoughtcrime.securesms.mms.MmsException;
 import org.thoughtcrime.securesms.mms.PartAuthority;
 import org.thoughtcrime.securesms.util.BitmapDecodingException;
 import org.thoughtcrime.securesms.util.BitmapUtil;
+import org.thoughtcrime.securesms.util.Hex;
 import org.thoughtcrime.securesms.util.JsonUtils;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.MediaUtil.ThumbnailData;
@@ -62,6 +69,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -69,7 +79,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 
 public class AttachmentDatabase extends Database {
   
@@ -78,6 +87,7 @@ public class AttachmentDatabase extends Database {
   public  static final String TABLE_NAME             = "part";
   public  static final String ROW_ID                 = "_id";
           static final String ATTACHMENT_JSON_ALIAS  = "attachment_json";
+  public  static final String ATTACHMENT_COUNT_ALIAS = "attachment_count";
   public  static final String MMS_ID                 = "mid";
           static final String CONTENT_TYPE           = "ct";
           static final String NAME                   = "name";
@@ -93,12 +103,13 @@ public class AttachmentDatabase extends Database {
           static final String DIGEST                 = "digest";
           static final String VOICE_NOTE             = "voice_note";
           static final String QUOTE                  = "quote";
-          static final String FAST_PREFLIGHT_ID      = "fast_preflight_id";
+  public  static final String FAST_PREFLIGHT_ID      = "fast_preflight_id";
   public  static final String DATA_RANDOM            = "data_random";
   private static final String THUMBNAIL_RANDOM       = "thumbnail_random";
           static final String WIDTH                  = "width";
           static final String HEIGHT                 = "height";
           static final String CAPTION                = "caption";
+          static final String DATA_HASH              = "data_hash";
 
   public  static final String DIRECTORY              = "parts";
 
@@ -128,14 +139,16 @@ public class AttachmentDatabase extends Database {
     UNIQUE_ID + " INTEGER NOT NULL, " + DIGEST + " BLOB, " + FAST_PREFLIGHT_ID + " TEXT, " +
     VOICE_NOTE + " INTEGER DEFAULT 0, " + DATA_RANDOM + " BLOB, " + THUMBNAIL_RANDOM + " BLOB, " +
     QUOTE + " INTEGER DEFAULT 0, " + WIDTH + " INTEGER DEFAULT 0, " + HEIGHT + " INTEGER DEFAULT 0, " +
-    CAPTION + " TEXT DEFAULT NULL);";
+    CAPTION + " TEXT DEFAULT NULL, " + DATA_HASH + " TEXT DEFAULT NULL);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS part_mms_id_index ON " + TABLE_NAME + " (" + MMS_ID + ");",
     "CREATE INDEX IF NOT EXISTS pending_push_index ON " + TABLE_NAME + " (" + TRANSFER_STATE + ");",
+    "CREATE INDEX IF NOT EXISTS part_data_index ON " + TABLE_NAME + " (" + DATA + ");",
+    "CREATE INDEX IF NOT EXISTS part_data_hash_index ON " + TABLE_NAME + " (" + DATA_HASH + ");",
   };
 
-  private final ExecutorService thumbnailExecutor = Util.newSingleThreadedLifoExecutor();
+  private final ThumbnailService thumbnailService = new ThumbnailService();
 
   private final AttachmentSecret attachmentSecret;
 
@@ -153,6 +166,34 @@ public class AttachmentDatabase extends Database {
     else                    return dataStream;
   }
 
+  /**
+   * @return A decryptor for random access to the attachment's data, or null if it has no data.
+   */
+  public @Nullable RandomAccessDecryptor getRandomAccessDecryptor(@NonNull AttachmentId attachmentId)
+      throws IOException
+  {
+    DataInfo dataInfo = getAttachmentDataFileInfo(attachmentId, DATA);
+
+    if (dataInfo == null) {
+      return null;
+    }
+
+    if (ChunkedPartCipher.isChunked(dataInfo.random)) {
+      return new ChunkedRandomAccessDecryptor(attachmentSecret, dataInfo.random, dataInfo.file);
+    } else if (dataInfo.random != null && dataInfo.random.length == 32) {
+      return new ModernRandomAccessDecryptor(attachmentSecret, dataInfo.random, dataInfo.file);
+    } else {
+      return new ClassicRandomAccessDecryptor(attachmentSecret, dataInfo.file);
+    }
+  }
+
+  /**
+   * @return The service that generates thumbnails, for its queue depth and latency metrics.
+   */
+  public @NonNull ThumbnailService getThumbnailService() {
+    return thumbnailService;
+  }
+
   public @NonNull InputStream getThumbnailStream(@NonNull AttachmentId attachmentId)
       throws IOException
   {
@@ -164,7 +205,9 @@ public class AttachmentDatabase extends Database {
     }
 
     try {
-      InputStream generatedStream = thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId)).get();
+      thumbnailService.generate(attachmentId, ThumbnailService.PRIORITY_VISIBLE, new ThumbnailFetchCallable(attachmentId)).get();
+
+      InputStream generatedStream = getDataStream(attachmentId, THUMBNAIL, 0);
 
       if (generatedStream == null) throw new FileNotFoundException("No thumbnail stream available: " + attachmentId);
       else                         return generatedStream;
@@ -230,6 +273,38 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  /**
+   * Loads the attachments for several messages with a single query. Every requested message id is
+   * present in the result, mapped to an empty list if it has no attachments.
+   */
+  public @NonNull Map<Long, List<DatabaseAttachment>> getAttachmentsForMessages(@NonNull long[] mmsIds) {
+    SQLiteDatabase                      database = databaseHelper.getReadableDatabase();
+    Map<Long, List<DatabaseAttachment>> results  = new HashMap<>(mmsIds.length);
+    StringBuilder                       where    = new StringBuilder(MMS_ID + " IN (");
+
+    if (mmsIds.length == 0) {
+      return results;
+    }
+
+    for (int i = 0; i < mmsIds.length; i++) {
+      results.put(mmsIds[i], new LinkedList<>());
+      where.append(mmsIds[i]);
+
+      if (i < mmsIds.length - 1) where.append(',');
+    }
+
+    where.append(')');
+
+    try (Cursor cursor = database.query(TABLE_NAME, PROJECTION, where.toString(), null, null, null, ROW_ID + " ASC")) {
+      while (cursor != null && cursor.moveToNext()) {
+        long mmsId = cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID));
+        results.get(mmsId).addAll(getAttachment(cursor));
+      }
+    }
+
+    return results;
+  }
+
   public @NonNull List<DatabaseAttachment> getPendingAttachments() {
     final SQLiteDatabase           database    = databaseHelper.getReadableDatabase();
     final List<DatabaseAttachment> attachments = new LinkedList<>();
@@ -247,30 +322,202 @@ public class AttachmentDatabase extends Database {
     return attachments;
   }
 
+  /**
+   * @return The data files that are still stored in a format older than the chunked one.
+   */
+  public @NonNull List<String> getLegacyDataFiles() {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    List<String>   results  = new LinkedList<>();
+    String         where    = DATA + " IS NOT NULL AND (" + DATA_RANDOM + " IS NULL OR length(" + DATA_RANDOM + ") != 33)";
+
+    try (Cursor cursor = database.query(true, TABLE_NAME, new String[] {DATA}, where, null, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getString(0));
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Rewrites a legacy data file in the chunked format and points every part that shares it at the
+   * new file.
+   *
+   * @return True if the file was migrated, false if it's no longer referenced or already chunked.
+   */
   @SuppressWarnings("ResultOfMethodCallIgnored")
+  public boolean migrateToChunkedFormat(@NonNull String data) throws IOException {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    byte[]         random;
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {DATA_RANDOM}, DATA + " = ?", new String[] {data}, null, null, null, "1")) {
+      if (cursor == null || !cursor.moveToFirst()) return false;
+      random = cursor.getBlob(0);
+    }
+
+    if (ChunkedPartCipher.isChunked(random)) return false;
+
+    File                       legacyFile  = new File(data);
+    File                       chunkedFile = File.createTempFile("part", ".mms", context.getDir(DIRECTORY, Context.MODE_PRIVATE));
+    Pair<byte[], OutputStream> output      = null;
+    InputStream                inputStream = null;
+    boolean                    copied      = false;
+
+    try {
+      output = ChunkedEncryptingPartOutputStream.createFor(attachmentSecret, chunkedFile);
+
+      if (random != null && random.length == 32) inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, legacyFile, 0);
+      else                                       inputStream = ClassicDecryptingPartInputStream.createFor(attachmentSecret, legacyFile);
+
+      Util.copy(inputStream, output.second);
+      copied = true;
+    } finally {
+      if (inputStream != null) Util.close(inputStream);
+      if (output != null)      Util.close(output.second);
+
+      if (!copied) chunkedFile.delete();
+    }
+
+    ContentValues values = new ContentValues(2);
+    values.put(DATA, chunkedFile.getAbsolutePath());
+    values.put(DATA_RANDOM, output.first);
+
+    if (database.update(TABLE_NAME, values, DATA + " = ?", new String[] {data}) > 0) {
+      legacyFile.delete();
+      return true;
+    } else {
+      chunkedFile.delete();
+      return false;
+    }
+  }
+
+  /**
+   * @return The data files whose content hash hasn't been recorded yet.
+   */
+  public @NonNull List<String> getUnhashedDataFiles() {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    List<String>   results  = new LinkedList<>();
+    String         where    = DATA + " IS NOT NULL AND " + DATA_HASH + " IS NULL";
+
+    try (Cursor cursor = database.query(true, TABLE_NAME, new String[] {DATA}, where, null, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getString(0));
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Records the content hash of a data file, and folds it into an existing file with the same
+   * content if there is one.
+   *
+   * @return The number of bytes reclaimed.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  public long deduplicateDataFile(@NonNull String data) throws IOException {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    File           file     = new File(data);
+    String         hash;
+
+    try (InputStream inputStream = getDataFileStream(data)) {
+      if (inputStream == null) return 0;
+
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[]        buffer = new byte[8192];
+      int           read;
+
+      while ((read = inputStream.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+
+      hash = Hex.toStringCondensed(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+
+    long reclaimed = 0;
+
+    database.beginTransaction();
+
+    try {
+      String   where = DATA_HASH + " = ? AND " + DATA + " IS NOT NULL AND " + DATA + " != ?";
+      String[] args  = new String[] {hash, data};
+
+      try (Cursor cursor = database.query(TABLE_NAME, new String[] {DATA, DATA_RANDOM}, where, args, null, null, null, "1")) {
+        ContentValues values = new ContentValues(3);
+        values.put(DATA_HASH, hash);
+
+        if (cursor != null && cursor.moveToFirst() && new File(cursor.getString(0)).exists()) {
+          values.put(DATA, cursor.getString(0));
+          values.put(DATA_RANDOM, cursor.getBlob(1));
+        }
+
+        if (database.update(TABLE_NAME, values, DATA + " = ?", new String[] {data}) > 0 && values.containsKey(DATA)) {
+          reclaimed = file.length();
+          file.delete();
+        }
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    return reclaimed;
+  }
+
+  private @Nullable InputStream getDataFileStream(@NonNull String data) throws IOException {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    byte[]         random;
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {DATA_RANDOM}, DATA + " = ?", new String[] {data}, null, null, null, "1")) {
+      if (cursor == null || !cursor.moveToFirst()) return null;
+      random = cursor.getBlob(0);
+    }
+
+    if      (ChunkedPartCipher.isChunked(random))  return ChunkedDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
+    else if (random != null && random.length == 32) return ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
+    else                                             return ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
+  }
+
   void deleteAttachmentsForMessage(long mmsId) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor cursor           = null;
+    List<String[]> onDisk   = new LinkedList<>();
+    Cursor         cursor   = null;
+
+    database.beginTransaction();
 
     try {
       cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, CONTENT_TYPE}, MMS_ID + " = ?",
                               new String[] {mmsId+""}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
-        deleteAttachmentOnDisk(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+        onDisk.add(new String[] {cursor.getString(0), cursor.getString(1), cursor.getString(2)});
       }
+
+      database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
+
+      for (String[] files : onDisk) {
+        deleteAttachmentOnDisk(files[0], files[1], files[2]);
+      }
+
+      database.setTransactionSuccessful();
     } finally {
       if (cursor != null)
         cursor.close();
+
+      database.endTransaction();
     }
 
-    database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
     notifyAttachmentListeners();
   }
 
   public void deleteAttachment(@NonNull AttachmentId id) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
 
+    database.beginTransaction();
+
     try (Cursor cursor = database.query(TABLE_NAME,
                                         new String[]{DATA, THUMBNAIL, CONTENT_TYPE},
                                         PART_ID_WHERE,
@@ -289,8 +536,12 @@ public class AttachmentDatabase extends Database {
 
       database.delete(TABLE_NAME, PART_ID_WHERE, id.toStrings());
       deleteAttachmentOnDisk(data, thumbnail, contentType);
-      notifyAttachmentListeners();
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
+
+    notifyAttachmentListeners();
   }
 
   @SuppressWarnings("ResultOfMethodCallIgnored")
@@ -308,10 +559,14 @@ public class AttachmentDatabase extends Database {
     notifyAttachmentListeners();
   }
 
+  /**
+   * Data files can be shared by every part with the same content, so they're only deleted once the
+   * last part referencing them is gone. Must be called inside the transaction that removed it.
+   */
   @SuppressWarnings("ResultOfMethodCallIgnored")
   private void deleteAttachmentOnDisk(@Nullable String data, @Nullable String thumbnail, @Nullable String contentType) {
     if (!TextUtils.isEmpty(data)) {
-      new File(data).delete();
+      deleteDataFileIfUnused(data);
     }
 
     if (!TextUtils.isEmpty(thumbnail)) {
@@ -330,32 +585,45 @@ public class AttachmentDatabase extends Database {
     SQLiteDatabase     database    = databaseHelper.getWritableDatabase();
     ContentValues      values      = new ContentValues();
     DataInfo           dataInfo    = setAttachmentData(inputStream);
+    boolean            thumbnail   = placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image");
 
-    if (placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image")) {
-      values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
-      values.put(THUMBNAIL_RANDOM, dataInfo.random);
-    } else {
-      values.put(DATA, dataInfo.file.getAbsolutePath());
-      values.put(SIZE, dataInfo.length);
-      values.put(DATA_RANDOM, dataInfo.random);
-    }
+    database.beginTransaction();
 
-    values.put(TRANSFER_STATE, TRANSFER_PROGRESS_DONE);
-    values.put(CONTENT_LOCATION, (String)null);
-    values.put(CONTENT_DISPOSITION, (String)null);
-    values.put(DIGEST, (byte[])null);
-    values.put(NAME, (String) null);
-    values.put(FAST_PREFLIGHT_ID, (String)null);
-
-    if (database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) == 0) {
-      //noinspection ResultOfMethodCallIgnored
-      dataInfo.file.delete();
-    } else {
-      notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId));
-      notifyConversationListListeners();
+    try {
+      if (thumbnail) {
+        values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
+        values.put(THUMBNAIL_RANDOM, dataInfo.random);
+      } else {
+        dataInfo = deduplicate(dataInfo);
+
+        values.put(DATA, dataInfo.file.getAbsolutePath());
+        values.put(SIZE, dataInfo.length);
+        values.put(DATA_RANDOM, dataInfo.random);
+        values.put(DATA_HASH, dataInfo.hash);
+      }
+
+      values.put(TRANSFER_STATE, TRANSFER_PROGRESS_DONE);
+      values.put(CONTENT_LOCATION, (String)null);
+      values.put(CONTENT_DISPOSITION, (String)null);
+      values.put(DIGEST, (byte[])null);
+      values.put(NAME, (String) null);
+      values.put(FAST_PREFLIGHT_ID, (String)null);
+
+      if (database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) == 0) {
+        //noinspection ResultOfMethodCallIgnored
+        if (thumbnail) dataInfo.file.delete();
+        else           deleteDataFileIfUnused(dataInfo.file.getAbsolutePath());
+      } else {
+        notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId));
+        notifyConversationListListeners();
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
-    thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId));
+    thumbnailService.generate(attachmentId, ThumbnailService.PRIORITY_DOWNLOADED, new ThumbnailFetchCallable(attachmentId));
   }
 
   @NonNull Map<Attachment, AttachmentId> insertAttachmentsForMessage(long mmsId, @NonNull List<Attachment> attachments, @NonNull List<Attachment> quoteAttachment)
@@ -386,22 +654,38 @@ public class AttachmentDatabase extends Database {
   {
     SQLiteDatabase     database           = databaseHelper.getWritableDatabase();
     DatabaseAttachment databaseAttachment = (DatabaseAttachment) attachment;
-    DataInfo           dataInfo           = getAttachmentDataFileInfo(databaseAttachment.getAttachmentId(), DATA);
+    DataInfo           oldDataInfo        = getAttachmentDataFileInfo(databaseAttachment.getAttachmentId(), DATA);
 
-    if (dataInfo == null) {
+    if (oldDataInfo == null) {
       throw new MmsException("No attachment data found!");
     }
 
-    dataInfo = setAttachmentData(dataInfo.file, mediaStream.getStream());
+    DataInfo dataInfo = setAttachmentData(mediaStream.getStream());
 
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(SIZE, dataInfo.length);
-    contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
-    contentValues.put(WIDTH, mediaStream.getWidth());
-    contentValues.put(HEIGHT, mediaStream.getHeight());
-    contentValues.put(DATA_RANDOM, dataInfo.random);
+    database.beginTransaction();
+
+    try {
+      dataInfo = deduplicate(dataInfo);
+
+      ContentValues contentValues = new ContentValues();
+      contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+      contentValues.put(SIZE, dataInfo.length);
+      contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
+      contentValues.put(WIDTH, mediaStream.getWidth());
+      contentValues.put(HEIGHT, mediaStream.getHeight());
+      contentValues.put(DATA_RANDOM, dataInfo.random);
+      contentValues.put(DATA_HASH, dataInfo.hash);
+
+      database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
 
-    database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+      if (!oldDataInfo.file.equals(dataInfo.file)) {
+        deleteDataFileIfUnused(oldDataInfo.file.getAbsolutePath());
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
 
     return new DatabaseAttachment(databaseAttachment.getAttachmentId(),
                                   databaseAttachment.getMmsId(),
@@ -473,7 +757,9 @@ public class AttachmentDatabase extends Database {
     }
 
     try {
-      if (dataInfo.random != null && dataInfo.random.length == 32) {
+      if (ChunkedPartCipher.isChunked(dataInfo.random)) {
+        return ChunkedDecryptingPartInputStream.createFor(attachmentSecret, dataInfo.random, dataInfo.file, offset);
+      } else if (dataInfo.random != null && dataInfo.random.length == 32) {
         return ModernDecryptingPartInputStream.createFor(attachmentSecret, dataInfo.random, dataInfo.file, offset);
       } else {
         InputStream stream  = ClassicDecryptingPartInputStream.createFor(attachmentSecret, dataInfo.file);
@@ -554,13 +840,58 @@ public class AttachmentDatabase extends Database {
       throws MmsException
   {
     try {
-      Pair<byte[], OutputStream> out    = ModernEncryptingPartOutputStream.createFor(attachmentSecret, destination, false);
-      long                       length = Util.copy(in, out.second);
+      MessageDigest              digest = MessageDigest.getInstance("SHA-256");
+      Pair<byte[], OutputStream> out    = ChunkedEncryptingPartOutputStream.createFor(attachmentSecret, destination);
+      long                       length = Util.copy(new DigestInputStream(in, digest), out.second);
 
-      return new DataInfo(destination, length, out.first);
+      return new DataInfo(destination, length, out.first, Hex.toStringCondensed(digest.digest()));
     } catch (IOException e) {
       throw new MmsException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Swaps freshly written data for an existing file with the same content, if there is one, and
+   * deletes the fresh copy. Must be called inside the transaction that stores the result, so the
+   * existing file can't be deleted in between.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private @NonNull DataInfo deduplicate(@NonNull DataInfo dataInfo) {
+    if (dataInfo.hash == null) return dataInfo;
+
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    String         where    = DATA_HASH + " = ? AND " + DATA + " IS NOT NULL AND " + DATA + " != ?";
+    String[]       args     = new String[] {dataInfo.hash, dataInfo.file.getAbsolutePath()};
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {DATA, DATA_RANDOM}, where, args, null, null, null, "1")) {
+      if (cursor != null && cursor.moveToFirst()) {
+        File existing = new File(cursor.getString(0));
+
+        if (existing.exists()) {
+          Log.i(TAG, "Reusing existing data file for duplicate content, saved " + dataInfo.file.length() + " bytes.");
+          dataInfo.file.delete();
+          return new DataInfo(existing, dataInfo.length, cursor.getBlob(1), dataInfo.hash);
+        }
+      }
+    }
+
+    return dataInfo;
+  }
+
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private void deleteDataFileIfUnused(@NonNull String data) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ROW_ID}, DATA + " = ?", new String[] {data}, null, null, null, "1")) {
+      if (cursor != null && cursor.moveToFirst()) {
+        Log.i(TAG, "Data file is still referenced by another part, keeping it.");
+        return;
+      }
     }
+
+    new File(data).delete();
   }
 
   public List<DatabaseAttachment> getAttachment(@NonNull Cursor cursor) {
@@ -658,13 +989,26 @@ public class AttachmentDatabase extends Database {
     contentValues.put(QUOTE, quote);
     contentValues.put(CAPTION, attachment.getCaption());
 
-    if (dataInfo != null) {
-      contentValues.put(DATA, dataInfo.file.getAbsolutePath());
-      contentValues.put(SIZE, dataInfo.length);
-      contentValues.put(DATA_RANDOM, dataInfo.random);
+    long rowId;
+
+    database.beginTransaction();
+
+    try {
+      if (dataInfo != null) {
+        dataInfo = deduplicate(dataInfo);
+
+        contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+        contentValues.put(SIZE, dataInfo.length);
+        contentValues.put(DATA_RANDOM, dataInfo.random);
+        contentValues.put(DATA_HASH, dataInfo.hash);
+      }
+
+      rowId = database.insert(TABLE_NAME, null, contentValues);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
-    long         rowId        = database.insert(TABLE_NAME, null, contentValues);
     AttachmentId attachmentId = new AttachmentId(rowId, uniqueId);
     Uri          thumbnailUri = attachment.getThumbnailUri();
     boolean      hasThumbnail = false;
@@ -690,11 +1034,11 @@ public class AttachmentDatabase extends Database {
           updateAttachmentThumbnail(attachmentId, thumbnailData.toDataStream(), thumbnailData.getAspectRatio());
         } else {
           Log.w(TAG, "Retrieving video thumbnail failed, submitting thumbnail generation job...");
-          thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId));
+          thumbnailService.generate(attachmentId, ThumbnailService.PRIORITY_BACKGROUND, new ThumbnailFetchCallable(attachmentId));
         }
       } else {
         Log.i(TAG, "Submitting thumbnail generation job...");
-        thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId));
+        thumbnailService.generate(attachmentId, ThumbnailService.PRIORITY_BACKGROUND, new ThumbnailFetchCallable(attachmentId));
       }
     }
 
@@ -732,7 +1076,7 @@ public class AttachmentDatabase extends Database {
 
 
   @VisibleForTesting
-  class ThumbnailFetchCallable implements Callable<InputStream> {
+  class ThumbnailFetchCallable implements Callable<Boolean> {
 
     private final AttachmentId attachmentId;
 
@@ -741,18 +1085,17 @@ public class AttachmentDatabase extends Database {
     }
 
     @Override
-    public @Nullable InputStream call() throws Exception {
+    public @NonNull Boolean call() throws Exception {
       Log.d(TAG, "Executing thumbnail job...");
-      final InputStream stream = getDataStream(attachmentId, THUMBNAIL, 0);
 
-      if (stream != null) {
-        return stream;
+      if (getAttachmentDataFileInfo(attachmentId, THUMBNAIL) != null) {
+        return true;
       }
 
       DatabaseAttachment attachment = getAttachment(attachmentId);
 
       if (attachment == null || !attachment.hasData()) {
-        return null;
+        return false;
       }
 
       ThumbnailData data = null;
@@ -762,12 +1105,12 @@ public class AttachmentDatabase extends Database {
       }
 
       if (data == null) {
-        return null;
+        return false;
       }
 
       updateAttachmentThumbnail(attachmentId, data.toDataStream(), data.getAspectRatio());
 
-      return getDataStream(attachmentId, THUMBNAIL, 0);
+      return true;
     }
 
     @SuppressLint("NewApi")
@@ -789,6 +1132,7 @@ public class AttachmentDatabase extends Database {
       retriever.setDataSource(dataSource);
 
       Bitmap bitmap = retriever.getFrameAtTime(1000);
+      retriever.release();
 
       Log.i(TAG, "Generated video thumbnail...");
       return new ThumbnailData(bitmap);
@@ -799,11 +1143,17 @@ public class AttachmentDatabase extends Database {
     private final File   file;
     private final long   length;
     private final byte[] random;
+    private final String hash;
 
     private DataInfo(File file, long length, byte[] random) {
+      this(file, length, random, null);
+    }
+
+    private DataInfo(File file, long length, byte[] random, String hash) {
       this.file = file;
       this.length = length;
       this.random = random;
+      this.hash = hash;
     }
   }
 }
@@ -0,0 +1,137 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Records which rows of the backed up tables have been inserted, updated or deleted since the last
+ * local backup, so that the next one can be written as a delta. Like the message index, it is
+ * maintained by triggers, so every write path is covered. A row that changes more than once is
+ * only recorded once.
+ *
+ * A backup marks the entries it is about to export as part of its snapshot, and deletes exactly
+ * those once the backup file is in place. A row that changes again while the backup is running
+ * has its entry replaced with an unmarked one, so it's picked up by the next backup.
+ *
+ * The triggers only exist while local backups are enabled. Turning backups off drops them along
+ * with the journal, and the first backup after turning them back on is a full one.
+ */
+public class BackupJournalDatabase extends Database {
+
+  public static final String TABLE_NAME = "backup_journal";
+
+  public  static final String ID       = "_id";
+  public  static final String TABLE    = "table_name";
+  public  static final String ROW_ID   = "row_id";
+  public  static final String SNAPSHOT = "snapshot";
+
+  /**
+   * The tables whose changes are journaled. Every one of them has an integer primary key, so its
+   * row ids survive a restore.
+   */
+  public static final String[] TABLES = {
+      SmsDatabase.TABLE_NAME, MmsDatabase.TABLE_NAME, AttachmentDatabase.TABLE_NAME, ThreadDatabase.TABLE_NAME,
+      IdentityDatabase.TABLE_NAME, DraftDatabase.TABLE_NAME, PushDatabase.TABLE_NAME, GroupDatabase.TABLE_NAME,
+      RecipientDatabase.TABLE_NAME, GroupReceiptDatabase.TABLE_NAME
+  };
+
+  private static final String   INSERT_TRIGGER   = "_backup_journal_ai";
+  private static final String   UPDATE_TRIGGER   = "_backup_journal_au";
+  private static final String   DELETE_TRIGGER   = "_backup_journal_ad";
+  private static final String[] TRIGGER_SUFFIXES = {INSERT_TRIGGER, UPDATE_TRIGGER, DELETE_TRIGGER};
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+                                            TABLE + " TEXT NOT NULL, " + ROW_ID + " INTEGER NOT NULL, " + SNAPSHOT + " INTEGER DEFAULT 0, " +
+                                            "UNIQUE(" + TABLE + ", " + ROW_ID + ") ON CONFLICT REPLACE);";
+
+  public static final String[] CREATE_TRIGGERS = createTriggers();
+
+  public BackupJournalDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * Adds every entry currently in the journal to the snapshot of the backup that's about to run.
+   */
+  public void markSnapshot() {
+    ContentValues values = new ContentValues(1);
+    values.put(SNAPSHOT, 1);
+
+    databaseHelper.getWritableDatabase().update(TABLE_NAME, values, null, null);
+  }
+
+  /**
+   * Drops the entries that were exported by the backup that just completed.
+   */
+  public void clearSnapshot() {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, SNAPSHOT + " = 1", null);
+  }
+
+  /**
+   * Starts or stops journaling changes, to follow whether local backups are enabled. Stopping also
+   * empties the journal.
+   */
+  public void setEnabled(boolean enabled) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+
+    try {
+      for (String table : TABLES) {
+        for (String suffix : TRIGGER_SUFFIXES) {
+          db.execSQL("DROP TRIGGER IF EXISTS " + table + suffix);
+        }
+      }
+
+      if (enabled) {
+        for (String trigger : CREATE_TRIGGERS) {
+          db.execSQL(trigger);
+        }
+      } else {
+        db.delete(TABLE_NAME, null, null);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private static String[] createTriggers() {
+    List<String> statements = new LinkedList<>();
+
+    for (String table : TABLES) {
+      statements.add(createInsertTrigger(table));
+      statements.add(createUpdateTrigger(table));
+      statements.add(createDeleteTrigger(table));
+    }
+
+    return statements.toArray(new String[0]);
+  }
+
+  private static String createInsertTrigger(String table) {
+    return "CREATE TRIGGER " + table + INSERT_TRIGGER + " AFTER INSERT ON " + table + " BEGIN\n" +
+           "  INSERT INTO " + TABLE_NAME + " (" + TABLE + ", " + ROW_ID + ") VALUES ('" + table + "', new.rowid);\n" +
+           "END;";
+  }
+
+  private static String createUpdateTrigger(String table) {
+    return "CREATE TRIGGER " + table + UPDATE_TRIGGER + " AFTER UPDATE ON " + table + " BEGIN\n" +
+           "  INSERT INTO " + TABLE_NAME + " (" + TABLE + ", " + ROW_ID + ") VALUES ('" + table + "', new.rowid);\n" +
+           "  INSERT INTO " + TABLE_NAME + " (" + TABLE + ", " + ROW_ID + ") SELECT '" + table + "', old.rowid WHERE old.rowid != new.rowid;\n" +
+           "END;";
+  }
+
+  private static String createDeleteTrigger(String table) {
+    return "CREATE TRIGGER " + table + DELETE_TRIGGER + " AFTER DELETE ON " + table + " BEGIN\n" +
+           "  INSERT INTO " + TABLE_NAME + " (" + TABLE + ", " + ROW_ID + ") VALUES ('" + table + "', old.rowid);\n" +
+           "END;";
+  }
+}
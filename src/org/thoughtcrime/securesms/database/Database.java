@@ -30,12 +30,14 @@ public abstract class Database {
 
   protected static final String ID_WHERE = "_id = ?";
 
-  protected       SQLCipherOpenHelper databaseHelper;
-  protected final Context             context;
+  protected       SQLCipherOpenHelper   databaseHelper;
+  protected final Context               context;
+  private   final NotificationCoalescer notificationCoalescer;
 
   public Database(Context context, SQLCipherOpenHelper databaseHelper) {
-    this.context        = context;
-    this.databaseHelper = databaseHelper;
+    this.context               = context;
+    this.databaseHelper        = databaseHelper;
+    this.notificationCoalescer = NotificationCoalescer.getInstance(context);
   }
 
   protected void notifyConversationListeners(Set<Long> threadIds) {
@@ -44,11 +46,11 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(long threadId) {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
+    notificationCoalescer.notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId));
   }
 
   protected void notifyConversationListListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI, null);
+    notificationCoalescer.notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI);
   }
 
   protected void setNotifyConverationListeners(Cursor cursor, long threadId) {
@@ -66,7 +68,7 @@ public abstract class Database {
   }
 
   protected void notifyAttachmentListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Attachment.CONTENT_URI, null);
+    notificationCoalescer.notifyChange(DatabaseContentProviders.Attachment.CONTENT_URI);
   }
 
   public void reset(SQLCipherOpenHelper databaseHelper) {
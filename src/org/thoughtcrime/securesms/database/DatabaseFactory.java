@@ -57,6 +57,8 @@ public class DatabaseFactory {
   private final SignedPreKeyDatabase  signedPreKeyDatabase;
   private final SessionDatabase       sessionDatabase;
   private final SearchDatabase        searchDatabase;
+  private final MessageIndexDatabase  messageIndexDatabase;
+  private final BackupJournalDatabase backupJournalDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -135,6 +137,18 @@ public class DatabaseFactory {
     return getInstance(context).searchDatabase;
   }
 
+  public static MessageIndexDatabase getMessageIndexDatabase(Context context) {
+    return getInstance(context).messageIndexDatabase;
+  }
+
+  public static BackupJournalDatabase getBackupJournalDatabase(Context context) {
+    return getInstance(context).backupJournalDatabase;
+  }
+
+  public static SQLiteDatabase getWritableDatabase(Context context) {
+    return getInstance(context).databaseHelper.getWritableDatabase();
+  }
+
   public static SQLiteDatabase getBackupDatabase(Context context) {
     return getInstance(context).databaseHelper.getReadableDatabase();
   }
@@ -150,24 +164,26 @@ public class DatabaseFactory {
     DatabaseSecret      databaseSecret   = new DatabaseSecretProvider(context).getOrCreateDatabaseSecret();
     AttachmentSecret    attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
 
-    this.databaseHelper       = new SQLCipherOpenHelper(context, databaseSecret);
-    this.sms                  = new SmsDatabase(context, databaseHelper);
-    this.mms                  = new MmsDatabase(context, databaseHelper);
-    this.attachments          = new AttachmentDatabase(context, databaseHelper, attachmentSecret);
-    this.media                = new MediaDatabase(context, databaseHelper);
-    this.thread               = new ThreadDatabase(context, databaseHelper);
-    this.mmsSmsDatabase       = new MmsSmsDatabase(context, databaseHelper);
-    this.identityDatabase     = new IdentityDatabase(context, databaseHelper);
-    this.draftDatabase        = new DraftDatabase(context, databaseHelper);
-    this.pushDatabase         = new PushDatabase(context, databaseHelper);
-    this.groupDatabase        = new GroupDatabase(context, databaseHelper);
-    this.recipientDatabase    = new RecipientDatabase(context, databaseHelper);
-    this.groupReceiptDatabase = new GroupReceiptDatabase(context, databaseHelper);
-    this.contactsDatabase     = new ContactsDatabase(context);
-    this.preKeyDatabase       = new OneTimePreKeyDatabase(context, databaseHelper);
-    this.signedPreKeyDatabase = new SignedPreKeyDatabase(context, databaseHelper);
-    this.sessionDatabase      = new SessionDatabase(context, databaseHelper);
-    this.searchDatabase       = new SearchDatabase(context, databaseHelper);
+    this.databaseHelper        = new SQLCipherOpenHelper(context, databaseSecret);
+    this.sms                   = new SmsDatabase(context, databaseHelper);
+    this.mms                   = new MmsDatabase(context, databaseHelper);
+    this.attachments           = new AttachmentDatabase(context, databaseHelper, attachmentSecret);
+    this.media                 = new MediaDatabase(context, databaseHelper);
+    this.thread                = new ThreadDatabase(context, databaseHelper);
+    this.mmsSmsDatabase        = new MmsSmsDatabase(context, databaseHelper);
+    this.identityDatabase      = new IdentityDatabase(context, databaseHelper);
+    this.draftDatabase         = new DraftDatabase(context, databaseHelper);
+    this.pushDatabase          = new PushDatabase(context, databaseHelper);
+    this.groupDatabase         = new GroupDatabase(context, databaseHelper);
+    this.recipientDatabase     = new RecipientDatabase(context, databaseHelper);
+    this.groupReceiptDatabase  = new GroupReceiptDatabase(context, databaseHelper);
+    this.contactsDatabase      = new ContactsDatabase(context);
+    this.preKeyDatabase        = new OneTimePreKeyDatabase(context, databaseHelper);
+    this.signedPreKeyDatabase  = new SignedPreKeyDatabase(context, databaseHelper);
+    this.sessionDatabase       = new SessionDatabase(context, databaseHelper);
+    this.searchDatabase        = new SearchDatabase(context, databaseHelper);
+    this.messageIndexDatabase  = new MessageIndexDatabase(context, databaseHelper);
+    this.backupJournalDatabase = new BackupJournalDatabase(context, databaseHelper);
   }
 
   public void onApplicationLevelUpgrade(@NonNull Context context, @NonNull MasterSecret masterSecret,
@@ -12,6 +12,7 @@ import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class GroupReceiptDatabase extends Database {
 
@@ -74,6 +75,21 @@ public class GroupReceiptDatabase extends Database {
 
   }
 
+  public void setUnidentified(@NonNull Map<Address, Boolean> unidentified, long mmsId) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      for (Map.Entry<Address, Boolean> entry : unidentified.entrySet()) {
+        setUnidentified(entry.getKey(), mmsId, entry.getValue());
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   public @NonNull List<GroupReceiptInfo> getGroupReceiptInfo(long mmsId) {
     SQLiteDatabase         db      = databaseHelper.getReadableDatabase();
     List<GroupReceiptInfo> results = new LinkedList<>();
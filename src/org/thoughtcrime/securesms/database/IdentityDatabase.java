@@ -38,7 +38,7 @@ public class IdentityDatabase extends Database {
   @SuppressWarnings("unused")
   private static final String TAG = IdentityDatabase.class.getSimpleName();
 
-  private static final String TABLE_NAME           = "identities";
+          static final String TABLE_NAME           = "identities";
   private static final String ID                   = "_id";
   private static final String ADDRESS              = "address";
   private static final String IDENTITY_KEY         = "key";
@@ -0,0 +1,45 @@
+package org.thoughtcrime.securesms.database;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.util.LRUCache;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of the attachments of MMS messages, keyed by message id. It's used to hydrate
+ * records read from conversation cursors that were queried without attachment columns, so that a
+ * window of rows can be filled with one batched query instead of a query per message.
+ */
+public class MessageAttachmentCache {
+
+  private final LRUCache<Long, List<DatabaseAttachment>> cache;
+
+  public MessageAttachmentCache(int maxSize) {
+    this.cache = new LRUCache<>(maxSize);
+  }
+
+  public synchronized @Nullable List<DatabaseAttachment> get(long mmsId) {
+    return cache.get(mmsId);
+  }
+
+  public synchronized boolean contains(long mmsId) {
+    return cache.containsKey(mmsId);
+  }
+
+  public synchronized void put(long mmsId, @NonNull List<DatabaseAttachment> attachments) {
+    cache.put(mmsId, attachments);
+  }
+
+  public synchronized void putAll(@NonNull Map<Long, List<DatabaseAttachment>> attachments) {
+    cache.putAll(attachments);
+  }
+
+  public synchronized void clear() {
+    cache.clear();
+  }
+}
@@ -0,0 +1,188 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.database.model.ConversationAnchor;
+
+/**
+ * A narrow, indexed table with one row per SMS and MMS message, ordered by thread and received
+ * date. It lets conversation queries seek straight to a window of messages instead of sorting the
+ * full SMS/MMS union. Rows are maintained by triggers on the message tables, so every insert,
+ * update and delete path in {@link SmsDatabase} and {@link MmsDatabase} keeps it in sync.
+ */
+public class MessageIndexDatabase extends Database {
+
+  public static final String TABLE_NAME = "message_index";
+
+  public  static final String ID            = "_id";
+  public  static final String MESSAGE_ID    = "message_id";
+  public  static final String TRANSPORT     = MmsSmsDatabase.TRANSPORT;
+  public  static final String THREAD_ID     = MmsSmsColumns.THREAD_ID;
+  public  static final String DATE_RECEIVED = MmsSmsColumns.NORMALIZED_DATE_RECEIVED;
+  public  static final String DATE_SENT     = MmsSmsColumns.NORMALIZED_DATE_SENT;
+  public  static final String ADDRESS       = MmsSmsColumns.ADDRESS;
+
+  public static final String[] CREATE_TABLE = {
+      "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+          MESSAGE_ID + " INTEGER NOT NULL, " + TRANSPORT + " TEXT NOT NULL, " + THREAD_ID + " INTEGER, " +
+          DATE_RECEIVED + " INTEGER, " + DATE_SENT + " INTEGER, " + ADDRESS + " TEXT, " +
+          "UNIQUE(" + TRANSPORT + ", " + MESSAGE_ID + ") ON CONFLICT REPLACE);",
+
+      createInsertTrigger("sms_message_index_ai", SmsDatabase.TABLE_NAME, MmsSmsDatabase.SMS_TRANSPORT, SmsDatabase.DATE_RECEIVED, SmsDatabase.DATE_SENT),
+      createUpdateTrigger("sms_message_index_au", SmsDatabase.TABLE_NAME, MmsSmsDatabase.SMS_TRANSPORT, SmsDatabase.DATE_RECEIVED, SmsDatabase.DATE_SENT),
+      createDeleteTrigger("sms_message_index_ad", SmsDatabase.TABLE_NAME, MmsSmsDatabase.SMS_TRANSPORT),
+
+      createInsertTrigger("mms_message_index_ai", MmsDatabase.TABLE_NAME, MmsSmsDatabase.MMS_TRANSPORT, MmsDatabase.DATE_RECEIVED, MmsDatabase.DATE_SENT),
+      createUpdateTrigger("mms_message_index_au", MmsDatabase.TABLE_NAME, MmsSmsDatabase.MMS_TRANSPORT, MmsDatabase.DATE_RECEIVED, MmsDatabase.DATE_SENT),
+      createDeleteTrigger("mms_message_index_ad", MmsDatabase.TABLE_NAME, MmsSmsDatabase.MMS_TRANSPORT)
+  };
+
+  public static final String[] CREATE_INDEXES = {
+      "CREATE INDEX IF NOT EXISTS message_index_thread_key_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " + MESSAGE_ID + ");",
+      "CREATE INDEX IF NOT EXISTS message_index_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");"
+  };
+
+  private static final String[] ANCHOR_PROJECTION = {DATE_RECEIVED, TRANSPORT, MESSAGE_ID};
+
+  private static final String DESCENDING_ORDER = DATE_RECEIVED + " DESC, " + TRANSPORT + " DESC, " + MESSAGE_ID + " DESC";
+  private static final String ASCENDING_ORDER  = DATE_RECEIVED + " ASC, " + TRANSPORT + " ASC, " + MESSAGE_ID + " ASC";
+
+  public MessageIndexDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * @return A selection restricting the given transport's message table to the (up to) limit
+   *         messages of the thread that sort before the anchor, or the newest messages if the
+   *         anchor is null.
+   */
+  @NonNull String getBeforeSelection(@NonNull String table, @NonNull String transport, long threadId, @Nullable ConversationAnchor anchor, long limit) {
+    String where = THREAD_ID + " = " + threadId;
+
+    if (anchor != null) {
+      where += " AND " + DATE_RECEIVED + " <= " + anchor.getDateReceived() + " AND " + getKeyComparison(anchor, "<");
+    }
+
+    return getMessageSelection(table, transport, where, DESCENDING_ORDER, String.valueOf(limit));
+  }
+
+  /**
+   * @return A selection restricting the given transport's message table to the (up to) limit
+   *         messages of the thread that sort directly after the anchor.
+   */
+  @NonNull String getAfterSelection(@NonNull String table, @NonNull String transport, long threadId, @NonNull ConversationAnchor anchor, long limit) {
+    String where = THREAD_ID + " = " + threadId + " AND " +
+                   DATE_RECEIVED + " >= " + anchor.getDateReceived() + " AND " + getKeyComparison(anchor, ">");
+
+    return getMessageSelection(table, transport, where, ASCENDING_ORDER, String.valueOf(limit));
+  }
+
+  /**
+   * @return The anchor for the message at the given position of the thread, newest first, or null
+   *         if the thread has no message at that position.
+   */
+  public @Nullable ConversationAnchor getAnchorAt(long threadId, long position) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = db.query(TABLE_NAME, ANCHOR_PROJECTION, THREAD_ID + " = ?", new String[] {String.valueOf(threadId)},
+                                  null, null, DESCENDING_ORDER, position + ", 1"))
+    {
+      if (cursor != null && cursor.moveToFirst()) {
+        return getAnchor(cursor);
+      }
+    }
+
+    return null;
+  }
+
+  public int getCountNewerThan(long threadId, long receivedTimestamp) {
+    SQLiteDatabase db    = databaseHelper.getReadableDatabase();
+    String         query = "SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE " + THREAD_ID + " = ? AND " + DATE_RECEIVED + " > ?";
+
+    try (Cursor cursor = db.rawQuery(query, new String[] {String.valueOf(threadId), String.valueOf(receivedTimestamp)})) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getInt(0);
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * @return The received timestamp of the newest message in the thread that was sent at the given
+   *         time, optionally restricted to the given address, or null if there is none.
+   */
+  public @Nullable Long getDateReceivedFor(long threadId, long sentTimestamp, @Nullable Address address) {
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    String         selection = THREAD_ID + " = ? AND " + DATE_SENT + " = ?";
+    String[]       args      = new String[] {String.valueOf(threadId), String.valueOf(sentTimestamp)};
+
+    if (address != null) {
+      selection += " AND " + ADDRESS + " = ?";
+      args       = new String[] {args[0], args[1], address.serialize()};
+    }
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] {DATE_RECEIVED}, selection, args, null, null, DATE_RECEIVED + " DESC", "1")) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getLong(0);
+      }
+    }
+
+    return null;
+  }
+
+  private @NonNull String getMessageSelection(@NonNull String table, @NonNull String transport, @NonNull String where, @NonNull String order, @NonNull String limit) {
+    return table + "." + MmsSmsColumns.ID + " IN (" +
+             "SELECT " + MESSAGE_ID + " FROM (" +
+               "SELECT " + MESSAGE_ID + ", " + TRANSPORT + " FROM " + TABLE_NAME + " " +
+               "WHERE " + where + " " +
+               "ORDER BY " + order + " " +
+               "LIMIT " + limit +
+             ") WHERE " + TRANSPORT + " = '" + transport + "'" +
+           ")";
+  }
+
+  /**
+   * The date comparison is expanded by hand rather than written as a row value so that the
+   * leading range on {@link #DATE_RECEIVED} can be served by the index.
+   */
+  private @NonNull String getKeyComparison(@NonNull ConversationAnchor anchor, @NonNull String operator) {
+    return "(" + DATE_RECEIVED + " " + operator + " " + anchor.getDateReceived() + " OR " +
+             "(" + DATE_RECEIVED + " = " + anchor.getDateReceived() + " AND " +
+               "(" + TRANSPORT + " " + operator + " '" + anchor.getTransport() + "' OR " +
+                 "(" + TRANSPORT + " = '" + anchor.getTransport() + "' AND " + MESSAGE_ID + " " + operator + " " + anchor.getMessageId() + "))))";
+  }
+
+  private @NonNull ConversationAnchor getAnchor(@NonNull Cursor cursor) {
+    return new ConversationAnchor(cursor.getLong(cursor.getColumnIndexOrThrow(DATE_RECEIVED)),
+                                  cursor.getString(cursor.getColumnIndexOrThrow(TRANSPORT)),
+                                  cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_ID)));
+  }
+
+  private static String createInsertTrigger(String name, String table, String transport, String dateReceived, String dateSent) {
+    return "CREATE TRIGGER " + name + " AFTER INSERT ON " + table + " BEGIN\n" +
+           "  INSERT INTO " + TABLE_NAME + " (" + MESSAGE_ID + ", " + TRANSPORT + ", " + THREAD_ID + ", " + DATE_RECEIVED + ", " + DATE_SENT + ", " + ADDRESS + ") " +
+           "VALUES (new." + MmsSmsColumns.ID + ", '" + transport + "', new." + MmsSmsColumns.THREAD_ID + ", new." + dateReceived + ", new." + dateSent + ", new." + MmsSmsColumns.ADDRESS + ");\n" +
+           "END;";
+  }
+
+  private static String createUpdateTrigger(String name, String table, String transport, String dateReceived, String dateSent) {
+    return "CREATE TRIGGER " + name + " AFTER UPDATE OF " + MmsSmsColumns.ID + ", " + MmsSmsColumns.THREAD_ID + ", " + dateReceived + ", " + dateSent + ", " + MmsSmsColumns.ADDRESS + " ON " + table + " BEGIN\n" +
+           "  UPDATE " + TABLE_NAME + " SET " + MESSAGE_ID + " = new." + MmsSmsColumns.ID + ", " + THREAD_ID + " = new." + MmsSmsColumns.THREAD_ID + ", " +
+           DATE_RECEIVED + " = new." + dateReceived + ", " + DATE_SENT + " = new." + dateSent + ", " + ADDRESS + " = new." + MmsSmsColumns.ADDRESS + " " +
+           "WHERE " + TRANSPORT + " = '" + transport + "' AND " + MESSAGE_ID + " = old." + MmsSmsColumns.ID + ";\n" +
+           "END;";
+  }
+
+  private static String createDeleteTrigger(String name, String table, String transport) {
+    return "CREATE TRIGGER " + name + " AFTER DELETE ON " + table + " BEGIN\n" +
+           "  DELETE FROM " + TABLE_NAME + " WHERE " + TRANSPORT + " = '" + transport + "' AND " + MESSAGE_ID + " = old." + MmsSmsColumns.ID + ";\n" +
+           "END;";
+  }
+}
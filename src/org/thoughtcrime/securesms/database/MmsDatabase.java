@@ -244,7 +244,7 @@ public class MmsDatabase extends MessagingDatabase {
                              new String[] {String.valueOf(id)});
 
             DatabaseFactory.getGroupReceiptDatabase(context).update(ourAddress, id, status, timestamp);
-            DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+            DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.MMS_TRANSPORT, id, false);
             notifyConversationListeners(threadId);
           }
         }
@@ -311,6 +311,12 @@ public class MmsDatabase extends MessagingDatabase {
     return cursor;
   }
 
+  @Nullable MessageRecord getMessageRecord(long messageId) {
+    try (Reader reader = readerFor(rawQuery(RAW_ID_WHERE, new String[] {String.valueOf(messageId)}))) {
+      return reader.getNext();
+    }
+  }
+
   public Reader getExpireStartedMessages() {
     String where = EXPIRE_STARTED + " > 0";
     return readerFor(rawQuery(where, null));
@@ -323,7 +329,7 @@ public class MmsDatabase extends MessagingDatabase {
                    " WHERE " + ID + " = ?", new String[] {id + ""});
 
     if (threadId.isPresent()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId.get(), false);
+      DatabaseFactory.getThreadDatabase(context).updateForChange(threadId.get(), MmsSmsDatabase.MMS_TRANSPORT, id, false);
     }
   }
 
@@ -538,7 +544,7 @@ public class MmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -787,7 +793,6 @@ public class MmsDatabase extends MessagingDatabase {
 
     if (!Types.isExpirationTimerUpdate(mailbox)) {
       DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     }
 
     notifyConversationListeners(threadId);
@@ -861,6 +866,8 @@ public class MmsDatabase extends MessagingDatabase {
 
     long messageId = db.insert(TABLE_NAME, null, contentValues);
 
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId, false);
+
     return new Pair<>(messageId, threadId);
   }
 
@@ -962,9 +969,11 @@ public class MmsDatabase extends MessagingDatabase {
     contentValues.put(BODY, body);
     contentValues.put(PART_COUNT, allAttachments.size());
 
+    long messageId;
+
     db.beginTransaction();
     try {
-      long messageId = db.insert(TABLE_NAME, null, contentValues);
+      messageId = db.insert(TABLE_NAME, null, contentValues);
 
       Map<Attachment, AttachmentId> insertedAttachments = partsDatabase.insertAttachmentsForMessage(messageId, allAttachments, quoteAttachments);
       String                        serializedContacts  = getSerializedSharedContacts(messageId, insertedAttachments, sharedContacts);
@@ -982,7 +991,6 @@ public class MmsDatabase extends MessagingDatabase {
       }
 
       db.setTransactionSuccessful();
-      return messageId;
     } finally {
       db.endTransaction();
 
@@ -991,8 +999,10 @@ public class MmsDatabase extends MessagingDatabase {
       }
 
       notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-      DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID), true);
     }
+
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(contentValues.getAsLong(THREAD_ID), MmsSmsDatabase.MMS_TRANSPORT, messageId, true);
+    return messageId;
   }
 
   public boolean delete(long messageId) {
@@ -1003,9 +1013,11 @@ public class MmsDatabase extends MessagingDatabase {
     GroupReceiptDatabase groupReceiptDatabase = DatabaseFactory.getGroupReceiptDatabase(context);
     groupReceiptDatabase.deleteRowsForMessage(messageId);
 
+    boolean wasSnippet = DatabaseFactory.getThreadDatabase(context).isSnippetMessage(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId);
+
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, wasSnippet);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
@@ -1144,6 +1156,10 @@ public class MmsDatabase extends MessagingDatabase {
     return new Reader(cursor);
   }
 
+  public Reader readerFor(Cursor cursor, @Nullable MessageAttachmentCache attachmentCache) {
+    return new Reader(cursor, attachmentCache);
+  }
+
   public OutgoingMessageReader readerFor(OutgoingMediaMessage message, long threadId) {
     return new OutgoingMessageReader(message, threadId);
   }
@@ -1229,10 +1245,16 @@ public class MmsDatabase extends MessagingDatabase {
 
   public class Reader implements Closeable {
 
-    private final Cursor cursor;
+    private final           Cursor                 cursor;
+    private final @Nullable MessageAttachmentCache attachmentCache;
 
     public Reader(Cursor cursor) {
-      this.cursor = cursor;
+      this(cursor, null);
+    }
+
+    public Reader(Cursor cursor, @Nullable MessageAttachmentCache attachmentCache) {
+      this.cursor          = cursor;
+      this.attachmentCache = attachmentCache;
     }
 
     public MessageRecord getNext() {
@@ -1320,11 +1342,11 @@ public class MmsDatabase extends MessagingDatabase {
       Recipient                 recipient          = getRecipientFor(address);
       List<IdentityKeyMismatch> mismatches         = getMismatchedIdentities(mismatchDocument);
       List<NetworkFailure>      networkFailures    = getFailures(networkDocument);
-      List<DatabaseAttachment>  attachments        = DatabaseFactory.getAttachmentDatabase(context).getAttachment(cursor);
+      List<DatabaseAttachment>  attachments        = getAttachments(cursor, id);
       List<Contact>             contacts           = getSharedContacts(cursor, attachments);
       Set<Attachment>           contactAttachments = new HashSet<>(Stream.of(contacts).map(Contact::getAvatarAttachment).filter(a -> a != null).toList());
       SlideDeck                 slideDeck          = getSlideDeck(Stream.of(attachments).filterNot(contactAttachments::contains).toList());
-      Quote                     quote              = getQuote(cursor);
+      Quote                     quote              = getQuote(cursor, attachments);
 
       return new MediaMmsMessageRecord(context, id, recipient, recipient,
                                        addressDeviceId, dateSent, dateReceived, deliveryReceiptCount,
@@ -1374,12 +1396,40 @@ public class MmsDatabase extends MessagingDatabase {
       return new SlideDeck(context, messageAttachmnets);
     }
 
-    private @Nullable Quote getQuote(@NonNull Cursor cursor) {
+    /**
+     * Attachments are read from the cursor's JSON column when the query included one. Otherwise
+     * the cursor only carries an attachment count, and they're taken from the attachment cache,
+     * falling back to a query for this message alone.
+     */
+    private @NonNull List<DatabaseAttachment> getAttachments(@NonNull Cursor cursor, long id) {
+      int countColumn = cursor.getColumnIndex(AttachmentDatabase.ATTACHMENT_COUNT_ALIAS);
+
+      if (countColumn == -1) {
+        return DatabaseFactory.getAttachmentDatabase(context).getAttachment(cursor);
+      }
+
+      if (cursor.getInt(countColumn) == 0) {
+        return new LinkedList<>();
+      }
+
+      List<DatabaseAttachment> attachments = attachmentCache != null ? attachmentCache.get(id) : null;
+
+      if (attachments == null) {
+        attachments = DatabaseFactory.getAttachmentDatabase(context).getAttachmentsForMessage(id);
+
+        if (attachmentCache != null) {
+          attachmentCache.put(id, attachments);
+        }
+      }
+
+      return attachments;
+    }
+
+    private @Nullable Quote getQuote(@NonNull Cursor cursor, @NonNull List<DatabaseAttachment> attachments) {
       long                       quoteId          = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_ID));
       String                     quoteAuthor      = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_AUTHOR));
       String                     quoteText        = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_BODY));
       boolean                    quoteMissing     = cursor.getInt(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_MISSING)) == 1;
-      List<DatabaseAttachment>   attachments      = DatabaseFactory.getAttachmentDatabase(context).getAttachment(cursor);
       List<? extends Attachment> quoteAttachments = Stream.of(attachments).filter(Attachment::isQuote).toList();
       SlideDeck                  quoteDeck        = new SlideDeck(context, quoteAttachments);
 
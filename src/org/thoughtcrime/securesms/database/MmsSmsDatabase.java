@@ -22,11 +22,14 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import org.thoughtcrime.securesms.logging.Log;
 
+import com.annimon.stream.Stream;
+
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteQueryBuilder;
 
 import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.database.model.ConversationAnchor;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.util.Util;
 
@@ -72,6 +75,12 @@ public class MmsSmsDatabase extends Database {
                                               MmsDatabase.QUOTE_ATTACHMENT,
                                               MmsDatabase.SHARED_CONTACTS};
 
+  private static final String[] LAZY_ATTACHMENT_PROJECTION = Stream.concat(Stream.of(PROJECTION).filterNot(AttachmentDatabase.ATTACHMENT_JSON_ALIAS::equals),
+                                                                           Stream.of(AttachmentDatabase.ATTACHMENT_COUNT_ALIAS, AttachmentDatabase.FAST_PREFLIGHT_ID))
+                                                                   .toArray(String[]::new);
+
+  private static final String CONVERSATION_ORDER = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + TRANSPORT + " DESC, " + MmsSmsColumns.ID + " DESC";
+
   public MmsSmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -96,19 +105,47 @@ public class MmsSmsDatabase extends Database {
     return null;
   }
 
-  public Cursor getConversation(long threadId, long offset, long limit) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-    String limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
+  /**
+   * Retrieves up to limit messages that sort before the anchor, newest first. A null anchor
+   * starts at the newest message in the thread. The window is found with an index seek on the
+   * anchor's key, so the cost of a page doesn't depend on how far back in the thread it is.
+   *
+   * The cursor carries an attachment count instead of the attachments themselves; read it with a
+   * reader that has a {@link MessageAttachmentCache} to hydrate attachments in batches.
+   */
+  public Cursor getConversationBefore(long threadId, @Nullable ConversationAnchor anchor, long limit) {
+    MessageIndexDatabase index        = DatabaseFactory.getMessageIndexDatabase(context);
+    String               smsSelection = index.getBeforeSelection(SmsDatabase.TABLE_NAME, SMS_TRANSPORT, threadId, anchor, limit);
+    String               mmsSelection = index.getBeforeSelection(MmsDatabase.TABLE_NAME, MMS_TRANSPORT, threadId, anchor, limit);
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
+    Cursor cursor = queryTables(LAZY_ATTACHMENT_PROJECTION, smsSelection, mmsSelection, CONVERSATION_ORDER, null, false);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Retrieves up to limit messages that directly follow the anchor, newest first.
+   */
+  public Cursor getConversationAfter(long threadId, @NonNull ConversationAnchor anchor, long limit) {
+    MessageIndexDatabase index        = DatabaseFactory.getMessageIndexDatabase(context);
+    String               smsSelection = index.getAfterSelection(SmsDatabase.TABLE_NAME, SMS_TRANSPORT, threadId, anchor, limit);
+    String               mmsSelection = index.getAfterSelection(MmsDatabase.TABLE_NAME, MMS_TRANSPORT, threadId, anchor, limit);
+
+    Cursor cursor = queryTables(LAZY_ATTACHMENT_PROJECTION, smsSelection, mmsSelection, CONVERSATION_ORDER, null, false);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
   public Cursor getConversation(long threadId) {
-    return getConversation(threadId, 0, 0);
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+
+    Cursor cursor = queryTables(PROJECTION, selection, order, null);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
   }
 
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
@@ -164,23 +201,14 @@ public class MmsSmsDatabase extends Database {
   }
 
   public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull Address address) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_SENT, MmsSmsColumns.ADDRESS }, selection, order, null)) {
-      String  serializedAddress = address.serialize();
-      boolean isOwnNumber       = Util.isOwnNumber(context, address);
+    MessageIndexDatabase index        = DatabaseFactory.getMessageIndexDatabase(context);
+    Long                 dateReceived = index.getDateReceivedFor(threadId, quoteId, Util.isOwnNumber(context, address) ? null : address);
 
-      while (cursor != null && cursor.moveToNext()) {
-        boolean quoteIdMatches = cursor.getLong(0) == quoteId;
-        boolean addressMatches = serializedAddress.equals(cursor.getString(1));
-
-        if (quoteIdMatches && (addressMatches || isOwnNumber)) {
-          return cursor.getPosition();
-        }
-      }
+    if (dateReceived == null) {
+      return -1;
     }
-    return -1;
+
+    return index.getCountNewerThan(threadId, dateReceived);
   }
 
   /**
@@ -192,44 +220,29 @@ public class MmsSmsDatabase extends Database {
    * you'll still wind up in about the right spot.
    */
   public int getMessagePositionInConversation(long threadId, long receivedTimestamp) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " > " + receivedTimestamp;
-
-    try (Cursor cursor = queryTables(new String[]{ "COUNT(*)" }, selection, order, null)) {
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0);
-      }
-    }
-    return -1;
+    return DatabaseFactory.getMessageIndexDatabase(context).getCountNewerThan(threadId, receivedTimestamp);
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    return queryTables(projection, selection, selection, order, limit, true);
+  }
+
+  private Cursor queryTables(String[] projection, String smsSelection, String mmsSelection, String order, String limit, boolean includeAttachments) {
+    String mmsAttachmentColumn = includeAttachments ? getAttachmentJsonColumn()
+                                                    : "(SELECT COUNT(*) FROM " + AttachmentDatabase.TABLE_NAME + " WHERE " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + ") AS " + AttachmentDatabase.ATTACHMENT_COUNT_ALIAS;
+    String mmsPreflightColumn  = includeAttachments ? "NULL AS " + AttachmentDatabase.FAST_PREFLIGHT_ID
+                                                    : "(SELECT " + AttachmentDatabase.FAST_PREFLIGHT_ID + " FROM " + AttachmentDatabase.TABLE_NAME + " WHERE " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AND " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + " = 0 ORDER BY " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + " LIMIT 1) AS " + AttachmentDatabase.FAST_PREFLIGHT_ID;
+    String smsAttachmentColumn = includeAttachments ? "NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS
+                                                    : "0 AS " + AttachmentDatabase.ATTACHMENT_COUNT_ALIAS;
+
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
                               "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID
                                   + " || '::' || " + MmsDatabase.DATE_SENT
                                   + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              "json_group_array(json_object(" +
-                                  "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
-                                  "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
-                                  "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
-                                  "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
-                                  "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
-                                  "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
-                                  "'" + AttachmentDatabase.THUMBNAIL + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
-                                  "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
-                                  "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
-                                  "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
-                                  "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
-                                  "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
-                                  "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
-                                  "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ", " +
-                                  "'" + AttachmentDatabase.CAPTION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CAPTION +
-                                  ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+                              mmsAttachmentColumn,
+                              mmsPreflightColumn,
                               SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
                               MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
@@ -254,7 +267,8 @@ public class MmsSmsDatabase extends Database {
                               "'SMS::' || " + MmsSmsColumns.ID
                                   + " || '::' || " + SmsDatabase.DATE_SENT
                                   + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              "NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+                              smsAttachmentColumn,
+                              "NULL AS " + AttachmentDatabase.FAST_PREFLIGHT_ID,
                               SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
                               MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
@@ -280,9 +294,14 @@ public class MmsSmsDatabase extends Database {
     smsQueryBuilder.setDistinct(true);
 
     smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
-    mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
-                              AttachmentDatabase.TABLE_NAME +
-                              " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+
+    if (includeAttachments) {
+      mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
+                                AttachmentDatabase.TABLE_NAME +
+                                " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+    } else {
+      mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME);
+    }
 
 
     Set<String> mmsColumnsPresent = new HashSet<>();
@@ -361,9 +380,9 @@ public class MmsSmsDatabase extends Database {
     smsColumnsPresent.add(SmsDatabase.UNIDENTIFIED);
 
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 5, MMS_TRANSPORT, mmsSelection, null, includeAttachments ? MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID : null, null);
     @SuppressWarnings("deprecation")
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, selection, null, null, null);
+    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 5, SMS_TRANSPORT, smsSelection, null, null, null);
 
     SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
     String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, limit);
@@ -378,18 +397,51 @@ public class MmsSmsDatabase extends Database {
     return db.rawQuery(query, null);
   }
 
+  private static String getAttachmentJsonColumn() {
+    return "json_group_array(json_object(" +
+               "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
+               "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
+               "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
+               "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
+               "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
+               "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
+               "'" + AttachmentDatabase.THUMBNAIL + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ", " +
+               "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
+               "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
+               "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
+               "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
+               "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
+               "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
+               "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
+               "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
+               "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
+               "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ", " +
+               "'" + AttachmentDatabase.CAPTION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CAPTION +
+               ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS;
+  }
+
   public Reader readerFor(@NonNull Cursor cursor) {
     return new Reader(cursor);
   }
 
+  public Reader readerFor(@NonNull Cursor cursor, @Nullable MessageAttachmentCache attachmentCache) {
+    return new Reader(cursor, attachmentCache);
+  }
+
   public class Reader {
 
-    private final Cursor                 cursor;
-    private       SmsDatabase.Reader     smsReader;
-    private       MmsDatabase.Reader     mmsReader;
+    private final           Cursor                 cursor;
+    private final @Nullable MessageAttachmentCache attachmentCache;
+    private                 SmsDatabase.Reader     smsReader;
+    private                 MmsDatabase.Reader     mmsReader;
 
     public Reader(Cursor cursor) {
-      this.cursor = cursor;
+      this(cursor, null);
+    }
+
+    public Reader(Cursor cursor, @Nullable MessageAttachmentCache attachmentCache) {
+      this.cursor          = cursor;
+      this.attachmentCache = attachmentCache;
     }
 
     private SmsDatabase.Reader getSmsReader() {
@@ -402,7 +454,7 @@ public class MmsSmsDatabase extends Database {
 
     private MmsDatabase.Reader getMmsReader() {
       if (mmsReader == null) {
-        mmsReader = DatabaseFactory.getMmsDatabase(context).readerFor(cursor);
+        mmsReader = DatabaseFactory.getMmsDatabase(context).readerFor(cursor, attachmentCache);
       }
 
       return mmsReader;
@@ -0,0 +1,97 @@
+package org.thoughtcrime.securesms.database;
+
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the content change notifications requested by database writes over a short window and
+ * emits each distinct URI once when it closes. A burst of writes, like a backlog of messages
+ * arriving after a reconnect, then restarts each observing loader once rather than once per write.
+ */
+public class NotificationCoalescer {
+
+  private static final String TAG = NotificationCoalescer.class.getSimpleName();
+
+  private static final long WINDOW_MILLIS = 50;
+
+  private static NotificationCoalescer instance;
+
+  private final Context    context;
+  private final Handler    handler;
+  private final Set<Uri>   pending    = new LinkedHashSet<>();
+  private final AtomicLong emitted    = new AtomicLong();
+  private final AtomicLong suppressed = new AtomicLong();
+
+  private boolean scheduled;
+
+  public static synchronized NotificationCoalescer getInstance(@NonNull Context context) {
+    if (instance == null) {
+      instance = new NotificationCoalescer(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  private NotificationCoalescer(@NonNull Context context) {
+    HandlerThread handlerThread = new HandlerThread("NotificationCoalescer");
+    handlerThread.start();
+
+    this.context = context;
+    this.handler = new Handler(handlerThread.getLooper());
+  }
+
+  public void notifyChange(@NonNull Uri uri) {
+    synchronized (this) {
+      if (!pending.add(uri)) {
+        suppressed.incrementAndGet();
+        return;
+      }
+
+      if (scheduled) return;
+
+      scheduled = true;
+    }
+
+    handler.postDelayed(this::flush, WINDOW_MILLIS);
+  }
+
+  /**
+   * @return The number of notifications that have been delivered to the content resolver.
+   */
+  public long getEmittedCount() {
+    return emitted.get();
+  }
+
+  /**
+   * @return The number of notifications that were dropped because the same URI was already pending.
+   */
+  public long getSuppressedCount() {
+    return suppressed.get();
+  }
+
+  private void flush() {
+    Uri[] uris;
+
+    synchronized (this) {
+      uris      = pending.toArray(new Uri[0]);
+      scheduled = false;
+      pending.clear();
+    }
+
+    for (Uri uri : uris) {
+      context.getContentResolver().notifyChange(uri, null);
+    }
+
+    Log.d(TAG, "Emitted " + uris.length + " notification(s), total emitted: " + emitted.addAndGet(uris.length) + ", suppressed: " + suppressed.get());
+  }
+}
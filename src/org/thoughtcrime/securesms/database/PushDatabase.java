@@ -4,23 +4,24 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.support.annotation.NonNull;
-import org.thoughtcrime.securesms.logging.Log;
+import android.support.annotation.Nullable;
 
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
-import org.thoughtcrime.securesms.util.Base64;
+import org.thoughtcrime.securesms.util.Hex;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
-import org.whispersystems.signalservice.internal.util.Util;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class PushDatabase extends Database {
 
   private static final String TAG = PushDatabase.class.getSimpleName();
 
-  private static final String TABLE_NAME       = "push";
+          static final String TABLE_NAME       = "push";
   public  static final String ID               = "_id";
   public  static final String TYPE             = "type";
   public  static final String SOURCE           = "source";
@@ -30,10 +31,15 @@ public class PushDatabase extends Database {
   public  static final String TIMESTAMP        = "timestamp";
   public  static final String SERVER_TIMESTAMP = "server_timestamp";
   public  static final String SERVER_GUID      = "server_guid";
+  public  static final String CONTENT_HASH     = "content_hash";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
-      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + LEGACY_MSG + " TEXT, " + CONTENT + " TEXT, " + TIMESTAMP + " INTEGER, " +
-      SERVER_TIMESTAMP + " INTEGER DEFAULT 0, " + SERVER_GUID + " TEXT DEFAULT NULL);";
+      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + LEGACY_MSG + " BLOB, " + CONTENT + " BLOB, " + TIMESTAMP + " INTEGER, " +
+      SERVER_TIMESTAMP + " INTEGER DEFAULT 0, " + SERVER_GUID + " TEXT DEFAULT NULL, " + CONTENT_HASH + " TEXT);";
+
+  public static final String[] CREATE_INDEXS = {
+      "CREATE UNIQUE INDEX IF NOT EXISTS push_content_hash_index ON " + TABLE_NAME + " (" + CONTENT_HASH + ");",
+  };
 
   public PushDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -49,11 +55,12 @@ public class PushDatabase extends Database {
       values.put(TYPE, envelope.getType());
       values.put(SOURCE, envelope.getSource());
       values.put(DEVICE_ID, envelope.getSourceDevice());
-      values.put(LEGACY_MSG, envelope.hasLegacyMessage() ? Base64.encodeBytes(envelope.getLegacyMessage()) : "");
-      values.put(CONTENT, envelope.hasContent() ? Base64.encodeBytes(envelope.getContent()) : "");
+      values.put(LEGACY_MSG, envelope.hasLegacyMessage() ? envelope.getLegacyMessage() : null);
+      values.put(CONTENT, envelope.hasContent() ? envelope.getContent() : null);
       values.put(TIMESTAMP, envelope.getTimestamp());
       values.put(SERVER_TIMESTAMP, envelope.getServerTimestamp());
       values.put(SERVER_GUID, envelope.getUuid());
+      values.put(CONTENT_HASH, getContentHash(envelope));
 
       return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
     }
@@ -68,21 +75,18 @@ public class PushDatabase extends Database {
                                                           null, null, null);
 
       if (cursor != null && cursor.moveToNext()) {
-        String legacyMessage = cursor.getString(cursor.getColumnIndexOrThrow(LEGACY_MSG));
-        String content       = cursor.getString(cursor.getColumnIndexOrThrow(CONTENT));
+        byte[] legacyMessage = cursor.getBlob(cursor.getColumnIndexOrThrow(LEGACY_MSG));
+        byte[] content       = cursor.getBlob(cursor.getColumnIndexOrThrow(CONTENT));
 
         return new SignalServiceEnvelope(cursor.getInt(cursor.getColumnIndexOrThrow(TYPE)),
                                          cursor.getString(cursor.getColumnIndexOrThrow(SOURCE)),
                                          cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID)),
                                          cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP)),
-                                         Util.isEmpty(legacyMessage) ? null : Base64.decode(legacyMessage),
-                                         Util.isEmpty(content) ? null : Base64.decode(content),
+                                         legacyMessage == null || legacyMessage.length == 0 ? null : legacyMessage,
+                                         content == null || content.length == 0 ? null : content,
                                          cursor.getLong(cursor.getColumnIndexOrThrow(SERVER_TIMESTAMP)),
                                          cursor.getString(cursor.getColumnIndexOrThrow(SERVER_GUID)));
       }
-    } catch (IOException e) {
-      Log.w(TAG, e);
-      throw new NoSuchMessageException(e);
     } finally {
       if (cursor != null)
         cursor.close();
@@ -91,6 +95,15 @@ public class PushDatabase extends Database {
     throw new NoSuchMessageException("Not found");
   }
 
+  public boolean exists(long id) {
+    try (Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {ID}, ID_WHERE,
+                                                                    new String[] {String.valueOf(id)},
+                                                                    null, null, null))
+    {
+      return cursor != null && cursor.moveToFirst();
+    }
+  }
+
   public Cursor getPending() {
     return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, null);
   }
@@ -105,27 +118,54 @@ public class PushDatabase extends Database {
 
   private Optional<Long> find(SignalServiceEnvelope envelope) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
-    Cursor         cursor   = null;
-
-    try {
-      cursor = database.query(TABLE_NAME, null, TYPE + " = ? AND " + SOURCE + " = ? AND " +
-                                                DEVICE_ID + " = ? AND " + LEGACY_MSG + " = ? AND " +
-                                                CONTENT + " = ? AND " + TIMESTAMP + " = ?" ,
-                              new String[] {String.valueOf(envelope.getType()),
-                                            envelope.getSource(),
-                                            String.valueOf(envelope.getSourceDevice()),
-                                            envelope.hasLegacyMessage() ? Base64.encodeBytes(envelope.getLegacyMessage()) : "",
-                                            envelope.hasContent() ? Base64.encodeBytes(envelope.getContent()) : "",
-                                            String.valueOf(envelope.getTimestamp())},
-                              null, null, null);
 
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ID}, CONTENT_HASH + " = ?",
+                                        new String[] {getContentHash(envelope)},
+                                        null, null, null))
+    {
       if (cursor != null && cursor.moveToFirst()) {
         return Optional.of(cursor.getLong(cursor.getColumnIndexOrThrow(ID)));
       } else {
         return Optional.absent();
       }
-    } finally {
-      if (cursor != null) cursor.close();
+    }
+  }
+
+  private static @NonNull String getContentHash(@NonNull SignalServiceEnvelope envelope) {
+    return getContentHash(envelope.getType(), envelope.getSource(), envelope.getSourceDevice(), envelope.getTimestamp(),
+                          envelope.hasLegacyMessage() ? envelope.getLegacyMessage() : null,
+                          envelope.hasContent() ? envelope.getContent() : null);
+  }
+
+  /**
+   * @return A SHA-256 digest, hex encoded, of the fields that identify a received envelope. Missing
+   *         and empty payloads hash the same.
+   */
+  public static @NonNull String getContentHash(int type, @Nullable String source, int deviceId, long timestamp,
+                                               @Nullable byte[] legacyMessage, @Nullable byte[] content)
+  {
+    try {
+      MessageDigest digest      = MessageDigest.getInstance("SHA-256");
+      byte[]        sourceBytes = source != null ? source.getBytes() : new byte[0];
+
+      legacyMessage = legacyMessage != null ? legacyMessage : new byte[0];
+      content       = content       != null ? content       : new byte[0];
+
+      digest.update(ByteBuffer.allocate(28)
+                              .putInt(type)
+                              .putInt(deviceId)
+                              .putLong(timestamp)
+                              .putInt(sourceBytes.length)
+                              .putInt(legacyMessage.length)
+                              .putInt(content.length)
+                              .array());
+      digest.update(sourceBytes);
+      digest.update(legacyMessage);
+      digest.update(content);
+
+      return Hex.toStringCondensed(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
     }
   }
 
@@ -137,26 +177,21 @@ public class PushDatabase extends Database {
     }
 
     public SignalServiceEnvelope getNext() {
-      try {
-        if (cursor == null || !cursor.moveToNext())
-          return null;
-
-        int    type            = cursor.getInt(cursor.getColumnIndexOrThrow(TYPE));
-        String source          = cursor.getString(cursor.getColumnIndexOrThrow(SOURCE));
-        int    deviceId        = cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID));
-        String legacyMessage   = cursor.getString(cursor.getColumnIndexOrThrow(LEGACY_MSG));
-        String content         = cursor.getString(cursor.getColumnIndexOrThrow(CONTENT));
-        long   timestamp       = cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP));
-        long   serverTimestamp = cursor.getLong(cursor.getColumnIndexOrThrow(SERVER_TIMESTAMP));
-        String serverGuid      = cursor.getString(cursor.getColumnIndexOrThrow(SERVER_GUID));
-
-        return new SignalServiceEnvelope(type, source, deviceId, timestamp,
-                                         legacyMessage != null ? Base64.decode(legacyMessage) : null,
-                                         content != null ? Base64.decode(content) : null,
-                                         serverTimestamp, serverGuid);
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
+      if (cursor == null || !cursor.moveToNext())
+        return null;
+
+      int    type            = cursor.getInt(cursor.getColumnIndexOrThrow(TYPE));
+      String source          = cursor.getString(cursor.getColumnIndexOrThrow(SOURCE));
+      int    deviceId        = cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID));
+      byte[] legacyMessage   = cursor.getBlob(cursor.getColumnIndexOrThrow(LEGACY_MSG));
+      byte[] content         = cursor.getBlob(cursor.getColumnIndexOrThrow(CONTENT));
+      long   timestamp       = cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP));
+      long   serverTimestamp = cursor.getLong(cursor.getColumnIndexOrThrow(SERVER_TIMESTAMP));
+      String serverGuid      = cursor.getString(cursor.getColumnIndexOrThrow(SERVER_GUID));
+
+      return new SignalServiceEnvelope(type, source, deviceId, timestamp,
+                                       legacyMessage, content,
+                                       serverTimestamp, serverGuid);
     }
 
     public void close() {
@@ -11,12 +11,14 @@ import net.sqlcipher.database.SQLiteDatabase;
 
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.logging.Log;
+import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class SessionDatabase extends Database {
 
@@ -39,17 +41,53 @@ public class SessionDatabase extends Database {
   }
 
   public void store(@NonNull Address address, int deviceId, @NonNull SessionRecord record) {
+    store(address, deviceId, record.serialize());
+  }
+
+  public void store(@NonNull Address address, int deviceId, @NonNull byte[] serializedRecord) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
 
     ContentValues values = new ContentValues();
     values.put(ADDRESS, address.serialize());
     values.put(DEVICE, deviceId);
-    values.put(RECORD, record.serialize());
+    values.put(RECORD, serializedRecord);
 
     database.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
   }
 
+  /**
+   * Stores several serialized records in a single transaction.
+   */
+  public void storeAll(@NonNull Map<SignalProtocolAddress, byte[]> serializedRecords) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+    database.beginTransaction();
+    try {
+      for (Map.Entry<SignalProtocolAddress, byte[]> entry : serializedRecords.entrySet()) {
+        store(Address.fromSerialized(entry.getKey().getName()), entry.getKey().getDeviceId(), entry.getValue());
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
   public @Nullable SessionRecord load(@NonNull Address address, int deviceId) {
+    byte[] serializedRecord = loadSerialized(address, deviceId);
+
+    if (serializedRecord != null) {
+      try {
+        return new SessionRecord(serializedRecord);
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    return null;
+  }
+
+  public @Nullable byte[] loadSerialized(@NonNull Address address, int deviceId) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
 
     try (Cursor cursor = database.query(TABLE_NAME, new String[]{RECORD},
@@ -58,17 +96,21 @@ public class SessionDatabase extends Database {
                                         null, null, null))
     {
       if (cursor != null && cursor.moveToFirst()) {
-        try {
-          return new SessionRecord(cursor.getBlob(cursor.getColumnIndexOrThrow(RECORD)));
-        } catch (IOException e) {
-          Log.w(TAG, e);
-        }
+        return cursor.getBlob(cursor.getColumnIndexOrThrow(RECORD));
       }
     }
 
     return null;
   }
 
+  /**
+   * @return True if the calling thread has a transaction open on the database, whose writes may
+   *         still be rolled back.
+   */
+  public boolean isInTransaction() {
+    return databaseHelper.getWritableDatabase().inTransaction();
+  }
+
   public @NonNull List<SessionRow> getAllFor(@NonNull Address address) {
     SQLiteDatabase   database = databaseHelper.getReadableDatabase();
     List<SessionRow> results  = new LinkedList<>();
@@ -126,7 +126,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.SMS_TRANSPORT, id, false);
     notifyConversationListeners(threadId);
   }
 
@@ -271,7 +271,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.SMS_TRANSPORT, id, false);
     notifyConversationListeners(threadId);
   }
 
@@ -284,7 +284,7 @@ public class SmsDatabase extends MessagingDatabase {
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {id+""});
 
     long threadId = getThreadIdForMessage(id);
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.SMS_TRANSPORT, id, false);
     notifyConversationListeners(threadId);
   }
 
@@ -318,14 +318,15 @@ public class SmsDatabase extends MessagingDatabase {
           String  columnName   = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
 
           if (ourAddress.equals(theirAddress)) {
+            long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
             long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
 
             database.execSQL("UPDATE " + TABLE_NAME +
                              " SET " + columnName + " = " + columnName + " + 1 WHERE " +
                              ID + " = ?",
-                             new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
+                             new String[] {String.valueOf(id)});
 
-            DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+            DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.SMS_TRANSPORT, id, false);
             notifyConversationListeners(threadId);
             foundMessage = true;
           }
@@ -445,7 +446,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -471,7 +472,7 @@ public class SmsDatabase extends MessagingDatabase {
       SQLiteDatabase db           = databaseHelper.getWritableDatabase();
       long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
 
-      DatabaseFactory.getThreadDatabase(context).update(record.getThreadId(), true);
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(record.getThreadId(), MmsSmsDatabase.SMS_TRANSPORT, newMessageId, true);
       notifyConversationListeners(record.getThreadId());
 
       jobManager.add(new TrimThreadJob(context, record.getThreadId()));
@@ -510,7 +511,7 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long messageId    = db.insert(TABLE_NAME, null, values);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId, true);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -594,9 +595,9 @@ public class SmsDatabase extends MessagingDatabase {
         DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
       }
 
-      if (!message.isIdentityUpdate() && !message.isIdentityVerified() && !message.isIdentityDefault()) {
-        DatabaseFactory.getThreadDatabase(context).update(threadId, true);
-      }
+      boolean identityChange = message.isIdentityUpdate() || message.isIdentityVerified() || message.isIdentityDefault();
+
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId, !identityChange);
 
       if (message.getSubscriptionId() != -1) {
         DatabaseFactory.getRecipientDatabase(context).setDefaultSubscriptionId(recipient, message.getSubscriptionId());
@@ -653,8 +654,11 @@ public class SmsDatabase extends MessagingDatabase {
       insertListener.onComplete();
     }
 
-    if (!message.isIdentityVerified() && !message.isIdentityDefault()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    boolean identityChange = message.isIdentityVerified() || message.isIdentityDefault();
+
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId, !identityChange);
+
+    if (!identityChange) {
       DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
     }
 
@@ -709,8 +713,9 @@ public class SmsDatabase extends MessagingDatabase {
     Log.i("MessageDatabase", "Deleting: " + messageId);
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long threadId     = getThreadIdForMessage(messageId);
+    boolean wasSnippet = DatabaseFactory.getThreadDatabase(context).isSnippetMessage(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId);
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, wasSnippet);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
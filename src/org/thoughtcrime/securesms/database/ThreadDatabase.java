@@ -36,6 +36,7 @@ import org.thoughtcrime.securesms.database.GroupDatabase.GroupRecord;
 import org.thoughtcrime.securesms.database.MessagingDatabase.MarkedMessageInfo;
 import org.thoughtcrime.securesms.database.RecipientDatabase.RecipientSettings;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.database.model.ConversationAnchor;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
@@ -492,22 +493,32 @@ public class ThreadDatabase extends Database {
   }
 
   public long getThreadIdFor(Recipient recipient, int distributionType) {
-    SQLiteDatabase db            = databaseHelper.getReadableDatabase();
+    SQLiteDatabase db            = databaseHelper.getWritableDatabase();
     String         where         = ADDRESS + " = ?";
     String[]       recipientsArg = new String[]{recipient.getAddress().serialize()};
     Cursor         cursor        = null;
 
+    // Look up and create in one transaction, so concurrent receivers can't both insert a thread
+    db.beginTransaction();
+
     try {
+      long threadId;
+
       cursor = db.query(TABLE_NAME, new String[]{ID}, where, recipientsArg, null, null, null);
 
       if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+        threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
       } else {
-        return createThreadForRecipient(recipient.getAddress(), recipient.isGroupRecipient(), distributionType);
+        threadId = createThreadForRecipient(recipient.getAddress(), recipient.isGroupRecipient(), distributionType);
       }
+
+      db.setTransactionSuccessful();
+      return threadId;
     } finally {
       if (cursor != null)
         cursor.close();
+
+      db.endTransaction();
     }
   }
 
@@ -553,6 +564,171 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Applies a newly inserted message to the summary of its thread. The message count is incremented
+   * and, if the message is now the newest in the thread, the snippet is taken from it. Every insert
+   * has to come through here, including ones like identity changes that shouldn't unarchive the
+   * thread, or the count drifts from what {@link #update(long, boolean)} would compute.
+   */
+  public void updateForInsert(long threadId, @NonNull String transport, long messageId, boolean unarchive) {
+    MessageRecord record = getRecordIfNewest(threadId, transport, messageId);
+
+    if (record != null) updateSnippetAndCount(threadId, record, 1, unarchive);
+    else                updateCount(threadId, 1, unarchive);
+
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Applies a change to a message that's already part of the thread (its status, receipts, body or
+   * expiration) to the summary. Only the newest message contributes to it, so nothing is written
+   * for any other message.
+   */
+  public void updateForChange(long threadId, @NonNull String transport, long messageId, boolean unarchive) {
+    MessageRecord record = getRecordIfNewest(threadId, transport, messageId);
+
+    if      (record != null) updateSnippetAndCount(threadId, record, 0, unarchive);
+    else if (unarchive)      updateCount(threadId, 0, true);
+    else                     return;
+
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Must be called before a message is deleted, to find out whether the thread's snippet depends on it.
+   */
+  public boolean isSnippetMessage(long threadId, @NonNull String transport, long messageId) {
+    ConversationAnchor newest = DatabaseFactory.getMessageIndexDatabase(context).getAnchorAt(threadId, 0);
+    return newest != null && newest.getTransport().equals(transport) && newest.getMessageId() == messageId;
+  }
+
+  /**
+   * Applies the deletion of a single message to the summary of its thread. The snippet is only
+   * recalculated if the deleted message was providing it, and a thread that appears to be empty is
+   * recounted with {@link #update(long, boolean)} before it's deleted.
+   *
+   * @return True if the thread was deleted.
+   */
+  public boolean updateForDelete(long threadId, boolean wasSnippet) {
+    if (getMessageCount(threadId) <= 1) {
+      return update(threadId, false);
+    }
+
+    ConversationAnchor newest = wasSnippet ? DatabaseFactory.getMessageIndexDatabase(context).getAnchorAt(threadId, 0) : null;
+    MessageRecord      record = newest != null ? getRecord(newest.getTransport(), newest.getMessageId()) : null;
+
+    if (record != null) updateSnippetAndCount(threadId, record, -1, false);
+    else                updateCount(threadId, -1, false);
+
+    notifyConversationListListeners();
+    return false;
+  }
+
+  /**
+   * Compares the incrementally maintained message count and snippet of a thread against a full
+   * recount, and repairs the summary with {@link #update(long, boolean)} if they differ.
+   *
+   * @return True if the summary was consistent.
+   */
+  public boolean verify(long threadId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    long           storedCount;
+    long           storedDate;
+    long           storedType;
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT, DATE, SNIPPET_TYPE}, ID_WHERE,
+                                  new String[] {String.valueOf(threadId)}, null, null, null))
+    {
+      if (cursor == null || !cursor.moveToFirst()) return true;
+
+      storedCount = cursor.getLong(0);
+      storedDate  = cursor.getLong(1);
+      storedType  = cursor.getLong(2);
+    }
+
+    long               count  = DatabaseFactory.getMmsSmsDatabase(context).getConversationCount(threadId);
+    ConversationAnchor newest = DatabaseFactory.getMessageIndexDatabase(context).getAnchorAt(threadId, 0);
+    MessageRecord      record = newest != null ? getRecord(newest.getTransport(), newest.getMessageId()) : null;
+
+    if (record != null                                                    &&
+        count == storedCount                                              &&
+        record.getTimestamp() - record.getTimestamp() % 1000 == storedDate &&
+        record.getType() == storedType)
+    {
+      return true;
+    }
+
+    Log.w(TAG, "Repairing summary of thread " + threadId + ", stored count: " + storedCount + ", actual count: " + count);
+    update(threadId, false);
+
+    return false;
+  }
+
+  private void updateSnippetAndCount(long threadId, @NonNull MessageRecord record, int countDelta, boolean unarchive) {
+    Uri  attachment = getAttachmentUriFor(record);
+    long date       = record.getTimestamp();
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                   MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + ?, " + DATE + " = ?, " + SNIPPET + " = ?, " +
+                   SNIPPET_URI + " = ?, " + SNIPPET_TYPE + " = ?, " + STATUS + " = ?, " +
+                   DELIVERY_RECEIPT_COUNT + " = ?, " + READ_RECEIPT_COUNT + " = ?, " + EXPIRES_IN + " = ?" +
+                   (unarchive ? ", " + ARCHIVED + " = 0" : "") +
+                   " WHERE " + ID + " = ?",
+               new Object[] {countDelta, date - date % 1000, getFormattedBodyFor(record),
+                             attachment == null ? null : attachment.toString(), record.getType(),
+                             record.getDeliveryStatus(), record.getDeliveryReceiptCount(),
+                             record.getReadReceiptCount(), record.getExpiresIn(), threadId});
+  }
+
+  private void updateCount(long threadId, int countDelta, boolean unarchive) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + ?" +
+                   (unarchive ? ", " + ARCHIVED + " = 0" : "") +
+                   " WHERE " + ID + " = ?",
+               new Object[] {countDelta, threadId});
+  }
+
+  private long getMessageCount(long threadId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT}, ID_WHERE, new String[] {String.valueOf(threadId)}, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getLong(0);
+      }
+    }
+
+    return 0;
+  }
+
+  private @Nullable MessageRecord getRecordIfNewest(long threadId, @NonNull String transport, long messageId) {
+    if (!isSnippetMessage(threadId, transport, messageId)) {
+      return null;
+    }
+
+    return getRecord(transport, messageId);
+  }
+
+  private @Nullable MessageRecord getRecord(@NonNull String transport, long messageId) {
+    if (MmsSmsDatabase.MMS_TRANSPORT.equals(transport)) {
+      return DatabaseFactory.getMmsDatabase(context).getMessageRecord(messageId);
+    }
+
+    try {
+      return DatabaseFactory.getSmsDatabase(context).getMessage(messageId);
+    } catch (NoSuchMessageException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  /**
+   * Recalculates the whole summary of a thread from its messages. The write paths in
+   * {@link SmsDatabase} and {@link MmsDatabase} keep the summary up to date incrementally, so this
+   * is for bulk changes and for repairing it.
+   *
+   * @return True if the thread was deleted because it's empty.
+   */
   public boolean update(long threadId, boolean unarchive) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
     long count                    = mmsSmsDatabase.getConversationCount(threadId);
@@ -0,0 +1,149 @@
+package org.thoughtcrime.securesms.database;
+
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates attachment thumbnails on a small pool of background threads. Requests that a caller is
+ * blocked on run ahead of eager ones, newer requests run ahead of older ones at the same priority,
+ * and concurrent requests for the same attachment share a single generation.
+ */
+public class ThumbnailService {
+
+  private static final String TAG = ThumbnailService.class.getSimpleName();
+
+  static final int PRIORITY_VISIBLE    = 0;
+  static final int PRIORITY_DOWNLOADED = 1;
+  static final int PRIORITY_BACKGROUND = 2;
+
+  private final Map<AttachmentId, ThumbnailTask> inFlight        = new HashMap<>();
+  private final AtomicLong                       requests        = new AtomicLong();
+  private final AtomicLong                       completed       = new AtomicLong();
+  private final AtomicLong                       totalLatency    = new AtomicLong();
+  private final AtomicLong                       totalGeneration = new AtomicLong();
+  private final ThreadPoolExecutor               executor;
+
+  ThumbnailService() {
+    AtomicInteger counter = new AtomicInteger();
+    int           threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    this.executor = new ThreadPoolExecutor(threads, threads, 15, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), r -> {
+      Thread thread = new Thread(r, "signal-thumbnail-" + counter.getAndIncrement());
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queues a thumbnail generation, or joins the one already in flight for this attachment, raising
+   * its priority if it's still waiting.
+   */
+  @NonNull Future<Boolean> generate(@NonNull AttachmentId attachmentId, int priority, @NonNull Callable<Boolean> generator) {
+    synchronized (inFlight) {
+      ThumbnailTask task = inFlight.get(attachmentId);
+
+      if (task == null) {
+        task = new ThumbnailTask(attachmentId, priority, generator);
+        inFlight.put(attachmentId, task);
+        executor.execute(task);
+      } else if (priority < task.priority && executor.getQueue().remove(task)) {
+        task.priority = priority;
+        task.sequence = requests.getAndIncrement();
+        executor.execute(task);
+      }
+
+      return task;
+    }
+  }
+
+  /**
+   * @return The number of generations waiting for a thread.
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * @return The average time in milliseconds from a generation being requested to it finishing.
+   */
+  public long getAverageLatency() {
+    long count = completed.get();
+    return count == 0 ? 0 : totalLatency.get() / count;
+  }
+
+  /**
+   * @return The average time in milliseconds spent actually generating a thumbnail.
+   */
+  public long getAverageGenerationTime() {
+    long count = completed.get();
+    return count == 0 ? 0 : totalGeneration.get() / count;
+  }
+
+  private class ThumbnailTask extends FutureTask<Boolean> implements Comparable<ThumbnailTask> {
+
+    private final AttachmentId attachmentId;
+    private final long         requestedAt;
+
+    private volatile int  priority;
+    private volatile long sequence;
+    private volatile long startedAt;
+
+    private ThumbnailTask(@NonNull AttachmentId attachmentId, int priority, @NonNull Callable<Boolean> generator) {
+      super(generator);
+      this.attachmentId = attachmentId;
+      this.priority     = priority;
+      this.sequence     = requests.getAndIncrement();
+      this.requestedAt  = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void run() {
+      startedAt = SystemClock.elapsedRealtime();
+      super.run();
+    }
+
+    @Override
+    protected void done() {
+      synchronized (inFlight) {
+        inFlight.remove(attachmentId);
+      }
+
+      if (startedAt == 0) return;
+
+      long now        = SystemClock.elapsedRealtime();
+      long latency    = now - requestedAt;
+      long generation = now - startedAt;
+
+      completed.incrementAndGet();
+      totalLatency.addAndGet(latency);
+      totalGeneration.addAndGet(generation);
+
+      Log.d(TAG, "Thumbnail for " + attachmentId + " took " + generation + " ms after waiting " + (latency - generation) + " ms, " +
+                 "queue depth: " + getQueueDepth() + ", average latency: " + getAverageLatency() + " ms, average generation: " + getAverageGenerationTime() + " ms");
+    }
+
+    @Override
+    public int compareTo(@NonNull ThumbnailTask other) {
+      if      (priority != other.priority) return priority < other.priority ? -1 : 1;
+      else if (sequence != other.sequence) return sequence > other.sequence ? -1 : 1;
+      else                                 return 0;
+    }
+  }
+}
@@ -7,6 +7,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
 import org.thoughtcrime.securesms.database.Address;
@@ -20,10 +21,12 @@ import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.crypto.DatabaseSecret;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.BackupJournalDatabase;
 import org.thoughtcrime.securesms.database.DraftDatabase;
 import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.GroupReceiptDatabase;
 import org.thoughtcrime.securesms.database.IdentityDatabase;
+import org.thoughtcrime.securesms.database.MessageIndexDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.OneTimePreKeyDatabase;
 import org.thoughtcrime.securesms.database.PushDatabase;
@@ -36,9 +39,13 @@ import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.jobs.RefreshPreKeysJob;
 import org.thoughtcrime.securesms.notifications.NotificationChannels;
 import org.thoughtcrime.securesms.service.KeyCachingService;
+import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
 
 public class SQLCipherOpenHelper extends SQLiteOpenHelper {
 
@@ -59,8 +66,13 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
   private static final int SECRET_SENDER                    = 13;
   private static final int ATTACHMENT_CAPTIONS              = 14;
   private static final int ATTACHMENT_CAPTIONS_FIX          = 15;
+  private static final int MESSAGE_INDEX                    = 16;
+  private static final int MESSAGE_INDEX_KEYSET             = 17;
+  private static final int PUSH_CONTENT_HASH                = 18;
+  private static final int ATTACHMENT_DATA_HASH             = 19;
+  private static final int BACKUP_JOURNAL                   = 20;
 
-  private static final int    DATABASE_VERSION = 15;
+  private static final int    DATABASE_VERSION = 20;
   private static final String DATABASE_NAME    = "signal.db";
 
   private final Context        context;
@@ -103,6 +115,12 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     for (String sql : SearchDatabase.CREATE_TABLE) {
       db.execSQL(sql);
     }
+    executeStatements(db, MessageIndexDatabase.CREATE_TABLE);
+    db.execSQL(BackupJournalDatabase.CREATE_TABLE);
+
+    if (TextSecurePreferences.isBackupEnabled(context)) {
+      executeStatements(db, BackupJournalDatabase.CREATE_TRIGGERS);
+    }
 
     executeStatements(db, SmsDatabase.CREATE_INDEXS);
     executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -111,12 +129,15 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     executeStatements(db, DraftDatabase.CREATE_INDEXS);
     executeStatements(db, GroupDatabase.CREATE_INDEXS);
     executeStatements(db, GroupReceiptDatabase.CREATE_INDEXES);
+    executeStatements(db, MessageIndexDatabase.CREATE_INDEXES);
+    executeStatements(db, PushDatabase.CREATE_INDEXS);
 
     if (context.getDatabasePath(ClassicOpenHelper.NAME).exists()) {
       ClassicOpenHelper                      legacyHelper = new ClassicOpenHelper(context);
       android.database.sqlite.SQLiteDatabase legacyDb     = legacyHelper.getWritableDatabase();
 
       SQLCipherMigrationHelper.migratePlaintext(context, legacyDb, db);
+      migratePushPayloads(db);
 
       MasterSecret masterSecret = KeyCachingService.getMasterSecret(context);
 
@@ -308,6 +329,84 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
         }
       }
 
+      if (oldVersion < MESSAGE_INDEX) {
+        db.execSQL("CREATE TABLE message_index (_id INTEGER PRIMARY KEY, message_id INTEGER NOT NULL, transport_type TEXT NOT NULL, thread_id INTEGER, date_received INTEGER, date_sent INTEGER, address TEXT, UNIQUE(transport_type, message_id) ON CONFLICT REPLACE)");
+
+        db.execSQL("CREATE TRIGGER sms_message_index_ai AFTER INSERT ON sms BEGIN\n" +
+                   "  INSERT INTO message_index (message_id, transport_type, thread_id, date_received, date_sent, address) VALUES (new._id, 'sms', new.thread_id, new.date, new.date_sent, new.address);\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER sms_message_index_au AFTER UPDATE OF _id, thread_id, date, date_sent, address ON sms BEGIN\n" +
+                   "  UPDATE message_index SET message_id = new._id, thread_id = new.thread_id, date_received = new.date, date_sent = new.date_sent, address = new.address WHERE transport_type = 'sms' AND message_id = old._id;\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER sms_message_index_ad AFTER DELETE ON sms BEGIN\n" +
+                   "  DELETE FROM message_index WHERE transport_type = 'sms' AND message_id = old._id;\n" +
+                   "END;");
+
+        db.execSQL("CREATE TRIGGER mms_message_index_ai AFTER INSERT ON mms BEGIN\n" +
+                   "  INSERT INTO message_index (message_id, transport_type, thread_id, date_received, date_sent, address) VALUES (new._id, 'mms', new.thread_id, new.date_received, new.date, new.address);\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER mms_message_index_au AFTER UPDATE OF _id, thread_id, date_received, date, address ON mms BEGIN\n" +
+                   "  UPDATE message_index SET message_id = new._id, thread_id = new.thread_id, date_received = new.date_received, date_sent = new.date, address = new.address WHERE transport_type = 'mms' AND message_id = old._id;\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER mms_message_index_ad AFTER DELETE ON mms BEGIN\n" +
+                   "  DELETE FROM message_index WHERE transport_type = 'mms' AND message_id = old._id;\n" +
+                   "END;");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS message_index_thread_date_index ON message_index (thread_id, date_received)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS message_index_date_sent_index ON message_index (date_sent)");
+
+        Log.i(TAG, "Beginning to build message index.");
+        long start = SystemClock.elapsedRealtime();
+
+        db.execSQL("INSERT INTO message_index (message_id, transport_type, thread_id, date_received, date_sent, address) SELECT _id, 'sms', thread_id, date, date_sent, address FROM sms");
+        db.execSQL("INSERT INTO message_index (message_id, transport_type, thread_id, date_received, date_sent, address) SELECT _id, 'mms', thread_id, date_received, date, address FROM mms");
+
+        Log.i(TAG, "Message index built in " + (SystemClock.elapsedRealtime() - start) + " ms");
+      }
+
+      if (oldVersion < MESSAGE_INDEX_KEYSET) {
+        db.execSQL("DROP INDEX IF EXISTS message_index_thread_date_index");
+        db.execSQL("CREATE INDEX IF NOT EXISTS message_index_thread_key_index ON message_index (thread_id, date_received, transport_type, message_id)");
+      }
+
+      if (oldVersion < PUSH_CONTENT_HASH) {
+        if (!columnExists(db, "push", "content_hash")) {
+          db.execSQL("ALTER TABLE push ADD COLUMN content_hash TEXT");
+        }
+
+        migratePushPayloads(db);
+
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS push_content_hash_index ON push (content_hash)");
+      }
+
+      if (oldVersion < ATTACHMENT_DATA_HASH) {
+        if (!columnExists(db, "part", "data_hash")) {
+          db.execSQL("ALTER TABLE part ADD COLUMN data_hash TEXT DEFAULT NULL");
+        }
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS part_data_index ON part (_data)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS part_data_hash_index ON part (data_hash)");
+      }
+
+      if (oldVersion < BACKUP_JOURNAL) {
+        db.execSQL("CREATE TABLE backup_journal (_id INTEGER PRIMARY KEY, table_name TEXT NOT NULL, row_id INTEGER NOT NULL, snapshot INTEGER DEFAULT 0, UNIQUE(table_name, row_id) ON CONFLICT REPLACE)");
+
+        if (TextSecurePreferences.isBackupEnabled(context)) {
+          for (String table : new String[] {"sms", "mms", "part", "thread", "identities", "drafts", "push", "groups", "recipient_preferences", "group_receipts"}) {
+            db.execSQL("CREATE TRIGGER " + table + "_backup_journal_ai AFTER INSERT ON " + table + " BEGIN\n" +
+                       "  INSERT INTO backup_journal (table_name, row_id) VALUES ('" + table + "', new.rowid);\n" +
+                       "END;");
+            db.execSQL("CREATE TRIGGER " + table + "_backup_journal_au AFTER UPDATE ON " + table + " BEGIN\n" +
+                       "  INSERT INTO backup_journal (table_name, row_id) VALUES ('" + table + "', new.rowid);\n" +
+                       "  INSERT INTO backup_journal (table_name, row_id) SELECT '" + table + "', old.rowid WHERE old.rowid != new.rowid;\n" +
+                       "END;");
+            db.execSQL("CREATE TRIGGER " + table + "_backup_journal_ad AFTER DELETE ON " + table + " BEGIN\n" +
+                       "  INSERT INTO backup_journal (table_name, row_id) VALUES ('" + table + "', old.rowid);\n" +
+                       "END;");
+          }
+        }
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -330,6 +429,54 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     db.setVersion(DATABASE_VERSION);
   }
 
+  /**
+   * Converts pending push rows stored with Base64 encoded payloads to raw blobs keyed by their
+   * content hash, dropping duplicates and rows that can't be decoded.
+   */
+  private static void migratePushPayloads(SQLiteDatabase db) {
+    List<Long> ids = new LinkedList<>();
+
+    try (Cursor cursor = db.query("push", new String[] {"_id"}, "content_hash IS NULL", null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        ids.add(cursor.getLong(0));
+      }
+    }
+
+    for (long id : ids) {
+      String[] args = new String[] {String.valueOf(id)};
+
+      try (Cursor cursor = db.query("push", new String[] {"type", "source", "device_id", "body", "content", "timestamp"}, "_id = ?", args, null, null, null)) {
+        if (cursor == null || !cursor.moveToFirst()) continue;
+
+        byte[] legacyMessage = decodePushPayload(cursor.getString(3));
+        byte[] content       = decodePushPayload(cursor.getString(4));
+        String hash          = PushDatabase.getContentHash(cursor.getInt(0), cursor.getString(1), cursor.getInt(2), cursor.getLong(5), legacyMessage, content);
+
+        try (Cursor duplicate = db.query("push", new String[] {"_id"}, "content_hash = ?", new String[] {hash}, null, null, null)) {
+          if (duplicate != null && duplicate.moveToFirst()) {
+            db.delete("push", "_id = ?", args);
+            continue;
+          }
+        }
+
+        ContentValues values = new ContentValues(3);
+        values.put("body", legacyMessage);
+        values.put("content", content);
+        values.put("content_hash", hash);
+
+        db.update("push", values, "_id = ?", args);
+      } catch (IOException e) {
+        Log.w(TAG, "Dropping undecodable push " + id, e);
+        db.delete("push", "_id = ?", args);
+      }
+    }
+  }
+
+  private static @Nullable byte[] decodePushPayload(@Nullable String encoded) throws IOException {
+    if (TextUtils.isEmpty(encoded)) return null;
+    else                            return Base64.decode(encoded);
+  }
+
   private void executeStatements(SQLiteDatabase db, String[] statements) {
     for (String statement : statements)
       db.execSQL(statement);
@@ -2,23 +2,37 @@ package org.thoughtcrime.securesms.database.loaders;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessageIndexDatabase;
+import org.thoughtcrime.securesms.database.model.ConversationAnchor;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
 import org.whispersystems.libsignal.util.Pair;
 
+/**
+ * Loads a window of a conversation. The window is bounded above by an anchor (everything older
+ * than it, or the newest messages if there is none) and holds up to limit messages. A starting
+ * offset or a request for newer messages is resolved to a new anchor on the first load, so reloads
+ * triggered by content changes keep showing the same window.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
-  private final long    threadId;
-  private       int     offset;
-  private       int     limit;
-  private       long    lastSeen;
-  private       boolean hasSent;
+  private final long               threadId;
+  private       int                offset;
+  private       int                limit;
+  private       int                newer;
+  private       int                addedNewer;
+  private       ConversationAnchor anchor;
+  private       long               lastSeen;
+  private       boolean            hasSent;
 
-  public ConversationLoader(Context context, long threadId, int offset, int limit, long lastSeen) {
+  public ConversationLoader(Context context, long threadId, int offset, @Nullable ConversationAnchor anchor, int limit, int newer, long lastSeen) {
     super(context);
     this.threadId = threadId;
     this.offset   = offset;
+    this.anchor   = anchor;
     this.limit    = limit;
+    this.newer    = newer;
     this.lastSeen = lastSeen;
     this.hasSent  = true;
   }
@@ -27,12 +41,26 @@ public class ConversationLoader extends AbstractCursorLoader {
     return limit > 0;
   }
 
-  public boolean hasOffset() {
-    return offset > 0;
+  public int getLimit() {
+    return limit;
   }
 
-  public int getOffset() {
-    return offset;
+  /**
+   * @return True if the window doesn't reach the newest message in the thread.
+   */
+  public boolean hasNewer() {
+    return anchor != null;
+  }
+
+  /**
+   * @return The number of newer messages that were added to the top of the window by this load.
+   */
+  public int getAddedNewer() {
+    return addedNewer;
+  }
+
+  public @Nullable ConversationAnchor getAnchor() {
+    return anchor;
   }
 
   public long getLastSeen() {
@@ -53,6 +81,39 @@ public class ConversationLoader extends AbstractCursorLoader {
       this.lastSeen = lastSeenAndHasSent.first();
     }
 
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId, offset, limit);
+    if (limit <= 0) {
+      return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    }
+
+    resolveAnchor();
+
+    return DatabaseFactory.getMmsSmsDatabase(context).getConversationBefore(threadId, anchor, limit);
+  }
+
+  private void resolveAnchor() {
+    MessageIndexDatabase index = DatabaseFactory.getMessageIndexDatabase(context);
+
+    if (offset > 0) {
+      anchor = index.getAnchorAt(threadId, offset - 1);
+      offset = 0;
+    }
+
+    addedNewer = 0;
+
+    if (anchor != null && newer > 0) {
+      try (Cursor newerPage = DatabaseFactory.getMmsSmsDatabase(context).getConversationAfter(threadId, anchor, newer)) {
+        int available = newerPage.getCount();
+
+        if (available >= newer && newerPage.moveToFirst()) {
+          anchor     = ConversationAnchor.fromCursor(newerPage);
+          addedNewer = newer;
+        } else {
+          anchor     = null;
+          addedNewer = available + 1;
+        }
+      }
+
+      newer = 0;
+    }
   }
 }
@@ -0,0 +1,58 @@
+package org.thoughtcrime.securesms.database.model;
+
+
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.database.MmsSmsColumns;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+
+/**
+ * A position in a conversation, expressed as the sort key of a message rather than as a row
+ * offset. Messages are ordered by received date, with the transport and id (the parts of
+ * {@link MmsSmsColumns#UNIQUE_ROW_ID}) breaking ties, so an anchor stays valid even if the message
+ * it was taken from is deleted.
+ */
+public class ConversationAnchor {
+
+  private final long   dateReceived;
+  private final String transport;
+  private final long   messageId;
+
+  public ConversationAnchor(long dateReceived, @NonNull String transport, long messageId) {
+    if (!MmsSmsDatabase.MMS_TRANSPORT.equals(transport) && !MmsSmsDatabase.SMS_TRANSPORT.equals(transport)) {
+      throw new AssertionError("Bad type: " + transport);
+    }
+
+    this.dateReceived = dateReceived;
+    this.transport    = transport;
+    this.messageId    = messageId;
+  }
+
+  /**
+   * @return The anchor for the current row of a cursor returned by one of the conversation
+   *         queries in {@link MmsSmsDatabase}.
+   */
+  public static @NonNull ConversationAnchor fromCursor(@NonNull Cursor cursor) {
+    return new ConversationAnchor(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)),
+                                  cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT)),
+                                  cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)));
+  }
+
+  public long getDateReceived() {
+    return dateReceived;
+  }
+
+  public @NonNull String getTransport() {
+    return transport;
+  }
+
+  public long getMessageId() {
+    return messageId;
+  }
+
+  @Override
+  public @NonNull String toString() {
+    return transport + "::" + messageId + "::" + dateReceived;
+  }
+}
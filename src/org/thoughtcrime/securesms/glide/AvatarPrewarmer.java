@@ -0,0 +1,68 @@
+package org.thoughtcrime.securesms.glide;
+
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+
+import org.thoughtcrime.securesms.contacts.avatars.ContactPhoto;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.ThreadDatabase;
+import org.thoughtcrime.securesms.database.model.ThreadRecord;
+import org.thoughtcrime.securesms.glide.cache.CacheCategory;
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.mms.GlideApp;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.ViewUtil;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Loads the avatars of the most recent conversations into Glide's memory cache, using the same
+ * request shape as the conversation list, so they're ready before the list first draws.
+ */
+public class AvatarPrewarmer {
+
+  private static final String TAG = AvatarPrewarmer.class.getSimpleName();
+
+  private static final int PREWARM_COUNT  = 10;
+  private static final int AVATAR_SIZE_DP = 48;
+
+  @WorkerThread
+  public static void prewarm(@NonNull Context context) {
+    List<ContactPhoto> photos         = new LinkedList<>();
+    ThreadDatabase     threadDatabase = DatabaseFactory.getThreadDatabase(context);
+
+    try (Cursor cursor = threadDatabase.getRecentConversationList(PREWARM_COUNT)) {
+      ThreadDatabase.Reader reader = threadDatabase.readerFor(cursor);
+      ThreadRecord          record;
+
+      while ((record = reader.getNext()) != null) {
+        ContactPhoto photo = Recipient.from(context, record.getRecipient().getAddress(), false).getContactPhoto();
+        if (photo != null) photos.add(photo);
+      }
+    }
+
+    if (photos.isEmpty()) return;
+
+    int size = ViewUtil.dpToPx(context, AVATAR_SIZE_DP);
+
+    Util.runOnMain(() -> {
+      for (ContactPhoto photo : photos) {
+        GlideApp.with(context.getApplicationContext())
+                .load(photo)
+                .diskCacheStrategy(DiskCacheStrategy.ALL)
+                .circleCrop()
+                .set(CacheCategory.OPTION, CacheCategory.AVATAR)
+                .preload(size, size);
+      }
+    });
+
+    Log.i(TAG, "Prewarming " + photos.size() + " avatars.");
+  }
+}
@@ -0,0 +1,49 @@
+package org.thoughtcrime.securesms.glide.cache;
+
+
+import android.support.annotation.NonNull;
+
+import com.bumptech.glide.load.Option;
+import com.bumptech.glide.load.Options;
+
+/**
+ * The kinds of resources the encrypted disk cache budgets separately. Requests can tag themselves
+ * with {@link #OPTION}; untagged entries are treated as thumbnails.
+ */
+public enum CacheCategory {
+
+  AVATAR(0, 20 * 1024 * 1024),
+  THUMBNAIL(1, 150 * 1024 * 1024),
+  GIF(2, 80 * 1024 * 1024);
+
+  public static final Option<CacheCategory> OPTION = Option.memory("org.thoughtcrime.securesms.glide.cache.CacheCategory");
+
+  private final int  id;
+  private final long maxSize;
+
+  CacheCategory(int id, long maxSize) {
+    this.id      = id;
+    this.maxSize = maxSize;
+  }
+
+  int getId() {
+    return id;
+  }
+
+  long getMaxSize() {
+    return maxSize;
+  }
+
+  static @NonNull CacheCategory fromOptions(@NonNull Options options, @NonNull CacheCategory defaultCategory) {
+    CacheCategory category = options.get(OPTION);
+    return category != null ? category : defaultCategory;
+  }
+
+  static @NonNull CacheCategory fromId(int id) {
+    for (CacheCategory category : values()) {
+      if (category.id == id) return category;
+    }
+
+    return THUMBNAIL;
+  }
+}
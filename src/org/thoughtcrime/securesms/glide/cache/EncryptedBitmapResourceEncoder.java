@@ -39,7 +39,7 @@ public class EncryptedBitmapResourceEncoder extends EncryptedCoder implements Re
     Bitmap.CompressFormat format  = getFormat(bitmap, options);
     int                   quality = options.get(BitmapEncoder.COMPRESSION_QUALITY);
 
-    try (OutputStream os = createEncryptedOutputStream(secret, file)) {
+    try (OutputStream os = createEncryptedOutputStream(secret, file, CacheCategory.fromOptions(options, CacheCategory.THUMBNAIL))) {
       bitmap.compress(format, quality, os);
       os.close();
       return true;
@@ -33,7 +33,7 @@ public class EncryptedCacheEncoder extends EncryptedCoder implements Encoder<Inp
 
     byte[] buffer = byteArrayPool.get(ArrayPool.STANDARD_BUFFER_SIZE_BYTES, byte[].class);
 
-    try (OutputStream outputStream = createEncryptedOutputStream(secret, file)) {
+    try (OutputStream outputStream = createEncryptedOutputStream(secret, file, CacheCategory.fromOptions(options, CacheCategory.THUMBNAIL))) {
       int read;
 
       while ((read = data.read(buffer)) != -1) {
@@ -15,6 +15,8 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -24,75 +26,203 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Reads and writes encrypted cache files. A file is laid out as:
+ *
+ * [magic (16)] [category (1)] [key check (16)] [iv (16)] [AES-CTR ciphertext]
+ *
+ * The cipher key and the key check are derived from the master key once and shared by every
+ * entry, so each file only costs a cipher init with a fresh random iv. A key change is detected
+ * from the plaintext key check without decrypting anything. Initialized {@link Cipher} instances
+ * are pooled per thread.
+ */
 class EncryptedCoder {
 
-  private static byte[] MAGIC_BYTES = {(byte)0x91, (byte)0x5e, (byte)0x6d, (byte)0xb4,
-                                       (byte)0x09, (byte)0xa6, (byte)0x68, (byte)0xbe,
-                                       (byte)0xe5, (byte)0xb1, (byte)0x1b, (byte)0xd7,
-                                       (byte)0x29, (byte)0xe5, (byte)0x04, (byte)0xcc};
+  private static final byte[] MAGIC_BYTES = {(byte)0x3c, (byte)0x8f, (byte)0x1e, (byte)0xa7,
+                                             (byte)0x52, (byte)0xd0, (byte)0x6b, (byte)0x94,
+                                             (byte)0xe1, (byte)0x27, (byte)0xc5, (byte)0x0a,
+                                             (byte)0x7d, (byte)0xb3, (byte)0x49, (byte)0xf6};
 
-  OutputStream createEncryptedOutputStream(@NonNull byte[] masterKey, @NonNull File file)
+  private static final int KEY_CHECK_LENGTH = 16;
+  private static final int IV_LENGTH        = 16;
+
+  private static final ThreadLocal<ArrayDeque<Cipher>> CIPHERS = new ThreadLocal<ArrayDeque<Cipher>>() {
+    @Override
+    protected ArrayDeque<Cipher> initialValue() {
+      return new ArrayDeque<>(2);
+    }
+  };
+
+  private static volatile DerivedKeys derivedKeys;
+
+  OutputStream createEncryptedOutputStream(@NonNull byte[] masterKey, @NonNull File file, @NonNull CacheCategory category)
       throws IOException
   {
+    DerivedKeys      keys             = getDerivedKeys(masterKey);
+    byte[]           iv               = Util.getSecretBytes(IV_LENGTH);
+    Cipher           cipher           = obtainCipher(Cipher.ENCRYPT_MODE, keys.cipherKey, iv);
+    FileOutputStream fileOutputStream = new FileOutputStream(file);
+
     try {
-      byte[] random = Util.getSecretBytes(32);
-      Mac    mac    = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
+      fileOutputStream.write(MAGIC_BYTES);
+      fileOutputStream.write(category.getId());
+      fileOutputStream.write(keys.keyCheck);
+      fileOutputStream.write(iv);
+    } catch (IOException e) {
+      releaseCipher(cipher);
+      fileOutputStream.close();
+      throw e;
+    }
 
-      FileOutputStream fileOutputStream = new FileOutputStream(file);
-      byte[]           iv               = new byte[16];
-      byte[]           key              = mac.doFinal(random);
+    return new PooledCipherOutputStream(fileOutputStream, cipher);
+  }
 
-      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+  InputStream createEncryptedInputStream(@NonNull byte[] masterKey, @NonNull File file) throws IOException {
+    DerivedKeys     keys            = getDerivedKeys(masterKey);
+    FileInputStream fileInputStream = new FileInputStream(file);
+    byte[]          theirMagic      = new byte[MAGIC_BYTES.length];
+    byte[]          theirKeyCheck   = new byte[KEY_CHECK_LENGTH];
+    byte[]          theirIv         = new byte[IV_LENGTH];
 
-      fileOutputStream.write(MAGIC_BYTES);
-      fileOutputStream.write(random);
+    try {
+      Util.readFully(fileInputStream, theirMagic);
 
-      CipherOutputStream outputStream = new CipherOutputStream(fileOutputStream, cipher);
-      outputStream.write(MAGIC_BYTES);
+      if (!MessageDigest.isEqual(theirMagic, MAGIC_BYTES)) {
+        throw new IOException("Not an encrypted cache file!");
+      }
 
-      return outputStream;
-    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
-      throw new AssertionError(e);
+      if (fileInputStream.read() == -1) {
+        throw new IOException("Truncated cache file!");
+      }
+
+      Util.readFully(fileInputStream, theirKeyCheck);
+      Util.readFully(fileInputStream, theirIv);
+
+      if (!MessageDigest.isEqual(theirKeyCheck, keys.keyCheck)) {
+        throw new IOException("Key change on encrypted cache file!");
+      }
+    } catch (IOException e) {
+      fileInputStream.close();
+      throw e;
     }
+
+    return new PooledCipherInputStream(fileInputStream, obtainCipher(Cipher.DECRYPT_MODE, keys.cipherKey, theirIv));
   }
 
-  InputStream createEncryptedInputStream(@NonNull byte[] masterKey, @NonNull File file) throws IOException {
-    try {
-      Mac    mac    = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
+  /**
+   * Reads the category from a cache file's plaintext header.
+   */
+  static @NonNull CacheCategory readCategory(@NonNull File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] magic = new byte[MAGIC_BYTES.length];
+      Util.readFully(in, magic);
 
-      FileInputStream fileInputStream     = new FileInputStream(file);
-      byte[]          theirMagic          = new byte[MAGIC_BYTES.length];
-      byte[]          theirRandom         = new byte[32];
-      byte[]          theirEncryptedMagic = new byte[MAGIC_BYTES.length];
+      if (!MessageDigest.isEqual(magic, MAGIC_BYTES)) {
+        throw new IOException("Not an encrypted cache file!");
+      }
 
-      Util.readFully(fileInputStream, theirMagic);
-      Util.readFully(fileInputStream, theirRandom);
+      int category = in.read();
 
-      if (!MessageDigest.isEqual(theirMagic, MAGIC_BYTES)) {
-        throw new IOException("Not an encrypted cache file!");
+      if (category == -1) {
+        throw new IOException("Truncated cache file!");
       }
 
-      byte[] iv  = new byte[16];
-      byte[] key = mac.doFinal(theirRandom);
+      return CacheCategory.fromId(category);
+    }
+  }
+
+  private static @NonNull DerivedKeys getDerivedKeys(@NonNull byte[] masterKey) {
+    DerivedKeys keys = derivedKeys;
 
-      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-      cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+    if (keys == null || !Arrays.equals(keys.masterKey, masterKey)) {
+      keys        = new DerivedKeys(masterKey);
+      derivedKeys = keys;
+    }
 
-      CipherInputStream inputStream = new CipherInputStream(fileInputStream, cipher);
-      Util.readFully(inputStream, theirEncryptedMagic);
+    return keys;
+  }
 
-      if (!MessageDigest.isEqual(theirEncryptedMagic, MAGIC_BYTES)) {
-        throw new IOException("Key change on encrypted cache file!");
+  private static @NonNull Cipher obtainCipher(int mode, @NonNull SecretKeySpec key, @NonNull byte[] iv) {
+    try {
+      Cipher cipher = CIPHERS.get().pollFirst();
+
+      if (cipher == null) {
+        cipher = Cipher.getInstance("AES/CTR/NoPadding");
       }
 
-      return inputStream;
+      cipher.init(mode, key, new IvParameterSpec(iv));
+      return cipher;
     } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);
     }
   }
 
+  private static void releaseCipher(@NonNull Cipher cipher) {
+    CIPHERS.get().offerFirst(cipher);
+  }
+
+  private static class DerivedKeys {
+    private final byte[]        masterKey;
+    private final SecretKeySpec cipherKey;
+    private final byte[]        keyCheck;
+
+    private DerivedKeys(@NonNull byte[] masterKey) {
+      try {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
+
+        this.masterKey = masterKey.clone();
+        this.cipherKey = new SecretKeySpec(mac.doFinal("GlideCacheCipherKey".getBytes()), "AES");
+        this.keyCheck  = Util.trim(mac.doFinal("GlideCacheKeyCheck".getBytes()), KEY_CHECK_LENGTH);
+      } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  private static class PooledCipherOutputStream extends CipherOutputStream {
+    private final Cipher cipher;
 
+    private boolean released;
+
+    private PooledCipherOutputStream(@NonNull OutputStream outputStream, @NonNull Cipher cipher) {
+      super(outputStream, cipher);
+      this.cipher = cipher;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (!released) {
+          released = true;
+          releaseCipher(cipher);
+        }
+      }
+    }
+  }
+
+  private static class PooledCipherInputStream extends CipherInputStream {
+    private final Cipher cipher;
+
+    private boolean released;
+
+    private PooledCipherInputStream(@NonNull InputStream inputStream, @NonNull Cipher cipher) {
+      super(inputStream, cipher);
+      this.cipher = cipher;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (!released) {
+          released = true;
+          releaseCipher(cipher);
+        }
+      }
+    }
+  }
 }
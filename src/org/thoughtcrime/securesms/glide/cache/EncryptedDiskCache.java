@@ -0,0 +1,407 @@
+package org.thoughtcrime.securesms.glide.cache;
+
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.bumptech.glide.load.Key;
+import com.bumptech.glide.load.engine.cache.DiskCache;
+import com.bumptech.glide.load.engine.cache.SafeKeyGenerator;
+
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A disk cache for the encrypted files written by the cache encoders. Entries are kept in a
+ * journaled LRU index that is budgeted per {@link CacheCategory}, so a burst of GIFs can't push
+ * every avatar out of the cache. The category of an entry is read from its file header once the
+ * write completes.
+ *
+ * The journal is an append-only log of PUT, READ and DELETE lines that is replayed on open and
+ * compacted once it holds mostly redundant lines.
+ */
+public class EncryptedDiskCache implements DiskCache {
+
+  private static final String TAG = EncryptedDiskCache.class.getSimpleName();
+
+  private static final String DIRECTORY      = "encrypted_image_cache";
+  private static final String JOURNAL        = "journal";
+  private static final String JOURNAL_TEMP   = "journal.tmp";
+  private static final String JOURNAL_HEADER = "signal.encrypted_image_cache.1";
+  private static final String TEMP_SUFFIX    = ".tmp";
+
+  private static final String PUT    = "PUT";
+  private static final String READ   = "READ";
+  private static final String DELETE = "DELETE";
+
+  private static final int COMPACT_THRESHOLD = 2000;
+
+  private final File                                            directory;
+  private final SafeKeyGenerator                                keyGenerator = new SafeKeyGenerator();
+  private final Map<CacheCategory, LinkedHashMap<String, Long>> entries      = new EnumMap<>(CacheCategory.class);
+  private final Map<CacheCategory, Long>                        sizes        = new EnumMap<>(CacheCategory.class);
+  private final Set<String>                                     writing      = new HashSet<>();
+
+  private Writer journalWriter;
+  private int    redundantOperations;
+  private long   hitCount;
+  private long   missCount;
+  private long   evictionCount;
+
+  private EncryptedDiskCache(@NonNull File directory) throws IOException {
+    this.directory = directory;
+
+    for (CacheCategory category : CacheCategory.values()) {
+      entries.put(category, new LinkedHashMap<>(16, 0.75f, true));
+      sizes.put(category, 0L);
+    }
+
+    open();
+  }
+
+  @Override
+  public synchronized @Nullable File get(Key key) {
+    String safeKey = keyGenerator.getSafeKey(key);
+
+    for (CacheCategory category : CacheCategory.values()) {
+      if (entries.get(category).get(safeKey) != null) {
+        hitCount++;
+        appendToJournal(READ, safeKey, false);
+        return new File(directory, safeKey);
+      }
+    }
+
+    missCount++;
+    return null;
+  }
+
+  @Override
+  public void put(Key key, DiskCache.Writer writer) {
+    String safeKey = keyGenerator.getSafeKey(key);
+
+    synchronized (this) {
+      if (contains(safeKey) || !writing.add(safeKey)) return;
+    }
+
+    File temp = new File(directory, safeKey + TEMP_SUFFIX);
+
+    try {
+      if (!writer.write(temp)) {
+        return;
+      }
+
+      CacheCategory category = EncryptedCoder.readCategory(temp);
+      long          size     = temp.length();
+
+      synchronized (this) {
+        if (!temp.renameTo(new File(directory, safeKey))) {
+          throw new IOException("Failed to commit cache entry " + safeKey);
+        }
+
+        entries.get(category).put(safeKey, size);
+        sizes.put(category, sizes.get(category) + size);
+
+        appendToJournal(PUT, safeKey + " " + category.getId() + " " + size, true);
+        trimToSize(category);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to put entry in the encrypted disk cache.", e);
+    } finally {
+      if (temp.exists() && !temp.delete()) {
+        Log.w(TAG, "Failed to delete temp file " + temp);
+      }
+
+      synchronized (this) {
+        writing.remove(safeKey);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void delete(Key key) {
+    remove(keyGenerator.getSafeKey(key));
+  }
+
+  @Override
+  public synchronized void clear() {
+    for (CacheCategory category : CacheCategory.values()) {
+      for (String safeKey : entries.get(category).keySet()) {
+        deleteFile(new File(directory, safeKey));
+      }
+
+      entries.get(category).clear();
+      sizes.put(category, 0L);
+    }
+
+    try {
+      rewriteJournal();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to rewrite the journal after clearing.", e);
+    }
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  public synchronized long getSize(@NonNull CacheCategory category) {
+    return sizes.get(category);
+  }
+
+  private boolean contains(@NonNull String safeKey) {
+    for (CacheCategory category : CacheCategory.values()) {
+      if (entries.get(category).containsKey(safeKey)) return true;
+    }
+
+    return false;
+  }
+
+  private void remove(@NonNull String safeKey) {
+    for (CacheCategory category : CacheCategory.values()) {
+      Long size = entries.get(category).remove(safeKey);
+
+      if (size != null) {
+        sizes.put(category, sizes.get(category) - size);
+        deleteFile(new File(directory, safeKey));
+        appendToJournal(DELETE, safeKey, true);
+        return;
+      }
+    }
+  }
+
+  private void trimToSize(@NonNull CacheCategory category) {
+    Iterator<Map.Entry<String, Long>> iterator = entries.get(category).entrySet().iterator();
+
+    while (sizes.get(category) > category.getMaxSize() && iterator.hasNext()) {
+      Map.Entry<String, Long> eldest = iterator.next();
+
+      iterator.remove();
+      sizes.put(category, sizes.get(category) - eldest.getValue());
+      deleteFile(new File(directory, eldest.getKey()));
+      appendToJournal(DELETE, eldest.getKey(), false);
+
+      evictionCount++;
+    }
+
+    flushJournal();
+  }
+
+  private void open() throws IOException {
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Unable to create cache directory " + directory);
+    }
+
+    File journal = new File(directory, JOURNAL);
+
+    if (journal.exists()) {
+      try {
+        readJournal(journal);
+      } catch (IOException e) {
+        Log.w(TAG, "Discarding unreadable journal.", e);
+
+        for (CacheCategory category : CacheCategory.values()) {
+          entries.get(category).clear();
+          sizes.put(category, 0L);
+        }
+      }
+    }
+
+    Set<String> known = new HashSet<>();
+
+    for (CacheCategory category : CacheCategory.values()) {
+      Iterator<Map.Entry<String, Long>> iterator = entries.get(category).entrySet().iterator();
+
+      while (iterator.hasNext()) {
+        Map.Entry<String, Long> entry = iterator.next();
+
+        if (new File(directory, entry.getKey()).length() != entry.getValue()) {
+          iterator.remove();
+          sizes.put(category, sizes.get(category) - entry.getValue());
+        } else {
+          known.add(entry.getKey());
+        }
+      }
+    }
+
+    File[] files = directory.listFiles();
+
+    if (files != null) {
+      for (File file : files) {
+        if (!file.getName().equals(JOURNAL) && !known.contains(file.getName())) {
+          deleteFile(file);
+        }
+      }
+    }
+
+    rewriteJournal();
+
+    for (CacheCategory category : CacheCategory.values()) {
+      trimToSize(category);
+    }
+
+    Log.i(TAG, "Opened with " + known.size() + " entries.");
+  }
+
+  private void readJournal(@NonNull File journal) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal)))) {
+      if (!JOURNAL_HEADER.equals(reader.readLine())) {
+        throw new IOException("Unexpected journal header");
+      }
+
+      String line;
+
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split(" ");
+
+        if (PUT.equals(parts[0]) && parts.length == 4) {
+          CacheCategory category = CacheCategory.fromId(Integer.parseInt(parts[2]));
+          long          size     = Long.parseLong(parts[3]);
+
+          removeFromIndex(parts[1]);
+          entries.get(category).put(parts[1], size);
+          sizes.put(category, sizes.get(category) + size);
+        } else if (READ.equals(parts[0]) && parts.length == 2) {
+          for (CacheCategory category : CacheCategory.values()) {
+            entries.get(category).get(parts[1]);
+          }
+        } else if (DELETE.equals(parts[0]) && parts.length == 2) {
+          removeFromIndex(parts[1]);
+        } else {
+          throw new IOException("Unexpected journal line: " + line);
+        }
+      }
+    } catch (NumberFormatException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void removeFromIndex(@NonNull String safeKey) {
+    for (CacheCategory category : CacheCategory.values()) {
+      Long size = entries.get(category).remove(safeKey);
+      if (size != null) sizes.put(category, sizes.get(category) - size);
+    }
+  }
+
+  private void rewriteJournal() throws IOException {
+    if (journalWriter != null) {
+      journalWriter.close();
+    }
+
+    File temp = new File(directory, JOURNAL_TEMP);
+
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp)))) {
+      writer.write(JOURNAL_HEADER + "\n");
+
+      for (CacheCategory category : CacheCategory.values()) {
+        for (Map.Entry<String, Long> entry : entries.get(category).entrySet()) {
+          writer.write(PUT + " " + entry.getKey() + " " + category.getId() + " " + entry.getValue() + "\n");
+        }
+      }
+    }
+
+    if (!temp.renameTo(new File(directory, JOURNAL))) {
+      throw new IOException("Failed to replace journal");
+    }
+
+    journalWriter       = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, JOURNAL), true)));
+    redundantOperations = 0;
+
+    Log.i(TAG, "Journal rewritten. Hits: " + hitCount + ", misses: " + missCount + ", evictions: " + evictionCount);
+  }
+
+  private void appendToJournal(@NonNull String operation, @NonNull String arguments, boolean flush) {
+    try {
+      journalWriter.write(operation + " " + arguments + "\n");
+      if (flush) journalWriter.flush();
+
+      if (!PUT.equals(operation) && ++redundantOperations >= COMPACT_THRESHOLD && redundantOperations >= getEntryCount()) {
+        rewriteJournal();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write to the journal.", e);
+    }
+  }
+
+  private void flushJournal() {
+    try {
+      journalWriter.flush();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to flush the journal.", e);
+    }
+  }
+
+  private int getEntryCount() {
+    int count = 0;
+
+    for (CacheCategory category : CacheCategory.values()) {
+      count += entries.get(category).size();
+    }
+
+    return count;
+  }
+
+  private static void deleteFile(@NonNull File file) {
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Failed to delete " + file);
+    }
+  }
+
+  public static class Factory implements DiskCache.Factory {
+
+    private static final String LEGACY_DIRECTORY = DiskCache.Factory.DEFAULT_DISK_CACHE_DIR;
+
+    private final Context context;
+
+    public Factory(@NonNull Context context) {
+      this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public @Nullable DiskCache build() {
+      deleteLegacyCache(new File(context.getCacheDir(), LEGACY_DIRECTORY));
+
+      try {
+        return new EncryptedDiskCache(new File(context.getCacheDir(), DIRECTORY));
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to open the encrypted disk cache.", e);
+        return null;
+      }
+    }
+
+    private static void deleteLegacyCache(@NonNull File directory) {
+      File[] files = directory.listFiles();
+
+      if (files == null) return;
+
+      for (File file : files) {
+        deleteFile(file);
+      }
+
+      deleteFile(directory);
+    }
+  }
+}
@@ -34,7 +34,7 @@ public class EncryptedGifDrawableResourceEncoder extends EncryptedCoder implemen
   public boolean encode(@NonNull Resource<GifDrawable> data, @NonNull File file, @NonNull Options options) {
     GifDrawable drawable = data.get();
 
-    try (OutputStream outputStream = createEncryptedOutputStream(secret, file)) {
+    try (OutputStream outputStream = createEncryptedOutputStream(secret, file, CacheCategory.GIF)) {
       ByteBufferUtil.toStream(drawable.getBuffer(), outputStream);
       return true;
     } catch (IOException e) {
@@ -0,0 +1,72 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobmanager.JobParameters;
+import org.thoughtcrime.securesms.jobmanager.SafeData;
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.io.IOException;
+import java.util.List;
+
+import androidx.work.Data;
+import androidx.work.WorkerParameters;
+
+/**
+ * Hashes attachment data stored before content hashes were recorded, and folds files with
+ * identical content into one.
+ */
+public class AttachmentDeduplicationJob extends ContextJob {
+
+  private static final String TAG = AttachmentDeduplicationJob.class.getSimpleName();
+
+  public AttachmentDeduplicationJob(@NonNull Context context, @NonNull WorkerParameters workerParameters) {
+    super(context, workerParameters);
+  }
+
+  public AttachmentDeduplicationJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(AttachmentDeduplicationJob.class.getSimpleName())
+                                .create());
+  }
+
+  @Override
+  protected void initialize(@NonNull SafeData data) { }
+
+  @Override
+  protected @NonNull Data serialize(@NonNull Data.Builder dataBuilder) {
+    return dataBuilder.build();
+  }
+
+  @Override
+  public void onRun() {
+    AttachmentDatabase database  = DatabaseFactory.getAttachmentDatabase(context);
+    List<String>       dataFiles = database.getUnhashedDataFiles();
+    long               reclaimed = 0;
+
+    Log.i(TAG, "Hashing " + dataFiles.size() + " attachment files.");
+
+    for (String dataFile : dataFiles) {
+      try {
+        reclaimed += database.deduplicateDataFile(dataFile);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to hash an attachment file, leaving it in place.", e);
+      }
+    }
+
+    Log.i(TAG, "Reclaimed " + reclaimed + " bytes from duplicate attachment files.");
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Attachment deduplication canceled.");
+  }
+}
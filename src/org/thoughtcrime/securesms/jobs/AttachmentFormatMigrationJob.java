@@ -0,0 +1,71 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobmanager.JobParameters;
+import org.thoughtcrime.securesms.jobmanager.SafeData;
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.io.IOException;
+import java.util.List;
+
+import androidx.work.Data;
+import androidx.work.WorkerParameters;
+
+/**
+ * Rewrites attachments stored in the classic and modern formats in the chunked format.
+ */
+public class AttachmentFormatMigrationJob extends ContextJob {
+
+  private static final String TAG = AttachmentFormatMigrationJob.class.getSimpleName();
+
+  public AttachmentFormatMigrationJob(@NonNull Context context, @NonNull WorkerParameters workerParameters) {
+    super(context, workerParameters);
+  }
+
+  public AttachmentFormatMigrationJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(AttachmentFormatMigrationJob.class.getSimpleName())
+                                .create());
+  }
+
+  @Override
+  protected void initialize(@NonNull SafeData data) { }
+
+  @Override
+  protected @NonNull Data serialize(@NonNull Data.Builder dataBuilder) {
+    return dataBuilder.build();
+  }
+
+  @Override
+  public void onRun() {
+    AttachmentDatabase database  = DatabaseFactory.getAttachmentDatabase(context);
+    List<String>       dataFiles = database.getLegacyDataFiles();
+    int                migrated  = 0;
+
+    Log.i(TAG, "Migrating " + dataFiles.size() + " legacy attachment files.");
+
+    for (String dataFile : dataFiles) {
+      try {
+        if (database.migrateToChunkedFormat(dataFile)) migrated++;
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to migrate an attachment file, leaving it in place.", e);
+      }
+    }
+
+    Log.i(TAG, "Migrated " + migrated + " attachment files.");
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Attachment format migration canceled.");
+  }
+}
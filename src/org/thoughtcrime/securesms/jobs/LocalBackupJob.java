@@ -5,12 +5,15 @@ import android.Manifest;
 import android.content.Context;
 import android.support.annotation.NonNull;
 
+import net.sqlcipher.database.SQLiteDatabase;
+
 import org.thoughtcrime.securesms.jobmanager.SafeData;
 import org.thoughtcrime.securesms.logging.Log;
 
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
+import org.thoughtcrime.securesms.database.BackupJournalDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
@@ -18,8 +21,10 @@ import org.thoughtcrime.securesms.notifications.NotificationChannels;
 import org.thoughtcrime.securesms.permissions.Permissions;
 import org.thoughtcrime.securesms.service.GenericForegroundService;
 import org.thoughtcrime.securesms.util.BackupUtil;
+import org.thoughtcrime.securesms.util.Hex;
 import org.thoughtcrime.securesms.util.StorageUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.thoughtcrime.securesms.util.Util;
 
 import java.io.File;
 import java.io.IOException;
@@ -34,6 +39,9 @@ public class LocalBackupJob extends ContextJob {
 
   private static final String TAG = LocalBackupJob.class.getSimpleName();
 
+  private static final int    MAX_DELTAS           = 14;
+  private static final double MAX_DELTA_SIZE_RATIO = 0.5;
+
   public LocalBackupJob(@NonNull Context context, @NonNull WorkerParameters workerParameters) {
     super(context, workerParameters);
   }
@@ -68,39 +76,103 @@ public class LocalBackupJob extends ContextJob {
                                                  R.drawable.ic_signal_backup);
 
     try {
-      String backupPassword  = TextSecurePreferences.getBackupPassphrase(context);
-      File   backupDirectory = StorageUtil.getBackupDirectory();
-      String timestamp       = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US).format(new Date());
-      String fileName        = String.format("signal-%s.backup", timestamp);
-      File   backupFile      = new File(backupDirectory, fileName);
-
-      if (backupFile.exists()) {
-        throw new IOException("Backup file already exists?");
-      }
+      String                backupPassword = TextSecurePreferences.getBackupPassphrase(context);
+      SQLiteDatabase        database       = DatabaseFactory.getBackupDatabase(context);
+      BackupJournalDatabase journal        = DatabaseFactory.getBackupJournalDatabase(context);
+      BackupUtil.BackupInfo latestBackup   = BackupUtil.getLatestBackup();
 
       if (backupPassword == null) {
         throw new IOException("Backup password is null");
       }
 
-      File tempFile = File.createTempFile("backup", "tmp", StorageUtil.getBackupCacheDirectory(context));
-
-      FullBackupExporter.export(context,
-                                AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                DatabaseFactory.getBackupDatabase(context),
-                                tempFile,
-                                backupPassword);
-
-      if (!tempFile.renameTo(backupFile)) {
-        tempFile.delete();
-        throw new IOException("Renaming temporary backup file failed!");
+      journal.markSnapshot();
+
+      if (latestBackup != null && canWriteDelta(latestBackup, database.getVersion())) {
+        String chainId   = TextSecurePreferences.getBackupChainId(context);
+        int    sequence  = latestBackup.getDeltas().size() + 1;
+        File   deltaFile = BackupUtil.getDeltaFile(latestBackup.getFile(), sequence);
+        File   tempFile  = createTempFile(deltaFile);
+
+        Log.i(TAG, "Writing delta " + sequence + " on top of " + latestBackup.getFile().getName());
+
+        FullBackupExporter.exportDelta(context,
+                                       AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                       database,
+                                       tempFile,
+                                       backupPassword,
+                                       chainId,
+                                       sequence);
+
+        commit(tempFile, deltaFile);
+
+        TextSecurePreferences.setBackupChainSequence(context, sequence);
+      } else {
+        String timestamp  = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US).format(new Date());
+        String fileName   = String.format("signal-%s.backup", timestamp);
+        File   backupFile = new File(StorageUtil.getBackupDirectory(), fileName);
+        File   tempFile   = createTempFile(backupFile);
+        String chainId    = Hex.toStringCondensed(Util.getSecretBytes(16));
+
+        FullBackupExporter.export(context,
+                                  AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                  database,
+                                  tempFile,
+                                  backupPassword,
+                                  chainId);
+
+        commit(tempFile, backupFile);
+
+        TextSecurePreferences.setBackupChainId(context, chainId);
+        TextSecurePreferences.setBackupChainBase(context, fileName);
+        TextSecurePreferences.setBackupChainSequence(context, 0);
+        TextSecurePreferences.setBackupChainDatabaseVersion(context, database.getVersion());
       }
 
+      journal.clearSnapshot();
+
       BackupUtil.deleteOldBackups();
     } finally {
       GenericForegroundService.stopForegroundTask(context);
     }
   }
 
+  /**
+   * A delta can only extend the backup this device last wrote, with every delta since still in
+   * place, at the same database version. Once the chain has grown long, or its deltas have grown
+   * large next to the backup itself, a new full backup is written instead and later deltas build
+   * on that.
+   */
+  private boolean canWriteDelta(@NonNull BackupUtil.BackupInfo latestBackup, int databaseVersion) {
+    String chainId      = TextSecurePreferences.getBackupChainId(context);
+    String chainBase    = TextSecurePreferences.getBackupChainBase(context);
+    int    chainLength  = TextSecurePreferences.getBackupChainSequence(context);
+    int    chainVersion = TextSecurePreferences.getBackupChainDatabaseVersion(context);
+    long   baseSize     = latestBackup.getFile().length();
+    long   deltaSize    = latestBackup.getSize() - baseSize;
+
+    return chainId != null                                    &&
+           latestBackup.getFile().getName().equals(chainBase) &&
+           latestBackup.getDeltas().size() == chainLength     &&
+           chainVersion == databaseVersion                    &&
+           chainLength < MAX_DELTAS                           &&
+           deltaSize <= baseSize * MAX_DELTA_SIZE_RATIO;
+  }
+
+  private @NonNull File createTempFile(@NonNull File destination) throws IOException {
+    if (destination.exists()) {
+      throw new IOException("Backup file already exists?");
+    }
+
+    return File.createTempFile("backup", "tmp", StorageUtil.getBackupCacheDirectory(context));
+  }
+
+  private void commit(@NonNull File tempFile, @NonNull File destination) throws IOException {
+    if (!tempFile.renameTo(destination)) {
+      tempFile.delete();
+      throw new IOException("Renaming temporary backup file failed!");
+    }
+  }
+
   @Override
   public boolean onShouldRetry(Exception e) {
     return false;
@@ -51,6 +51,8 @@ import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
 import org.thoughtcrime.securesms.groups.GroupMessageProcessor;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
 import org.thoughtcrime.securesms.jobmanager.SafeData;
 import org.thoughtcrime.securesms.logging.Log;
@@ -101,8 +103,10 @@ import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import androidx.work.Data;
 import androidx.work.WorkerParameters;
@@ -119,6 +123,10 @@ public class PushDecryptJob extends ContextJob {
   private long messageId;
   private long smsMessageId;
 
+  private transient @Nullable Set<Long> deferredNotificationThreads;
+  private transient           boolean   deferredNotificationRefresh;
+  private transient @Nullable List<Job> deferredJobs;
+
   public PushDecryptJob(@NonNull Context context, @NonNull WorkerParameters workerParameters) {
     super(context, workerParameters);
   }
@@ -154,17 +162,17 @@ public class PushDecryptJob extends ContextJob {
 
   @Override
   public void onRun() throws NoSuchMessageException {
-    synchronized (PushReceivedJob.RECEIVE_LOCK) {
-      if (needsMigration()) {
-        Log.w(TAG, "Skipping, waiting for migration...");
-        postMigrationNotification();
-        return;
-      }
+    if (needsMigration()) {
+      Log.w(TAG, "Skipping, waiting for migration...");
+      postMigrationNotification();
+      return;
+    }
 
-      PushDatabase          database             = DatabaseFactory.getPushDatabase(context);
-      SignalServiceEnvelope envelope             = database.get(messageId);
-      Optional<Long>        optionalSmsMessageId = smsMessageId > 0 ? Optional.of(smsMessageId) : Optional.absent();
+    PushDatabase          database             = DatabaseFactory.getPushDatabase(context);
+    SignalServiceEnvelope envelope             = database.get(messageId);
+    Optional<Long>        optionalSmsMessageId = smsMessageId > 0 ? Optional.of(smsMessageId) : Optional.absent();
 
+    try (ReceiveLock ignored = ReceiveLock.forEnvelope(envelope)) {
       handleMessage(envelope, optionalSmsMessageId);
       database.delete(messageId);
     }
@@ -181,7 +189,7 @@ public class PushDecryptJob extends ContextJob {
   }
 
   public void processMessage(@NonNull SignalServiceEnvelope envelope) {
-    synchronized (PushReceivedJob.RECEIVE_LOCK) {
+    try (ReceiveLock ignored = ReceiveLock.forEnvelope(envelope)) {
       if (needsMigration()) {
         Log.w(TAG, "Skipping and storing envelope, waiting for migration...");
         DatabaseFactory.getPushDatabase(context).insert(envelope);
@@ -193,11 +201,57 @@ public class PushDecryptJob extends ContextJob {
     }
   }
 
-  private boolean needsMigration() {
+  /**
+   * Collects the notification updates and the jobs of the messages processed by this instance,
+   * rather than posting and enqueueing them one at a time, until {@link #flushDeferred()} is
+   * called. If the messages turn out not to have been stored, {@link #discardDeferred()} drops them.
+   */
+  void defer() {
+    deferredNotificationThreads = new LinkedHashSet<>();
+    deferredNotificationRefresh = false;
+    deferredJobs                = new LinkedList<>();
+  }
+
+  void flushDeferred() {
+    if (deferredNotificationThreads == null) return;
+
+    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+
+    for (Job job : deferredJobs) {
+      jobManager.add(job);
+    }
+
+    if      (!deferredNotificationThreads.isEmpty()) MessageNotifier.updateNotification(context, deferredNotificationThreads);
+    else if (deferredNotificationRefresh)            MessageNotifier.updateNotification(context);
+
+    discardDeferred();
+  }
+
+  void discardDeferred() {
+    deferredNotificationThreads = null;
+    deferredJobs                = null;
+  }
+
+  boolean needsMigration() {
     return !IdentityKeyUtil.hasIdentityKey(context) || TextSecurePreferences.getNeedsSqlCipherMigration(context);
   }
 
-  private void postMigrationNotification() {
+  private void enqueue(@NonNull Job job) {
+    if (deferredJobs != null) deferredJobs.add(job);
+    else                      ApplicationContext.getInstance(context).getJobManager().add(job);
+  }
+
+  private void updateNotification(long threadId) {
+    if (deferredNotificationThreads != null) deferredNotificationThreads.add(threadId);
+    else                                     MessageNotifier.updateNotification(context, threadId);
+  }
+
+  private void updateNotification() {
+    if (deferredNotificationThreads != null) deferredNotificationRefresh = true;
+    else                                     MessageNotifier.updateNotification(context);
+  }
+
+  void postMigrationNotification() {
     NotificationManagerCompat.from(context).notify(494949,
                                                    new NotificationCompat.Builder(context, NotificationChannels.getMessagesChannel(context))
                                                                          .setSmallIcon(R.drawable.icon_notification)
@@ -212,6 +266,8 @@ public class PushDecryptJob extends ContextJob {
   }
 
   private void handleMessage(@NonNull SignalServiceEnvelope envelope, @NonNull Optional<Long> smsMessageId) {
+    ReceiveLock groupLock = null;
+
     try {
       GroupDatabase        groupDatabase = DatabaseFactory.getGroupDatabase(context);
       SignalProtocolStore  axolotlStore  = new SignalProtocolStoreImpl(context);
@@ -219,6 +275,11 @@ public class PushDecryptJob extends ContextJob {
       SignalServiceCipher  cipher        = new SignalServiceCipher(localAddress, axolotlStore, UnidentifiedAccessUtil.getCertificateValidator());
 
       SignalServiceContent content = cipher.decrypt(envelope);
+      Optional<byte[]>     groupId = getGroupId(content);
+
+      if (groupId.isPresent()) {
+        groupLock = ReceiveLock.forGroup(groupId.get());
+      }
 
       if (shouldIgnore(content)) {
         Log.i(TAG, "Ignoring message.");
@@ -277,7 +338,7 @@ public class PushDecryptJob extends ContextJob {
       }
 
       if (envelope.isPreKeySignalMessage()) {
-        ApplicationContext.getInstance(context).getJobManager().add(new RefreshPreKeysJob(context));
+        enqueue(new RefreshPreKeysJob(context));
       }
     } catch (ProtocolInvalidVersionException e) {
       Log.w(TAG, e);
@@ -305,6 +366,8 @@ public class PushDecryptJob extends ContextJob {
       Log.w(TAG, e);
     } catch (SelfSendException e) {
       Log.i(TAG, "Dropping UD message from self.");
+    } finally {
+      if (groupLock != null) groupLock.close();
     }
   }
 
@@ -416,7 +479,7 @@ public class PushDecryptJob extends ContextJob {
       sessionStore.deleteAllSessions(content.getSender());
 
       SecurityEvent.broadcastSecurityUpdateEvent(context);
-      MessageNotifier.updateNotification(context, threadId);
+      updateNotification(threadId);
     }
   }
 
@@ -463,9 +526,7 @@ public class PushDecryptJob extends ContextJob {
   private void handleUnknownGroupMessage(@NonNull SignalServiceContent content,
                                          @NonNull SignalServiceGroup group)
   {
-    ApplicationContext.getInstance(context)
-                      .getJobManager()
-                      .add(new RequestGroupInfoJob(context, content.getSender(), group.getGroupId()));
+    enqueue(new RequestGroupInfoJob(context, content.getSender(), group.getGroupId()));
   }
 
   private void handleExpirationUpdate(@NonNull SignalServiceContent content,
@@ -542,7 +603,7 @@ public class PushDecryptJob extends ContextJob {
 
       if (threadId != null) {
         DatabaseFactory.getThreadDatabase(getContext()).setRead(threadId, true);
-        MessageNotifier.updateNotification(getContext());
+        updateNotification();
       }
 
       MessageNotifier.setLastDesktopActivityTimestamp(message.getTimestamp());
@@ -554,34 +615,23 @@ public class PushDecryptJob extends ContextJob {
   private void handleSynchronizeRequestMessage(@NonNull RequestMessage message)
   {
     if (message.isContactsRequest()) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new MultiDeviceContactUpdateJob(getContext(), true));
-
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new RefreshUnidentifiedDeliveryAbilityJob(context));
+      enqueue(new MultiDeviceContactUpdateJob(getContext(), true));
+      enqueue(new RefreshUnidentifiedDeliveryAbilityJob(context));
     }
 
     if (message.isGroupsRequest()) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new MultiDeviceGroupUpdateJob(getContext()));
+      enqueue(new MultiDeviceGroupUpdateJob(getContext()));
     }
 
     if (message.isBlockedListRequest()) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new MultiDeviceBlockedUpdateJob(getContext()));
+      enqueue(new MultiDeviceBlockedUpdateJob(getContext()));
     }
 
     if (message.isConfigurationRequest()) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new MultiDeviceConfigurationUpdateJob(getContext(),
-                                                                   TextSecurePreferences.isReadReceiptsEnabled(getContext()),
-                                                                   TextSecurePreferences.isTypingIndicatorsEnabled(getContext()),
-                                                                   TextSecurePreferences.isShowUnidentifiedDeliveryIndicatorsEnabled(getContext())));
+      enqueue(new MultiDeviceConfigurationUpdateJob(getContext(),
+                                                    TextSecurePreferences.isReadReceiptsEnabled(getContext()),
+                                                    TextSecurePreferences.isTypingIndicatorsEnabled(getContext()),
+                                                    TextSecurePreferences.isShowUnidentifiedDeliveryIndicatorsEnabled(getContext())));
     }
   }
 
@@ -606,7 +656,7 @@ public class PushDecryptJob extends ContextJob {
 
     MessageNotifier.setLastDesktopActivityTimestamp(envelopeTimestamp);
     MessageNotifier.cancelDelayedNotifications();
-    MessageNotifier.updateNotification(context);
+    updateNotification();
   }
 
   private void handleMediaMessage(@NonNull SignalServiceContent content,
@@ -636,16 +686,14 @@ public class PushDecryptJob extends ContextJob {
         List<DatabaseAttachment> attachments = DatabaseFactory.getAttachmentDatabase(context).getAttachmentsForMessage(insertResult.get().getMessageId());
 
         for (DatabaseAttachment attachment : attachments) {
-          ApplicationContext.getInstance(context)
-                            .getJobManager()
-                            .add(new AttachmentDownloadJob(context, insertResult.get().getMessageId(), attachment.getAttachmentId(), false));
+          enqueue(new AttachmentDownloadJob(context, insertResult.get().getMessageId(), attachment.getAttachmentId(), false));
         }
 
         if (smsMessageId.isPresent()) {
           DatabaseFactory.getSmsDatabase(context).deleteMessage(smsMessageId.get());
         }
 
-        MessageNotifier.updateNotification(context, insertResult.get().getThreadId());
+        updateNotification(insertResult.get().getThreadId());
       }
     } catch (MmsException e) {
       throw new StorageFailedException(e, content.getSender(), content.getSenderDevice());
@@ -707,9 +755,7 @@ public class PushDecryptJob extends ContextJob {
     database.markUnidentified(messageId, message.isUnidentified(recipients.getAddress().serialize()));
 
     for (DatabaseAttachment attachment : DatabaseFactory.getAttachmentDatabase(context).getAttachmentsForMessage(messageId)) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new AttachmentDownloadJob(context, messageId, attachment.getAttachmentId(), false));
+      enqueue(new AttachmentDownloadJob(context, messageId, attachment.getAttachmentId(), false));
     }
 
     if (message.getMessage().getExpiresInSeconds() > 0) {
@@ -761,7 +807,7 @@ public class PushDecryptJob extends ContextJob {
     }
 
     if (threadId != null) {
-      MessageNotifier.updateNotification(context, threadId);
+      updateNotification(threadId);
     }
   }
 
@@ -826,7 +872,7 @@ public class PushDecryptJob extends ContextJob {
 
       if (insertResult.isPresent()) {
         smsDatabase.markAsInvalidVersionKeyExchange(insertResult.get().getMessageId());
-        MessageNotifier.updateNotification(context, insertResult.get().getThreadId());
+        updateNotification(insertResult.get().getThreadId());
       }
     } else {
       smsDatabase.markAsInvalidVersionKeyExchange(smsMessageId.get());
@@ -843,7 +889,7 @@ public class PushDecryptJob extends ContextJob {
 
       if (insertResult.isPresent()) {
         smsDatabase.markAsDecryptFailed(insertResult.get().getMessageId());
-        MessageNotifier.updateNotification(context, insertResult.get().getThreadId());
+        updateNotification(insertResult.get().getThreadId());
       }
     } else {
       smsDatabase.markAsDecryptFailed(smsMessageId.get());
@@ -860,7 +906,7 @@ public class PushDecryptJob extends ContextJob {
 
       if (insertResult.isPresent()) {
         smsDatabase.markAsNoSession(insertResult.get().getMessageId());
-        MessageNotifier.updateNotification(context, insertResult.get().getThreadId());
+        updateNotification(insertResult.get().getThreadId());
       }
     } else {
       smsDatabase.markAsNoSession(smsMessageId.get());
@@ -877,7 +923,7 @@ public class PushDecryptJob extends ContextJob {
 
       if (insertResult.isPresent()) {
         smsDatabase.markAsLegacyVersion(insertResult.get().getMessageId());
-        MessageNotifier.updateNotification(context, insertResult.get().getThreadId());
+        updateNotification(insertResult.get().getThreadId());
       }
     } else {
       smsDatabase.markAsLegacyVersion(smsMessageId.get());
@@ -910,16 +956,14 @@ public class PushDecryptJob extends ContextJob {
     if (recipient.getProfileKey() == null || !MessageDigest.isEqual(recipient.getProfileKey(), message.getProfileKey().get())) {
       database.setProfileKey(recipient, message.getProfileKey().get());
       database.setUnidentifiedAccessMode(recipient, RecipientDatabase.UnidentifiedAccessMode.UNKNOWN);
-      ApplicationContext.getInstance(context).getJobManager().add(new RetrieveProfileJob(context, recipient));
+      enqueue(new RetrieveProfileJob(context, recipient));
     }
   }
 
   private void handleNeedsDeliveryReceipt(@NonNull SignalServiceContent content,
                                           @NonNull SignalServiceDataMessage message)
   {
-    ApplicationContext.getInstance(context)
-                      .getJobManager()
-                      .add(new SendDeliveryReceiptJob(context, Address.fromExternal(context, content.getSender()), message.getTimestamp()));
+    enqueue(new SendDeliveryReceiptJob(context, Address.fromExternal(context, content.getSender()), message.getTimestamp()));
   }
 
   @SuppressLint("DefaultLocale")
@@ -1055,7 +1099,22 @@ public class PushDecryptJob extends ContextJob {
     }
   }
 
-  private void notifyTypingStoppedFromIncomingMessage(@NonNull Recipient conversationRecipient, @NonNull String sender, int device) {
+  private Optional<byte[]> getGroupId(@Nullable SignalServiceContent content) {
+    if (content == null) return Optional.absent();
+
+    if (content.getDataMessage().isPresent() && content.getDataMessage().get().getGroupInfo().isPresent()) {
+      return Optional.of(content.getDataMessage().get().getGroupInfo().get().getGroupId());
+    } else if (content.getSyncMessage().isPresent()                                            &&
+               content.getSyncMessage().get().getSent().isPresent()                            &&
+               content.getSyncMessage().get().getSent().get().getMessage().getGroupInfo().isPresent())
+    {
+      return Optional.of(content.getSyncMessage().get().getSent().get().getMessage().getGroupInfo().get().getGroupId());
+    }
+
+    return Optional.absent();
+  }
+
+    private void notifyTypingStoppedFromIncomingMessage(@NonNull Recipient conversationRecipient, @NonNull String sender, int device) {
     Recipient author   = Recipient.from(context, Address.fromExternal(context, sender), false);
     long      threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(conversationRecipient);
 
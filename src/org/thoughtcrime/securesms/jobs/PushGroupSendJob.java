@@ -29,6 +29,8 @@ import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
 import org.thoughtcrime.securesms.transport.RetryLaterException;
 import org.thoughtcrime.securesms.transport.UndeliverableMessageException;
 import org.thoughtcrime.securesms.util.GroupUtil;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.SignalServiceMessageSender;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccessPair;
@@ -44,9 +46,15 @@ import org.whispersystems.signalservice.api.util.InvalidNumberException;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.GroupContext;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
@@ -60,6 +68,11 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
 
   private static final String TAG = PushGroupSendJob.class.getSimpleName();
 
+  private static final int MAX_CONCURRENT_SENDS = 4;
+  private static final int MIN_CHUNK_SIZE       = 8;
+
+  private static final ExecutorService SEND_EXECUTOR = SignalExecutors.newCachedBoundedExecutor("signal-group-send", MAX_CONCURRENT_SENDS);
+
   @Inject transient SignalServiceMessageSender messageSender;
 
   private static final String KEY_MESSAGE_ID     = "message_id";
@@ -152,12 +165,14 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
         database.addMismatchedIdentity(messageId, mismatch.getAddress(), mismatch.getIdentityKey());
       }
 
+      Map<Address, Boolean> unidentified = new HashMap<>(successes.size());
+
       for (SendMessageResult success : successes) {
-        DatabaseFactory.getGroupReceiptDatabase(context).setUnidentified(Address.fromSerialized(success.getAddress().getNumber()),
-                                                                         messageId,
-                                                                         success.getSuccess().isUnidentified());
+        unidentified.put(Address.fromSerialized(success.getAddress().getNumber()), success.getSuccess().isUnidentified());
       }
 
+      DatabaseFactory.getGroupReceiptDatabase(context).setUnidentified(unidentified, messageId);
+
       if (existingNetworkFailures.isEmpty() && networkFailures.isEmpty() && identityMismatches.isEmpty() && existingIdentityMismatches.isEmpty()) {
         database.markAsSent(messageId, true);
 
@@ -232,7 +247,7 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
                                                                            .asGroupMessage(group)
                                                                            .build();
 
-      return messageSender.sendMessage(addresses, unidentifiedAccess, groupDataMessage);
+      return sendMessage(addresses, unidentifiedAccess, groupDataMessage, attachmentStreams.isEmpty());
     } else {
       SignalServiceGroup       group        = new SignalServiceGroup(GroupUtil.getDecodedId(groupId));
       SignalServiceDataMessage groupMessage = SignalServiceDataMessage.newBuilder()
@@ -247,10 +262,66 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
                                                                       .withSharedContacts(sharedContacts)
                                                                       .build();
 
-      return messageSender.sendMessage(addresses, unidentifiedAccess, groupMessage);
+      boolean hasUploads = !attachmentStreams.isEmpty()                                    ||
+                           (quote.isPresent() && !quote.get().getAttachments().isEmpty()) ||
+                           Stream.of(sharedContacts).anyMatch(contact -> contact.getAvatar().isPresent());
+
+      return sendMessage(addresses, unidentifiedAccess, groupMessage, !hasUploads);
     }
   }
 
+  /**
+   * Splits large fan-outs into chunks that are encrypted and sent concurrently, collecting the
+   * results in recipient order. Each send uploads the message's attachments and, with linked
+   * devices, sends its own sync transcript, so messages with uploads and multi-device accounts are
+   * sent in a single pass.
+   */
+  private List<SendMessageResult> sendMessage(@NonNull List<SignalServiceAddress> addresses,
+                                              @NonNull List<Optional<UnidentifiedAccessPair>> unidentifiedAccess,
+                                              @NonNull SignalServiceDataMessage message,
+                                              boolean canFanOut)
+      throws IOException, UntrustedIdentityException
+  {
+    int chunkCount = Math.min(MAX_CONCURRENT_SENDS, addresses.size() / MIN_CHUNK_SIZE);
+
+    if (!canFanOut || chunkCount < 2 || TextSecurePreferences.isMultiDevice(context)) {
+      return messageSender.sendMessage(addresses, unidentifiedAccess, message);
+    }
+
+    int                                   chunkSize = (addresses.size() + chunkCount - 1) / chunkCount;
+    List<Future<List<SendMessageResult>>> futures   = new ArrayList<>(chunkCount);
+
+    for (int i = 0; i < addresses.size(); i += chunkSize) {
+      int end = Math.min(i + chunkSize, addresses.size());
+
+      List<SignalServiceAddress>             chunkAddresses = addresses.subList(i, end);
+      List<Optional<UnidentifiedAccessPair>> chunkAccess    = unidentifiedAccess.subList(i, end);
+
+      futures.add(SEND_EXECUTOR.submit(() -> messageSender.sendMessage(chunkAddresses, chunkAccess, message)));
+    }
+
+    log(TAG, "Sending to " + addresses.size() + " recipients in " + futures.size() + " chunks.");
+
+    List<SendMessageResult> results = new ArrayList<>(addresses.size());
+    Throwable               failure = null;
+
+    for (Future<List<SendMessageResult>> future : futures) {
+      try {
+        results.addAll(future.get());
+      } catch (ExecutionException e) {
+        if (failure == null) failure = e.getCause();
+      } catch (InterruptedException e) {
+        if (failure == null) failure = e;
+      }
+    }
+
+    if      (failure == null)                               return results;
+    else if (failure instanceof IOException)                throw (IOException) failure;
+    else if (failure instanceof UntrustedIdentityException) throw (UntrustedIdentityException) failure;
+    else if (failure instanceof RuntimeException)           throw (RuntimeException) failure;
+    else                                                    throw new IOException(failure);
+  }
+
   private @NonNull List<Address> getGroupMessageRecipients(String groupId, long messageId) {
     List<GroupReceiptInfo> destinations = DatabaseFactory.getGroupReceiptDatabase(context).getGroupReceiptInfo(messageId);
     if (!destinations.isEmpty()) return Stream.of(destinations).map(GroupReceiptInfo::getAddress).toList();
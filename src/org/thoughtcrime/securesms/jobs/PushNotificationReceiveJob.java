@@ -23,6 +23,8 @@ public class PushNotificationReceiveJob extends PushReceivedJob implements Injec
 
   private static final String TAG = PushNotificationReceiveJob.class.getSimpleName();
 
+  private static final Object PULL_LOCK = new Object();
+
   @Inject transient SignalServiceMessageReceiver receiver;
 
   public PushNotificationReceiveJob(@NonNull Context context, @NonNull WorkerParameters workerParameters) {
@@ -56,7 +58,7 @@ public class PushNotificationReceiveJob extends PushReceivedJob implements Injec
   }
 
   public void pullAndProcessMessages(SignalServiceMessageReceiver receiver, String tag, long startTime) throws IOException {
-    synchronized (PushReceivedJob.RECEIVE_LOCK) {
+    synchronized (PULL_LOCK) {
       receiver.retrieveMessages(envelope -> {
         Log.i(tag, "Retrieved an envelope." + timeSuffix(startTime));
         processEnvelope(envelope);
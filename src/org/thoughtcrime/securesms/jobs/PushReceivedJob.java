@@ -4,24 +4,32 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.support.annotation.NonNull;
 
+import com.annimon.stream.Stream;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
 import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.database.Address;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
+import org.thoughtcrime.securesms.database.NoSuchMessageException;
+import org.thoughtcrime.securesms.database.PushDatabase;
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
 import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import androidx.work.WorkerParameters;
 
 public abstract class PushReceivedJob extends ContextJob {
 
   private static final String TAG = PushReceivedJob.class.getSimpleName();
 
-  public static final Object RECEIVE_LOCK = new Object();
-
   protected PushReceivedJob(@NonNull Context context, @NonNull WorkerParameters workerParameters) {
     super(context, workerParameters);
   }
@@ -31,7 +39,96 @@ public abstract class PushReceivedJob extends ContextJob {
   }
 
   public void processEnvelope(@NonNull SignalServiceEnvelope envelope) {
-    synchronized (RECEIVE_LOCK) {
+    processEnvelope(envelope, new PushDecryptJob(context));
+  }
+
+  /**
+   * Processes, in order, a batch of envelopes that were stored in the {@link PushDatabase} as they
+   * were read off the pipe. The writes of the whole batch, session state included, are committed in
+   * a single transaction, and the notification updates and jobs it produces are held back until the
+   * commit.
+   *
+   * Whether the batch was committed is decided by what's left in the {@link PushDatabase} rather
+   * than by whether an exception escaped: a nested transaction that fails and is handled further
+   * down still rolls back the whole batch when it ends. If any envelope that was processed is still
+   * stored afterwards, the batch is treated as rolled back. Its notifications and jobs are dropped,
+   * and every such envelope is processed again one at a time, so that one bad envelope can't hold
+   * back the rest.
+   *
+   * Session records written during the transaction aren't cached by the session store, so a
+   * rollback can't leave the cached session state ahead of the database.
+   */
+  public void processEnvelopes(@NonNull List<Long> pushIds) {
+    try (ReceiveLock ignored = ReceiveLock.exclusive()) {
+      PushDatabase   pushDatabase = DatabaseFactory.getPushDatabase(context);
+      SQLiteDatabase database     = DatabaseFactory.getWritableDatabase(context);
+      PushDecryptJob decryptJob   = new PushDecryptJob(context);
+      Set<Long>      leftStored   = new HashSet<>();
+
+      decryptJob.defer();
+      database.beginTransaction();
+
+      try {
+        for (long pushId : pushIds) {
+          if (!processStoredEnvelope(pushDatabase, decryptJob, pushId)) {
+            leftStored.add(pushId);
+          }
+        }
+
+        database.setTransactionSuccessful();
+      } catch (RuntimeException e) {
+        Log.w(TAG, e);
+      } finally {
+        database.endTransaction();
+      }
+
+      List<Long> rolledBack = Stream.of(pushIds).filter(pushId -> !leftStored.contains(pushId) && pushDatabase.exists(pushId)).toList();
+
+      if (rolledBack.isEmpty()) {
+        decryptJob.flushDeferred();
+        return;
+      }
+
+      Log.w(TAG, "Batch of " + pushIds.size() + " envelopes was rolled back, processing " + rolledBack.size() + " individually...");
+      decryptJob.discardDeferred();
+
+      for (long pushId : rolledBack) {
+        try {
+          processStoredEnvelope(pushDatabase, new PushDecryptJob(context), pushId);
+        } catch (RuntimeException e) {
+          Log.w(TAG, "Failed to process envelope " + pushId + " individually.", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return False if the envelope was deliberately left stored, to be processed later.
+   */
+  private boolean processStoredEnvelope(@NonNull PushDatabase pushDatabase, @NonNull PushDecryptJob decryptJob, long pushId) {
+    SignalServiceEnvelope envelope;
+
+    try {
+      envelope = pushDatabase.get(pushId);
+    } catch (NoSuchMessageException e) {
+      Log.w(TAG, e);
+      return true;
+    }
+
+    if (!envelope.isReceipt() && decryptJob.needsMigration()) {
+      Log.w(TAG, "Leaving envelope stored, waiting for migration...");
+      decryptJob.postMigrationNotification();
+      return false;
+    }
+
+    processEnvelope(envelope, decryptJob);
+    pushDatabase.delete(pushId);
+
+    return true;
+  }
+
+  private void processEnvelope(@NonNull SignalServiceEnvelope envelope, @NonNull PushDecryptJob decryptJob) {
+    try (ReceiveLock ignored = ReceiveLock.forEnvelope(envelope)) {
       if (envelope.hasSource()) {
         Address   source    = Address.fromExternal(context, envelope.getSource());
         Recipient recipient = Recipient.from(context, source, false);
@@ -45,17 +142,13 @@ public abstract class PushReceivedJob extends ContextJob {
       if (envelope.isReceipt()) {
         handleReceipt(envelope);
       } else if (envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender()) {
-        handleMessage(envelope);
+        decryptJob.processMessage(envelope);
       } else {
         Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
       }
     }
   }
 
-  private void handleMessage(SignalServiceEnvelope envelope) {
-    new PushDecryptJob(context).processMessage(envelope);
-  }
-
   @SuppressLint("DefaultLocale")
   private void handleReceipt(SignalServiceEnvelope envelope) {
     Log.i(TAG, String.format("Received receipt: (XXXXX, %d)", envelope.getTimestamp()));
@@ -0,0 +1,135 @@
+package org.thoughtcrime.securesms.jobs;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.logging.Log;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Serializes the processing of incoming envelopes per sender session instead of globally, so
+ * envelopes from different senders can be decrypted and stored in parallel while those from the
+ * same (source, device) are still handled one at a time.
+ *
+ * Envelopes that don't reveal their sender before decryption (sealed sender), and batches that span
+ * several senders, take the lock exclusively.
+ *
+ * Ordering guarantees:
+ * - Envelopes from the same (source, device) are processed in the order they are received, since
+ *   they always map to the same sender stripe.
+ * - Envelopes from different senders have no relative ordering; two senders that share a stripe
+ *   are serialized only by accident of the hash.
+ * - Once decrypted, messages for the same group are additionally serialized on a group stripe
+ *   ({@link #forGroup(byte[])}), so group creation and membership updates from different senders
+ *   don't interleave. The group lock is always taken last, while the sender lock is held.
+ * - Any other state shared across senders (e.g. thread rows) must be made atomic in the database.
+ *
+ * Usage: try (ReceiveLock lock = ReceiveLock.forEnvelope(envelope)) { ... }
+ */
+public final class ReceiveLock implements Closeable {
+
+  private static final String TAG = ReceiveLock.class.getSimpleName();
+
+  private static final int STRIPE_COUNT = 32;
+
+  private static final ReentrantReadWriteLock GLOBAL        = new ReentrantReadWriteLock();
+  private static final ReentrantLock[]        STRIPES       = new ReentrantLock[STRIPE_COUNT];
+  private static final ReentrantLock[]        GROUP_STRIPES = new ReentrantLock[STRIPE_COUNT];
+
+  private static final AtomicLong acquired    = new AtomicLong();
+  private static final AtomicLong contended   = new AtomicLong();
+  private static final AtomicLong waitedNanos = new AtomicLong();
+
+  static {
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      STRIPES[i]       = new ReentrantLock();
+      GROUP_STRIPES[i] = new ReentrantLock();
+    }
+  }
+
+  private final @Nullable Lock globalLock;
+  private final @Nullable Lock stripeLock;
+  private final           long waited;
+
+  public static @NonNull ReceiveLock forEnvelope(@NonNull SignalServiceEnvelope envelope) {
+    if (envelope.hasSource()) return forSender(envelope.getSource(), envelope.getSourceDevice());
+    else                      return exclusive();
+  }
+
+  public static @NonNull ReceiveLock forSender(@NonNull String source, int device) {
+    int stripe = ((source.hashCode() * 31 + device) & Integer.MAX_VALUE) % STRIPE_COUNT;
+    return new ReceiveLock(GLOBAL.readLock(), STRIPES[stripe]);
+  }
+
+  /**
+   * Serializes the handling of messages for a single group. Must be taken while already holding a
+   * sender or exclusive lock, after decryption has revealed the group.
+   */
+  public static @NonNull ReceiveLock forGroup(@NonNull byte[] groupId) {
+    int stripe = (Arrays.hashCode(groupId) & Integer.MAX_VALUE) % STRIPE_COUNT;
+    return new ReceiveLock(null, GROUP_STRIPES[stripe]);
+  }
+
+  public static @NonNull ReceiveLock exclusive() {
+    return new ReceiveLock(GLOBAL.writeLock(), null);
+  }
+
+  private ReceiveLock(@Nullable Lock globalLock, @Nullable Lock stripeLock) {
+    this.globalLock = globalLock;
+    this.stripeLock = stripeLock;
+
+    long waited = 0;
+    if (globalLock != null) waited += acquire(globalLock);
+    if (stripeLock != null) waited += acquire(stripeLock);
+
+    this.waited = waited;
+  }
+
+  @Override
+  public void close() {
+    if (stripeLock != null) stripeLock.unlock();
+    if (globalLock != null) globalLock.unlock();
+
+    if (waited > 0) {
+      Log.d(TAG, "Waited " + TimeUnit.NANOSECONDS.toMillis(waited) + " ms for the " + getKind() + " lock. " +
+                 "Contended: " + contended.get() + "/" + acquired.get() + " acquisitions, " + TimeUnit.NANOSECONDS.toMillis(waitedNanos.get()) + " ms total");
+    }
+  }
+
+  private @NonNull String getKind() {
+    if      (globalLock == null) return "group";
+    else if (stripeLock == null) return "exclusive";
+    else                         return "sender";
+  }
+
+  /**
+   * @return The time in nanoseconds spent waiting for the lock, or 0 if it was free.
+   */
+  private static long acquire(@NonNull Lock lock) {
+    long waited = 0;
+
+    if (!lock.tryLock()) {
+      long start = System.nanoTime();
+
+      lock.lock();
+
+      waited = Math.max(1, System.nanoTime() - start);
+
+      contended.incrementAndGet();
+      waitedNanos.addAndGet(waited);
+    }
+
+    acquired.incrementAndGet();
+
+    return waited;
+  }
+}
@@ -83,7 +83,7 @@ public abstract class SendJob extends ContextJob {
           } else {
             results.add(attachment);
           }
-        } else if (constraints.canResize(attachment)) {
+        } else if (constraints.canResize(context, attachment)) {
           MediaStream resized = constraints.getResizedMedia(context, attachment);
           results.add(attachmentDatabase.updateAttachmentData(attachment, resized));
         } else {
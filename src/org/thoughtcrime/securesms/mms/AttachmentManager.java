@@ -486,7 +486,7 @@ public class AttachmentManager {
   {
    return slide == null                                          ||
           constraints.isSatisfied(context, slide.asAttachment()) ||
-          constraints.canResize(slide.asAttachment());
+          constraints.canResize(context, slide.asAttachment());
   }
 
   private void previewImageDraft(final @NonNull Slide slide) {
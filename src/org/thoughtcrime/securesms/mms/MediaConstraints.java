@@ -1,19 +1,32 @@
 package org.thoughtcrime.securesms.mms;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.media.MediaDataSource;
+import android.media.MediaMetadataRetriever;
 import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import org.thoughtcrime.securesms.logging.Log;
 import android.util.Pair;
 
+import org.greenrobot.eventbus.EventBus;
 import org.thoughtcrime.securesms.attachments.Attachment;
+import org.thoughtcrime.securesms.crypto.RandomAccessDecryptor;
+import org.thoughtcrime.securesms.events.PartProgressEvent;
 import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader.DecryptableUri;
 import org.thoughtcrime.securesms.util.BitmapDecodingException;
 import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.MediaUtil;
+import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.video.DecryptorMediaDataSource;
+import org.thoughtcrime.securesms.video.transcode.VideoTranscoder;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -61,23 +74,106 @@ public abstract class MediaConstraints {
     }
   }
 
-  public boolean canResize(@Nullable Attachment attachment) {
-    return attachment != null && MediaUtil.isImage(attachment) && !MediaUtil.isGif(attachment);
+  public boolean isVideoTranscodeAvailable() {
+    return false;
+  }
+
+  /**
+   * Videos can only be resized if they're short enough to fit at the lowest bitrate the
+   * transcoder will use, which means reading their duration.
+   */
+  public boolean canResize(@NonNull Context context, @Nullable Attachment attachment) {
+    return attachment != null && ((MediaUtil.isImage(attachment) && !MediaUtil.isGif(attachment)) ||
+                                  (MediaUtil.isVideo(attachment) && isVideoTranscodeAvailable() && canFitVideo(context, attachment)));
   }
 
   public MediaStream getResizedMedia(@NonNull Context context, @NonNull Attachment attachment)
       throws IOException
   {
-    if (!canResize(attachment)) {
+    if (!canResize(context, attachment)) {
       throw new UnsupportedOperationException("Cannot resize this content type");
     }
 
+    if (MediaUtil.isVideo(attachment)) {
+      return getTranscodedVideo(context, attachment);
+    }
+
     try {
-      // XXX - This is loading everything into memory! We want the send path to be stream-like.
+      long                   startTime   = SystemClock.elapsedRealtime();
       BitmapUtil.ScaleResult scaleResult = BitmapUtil.createScaledBytes(context, new DecryptableUri(attachment.getDataUri()), this);
+
+      Log.i(TAG, "Resized image to " + scaleResult.getBitmap().length + " bytes in " + (SystemClock.elapsedRealtime() - startTime) + " ms");
       return new MediaStream(new ByteArrayInputStream(scaleResult.getBitmap()), MediaUtil.IMAGE_JPEG, scaleResult.getWidth(), scaleResult.getHeight());
     } catch (BitmapDecodingException e) {
       throw new IOException(e);
     }
   }
+
+  @TargetApi(Build.VERSION_CODES.M)
+  private boolean canFitVideo(@NonNull Context context, @NonNull Attachment attachment) {
+    Uri uri = attachment.getDataUri();
+
+    if (uri == null) return false;
+
+    MediaMetadataRetriever retriever  = new MediaMetadataRetriever();
+    MediaDataSource        dataSource = null;
+
+    try {
+      RandomAccessDecryptor decryptor = PartAuthority.getRandomAccessDecryptor(context, uri);
+
+      if (decryptor != null) {
+        dataSource = new DecryptorMediaDataSource(decryptor);
+        retriever.setDataSource(dataSource);
+      } else {
+        retriever.setDataSource(context, uri);
+      }
+
+      String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+
+      if (duration == null) {
+        Log.w(TAG, "Video has no duration, can't resize.");
+        return false;
+      }
+
+      return VideoTranscoder.canFit(Long.parseLong(duration) * 1000, getVideoMaxSize(context));
+    } catch (IOException | RuntimeException e) {
+      Log.w(TAG, "Failed to read video duration, can't resize.", e);
+      return false;
+    } finally {
+      retriever.release();
+      if (dataSource != null) Util.close(dataSource);
+    }
+  }
+
+  /**
+   * Transcodes a video into a temporary file and streams it back, reporting progress as the
+   * attachment's transfer progress.
+   */
+  @TargetApi(Build.VERSION_CODES.M)
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private MediaStream getTranscodedVideo(@NonNull Context context, @NonNull Attachment attachment)
+      throws IOException
+  {
+    RandomAccessDecryptor decryptor = PartAuthority.getRandomAccessDecryptor(context, attachment.getDataUri());
+
+    if (decryptor == null) {
+      throw new IOException("Video isn't stored as a part: " + attachment.getDataUri());
+    }
+
+    File output = File.createTempFile("transcode", ".mp4", context.getCacheDir());
+
+    try (MediaDataSource dataSource = new DecryptorMediaDataSource(decryptor)) {
+      VideoTranscoder transcoder = new VideoTranscoder(dataSource, getVideoMaxSize(context));
+      transcoder.transcode(output, percent -> EventBus.getDefault().postSticky(new PartProgressEvent(attachment, 100, percent)));
+
+      if (output.length() > getVideoMaxSize(context)) {
+        throw new IOException("Transcoded video is still too large: " + output.length());
+      }
+
+      return new MediaStream(new FileInputStream(output), MediaUtil.VIDEO_MP4, transcoder.getOutputWidth(), transcoder.getOutputHeight());
+    } finally {
+      // An open stream keeps the data readable until it's closed.
+      output.delete();
+    }
+  }
 }
@@ -9,6 +9,7 @@ import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.crypto.RandomAccessDecryptor;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.providers.PersistentBlobProvider;
 import org.thoughtcrime.securesms.providers.PartProvider;
@@ -57,6 +58,20 @@ public class PartAuthority {
     }
   }
 
+  /**
+   * @return A decryptor for random access to the attachment, or null if the uri doesn't refer to
+   *         an attachment stored in the part database.
+   */
+  public static @Nullable RandomAccessDecryptor getRandomAccessDecryptor(@NonNull Context context, @NonNull Uri uri)
+      throws IOException
+  {
+    if (uriMatcher.match(uri) == PART_ROW) {
+      return DatabaseFactory.getAttachmentDatabase(context).getRandomAccessDecryptor(new PartUriParser(uri).getPartId());
+    }
+
+    return null;
+  }
+
   public static @Nullable String getAttachmentFileName(@NonNull Context context, @NonNull Uri uri) {
     int match = uriMatcher.match(uri);
 
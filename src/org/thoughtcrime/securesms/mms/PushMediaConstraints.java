@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.mms;
 
 import android.content.Context;
+import android.os.Build;
 
 import org.thoughtcrime.securesms.util.Util;
 
@@ -45,4 +46,9 @@ public class PushMediaConstraints extends MediaConstraints {
   public int getDocumentMaxSize(Context context) {
     return 100 * MB;
   }
+
+  @Override
+  public boolean isVideoTranscodeAvailable() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+  }
 }
@@ -27,6 +27,7 @@ import org.thoughtcrime.securesms.giph.model.GiphyPaddedUrl;
 import org.thoughtcrime.securesms.glide.ContactPhotoLoader;
 import org.thoughtcrime.securesms.glide.cache.EncryptedBitmapCacheDecoder;
 import org.thoughtcrime.securesms.glide.cache.EncryptedCacheEncoder;
+import org.thoughtcrime.securesms.glide.cache.EncryptedDiskCache;
 import org.thoughtcrime.securesms.glide.cache.EncryptedGifCacheDecoder;
 import org.thoughtcrime.securesms.glide.cache.EncryptedBitmapResourceEncoder;
 import org.thoughtcrime.securesms.glide.cache.EncryptedGifDrawableResourceEncoder;
@@ -49,7 +50,7 @@ public class SignalGlideModule extends AppGlideModule {
   @Override
   public void applyOptions(Context context, GlideBuilder builder) {
     builder.setLogLevel(Log.ERROR);
-//    builder.setDiskCache(new NoopDiskCacheFactory());
+    builder.setDiskCache(new EncryptedDiskCache.Factory(context));
   }
 
   @Override
@@ -205,6 +205,23 @@ public class MessageNotifier {
     }
   }
 
+  /**
+   * Updates the notification once for a batch of messages that arrived in the given threads. The
+   * visible thread, if it's one of them, is marked read as usual and the rest share one alert.
+   */
+  public static void updateNotification(@NonNull Context context, @NonNull Set<Long> threadIds) {
+    long alertThreadId = -1;
+
+    for (long threadId : threadIds) {
+      if (threadId == visibleThread) updateNotification(context, threadId);
+      else                           alertThreadId = threadId;
+    }
+
+    if (alertThreadId != -1) {
+      updateNotification(context, alertThreadId);
+    }
+  }
+
   public static void updateNotification(@NonNull  Context context,
                                         long      threadId,
                                         boolean   signal)
@@ -16,6 +16,7 @@
  */
 package org.thoughtcrime.securesms.providers;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -23,18 +24,27 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.MemoryFile;
 import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.storage.StorageManager;
 import android.provider.OpenableColumns;
 import android.support.annotation.NonNull;
+import android.system.ErrnoException;
+import android.system.OsConstants;
 import org.thoughtcrime.securesms.logging.Log;
 
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.crypto.RandomAccessDecryptor;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.mms.PartUriParser;
 import org.thoughtcrime.securesms.service.KeyCachingService;
 import org.thoughtcrime.securesms.util.MemoryFileUtil;
+import org.thoughtcrime.securesms.util.ServiceUtil;
 import org.thoughtcrime.securesms.util.Util;
 
 import java.io.FileNotFoundException;
@@ -52,6 +62,8 @@ public class PartProvider extends ContentProvider {
 
   private static final UriMatcher uriMatcher;
 
+  private static Handler proxyHandler;
+
   static {
     uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     uriMatcher.addURI("org.thoughtcrime.provider.securesms", "part/*/#", SINGLE_ROW);
@@ -158,6 +170,10 @@ public class PartProvider extends ContentProvider {
   }
 
   private ParcelFileDescriptor getParcelStreamForAttachment(AttachmentId attachmentId) throws IOException {
+    if (Build.VERSION.SDK_INT >= 26) {
+      return getProxyFileDescriptorForAttachment(attachmentId);
+    }
+
     long       plaintextLength = Util.getStreamLength(DatabaseFactory.getAttachmentDatabase(getContext()).getAttachmentStream(attachmentId, 0));
     MemoryFile memoryFile      = new MemoryFile(attachmentId.toString(), Util.toIntExact(plaintextLength));
 
@@ -170,4 +186,83 @@ public class PartProvider extends ContentProvider {
 
     return MemoryFileUtil.getParcelFileDescriptor(memoryFile);
   }
+
+  /**
+   * Serves the attachment through a seekable proxy descriptor, decrypting only the ranges the
+   * reader asks for instead of the whole file up front.
+   */
+  @TargetApi(26)
+  private ParcelFileDescriptor getProxyFileDescriptorForAttachment(AttachmentId attachmentId) throws IOException {
+    RandomAccessDecryptor decryptor = DatabaseFactory.getAttachmentDatabase(getContext()).getRandomAccessDecryptor(attachmentId);
+
+    if (decryptor == null) {
+      throw new FileNotFoundException("No data for " + attachmentId);
+    }
+
+    StorageManager storageManager = ServiceUtil.getStorageManager(getContext());
+
+    try {
+      return storageManager.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY,
+                                                    new DecryptingProxyCallback(decryptor),
+                                                    getProxyHandler());
+    } catch (IOException e) {
+      Util.close(decryptor);
+      throw e;
+    }
+  }
+
+  private static synchronized @NonNull Handler getProxyHandler() {
+    if (proxyHandler == null) {
+      HandlerThread handlerThread = new HandlerThread("PartProvider");
+      handlerThread.start();
+
+      proxyHandler = new Handler(handlerThread.getLooper());
+    }
+
+    return proxyHandler;
+  }
+
+  @TargetApi(26)
+  private static class DecryptingProxyCallback extends ProxyFileDescriptorCallback {
+
+    private final RandomAccessDecryptor decryptor;
+
+    private DecryptingProxyCallback(@NonNull RandomAccessDecryptor decryptor) {
+      this.decryptor = decryptor;
+    }
+
+    @Override
+    public long onGetSize() throws ErrnoException {
+      try {
+        return decryptor.getLength();
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        throw new ErrnoException("onGetSize", OsConstants.EIO);
+      }
+    }
+
+    @Override
+    public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+      try {
+        int total = 0;
+
+        while (total < size) {
+          int read = decryptor.read(offset + total, data, total, size - total);
+
+          if (read == -1) break;
+          total += read;
+        }
+
+        return total;
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        throw new ErrnoException("onRead", OsConstants.EIO);
+      }
+    }
+
+    @Override
+    public void onRelease() {
+      Util.close(decryptor);
+    }
+  }
 }
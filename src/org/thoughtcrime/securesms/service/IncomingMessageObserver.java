@@ -16,6 +16,7 @@ import org.thoughtcrime.securesms.logging.Log;
 
 import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.jobmanager.requirements.NetworkRequirement;
 import org.thoughtcrime.securesms.jobmanager.requirements.NetworkRequirementProvider;
@@ -27,7 +28,11 @@ import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.libsignal.InvalidVersionException;
 import org.whispersystems.signalservice.api.SignalServiceMessagePipe;
 import org.whispersystems.signalservice.api.SignalServiceMessageReceiver;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -39,6 +44,8 @@ public class IncomingMessageObserver implements InjectableType, RequirementListe
 
   public  static final  int FOREGROUND_ID            = 313399;
   private static final long REQUEST_TIMEOUT_MINUTES  = 1;
+  private static final long DRAIN_TIMEOUT_MILLIS     = 50;
+  private static final int  MAX_BATCH_SIZE           = 100;
 
   private static SignalServiceMessagePipe pipe             = null;
   private static SignalServiceMessagePipe unidentifiedPipe = null;
@@ -154,17 +161,20 @@ public class IncomingMessageObserver implements InjectableType, RequirementListe
 
         try {
           while (isConnectionNecessary()) {
+            List<Long> batch = new LinkedList<>();
+
             try {
               Log.i(TAG, "Reading message...");
-              localPipe.read(REQUEST_TIMEOUT_MINUTES, TimeUnit.MINUTES,
-                             envelope -> {
-                               Log.i(TAG, "Retrieved envelope! " + String.valueOf(envelope.getSource()));
-                               new PushContentReceiveJob(context).processEnvelope(envelope);
-                             });
+              localPipe.read(REQUEST_TIMEOUT_MINUTES, TimeUnit.MINUTES, envelope -> batch.add(storeEnvelope(envelope)));
+              drainPipe(localPipe, batch);
             } catch (TimeoutException e) {
               Log.w(TAG, "Application level read timeout...");
             } catch (InvalidVersionException e) {
               Log.w(TAG, e);
+            } finally {
+              if (!batch.isEmpty()) {
+                new PushContentReceiveJob(context).processEnvelopes(batch);
+              }
             }
           }
         } catch (Throwable e) {
@@ -178,6 +188,27 @@ public class IncomingMessageObserver implements InjectableType, RequirementListe
       }
     }
 
+    /**
+     * Reads whatever is already queued on the pipe, up to the batch size, so that a backlog of
+     * envelopes can be processed together. Each envelope is stored before it's acknowledged.
+     */
+    private void drainPipe(@NonNull SignalServiceMessagePipe pipe, @NonNull List<Long> batch)
+        throws IOException, InvalidVersionException
+    {
+      try {
+        while (batch.size() < MAX_BATCH_SIZE) {
+          pipe.read(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, envelope -> batch.add(storeEnvelope(envelope)));
+        }
+      } catch (TimeoutException e) {
+        Log.i(TAG, "Drained " + batch.size() + " envelopes.");
+      }
+    }
+
+    private long storeEnvelope(@NonNull SignalServiceEnvelope envelope) {
+      Log.i(TAG, "Retrieved envelope! " + String.valueOf(envelope.getSource()));
+      return DatabaseFactory.getPushDatabase(context).insert(envelope);
+    }
+
     @Override
     public void uncaughtException(Thread t, Throwable e) {
       Log.w(TAG, "*** Uncaught exception!");
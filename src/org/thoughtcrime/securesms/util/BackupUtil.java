@@ -12,14 +12,23 @@ import org.whispersystems.libsignal.util.ByteUtil;
 
 import java.io.File;
 import java.security.SecureRandom;
-import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class BackupUtil {
 
   private static final String TAG = BackupUtil.class.getSimpleName();
 
+  private static final String BACKUP_SUFFIX = "backup";
+  private static final String DELTA_SUFFIX  = "delta";
+
   public static @NonNull String getLastBackupTime(@NonNull Context context, @NonNull Locale locale) {
     try {
       BackupInfo backup = getLatestBackup();
@@ -32,20 +41,20 @@ public class BackupUtil {
     }
   }
 
+  /**
+   * @return The most recent backup, along with the deltas that extend it, or null if there is none.
+   */
   public static @Nullable BackupInfo getLatestBackup() throws NoExternalStorageException {
-    File       backupDirectory = StorageUtil.getBackupDirectory();
-    File[]     backups         = backupDirectory.listFiles();
-    BackupInfo latestBackup    = null;
-
-    for (File backup : backups) {
-      long backupTimestamp = getBackupTimestamp(backup);
-
-      if (latestBackup == null || (backupTimestamp != -1 && backupTimestamp > latestBackup.getTimestamp())) {
-        latestBackup = new BackupInfo(backupTimestamp, backup.length(), backup);
-      }
-    }
+    List<BackupInfo> backups = getBackups(StorageUtil.getBackupDirectory());
+    return backups.isEmpty() ? null : backups.get(0);
+  }
 
-    return latestBackup;
+  /**
+   * @return The file the delta with the given sequence number for a backup is written to.
+   */
+  public static @NonNull File getDeltaFile(@NonNull File backup, int sequence) {
+    String prefix = backup.getName().split("[.]")[0];
+    return new File(backup.getParentFile(), prefix + "." + sequence + "." + DELTA_SUFFIX);
   }
 
   @SuppressWarnings("ResultOfMethodCallIgnored")
@@ -62,29 +71,31 @@ public class BackupUtil {
     }
   }
 
+  /**
+   * Keeps the two most recent backups and their deltas, and deletes everything else in the backup
+   * directory.
+   */
   public static void deleteOldBackups() {
     try {
-      File   backupDirectory = StorageUtil.getBackupDirectory();
-      File[] backups         = backupDirectory.listFiles();
+      File             backupDirectory = StorageUtil.getBackupDirectory();
+      File[]           files           = backupDirectory.listFiles();
+      List<BackupInfo> backups         = getBackups(backupDirectory);
+      Set<File>        keep            = new HashSet<>();
 
-      if (backups != null && backups.length > 2) {
-        Arrays.sort(backups, (left, right) -> {
-          long leftTimestamp  = getBackupTimestamp(left);
-          long rightTimestamp = getBackupTimestamp(right);
+      if (files == null) return;
 
-          if      (leftTimestamp == -1 && rightTimestamp == -1) return 0;
-          else if (leftTimestamp == -1)                         return 1;
-          else if (rightTimestamp == -1)                        return -1;
+      for (BackupInfo backup : backups.subList(0, Math.min(2, backups.size()))) {
+        keep.add(backup.getFile());
+        keep.addAll(backup.getDeltas());
+      }
 
-          return (int)(rightTimestamp - leftTimestamp);
-        });
+      for (File file : files) {
+        if (!file.isFile() || keep.contains(file)) continue;
 
-        for (int i=2;i<backups.length;i++) {
-          Log.i(TAG, "Deleting: " + backups[i].getAbsolutePath());
+        Log.i(TAG, "Deleting: " + file.getAbsolutePath());
 
-          if (!backups[i].delete()) {
-            Log.w(TAG, "Delete failed: " + backups[i].getAbsolutePath());
-          }
+        if (!file.delete()) {
+          Log.w(TAG, "Delete failed: " + file.getAbsolutePath());
         }
       }
     } catch (NoExternalStorageException e) {
@@ -105,6 +116,69 @@ public class BackupUtil {
     return result;
   }
 
+  /**
+   * @return The backups in the directory, newest first. Each includes its deltas, up to the first
+   *         one that is missing from the sequence.
+   */
+  private static @NonNull List<BackupInfo> getBackups(@NonNull File directory) {
+    File[]                          files  = directory.listFiles();
+    Map<String, File>               bases  = new HashMap<>();
+    Map<String, Map<Integer, File>> deltas = new HashMap<>();
+
+    if (files == null) return new LinkedList<>();
+
+    for (File file : files) {
+      String[] parts = file.getName().split("[.]");
+
+      if (parts.length == 2 && BACKUP_SUFFIX.equals(parts[1])) {
+        bases.put(parts[0], file);
+      } else if (parts.length == 3 && DELTA_SUFFIX.equals(parts[2])) {
+        try {
+          Map<Integer, File> sequence = deltas.get(parts[0]);
+
+          if (sequence == null) {
+            sequence = new HashMap<>();
+            deltas.put(parts[0], sequence);
+          }
+
+          sequence.put(Integer.parseInt(parts[1]), file);
+        } catch (NumberFormatException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+
+    List<BackupInfo> backups = new LinkedList<>();
+
+    for (Map.Entry<String, File> base : bases.entrySet()) {
+      long timestamp = getBackupTimestamp(base.getValue());
+
+      if (timestamp == -1) continue;
+
+      Map<Integer, File> sequence   = deltas.get(base.getKey());
+      List<File>         baseDeltas = new LinkedList<>();
+      long               size       = base.getValue().length();
+
+      for (int i = 1; sequence != null && sequence.containsKey(i); i++) {
+        File delta = sequence.get(i);
+
+        baseDeltas.add(delta);
+        size      += delta.length();
+        timestamp  = Math.max(timestamp, delta.lastModified());
+      }
+
+      backups.add(new BackupInfo(timestamp, size, base.getValue(), baseDeltas));
+    }
+
+    Collections.sort(backups, (left, right) -> {
+      if      (left.getTimestamp() > right.getTimestamp()) return -1;
+      else if (left.getTimestamp() < right.getTimestamp()) return 1;
+      else                                                 return 0;
+    });
+
+    return backups;
+  }
+
   private static long getBackupTimestamp(File backup) {
     String   name  = backup.getName();
     String[] prefixSuffix = name.split("[.]");
@@ -135,14 +209,16 @@ public class BackupUtil {
 
   public static class BackupInfo {
 
-    private final long timestamp;
-    private final long size;
-    private final File file;
+    private final long       timestamp;
+    private final long       size;
+    private final File       file;
+    private final List<File> deltas;
 
-    BackupInfo(long timestamp, long size, File file) {
+    BackupInfo(long timestamp, long size, File file, List<File> deltas) {
       this.timestamp = timestamp;
       this.size      = size;
       this.file      = file;
+      this.deltas    = deltas;
     }
 
     public long getTimestamp() {
@@ -156,5 +232,12 @@ public class BackupUtil {
     public File getFile() {
       return file;
     }
+
+    /**
+     * @return The deltas to apply on top of {@link #getFile()}, in order.
+     */
+    public List<File> getDeltas() {
+      return deltas;
+    }
   }
 }
@@ -10,6 +10,7 @@ import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.support.annotation.*;
 import android.support.annotation.WorkerThread;
 import android.support.media.ExifInterface;
@@ -19,8 +20,10 @@ import android.util.Pair;
 import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.bumptech.glide.load.resource.bitmap.DownsampleStrategy;
 
+import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader.DecryptableUri;
 import org.thoughtcrime.securesms.mms.GlideApp;
 import org.thoughtcrime.securesms.mms.MediaConstraints;
+import org.thoughtcrime.securesms.mms.PartAuthority;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
@@ -42,7 +45,7 @@ public class BitmapUtil {
   private static final int MAX_COMPRESSION_QUALITY          = 90;
   private static final int MIN_COMPRESSION_QUALITY          = 45;
   private static final int MAX_COMPRESSION_ATTEMPTS         = 5;
-  private static final int MIN_COMPRESSION_QUALITY_DECREASE = 5;
+  private static final int INITIAL_OUTPUT_BUFFER_SIZE       = 64 * 1024;
 
   @WorkerThread
   public static <T> ScaleResult createScaledBytes(Context context, T model, MediaConstraints constraints)
@@ -58,11 +61,102 @@ public class BitmapUtil {
   public static <T> ScaleResult createScaledBytes(Context context, T model, int maxImageWidth, int maxImageHeight, int maxImageSize)
       throws BitmapDecodingException
   {
+    long   startTime    = System.currentTimeMillis();
+    Bitmap scaledBitmap = decodeScaledBitmap(context, model, maxImageWidth, maxImageHeight);
+
+    Log.i(TAG, "Initial scaled bitmap has size of " + scaledBitmap.getByteCount() + " bytes.");
+
     try {
-      int    quality  = MAX_COMPRESSION_QUALITY;
-      int    attempts = 0;
-      byte[] bytes;
+      ByteArrayOutputStream best     = new ByteArrayOutputStream(INITIAL_OUTPUT_BUFFER_SIZE);
+      ByteArrayOutputStream scratch  = new ByteArrayOutputStream(INITIAL_OUTPUT_BUFFER_SIZE);
+      int                   quality  = MAX_COMPRESSION_QUALITY;
+      int                   attempts = 1;
+
+      scaledBitmap.compress(CompressFormat.JPEG, quality, best);
+      Log.d(TAG, "iteration with quality " + quality + " size " + (best.size() / 1024) + "kb");
+
+      if (best.size() > maxImageSize) {
+        int low       = MIN_COMPRESSION_QUALITY;
+        int high      = MAX_COMPRESSION_QUALITY - 1;
+        int candidate = (int) Math.floor(MAX_COMPRESSION_QUALITY * Math.sqrt((double) maxImageSize / best.size()));
+
+        quality = -1;
+
+        while (low <= high && attempts < MAX_COMPRESSION_ATTEMPTS) {
+          candidate = Math.max(low, Math.min(high, candidate));
+
+          scratch.reset();
+          scaledBitmap.compress(CompressFormat.JPEG, candidate, scratch);
+          attempts++;
+
+          Log.d(TAG, "iteration with quality " + candidate + " size " + (scratch.size() / 1024) + "kb");
+
+          if (scratch.size() <= maxImageSize) {
+            ByteArrayOutputStream swap = best;
+            best    = scratch;
+            scratch = swap;
+            quality = candidate;
+            low     = candidate + 1;
+          } else {
+            high = candidate - 1;
+          }
+
+          candidate = (low + high) / 2;
+        }
+
+        if (quality == -1 && high >= MIN_COMPRESSION_QUALITY) {
+          scratch.reset();
+          scaledBitmap.compress(CompressFormat.JPEG, MIN_COMPRESSION_QUALITY, scratch);
+          attempts++;
+
+          Log.d(TAG, "final iteration with quality " + MIN_COMPRESSION_QUALITY + " size " + (scratch.size() / 1024) + "kb");
+
+          if (scratch.size() <= maxImageSize) {
+            best    = scratch;
+            quality = MIN_COMPRESSION_QUALITY;
+          }
+        }
+
+        if (quality == -1) {
+          throw new BitmapDecodingException("Unable to scale image below: " + maxImageSize);
+        }
+      }
+
+      if (best.size() <= 0) {
+        throw new BitmapDecodingException("Decoding failed. Bitmap has a length of " + best.size() + " bytes.");
+      }
+
+      Log.i(TAG, "createScaledBytes(" + model.toString() + ") -> quality " + quality + ", " + attempts + " attempt(s), " + (System.currentTimeMillis() - startTime) + " ms");
+
+      return new ScaleResult(best.toByteArray(), scaledBitmap.getWidth(), scaledBitmap.getHeight());
+    } finally {
+      scaledBitmap.recycle();
+    }
+  }
+
+  /**
+   * Decodes straight to the target size in strips when the model is a uri we can read, and falls
+   * back to a full Glide decode otherwise.
+   */
+  private static @NonNull <T> Bitmap decodeScaledBitmap(Context context, T model, int maxImageWidth, int maxImageHeight)
+      throws BitmapDecodingException
+  {
+    final Uri uri;
+
+    if      (model instanceof DecryptableUri) uri = ((DecryptableUri) model).uri;
+    else if (model instanceof Uri)            uri = (Uri) model;
+    else                                      uri = null;
 
+    if (uri != null) {
+      try {
+        Bitmap bitmap = TiledBitmapDecoder.decode(() -> PartAuthority.getAttachmentStream(context, uri), maxImageWidth, maxImageHeight);
+        if (bitmap != null) return bitmap;
+      } catch (IOException e) {
+        throw new BitmapDecodingException(e);
+      }
+    }
+
+    try {
       Bitmap scaledBitmap = GlideApp.with(context.getApplicationContext())
                                     .asBitmap()
                                     .load(model)
@@ -76,39 +170,7 @@ public class BitmapUtil {
         throw new BitmapDecodingException("Unable to decode image");
       }
 
-      Log.i(TAG, "Initial scaled bitmap has size of " + scaledBitmap.getByteCount() + " bytes.");
-
-      try {
-        do {
-          ByteArrayOutputStream baos = new ByteArrayOutputStream();
-          scaledBitmap.compress(CompressFormat.JPEG, quality, baos);
-          bytes = baos.toByteArray();
-
-          Log.d(TAG, "iteration with quality " + quality + " size " + (bytes.length / 1024) + "kb");
-          if (quality == MIN_COMPRESSION_QUALITY) break;
-
-          int nextQuality = (int)Math.floor(quality * Math.sqrt((double)maxImageSize / bytes.length));
-          if (quality - nextQuality < MIN_COMPRESSION_QUALITY_DECREASE) {
-            nextQuality = quality - MIN_COMPRESSION_QUALITY_DECREASE;
-          }
-          quality = Math.max(nextQuality, MIN_COMPRESSION_QUALITY);
-        }
-        while (bytes.length > maxImageSize && attempts++ < MAX_COMPRESSION_ATTEMPTS);
-
-        if (bytes.length > maxImageSize) {
-          throw new BitmapDecodingException("Unable to scale image below: " + bytes.length);
-        }
-
-        if (bytes.length <= 0) {
-          throw new BitmapDecodingException("Decoding failed. Bitmap has a length of " + bytes.length + " bytes.");
-        }
-
-        Log.i(TAG, "createScaledBytes(" + model.toString() + ") -> quality " + Math.min(quality, MAX_COMPRESSION_QUALITY) + ", " + attempts + " attempt(s)");
-
-        return new ScaleResult(bytes, scaledBitmap.getWidth(), scaledBitmap.getHeight());
-      } finally {
-        if (scaledBitmap != null) scaledBitmap.recycle();
-      }
+      return scaledBitmap;
     } catch (InterruptedException | ExecutionException e) {
       throw new BitmapDecodingException(e);
     }
@@ -8,6 +8,7 @@ import android.media.AudioManager;
 import android.net.ConnectivityManager;
 import android.os.PowerManager;
 import android.os.Vibrator;
+import android.os.storage.StorageManager;
 import android.telephony.TelephonyManager;
 import android.view.WindowManager;
 import android.view.inputmethod.InputMethodManager;
@@ -48,4 +49,8 @@ public class ServiceUtil {
   public static Vibrator getVibrator(Context context) {
     return  (Vibrator)context.getSystemService(Context.VIBRATOR_SERVICE);
   }
+
+  public static StorageManager getStorageManager(Context context) {
+    return (StorageManager)context.getSystemService(Context.STORAGE_SERVICE);
+  }
 }
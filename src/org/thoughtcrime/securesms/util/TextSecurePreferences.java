@@ -143,6 +143,13 @@ public class TextSecurePreferences {
   private static final String BACKUP_TIME       = "pref_backup_next_time";
   public  static final String BACKUP_NOW        = "pref_backup_create";
 
+  private static final String BACKUP_CHAIN_ID       = "pref_backup_chain_id";
+  private static final String BACKUP_CHAIN_BASE     = "pref_backup_chain_base";
+  private static final String BACKUP_CHAIN_SEQUENCE = "pref_backup_chain_sequence";
+  private static final String BACKUP_CHAIN_VERSION  = "pref_backup_chain_database_version";
+
+  private static final String BACKUP_KDF_PARALLELISM = "pref_backup_kdf_parallelism";
+
   public static final String SCREEN_LOCK         = "pref_android_screen_lock";
   public static final String SCREEN_LOCK_TIMEOUT = "pref_android_screen_lock_timeout";
 
@@ -245,6 +252,46 @@ public class TextSecurePreferences {
     return getLongPreference(context, BACKUP_TIME, -1);
   }
 
+  public static void setBackupChainId(@NonNull Context context, @Nullable String chainId) {
+    setStringPreference(context, BACKUP_CHAIN_ID, chainId);
+  }
+
+  public static @Nullable String getBackupChainId(@NonNull Context context) {
+    return getStringPreference(context, BACKUP_CHAIN_ID, null);
+  }
+
+  public static void setBackupChainBase(@NonNull Context context, @Nullable String fileName) {
+    setStringPreference(context, BACKUP_CHAIN_BASE, fileName);
+  }
+
+  public static @Nullable String getBackupChainBase(@NonNull Context context) {
+    return getStringPreference(context, BACKUP_CHAIN_BASE, null);
+  }
+
+  public static void setBackupChainSequence(@NonNull Context context, int sequence) {
+    setIntegerPrefrence(context, BACKUP_CHAIN_SEQUENCE, sequence);
+  }
+
+  public static int getBackupChainSequence(@NonNull Context context) {
+    return getIntegerPreference(context, BACKUP_CHAIN_SEQUENCE, -1);
+  }
+
+  public static void setBackupChainDatabaseVersion(@NonNull Context context, int version) {
+    setIntegerPrefrence(context, BACKUP_CHAIN_VERSION, version);
+  }
+
+  public static int getBackupChainDatabaseVersion(@NonNull Context context) {
+    return getIntegerPreference(context, BACKUP_CHAIN_VERSION, -1);
+  }
+
+  public static void setBackupKdfParallelism(@NonNull Context context, int parallelism) {
+    setIntegerPrefrence(context, BACKUP_KDF_PARALLELISM, parallelism);
+  }
+
+  public static int getBackupKdfParallelism(@NonNull Context context) {
+    return getIntegerPreference(context, BACKUP_KDF_PARALLELISM, -1);
+  }
+
   public static int getNextPreKeyId(@NonNull Context context) {
     return getIntegerPreference(context, NEXT_PRE_KEY_ID, new SecureRandom().nextInt(Medium.MAX_VALUE));
   }
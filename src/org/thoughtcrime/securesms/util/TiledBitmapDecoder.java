@@ -0,0 +1,211 @@
+package org.thoughtcrime.securesms.util;
+
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.media.ExifInterface;
+
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes an encoded image straight to a bounded size. The source is decoded in horizontal strips
+ * with the largest sample size that still covers the target, and each strip is drawn into the
+ * output as it's decoded, so the full-resolution image is never held in memory. Neither is the
+ * encoded image, which is streamed from the source each time it's read.
+ *
+ * EXIF orientation is applied while drawing.
+ */
+final class TiledBitmapDecoder {
+
+  private static final String TAG = TiledBitmapDecoder.class.getSimpleName();
+
+  private static final int MAX_STRIP_PIXELS   = 1024 * 1024;
+  private static final int HEADER_BUFFER_SIZE = 8 * 1024;
+  private static final int MAX_HEADER_SIZE    = 256 * 1024;
+
+  /**
+   * Opens a new stream over the encoded image each time it's called, so the image can be read more
+   * than once without holding a copy of it in memory.
+   */
+  interface StreamSource {
+    @NonNull InputStream open() throws IOException;
+  }
+
+  private TiledBitmapDecoder() {}
+
+  /**
+   * @return The scaled bitmap, or null if the format isn't supported by region decoding.
+   */
+  static @Nullable Bitmap decode(@NonNull StreamSource source, int maxWidth, int maxHeight)
+      throws BitmapDecodingException, IOException
+  {
+    BitmapFactory.Options bounds = new BitmapFactory.Options();
+    bounds.inJustDecodeBounds = true;
+
+    int orientation = readHeader(source, bounds);
+    int width       = bounds.outWidth;
+    int height      = bounds.outHeight;
+
+    if (width <= 0 || height <= 0) {
+      throw new BitmapDecodingException("Failed to decode image dimensions: " + width + ", " + height);
+    }
+
+    boolean transposed = isTransposed(orientation);
+    int     outWidth   = transposed ? height : width;
+    int     outHeight  = transposed ? width  : height;
+    float   scale      = Math.min(1f, Math.min((float) maxWidth / outWidth, (float) maxHeight / outHeight));
+
+    int targetWidth  = Math.max(1, Math.round(outWidth * scale));
+    int targetHeight = Math.max(1, Math.round(outHeight * scale));
+    int sourceWidth  = transposed ? targetHeight : targetWidth;
+    int sourceHeight = transposed ? targetWidth  : targetHeight;
+    int sampleSize   = 1;
+
+    while (width / (sampleSize * 2) >= sourceWidth && height / (sampleSize * 2) >= sourceHeight) {
+      sampleSize *= 2;
+    }
+
+    BitmapRegionDecoder decoder;
+
+    try (InputStream in = source.open()) {
+      decoder = BitmapRegionDecoder.newInstance(in, false);
+    } catch (IOException e) {
+      Log.w(TAG, "Region decoding not supported for this image.", e);
+      return null;
+    }
+
+    try {
+      Bitmap output = Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+      Canvas canvas = new Canvas(output);
+      Paint  paint  = new Paint(Paint.FILTER_BITMAP_FLAG);
+      Matrix matrix = new Matrix();
+
+      Matrix orientationMatrix = getOrientationMatrix(orientation, sourceWidth, sourceHeight);
+
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inSampleSize      = sampleSize;
+      options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+      int stripHeight = Math.max(sampleSize, MAX_STRIP_PIXELS / Math.max(1, width / sampleSize) * sampleSize);
+
+      for (int top = 0; top < height; top += stripHeight) {
+        Rect   region = new Rect(0, top, width, Math.min(height, top + stripHeight));
+        Bitmap strip  = decoder.decodeRegion(region, options);
+
+        if (strip == null) {
+          output.recycle();
+          throw new BitmapDecodingException("Failed to decode region " + region);
+        }
+
+        matrix.setScale((float) region.width() / strip.getWidth(), (float) region.height() / strip.getHeight());
+        matrix.postTranslate(0, top);
+        matrix.postScale((float) sourceWidth / width, (float) sourceHeight / height);
+        matrix.postConcat(orientationMatrix);
+
+        canvas.drawBitmap(strip, matrix, paint);
+        strip.recycle();
+      }
+
+      Log.i(TAG, "Decoded " + width + "x" + height + " image to " + targetWidth + "x" + targetHeight + " with sample size " + sampleSize);
+
+      return output;
+    } finally {
+      decoder.recycle();
+    }
+  }
+
+  /**
+   * Reads the EXIF orientation and the bounds from a single stream. The orientation is read first
+   * from a marked stream, which is then reset for the bounds, falling back to a fresh stream if the
+   * EXIF data ran past the mark.
+   *
+   * @return The EXIF orientation.
+   */
+  private static int readHeader(@NonNull StreamSource source, @NonNull BitmapFactory.Options bounds) throws IOException {
+    InputStream in          = new BufferedInputStream(source.open(), HEADER_BUFFER_SIZE);
+    int         orientation = ExifInterface.ORIENTATION_NORMAL;
+
+    try {
+      in.mark(MAX_HEADER_SIZE);
+
+      try {
+        orientation = new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to read orientation.", e);
+      }
+
+      try {
+        in.reset();
+      } catch (IOException e) {
+        Log.w(TAG, "Header ran past the mark, reopening stream.");
+        in.close();
+        in = source.open();
+      }
+
+      BitmapFactory.decodeStream(in, null, bounds);
+    } finally {
+      in.close();
+    }
+
+    return orientation;
+  }
+
+  private static boolean isTransposed(int orientation) {
+    return orientation == ExifInterface.ORIENTATION_ROTATE_90  ||
+           orientation == ExifInterface.ORIENTATION_ROTATE_270 ||
+           orientation == ExifInterface.ORIENTATION_TRANSPOSE  ||
+           orientation == ExifInterface.ORIENTATION_TRANSVERSE;
+  }
+
+  /**
+   * @return A matrix that maps an unoriented image of the given size onto its oriented bounds.
+   */
+  private static @NonNull Matrix getOrientationMatrix(int orientation, int width, int height) {
+    Matrix matrix = new Matrix();
+
+    switch (orientation) {
+      case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+        matrix.postScale(-1, 1);
+        matrix.postTranslate(width, 0);
+        break;
+      case ExifInterface.ORIENTATION_ROTATE_180:
+        matrix.postRotate(180);
+        matrix.postTranslate(width, height);
+        break;
+      case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+        matrix.postScale(1, -1);
+        matrix.postTranslate(0, height);
+        break;
+      case ExifInterface.ORIENTATION_TRANSPOSE:
+        matrix.postRotate(90);
+        matrix.postScale(-1, 1);
+        break;
+      case ExifInterface.ORIENTATION_ROTATE_90:
+        matrix.postRotate(90);
+        matrix.postTranslate(height, 0);
+        break;
+      case ExifInterface.ORIENTATION_TRANSVERSE:
+        matrix.postRotate(270);
+        matrix.postScale(-1, 1);
+        matrix.postTranslate(height, width);
+        break;
+      case ExifInterface.ORIENTATION_ROTATE_270:
+        matrix.postRotate(270);
+        matrix.postTranslate(0, width);
+        break;
+    }
+
+    return matrix;
+  }
+}
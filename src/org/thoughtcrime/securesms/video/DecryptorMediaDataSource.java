@@ -0,0 +1,39 @@
+package org.thoughtcrime.securesms.video;
+
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.crypto.RandomAccessDecryptor;
+
+import java.io.IOException;
+
+/**
+ * A {@link MediaDataSource} over an already opened {@link RandomAccessDecryptor}, which it closes.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class DecryptorMediaDataSource extends MediaDataSource {
+
+  private final RandomAccessDecryptor decryptor;
+
+  public DecryptorMediaDataSource(@NonNull RandomAccessDecryptor decryptor) {
+    this.decryptor = decryptor;
+  }
+
+  @Override
+  public int readAt(long position, byte[] buffer, int offset, int length) throws IOException {
+    return decryptor.read(position, buffer, offset, length);
+  }
+
+  @Override
+  public long getSize() {
+    return decryptor.getLength();
+  }
+
+  @Override
+  public void close() throws IOException {
+    decryptor.close();
+  }
+}
@@ -8,13 +8,14 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
-import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
-import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
-import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.crypto.ChunkedPartCipher;
+import org.thoughtcrime.securesms.crypto.ChunkedRandomAccessDecryptor;
+import org.thoughtcrime.securesms.crypto.ClassicRandomAccessDecryptor;
+import org.thoughtcrime.securesms.crypto.ModernRandomAccessDecryptor;
+import org.thoughtcrime.securesms.crypto.RandomAccessDecryptor;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 
 @TargetApi(Build.VERSION_CODES.M)
 public class EncryptedMediaDataSource extends MediaDataSource {
@@ -24,6 +25,8 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   private final byte[]           random;
   private final long             length;
 
+  private RandomAccessDecryptor decryptor;
+
   public EncryptedMediaDataSource(@NonNull AttachmentSecret attachmentSecret, @NonNull File mediaFile, @Nullable byte[] random, long length) {
     this.attachmentSecret = attachmentSecret;
     this.mediaFile        = mediaFile;
@@ -33,37 +36,7 @@ public class EncryptedMediaDataSource extends MediaDataSource {
 
   @Override
   public int readAt(long position, byte[] bytes, int offset, int length) throws IOException {
-    if (random == null) return readAtClassic(position, bytes, offset, length);
-    else                return readAtModern(position, bytes, offset, length);
-  }
-
-  private int readAtClassic(long position, byte[] bytes, int offset, int length) throws IOException {
-    InputStream inputStream     = ClassicDecryptingPartInputStream.createFor(attachmentSecret, mediaFile);
-    byte[]      buffer          = new byte[4096];
-    long        headerRemaining = position;
-
-    while (headerRemaining > 0) {
-      int read = inputStream.read(buffer, 0, Util.toIntExact(Math.min((long)buffer.length, headerRemaining)));
-
-      if (read == -1) return -1;
-
-      headerRemaining -= read;
-    }
-
-    int returnValue = inputStream.read(bytes, offset, length);
-    inputStream.close();
-    return returnValue;
-  }
-
-  private int readAtModern(long position, byte[] bytes, int offset, int length) throws IOException {
-    assert(random != null);
-
-    InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, mediaFile, position);
-    int         returnValue = inputStream.read(bytes, offset, length);
-
-    inputStream.close();
-
-    return returnValue;
+    return getDecryptor().read(position, bytes, offset, length);
   }
 
   @Override
@@ -72,7 +45,20 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   }
 
   @Override
-  public void close() throws IOException {
+  public synchronized void close() throws IOException {
+    if (decryptor != null) {
+      decryptor.close();
+      decryptor = null;
+    }
+  }
+
+  private synchronized @NonNull RandomAccessDecryptor getDecryptor() throws IOException {
+    if (decryptor == null) {
+      if      (random == null)                     decryptor = new ClassicRandomAccessDecryptor(attachmentSecret, mediaFile);
+      else if (ChunkedPartCipher.isChunked(random)) decryptor = new ChunkedRandomAccessDecryptor(attachmentSecret, random, mediaFile);
+      else                                          decryptor = new ModernRandomAccessDecryptor(attachmentSecret, random, mediaFile);
+    }
 
+    return decryptor;
   }
 }
@@ -0,0 +1,110 @@
+package org.thoughtcrime.securesms.video.transcode;
+
+
+import android.annotation.TargetApi;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.view.Surface;
+
+/**
+ * An EGL context and window surface wrapping an encoder's input {@link Surface}, so frames can be
+ * rendered into the encoder with GLES.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+final class InputSurface {
+
+  private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+  private final Surface surface;
+
+  private EGLDisplay display    = EGL14.EGL_NO_DISPLAY;
+  private EGLContext context    = EGL14.EGL_NO_CONTEXT;
+  private EGLSurface eglSurface = EGL14.EGL_NO_SURFACE;
+
+  InputSurface(@NonNull Surface surface) {
+    this.surface = surface;
+    this.display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+
+    if (display == EGL14.EGL_NO_DISPLAY) {
+      throw new IllegalStateException("Unable to get EGL14 display");
+    }
+
+    int[] version = new int[2];
+
+    if (!EGL14.eglInitialize(display, version, 0, version, 1)) {
+      display = EGL14.EGL_NO_DISPLAY;
+      throw new IllegalStateException("Unable to initialize EGL14");
+    }
+
+    int[] configAttributes = {
+        EGL14.EGL_RED_SIZE, 8,
+        EGL14.EGL_GREEN_SIZE, 8,
+        EGL14.EGL_BLUE_SIZE, 8,
+        EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+        EGL_RECORDABLE_ANDROID, 1,
+        EGL14.EGL_NONE
+    };
+
+    EGLConfig[] configs    = new EGLConfig[1];
+    int[]       numConfigs = new int[1];
+
+    if (!EGL14.eglChooseConfig(display, configAttributes, 0, configs, 0, configs.length, numConfigs, 0) || numConfigs[0] == 0) {
+      throw new IllegalStateException("Unable to find a recordable RGB888 EGL config");
+    }
+
+    int[] contextAttributes = { EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE };
+
+    this.context = EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+    checkEglError("eglCreateContext");
+
+    this.eglSurface = EGL14.eglCreateWindowSurface(display, configs[0], surface, new int[] { EGL14.EGL_NONE }, 0);
+    checkEglError("eglCreateWindowSurface");
+  }
+
+  void makeCurrent() {
+    if (!EGL14.eglMakeCurrent(display, eglSurface, eglSurface, context)) {
+      throw new IllegalStateException("eglMakeCurrent failed");
+    }
+  }
+
+  void swapBuffers() {
+    if (!EGL14.eglSwapBuffers(display, eglSurface)) {
+      throw new IllegalStateException("eglSwapBuffers failed");
+    }
+  }
+
+  void setPresentationTime(long nanoseconds) {
+    EGLExt.eglPresentationTimeANDROID(display, eglSurface, nanoseconds);
+    checkEglError("eglPresentationTimeANDROID");
+  }
+
+  void release() {
+    if (display != EGL14.EGL_NO_DISPLAY) {
+      EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+      EGL14.eglDestroySurface(display, eglSurface);
+      EGL14.eglDestroyContext(display, context);
+      EGL14.eglReleaseThread();
+      EGL14.eglTerminate(display);
+    }
+
+    surface.release();
+
+    display    = EGL14.EGL_NO_DISPLAY;
+    context    = EGL14.EGL_NO_CONTEXT;
+    eglSurface = EGL14.EGL_NO_SURFACE;
+  }
+
+  private static void checkEglError(@NonNull String operation) {
+    int error = EGL14.eglGetError();
+
+    if (error != EGL14.EGL_SUCCESS) {
+      throw new IllegalStateException(operation + ": EGL error: 0x" + Integer.toHexString(error));
+    }
+  }
+}
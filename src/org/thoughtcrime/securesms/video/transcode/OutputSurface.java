@@ -0,0 +1,84 @@
+package org.thoughtcrime.securesms.video.transcode;
+
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.view.Surface;
+
+/**
+ * A {@link Surface} for a decoder to render into, backed by a texture that
+ * {@link TextureRender} draws onto the current EGL surface. Must be created with the EGL context
+ * it will be drawn with current.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+final class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
+
+  private static final long FRAME_TIMEOUT_MS = 2500;
+
+  private final Object         frameLock = new Object();
+  private final TextureRender  textureRender;
+  private final SurfaceTexture surfaceTexture;
+  private final Surface        surface;
+
+  private boolean frameAvailable;
+
+  OutputSurface() {
+    this.textureRender  = new TextureRender();
+    this.surfaceTexture = new SurfaceTexture(textureRender.getTextureId());
+    this.surface        = new Surface(surfaceTexture);
+
+    this.surfaceTexture.setOnFrameAvailableListener(this);
+  }
+
+  @NonNull Surface getSurface() {
+    return surface;
+  }
+
+  /**
+   * Waits for the decoder's next frame and latches it into the texture.
+   */
+  void awaitNewImage() {
+    synchronized (frameLock) {
+      long deadline = System.currentTimeMillis() + FRAME_TIMEOUT_MS;
+
+      while (!frameAvailable) {
+        long remaining = deadline - System.currentTimeMillis();
+
+        if (remaining <= 0) {
+          throw new IllegalStateException("Timed out waiting for a decoded frame");
+        }
+
+        try {
+          frameLock.wait(remaining);
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+
+      frameAvailable = false;
+    }
+
+    TextureRender.checkGlError("before updateTexImage");
+    surfaceTexture.updateTexImage();
+  }
+
+  void drawImage() {
+    textureRender.drawFrame(surfaceTexture);
+  }
+
+  void release() {
+    surface.release();
+    surfaceTexture.release();
+    textureRender.release();
+  }
+
+  @Override
+  public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+    synchronized (frameLock) {
+      frameAvailable = true;
+      frameLock.notifyAll();
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package org.thoughtcrime.securesms.video.transcode;
+
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Draws a decoded frame from a {@link SurfaceTexture} onto the current EGL surface, scaling it to
+ * fill the viewport.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+final class TextureRender {
+
+  private static final String TAG = TextureRender.class.getSimpleName();
+
+  private static final int FLOAT_SIZE_BYTES         = 4;
+  private static final int VERTICES_STRIDE_BYTES    = 5 * FLOAT_SIZE_BYTES;
+  private static final int VERTICES_POSITION_OFFSET = 0;
+  private static final int VERTICES_UV_OFFSET       = 3;
+
+  private static final float[] VERTICES = {
+      // X, Y, Z, U, V
+      -1.0f, -1.0f, 0, 0.f, 0.f,
+       1.0f, -1.0f, 0, 1.f, 0.f,
+      -1.0f,  1.0f, 0, 0.f, 1.f,
+       1.0f,  1.0f, 0, 1.f, 1.f,
+  };
+
+  private static final String VERTEX_SHADER =
+      "uniform mat4 uMVPMatrix;\n" +
+      "uniform mat4 uSTMatrix;\n" +
+      "attribute vec4 aPosition;\n" +
+      "attribute vec4 aTextureCoord;\n" +
+      "varying vec2 vTextureCoord;\n" +
+      "void main() {\n" +
+      "  gl_Position = uMVPMatrix * aPosition;\n" +
+      "  vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n" +
+      "}\n";
+
+  private static final String FRAGMENT_SHADER =
+      "#extension GL_OES_EGL_image_external : require\n" +
+      "precision mediump float;\n" +
+      "varying vec2 vTextureCoord;\n" +
+      "uniform samplerExternalOES sTexture;\n" +
+      "void main() {\n" +
+      "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+      "}\n";
+
+  private final FloatBuffer vertices;
+  private final float[]     mvpMatrix = new float[16];
+  private final float[]     stMatrix  = new float[16];
+  private final int         program;
+  private final int         textureId;
+  private final int         mvpMatrixHandle;
+  private final int         stMatrixHandle;
+  private final int         positionHandle;
+  private final int         textureHandle;
+
+  TextureRender() {
+    this.vertices = ByteBuffer.allocateDirect(VERTICES.length * FLOAT_SIZE_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    this.vertices.put(VERTICES).position(0);
+
+    Matrix.setIdentityM(mvpMatrix, 0);
+    Matrix.setIdentityM(stMatrix, 0);
+
+    this.program         = createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+    this.positionHandle  = getAttribLocation("aPosition");
+    this.textureHandle   = getAttribLocation("aTextureCoord");
+    this.mvpMatrixHandle = getUniformLocation("uMVPMatrix");
+    this.stMatrixHandle  = getUniformLocation("uSTMatrix");
+
+    int[] textures = new int[1];
+    GLES20.glGenTextures(1, textures, 0);
+    this.textureId = textures[0];
+
+    GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+    GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    checkGlError("glTexParameter");
+  }
+
+  int getTextureId() {
+    return textureId;
+  }
+
+  void drawFrame(@NonNull SurfaceTexture surfaceTexture) {
+    checkGlError("drawFrame start");
+    surfaceTexture.getTransformMatrix(stMatrix);
+
+    GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+    GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
+
+    GLES20.glUseProgram(program);
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+
+    vertices.position(VERTICES_POSITION_OFFSET);
+    GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, VERTICES_STRIDE_BYTES, vertices);
+    GLES20.glEnableVertexAttribArray(positionHandle);
+
+    vertices.position(VERTICES_UV_OFFSET);
+    GLES20.glVertexAttribPointer(textureHandle, 2, GLES20.GL_FLOAT, false, VERTICES_STRIDE_BYTES, vertices);
+    GLES20.glEnableVertexAttribArray(textureHandle);
+
+    GLES20.glUniformMatrix4fv(mvpMatrixHandle, 1, false, mvpMatrix, 0);
+    GLES20.glUniformMatrix4fv(stMatrixHandle, 1, false, stMatrix, 0);
+
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    checkGlError("glDrawArrays");
+    GLES20.glFinish();
+  }
+
+  void release() {
+    GLES20.glDeleteProgram(program);
+    GLES20.glDeleteTextures(1, new int[] {textureId}, 0);
+  }
+
+  static void checkGlError(@NonNull String operation) {
+    int error = GLES20.glGetError();
+
+    if (error != GLES20.GL_NO_ERROR) {
+      throw new IllegalStateException(operation + ": glError " + error);
+    }
+  }
+
+  private int getAttribLocation(@NonNull String name) {
+    int location = GLES20.glGetAttribLocation(program, name);
+
+    if (location == -1) {
+      throw new IllegalStateException("Could not get attrib location for " + name);
+    }
+
+    return location;
+  }
+
+  private int getUniformLocation(@NonNull String name) {
+    int location = GLES20.glGetUniformLocation(program, name);
+
+    if (location == -1) {
+      throw new IllegalStateException("Could not get uniform location for " + name);
+    }
+
+    return location;
+  }
+
+  private static int createProgram(@NonNull String vertexSource, @NonNull String fragmentSource) {
+    int vertexShader   = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+    int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+    int program        = GLES20.glCreateProgram();
+
+    checkGlError("glCreateProgram");
+
+    GLES20.glAttachShader(program, vertexShader);
+    GLES20.glAttachShader(program, fragmentShader);
+    GLES20.glLinkProgram(program);
+
+    int[] linkStatus = new int[1];
+    GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+
+    if (linkStatus[0] != GLES20.GL_TRUE) {
+      String log = GLES20.glGetProgramInfoLog(program);
+      GLES20.glDeleteProgram(program);
+      throw new IllegalStateException("Could not link program: " + log);
+    }
+
+    return program;
+  }
+
+  private static int loadShader(int type, @NonNull String source) {
+    int shader = GLES20.glCreateShader(type);
+    checkGlError("glCreateShader type=" + type);
+
+    GLES20.glShaderSource(shader, source);
+    GLES20.glCompileShader(shader);
+
+    int[] compiled = new int[1];
+    GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+
+    if (compiled[0] == 0) {
+      String log = GLES20.glGetShaderInfoLog(shader);
+      Log.w(TAG, "Could not compile shader " + type + ": " + log);
+      GLES20.glDeleteShader(shader);
+      throw new IllegalStateException("Could not compile shader " + type);
+    }
+
+    return shader;
+  }
+}
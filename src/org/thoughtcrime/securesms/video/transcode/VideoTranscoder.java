@@ -0,0 +1,340 @@
+package org.thoughtcrime.securesms.video.transcode;
+
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Re-encodes a video as H.264 under a size limit, downscaling it and capping its bitrate to fit.
+ * Frames are passed from the decoder to the encoder through GLES surfaces, so only a handful of
+ * codec buffers are ever held in memory, and the audio track is copied through unchanged.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public final class VideoTranscoder {
+
+  private static final String TAG = VideoTranscoder.class.getSimpleName();
+
+  private static final String OUTPUT_MIME_TYPE       = MediaFormat.MIMETYPE_VIDEO_AVC;
+  private static final int    MAX_SHORT_SIDE         = 720;
+  private static final int    MAX_VIDEO_BITRATE      = 2_000_000;
+  private static final int    MIN_VIDEO_BITRATE      = 250_000;
+  private static final int    DEFAULT_AUDIO_BITRATE  = 192_000;
+  private static final int    FRAME_RATE             = 30;
+  private static final int    I_FRAME_INTERVAL       = 1;
+  private static final float  SIZE_MARGIN            = 0.9f;
+  private static final int    DEFAULT_AUDIO_BUFFER   = 256 * 1024;
+  private static final long   TIMEOUT_US             = 10_000;
+
+  public interface Progress {
+    void onProgress(int percent);
+  }
+
+  private final MediaDataSource dataSource;
+  private final long            upperSizeLimit;
+
+  private int outputWidth;
+  private int outputHeight;
+
+  public VideoTranscoder(@NonNull MediaDataSource dataSource, long upperSizeLimit) {
+    this.dataSource     = dataSource;
+    this.upperSizeLimit = upperSizeLimit;
+  }
+
+  public int getOutputWidth() {
+    return outputWidth;
+  }
+
+  public int getOutputHeight() {
+    return outputHeight;
+  }
+
+  public void transcode(@NonNull File output, @Nullable Progress progress) throws IOException {
+    long           startTime      = SystemClock.elapsedRealtime();
+    MediaExtractor videoExtractor = new MediaExtractor();
+    MediaExtractor audioExtractor = new MediaExtractor();
+    MediaCodec     decoder        = null;
+    MediaCodec     encoder        = null;
+    InputSurface   inputSurface   = null;
+    OutputSurface  outputSurface  = null;
+    MediaMuxer     muxer          = null;
+
+    try {
+      videoExtractor.setDataSource(dataSource);
+      audioExtractor.setDataSource(dataSource);
+
+      int videoTrack = findTrack(videoExtractor, "video/");
+      int audioTrack = findTrack(audioExtractor, "audio/");
+
+      if (videoTrack < 0) {
+        throw new IOException("No video track");
+      }
+
+      MediaFormat inputFormat = videoExtractor.getTrackFormat(videoTrack);
+      MediaFormat audioFormat = audioTrack >= 0 ? audioExtractor.getTrackFormat(audioTrack) : null;
+
+      if (!inputFormat.containsKey(MediaFormat.KEY_DURATION)) {
+        throw new IOException("Video has no duration");
+      }
+
+      long durationUs   = inputFormat.getLong(MediaFormat.KEY_DURATION);
+      int  videoBitrate = getVideoBitrate(durationUs, audioFormat);
+      int  rotation     = inputFormat.containsKey(MediaFormat.KEY_ROTATION) ? inputFormat.getInteger(MediaFormat.KEY_ROTATION) : 0;
+
+      setOutputSize(inputFormat.getInteger(MediaFormat.KEY_WIDTH), inputFormat.getInteger(MediaFormat.KEY_HEIGHT));
+
+      Log.i(TAG, "Transcoding " + (durationUs / 1000) + " ms video to " + outputWidth + "x" + outputHeight + " at " + videoBitrate + " bps");
+
+      MediaFormat outputFormat = MediaFormat.createVideoFormat(OUTPUT_MIME_TYPE, outputWidth, outputHeight);
+      outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+      outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, videoBitrate);
+      outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+      outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+
+      encoder = MediaCodec.createEncoderByType(OUTPUT_MIME_TYPE);
+      encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+      inputSurface = new InputSurface(encoder.createInputSurface());
+      inputSurface.makeCurrent();
+      encoder.start();
+
+      outputSurface = new OutputSurface();
+
+      decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+      decoder.configure(inputFormat, outputSurface.getSurface(), null, 0);
+      decoder.start();
+
+      muxer = new MediaMuxer(output.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+      muxer.setOrientationHint(rotation);
+
+      videoExtractor.selectTrack(videoTrack);
+
+      int outputAudioTrack = transcodeVideo(videoExtractor, decoder, encoder, inputSurface, outputSurface, muxer, audioFormat, durationUs, progress);
+
+      if (audioFormat != null) {
+        audioExtractor.selectTrack(audioTrack);
+        copyAudio(audioExtractor, audioFormat, muxer, outputAudioTrack);
+      }
+
+      muxer.stop();
+
+      Log.i(TAG, "Transcoded to " + output.length() + " bytes in " + (SystemClock.elapsedRealtime() - startTime) + " ms");
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      throw new IOException(e);
+    } finally {
+      videoExtractor.release();
+      audioExtractor.release();
+
+      if (decoder != null) {
+        try { decoder.stop(); } catch (IllegalStateException e) { Log.w(TAG, e); }
+        decoder.release();
+      }
+
+      if (encoder != null) {
+        try { encoder.stop(); } catch (IllegalStateException e) { Log.w(TAG, e); }
+        encoder.release();
+      }
+
+      if (outputSurface != null) outputSurface.release();
+      if (inputSurface != null)  inputSurface.release();
+
+      if (muxer != null) {
+        try { muxer.release(); } catch (IllegalStateException e) { Log.w(TAG, e); }
+      }
+    }
+  }
+
+  /**
+   * Drives the extractor, decoder and encoder in lockstep until the encoder reaches the end of the
+   * stream, starting the muxer once the encoder's output format is known.
+   *
+   * @return The muxer's audio track, or -1 if there's no audio.
+   */
+  private int transcodeVideo(@NonNull MediaExtractor extractor,
+                             @NonNull MediaCodec decoder,
+                             @NonNull MediaCodec encoder,
+                             @NonNull InputSurface inputSurface,
+                             @NonNull OutputSurface outputSurface,
+                             @NonNull MediaMuxer muxer,
+                             @Nullable MediaFormat audioFormat,
+                             long durationUs,
+                             @Nullable Progress progress)
+      throws IOException
+  {
+    MediaCodec.BufferInfo decoderInfo = new MediaCodec.BufferInfo();
+    MediaCodec.BufferInfo encoderInfo = new MediaCodec.BufferInfo();
+
+    boolean extractorDone    = false;
+    boolean decoderDone      = false;
+    boolean encoderDone      = false;
+    int     outputVideoTrack = -1;
+    int     outputAudioTrack = -1;
+    int     lastPercent      = -1;
+
+    while (!encoderDone) {
+      if (!extractorDone) {
+        int index = decoder.dequeueInputBuffer(TIMEOUT_US);
+
+        if (index >= 0) {
+          ByteBuffer buffer = decoder.getInputBuffer(index);
+          int        size   = extractor.readSampleData(buffer, 0);
+
+          if (size < 0) {
+            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            extractorDone = true;
+          } else {
+            decoder.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+            extractor.advance();
+          }
+        }
+      }
+
+      if (!decoderDone) {
+        int index = decoder.dequeueOutputBuffer(decoderInfo, TIMEOUT_US);
+
+        if (index >= 0) {
+          boolean render = decoderInfo.size != 0;
+
+          decoder.releaseOutputBuffer(index, render);
+
+          if (render) {
+            outputSurface.awaitNewImage();
+            outputSurface.drawImage();
+            inputSurface.setPresentationTime(decoderInfo.presentationTimeUs * 1000);
+            inputSurface.swapBuffers();
+
+            int percent = durationUs > 0 ? (int) Math.min(100, decoderInfo.presentationTimeUs * 100 / durationUs) : 0;
+
+            if (progress != null && percent != lastPercent) {
+              progress.onProgress(percent);
+              lastPercent = percent;
+            }
+          }
+
+          if ((decoderInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            encoder.signalEndOfInputStream();
+            decoderDone = true;
+          }
+        }
+      }
+
+      int index = encoder.dequeueOutputBuffer(encoderInfo, TIMEOUT_US);
+
+      if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+        if (outputVideoTrack >= 0) {
+          throw new IOException("Encoder output format changed twice");
+        }
+
+        outputVideoTrack = muxer.addTrack(encoder.getOutputFormat());
+
+        if (audioFormat != null) {
+          outputAudioTrack = muxer.addTrack(audioFormat);
+        }
+
+        muxer.start();
+      } else if (index >= 0) {
+        ByteBuffer buffer = encoder.getOutputBuffer(index);
+
+        if ((encoderInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+          encoderInfo.size = 0;
+        }
+
+        if (encoderInfo.size > 0) {
+          if (outputVideoTrack < 0) {
+            throw new IOException("Encoder produced output before its format");
+          }
+
+          muxer.writeSampleData(outputVideoTrack, buffer, encoderInfo);
+        }
+
+        encoder.releaseOutputBuffer(index, false);
+        encoderDone = (encoderInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+      }
+    }
+
+    if (outputVideoTrack < 0) {
+      throw new IOException("Encoder produced no output");
+    }
+
+    return outputAudioTrack;
+  }
+
+  private void copyAudio(@NonNull MediaExtractor extractor, @NonNull MediaFormat format, @NonNull MediaMuxer muxer, int track) {
+    int                   bufferSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE) ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : DEFAULT_AUDIO_BUFFER;
+    ByteBuffer            buffer     = ByteBuffer.allocateDirect(bufferSize);
+    MediaCodec.BufferInfo info       = new MediaCodec.BufferInfo();
+
+    while ((info.size = extractor.readSampleData(buffer, 0)) >= 0) {
+      info.offset             = 0;
+      info.presentationTimeUs = extractor.getSampleTime();
+      info.flags              = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+
+      muxer.writeSampleData(track, buffer, info);
+      extractor.advance();
+    }
+  }
+
+  /**
+   * @return True if a video of the given duration, with an audio track at the default bitrate, can
+   *         be transcoded to fit within the size limit.
+   */
+  public static boolean canFit(long durationUs, long upperSizeLimit) {
+    return getVideoBitrate(durationUs, DEFAULT_AUDIO_BITRATE, upperSizeLimit) >= MIN_VIDEO_BITRATE;
+  }
+
+  private int getVideoBitrate(long durationUs, @Nullable MediaFormat audioFormat) throws IOException {
+    int audioBitrate = 0;
+
+    if (audioFormat != null) {
+      audioBitrate = audioFormat.containsKey(MediaFormat.KEY_BIT_RATE) ? audioFormat.getInteger(MediaFormat.KEY_BIT_RATE) : DEFAULT_AUDIO_BITRATE;
+    }
+
+    long videoBitrate = getVideoBitrate(durationUs, audioBitrate, upperSizeLimit);
+
+    if (videoBitrate < MIN_VIDEO_BITRATE) {
+      throw new IOException("Video is too long to fit in " + upperSizeLimit + " bytes: " + (durationUs / 1000) + " ms");
+    }
+
+    return (int) videoBitrate;
+  }
+
+  private static long getVideoBitrate(long durationUs, int audioBitrate, long upperSizeLimit) {
+    long durationMs   = Math.max(1, durationUs / 1000);
+    long totalBitrate = (long) (upperSizeLimit * 8 * SIZE_MARGIN * 1000 / durationMs);
+
+    return Math.min(MAX_VIDEO_BITRATE, totalBitrate - audioBitrate);
+  }
+
+  private void setOutputSize(int width, int height) {
+    float scale = Math.min(1f, (float) MAX_SHORT_SIDE / Math.min(width, height));
+
+    outputWidth  = Math.max(16, Math.round(width * scale / 16) * 16);
+    outputHeight = Math.max(16, Math.round(height * scale / 16) * 16);
+  }
+
+  private static int findTrack(@NonNull MediaExtractor extractor, @NonNull String mimePrefix) {
+    for (int i = 0; i < extractor.getTrackCount(); i++) {
+      String mimeType = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+
+      if (mimeType != null && mimeType.startsWith(mimePrefix)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+}